@@ -31,6 +31,7 @@ LOCAL_MODULE    := libframesequence
 LOCAL_SRC_FILES := \
 	BitmapDecoderJNI.cpp \
 	FrameSequence.cpp \
+	FrameSequenceCache.cpp \
 	FrameSequenceJNI.cpp \
 	FrameSequence_gif.cpp \
 	FrameSequence_webp.cpp \
@@ -44,3 +45,32 @@ LOCAL_CFLAGS += -fvisibility=hidden
 LOCAL_SDK_VERSION := 8
 
 include $(BUILD_SHARED_LIBRARY)
+
+## Frame draw benchmark, run on a device with an animated file pushed to it
+
+include $(CLEAR_VARS)
+
+LOCAL_STATIC_LIBRARIES += libgif libwebp-decode
+
+LOCAL_LDFLAGS := -llog
+
+LOCAL_C_INCLUDES := \
+	external/giflib \
+	external/webp/include
+
+LOCAL_MODULE    := framesequence_benchmark
+LOCAL_MODULE_TAGS := optional
+LOCAL_SRC_FILES := \
+	FrameSequenceBenchmark.cpp \
+	FrameSequence.cpp \
+	FrameSequence_gif.cpp \
+	FrameSequence_webp.cpp \
+	JNIHelpers.cpp \
+	Registry.cpp \
+	Stream.cpp
+
+LOCAL_CFLAGS += -Wall -Wno-unused-parameter -Wno-unused-variable -Wno-overloaded-virtual
+
+LOCAL_SDK_VERSION := 8
+
+include $(BUILD_EXECUTABLE)
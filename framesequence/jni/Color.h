@@ -20,6 +20,7 @@
 #include <sys/types.h>
 
 typedef uint32_t Color8888;
+typedef uint16_t Color565;
 
 static const Color8888 COLOR_8888_ALPHA_MASK = 0xff000000; // TODO: handle endianness
 static const Color8888 TRANSPARENT = 0x0;
@@ -28,4 +29,34 @@ static const Color8888 TRANSPARENT = 0x0;
 #define ARGB_TO_COLOR8888(a, r, g, b) \
     ((a) << 24 | (b) << 16 | (g) << 8 | (r))
 
+#define RGB_TO_COLOR565(r, g, b) \
+    ((Color565) (((r) >> 3) << 11 | ((g) >> 2) << 5 | ((b) >> 3)))
+
+// Drops the alpha channel and truncates each color channel to 565 precision.
+static inline Color565 color8888To565(Color8888 color) {
+    return RGB_TO_COLOR565(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+}
+
+// 4x4 ordered dither matrix, scaled to the 0-7 rounding error of a 5 bit channel.
+static const uint8_t DITHER_MATRIX_565[4][4] = {
+    { 0, 4, 1, 5 },
+    { 6, 2, 7, 3 },
+    { 1, 5, 0, 4 },
+    { 7, 3, 6, 2 },
+};
+
+static inline uint32_t ditherChannel(uint32_t value, uint32_t threshold) {
+    value += threshold;
+    return value > 0xff ? 0xff : value;
+}
+
+// As color8888To565, but applies an ordered dither based on the pixel's position.
+static inline Color565 color8888To565Dithered(Color8888 color, int x, int y) {
+    const uint32_t threshold = DITHER_MATRIX_565[y & 3][x & 3];
+    // green has one more bit of precision, so only half the rounding error
+    return RGB_TO_COLOR565(ditherChannel(color & 0xff, threshold),
+            ditherChannel((color >> 8) & 0xff, threshold >> 1),
+            ditherChannel((color >> 16) & 0xff, threshold));
+}
+
 #endif // RASTERMILL_COLOR_H
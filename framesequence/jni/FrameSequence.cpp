@@ -23,7 +23,9 @@ FrameSequence* FrameSequence::create(Stream* stream) {
 
     if (!entry) return NULL;
 
-    FrameSequence* frameSequence = entry->createFrameSequence(stream);
+    // Route the decoder's reads through a hash, so caches can be keyed by content
+    HashingStream hashingStream(stream);
+    FrameSequence* frameSequence = entry->createFrameSequence(&hashingStream);
     if (!frameSequence->getFrameCount() ||
             !frameSequence->getWidth() || !frameSequence->getHeight()) {
         // invalid contents, abort
@@ -31,5 +33,6 @@ FrameSequence* FrameSequence::create(Stream* stream) {
         return NULL;
     }
 
+    frameSequence->mContentHash = hashingStream.getHash();
     return frameSequence;
 }
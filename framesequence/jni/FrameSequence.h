@@ -31,6 +31,23 @@ public:
      */
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr) = 0;
+
+    /**
+     * As drawFrame, but produces RGB_565 pixels directly, optionally with ordered dithering.
+     *
+     * Only valid for opaque frame sequences. The output buffer must always be drawn in the same
+     * format for previousFrameNr to be meaningful.
+     */
+    virtual long drawFrame565(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither) = 0;
+
+    /**
+     * Enables or disables the on-disk frame cache, for states that have one. While disabled,
+     * frames are drawn without touching the disk, so that they may be drawn on the UI thread.
+     * Enabled by default.
+     */
+    virtual void setCacheEnabled(bool enabled) {}
+
     virtual ~FrameSequenceState() {}
 };
 
@@ -43,6 +60,7 @@ public:
      */
     static FrameSequence* create(Stream* stream);
 
+    FrameSequence() : mContentHash(0) {}
     virtual ~FrameSequence() {}
     virtual int getWidth() const = 0;
     virtual int getHeight() const = 0;
@@ -51,6 +69,20 @@ public:
     virtual int getDefaultLoopCount() const = 0;
 
     virtual FrameSequenceState* createState() const = 0;
+
+    /**
+     * Returns true if frameNr can be drawn without drawing any frame before it, so that
+     * rendering may be split into independent segments starting at such frames.
+     */
+    virtual bool isKeyFrame(int frameNr) const = 0;
+
+    /**
+     * Returns a 64-bit hash of the encoded bytes the sequence was created from.
+     */
+    uint64_t getContentHash() const { return mContentHash; }
+
+private:
+    uint64_t mContentHash;
 };
 
 #endif //RASTERMILL_FRAME_SEQUENCE_H
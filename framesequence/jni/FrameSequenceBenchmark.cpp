@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times drawFrame() over every frame of an animation, stepping through it the way
+// FrameSequenceDrawable does, and prints the latency per drawn frame.
+//
+// usage: framesequence_benchmark file.webp [loops]
+//
+// As in the drawable, frames are drawn in order into two canvas sized buffers in turn, so each
+// buffer holds the frame before last, which is passed as the previous frame number. Frame 0 and 1
+// of every loop are drawn with nothing usable in the buffer. The checksum covers every drawn
+// frame, so builds that must draw identically (with and without NEON, say) can be compared by it.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include "Color.h"
+#include "FrameSequence.h"
+#include "Stream.h"
+
+static int64_t currentTimeUs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
+
+// FNV-1a, continued from 'hash'.
+static uint64_t hashPixels(uint64_t hash, const Color8888* pixels, size_t count) {
+    const uint8_t* bytes = reinterpret_cast<const uint8_t*>(pixels);
+    for (size_t i = 0; i < count * sizeof(Color8888); i++) {
+        hash = (hash ^ bytes[i]) * 0x100000001b3ULL;
+    }
+    return hash;
+}
+
+static int compareTimes(const void* lhs, const void* rhs) {
+    int64_t l = *(const int64_t*) lhs;
+    int64_t r = *(const int64_t*) rhs;
+    return l < r ? -1 : (l > r ? 1 : 0);
+}
+
+int main(int argc, char** argv) {
+    if (argc < 2 || argc > 3) {
+        fprintf(stderr, "usage: %s file.webp [loops]\n", argv[0]);
+        return 1;
+    }
+    const int loops = argc > 2 ? atoi(argv[2]) : 10;
+
+    FILE* file = fopen(argv[1], "rb");
+    if (!file) {
+        fprintf(stderr, "cannot open %s\n", argv[1]);
+        return 1;
+    }
+    FileStream stream(file);
+    FrameSequence* frameSequence = FrameSequence::create(&stream);
+    fclose(file);
+    if (!frameSequence) {
+        fprintf(stderr, "cannot decode %s\n", argv[1]);
+        return 1;
+    }
+
+    const int width = frameSequence->getWidth();
+    const int height = frameSequence->getHeight();
+    const int frameCount = frameSequence->getFrameCount();
+    int keyFrameCount = 0;
+    for (int i = 0; i < frameCount; i++) {
+        if (frameSequence->isKeyFrame(i)) keyFrameCount++;
+    }
+
+    const int count = loops * frameCount;
+    if (count <= 0) {
+        fprintf(stderr, "nothing to draw\n");
+        return 1;
+    }
+    const size_t pixelCount = width * height;
+    Color8888* buffers[2] = { new Color8888[pixelCount], new Color8888[pixelCount] };
+    int64_t* drawTimesUs = new int64_t[count];
+    uint64_t checksum = 0xcbf29ce484222325ULL;
+
+    FrameSequenceState* state = frameSequence->createState();
+    for (int i = 0; i < count; i++) {
+        const int frameNr = i % frameCount;
+        Color8888* pixels = buffers[i % 2];
+        const int64_t startUs = currentTimeUs();
+        state->drawFrame(frameNr, pixels, width, frameNr - 2);
+        drawTimesUs[i] = currentTimeUs() - startUs;
+        checksum = hashPixels(checksum, pixels, pixelCount);
+    }
+    delete state;
+    delete frameSequence;
+    delete[] buffers[0];
+    delete[] buffers[1];
+
+    int64_t totalUs = 0;
+    for (int i = 0; i < count; i++) {
+        totalUs += drawTimesUs[i];
+    }
+    qsort(drawTimesUs, count, sizeof(int64_t), compareTimes);
+
+    printf("%dx%d, %d frames (%d key frames), %d loops\n",
+            width, height, frameCount, keyFrameCount, loops);
+    printf("drawFrame us: mean %lld, p50 %lld, p95 %lld, max %lld\n",
+            (long long) (totalUs / count), (long long) drawTimesUs[count / 2],
+            (long long) drawTimesUs[count * 95 / 100], (long long) drawTimesUs[count - 1]);
+    printf("checksum %016llx\n", (unsigned long long) checksum);
+    delete[] drawTimesUs;
+    return 0;
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "FrameSequenceCache"
+
+#include "FrameSequenceCache.h"
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/file.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "utils/log.h"
+
+#define FRAME_CACHE_MAGIC 0x43464d52 // "RMFC"
+#define FRAME_CACHE_VERSION 1
+#define FRAME_CACHE_SUFFIX ".rmfc"
+#define FRAME_CACHE_TEMP_SUFFIX FRAME_CACHE_SUFFIX ".tmp"
+
+static bool writeFully(int fd, const void* data, size_t size) {
+    const char* bytes = (const char*) data;
+    while (size > 0) {
+        ssize_t written = write(fd, bytes, size);
+        if (written < 0) {
+            if (errno == EINTR) continue;
+            return false;
+        }
+        bytes += written;
+        size -= written;
+    }
+    return true;
+}
+
+static size_t entriesOffset() {
+    return sizeof(FrameCacheHeader);
+}
+
+static size_t dataOffset(int frameCount) {
+    return sizeof(FrameCacheHeader) + frameCount * sizeof(FrameCacheEntry);
+}
+
+static bool endsWith(const char* name, const char* suffix) {
+    size_t nameLen = strlen(name);
+    size_t suffixLen = strlen(suffix);
+    return nameLen >= suffixLen && !strcmp(name + nameLen - suffixLen, suffix);
+}
+
+struct CacheFile {
+    char path[PATH_MAX];
+    off_t size;
+    time_t lastUsed;
+};
+
+static int compareLastUsed(const void* lhs, const void* rhs) {
+    time_t l = ((const CacheFile*) lhs)->lastUsed;
+    time_t r = ((const CacheFile*) rhs)->lastUsed;
+    return l < r ? -1 : (l > r ? 1 : 0);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence state
+////////////////////////////////////////////////////////////////////////////////
+
+FrameSequenceState_cached::FrameSequenceState_cached(const FrameSequence& frameSequence,
+        FrameSequenceState* state, const char* cacheDir, off_t maxBytes) :
+        mFrameSequence(frameSequence), mState(state), mCacheDir(strdup(cacheDir)),
+        mMaxBytes(maxBytes), mCacheEnabled(true), mMode(CACHE_UNOPENED), mBytesPerPixel(0), mDither(false),
+        mStateStale(false), mMapping(NULL), mMappingSize(0), mMappedEntries(NULL),
+        mWriteFd(-1), mPath(NULL), mTempPath(NULL), mWriteOffset(0), mWrittenFrameCount(0),
+        mEntries(NULL), mLastFrame(NULL) {
+}
+
+FrameSequenceState_cached::~FrameSequenceState_cached() {
+    if (mMode == CACHE_WRITING) {
+        abandonWriting();
+    }
+    if (mMapping) {
+        munmap(mMapping, mMappingSize);
+    }
+    free(mCacheDir);
+    delete mState;
+}
+
+long FrameSequenceState_cached::drawFrame(int frameNr,
+        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride * sizeof(Color8888),
+            sizeof(Color8888), previousFrameNr, false);
+}
+
+long FrameSequenceState_cached::drawFrame565(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride * sizeof(Color565),
+            sizeof(Color565), previousFrameNr, dither);
+}
+
+void FrameSequenceState_cached::setCacheEnabled(bool enabled) {
+    mCacheEnabled = enabled;
+}
+
+long FrameSequenceState_cached::drawFrameImpl(int frameNr, void* outputPtr,
+        int outputByteStride, int bytesPerPixel, int previousFrameNr, bool dither) {
+    if (!mCacheEnabled) {
+        // a frame recorded now would be missing from the file, so only decode
+        return decodeFrame(frameNr, outputPtr, outputByteStride, bytesPerPixel,
+                previousFrameNr, dither);
+    }
+
+    if (mMode == CACHE_UNOPENED) {
+        openCache(bytesPerPixel, dither);
+    }
+
+    if (mMode == CACHE_DISABLED || bytesPerPixel != mBytesPerPixel || dither != mDither) {
+        return decodeFrame(frameNr, outputPtr, outputByteStride, bytesPerPixel,
+                previousFrameNr, dither);
+    }
+
+    if (mMode == CACHE_READING) {
+        return readFrame(frameNr, outputPtr, outputByteStride, previousFrameNr);
+    }
+
+    long delayMs = decodeFrame(frameNr, outputPtr, outputByteStride, bytesPerPixel,
+            previousFrameNr, dither);
+    appendFrame(frameNr, outputPtr, outputByteStride, delayMs);
+    return delayMs;
+}
+
+long FrameSequenceState_cached::decodeFrame(int frameNr, void* outputPtr,
+        int outputByteStride, int bytesPerPixel, int previousFrameNr, bool dither) {
+    if (mStateStale) {
+        // the wrapped state didn't see frames copied from the cache, so start it from scratch
+        previousFrameNr = -1;
+        mStateStale = false;
+    }
+    if (bytesPerPixel == sizeof(Color565)) {
+        return mState->drawFrame565(frameNr, (Color565*) outputPtr,
+                outputByteStride / sizeof(Color565), previousFrameNr, dither);
+    }
+    return mState->drawFrame(frameNr, (Color8888*) outputPtr,
+            outputByteStride / sizeof(Color8888), previousFrameNr);
+}
+
+long FrameSequenceState_cached::readFrame(int frameNr, void* outputPtr,
+        int outputByteStride, int previousFrameNr) {
+    const size_t rowBytes = mFrameSequence.getWidth() * mBytesPerPixel;
+
+    // replay row deltas forward from the frame already in the buffer, or from frame 0
+    int firstFrame = 0;
+    if (previousFrameNr >= 0 && previousFrameNr < frameNr) {
+        firstFrame = previousFrameNr + 1;
+    }
+    for (int i = firstFrame; i <= frameNr; i++) {
+        const FrameCacheEntry& entry = mMappedEntries[i];
+        const uint8_t* src = mMapping + entry.offset;
+        uint8_t* dst = (uint8_t*) outputPtr + entry.top * outputByteStride;
+        for (int y = 0; y < entry.rowCount; y++) {
+            memcpy(dst, src, rowBytes);
+            src += rowBytes;
+            dst += outputByteStride;
+        }
+    }
+    mStateStale = true;
+    return mMappedEntries[frameNr].delayMs;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Cache file management
+////////////////////////////////////////////////////////////////////////////////
+
+void FrameSequenceState_cached::openCache(int bytesPerPixel, bool dither) {
+    mBytesPerPixel = bytesPerPixel;
+    mDither = dither && bytesPerPixel == sizeof(Color565);
+    mMode = CACHE_DISABLED;
+
+    char path[PATH_MAX];
+    int len = snprintf(path, sizeof(path), "%s/%016llx-%dx%d-%d%s" FRAME_CACHE_SUFFIX, mCacheDir,
+            (unsigned long long) mFrameSequence.getContentHash(),
+            mFrameSequence.getWidth(), mFrameSequence.getHeight(),
+            bytesPerPixel * 8, mDither ? "d" : "");
+    if (len <= 0 || len >= (int) sizeof(path) - 4) {
+        ALOGW("Frame cache path too long");
+        return;
+    }
+
+    if (mapCacheFile(path)) {
+        // reading counts as use, so that the file is evicted last
+        utimes(path, NULL);
+        mMode = CACHE_READING;
+    } else if (beginWriting(path)) {
+        mMode = CACHE_WRITING;
+    }
+}
+
+bool FrameSequenceState_cached::mapCacheFile(const char* path) {
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) return false;
+
+    struct stat st;
+    void* mapping = MAP_FAILED;
+    if (fstat(fd, &st) == 0 && st.st_size >= (off_t) sizeof(FrameCacheHeader)) {
+        mapping = mmap(NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    }
+    close(fd);
+    if (mapping == MAP_FAILED) return false;
+
+    const size_t size = st.st_size;
+    const FrameCacheHeader* header = (const FrameCacheHeader*) mapping;
+    const int width = mFrameSequence.getWidth();
+    const int height = mFrameSequence.getHeight();
+    const int frameCount = mFrameSequence.getFrameCount();
+    bool valid = header->magic == FRAME_CACHE_MAGIC
+            && header->version == FRAME_CACHE_VERSION
+            && header->contentHash == mFrameSequence.getContentHash()
+            && header->width == width
+            && header->height == height
+            && header->frameCount == frameCount
+            && header->bytesPerPixel == mBytesPerPixel
+            && header->dither == (mDither ? 1 : 0)
+            && size >= dataOffset(frameCount);
+
+    const FrameCacheEntry* entries =
+            (const FrameCacheEntry*) ((const uint8_t*) mapping + entriesOffset());
+    const size_t rowBytes = width * mBytesPerPixel;
+    for (int i = 0; valid && i < frameCount; i++) {
+        const FrameCacheEntry& entry = entries[i];
+        valid = entry.top >= 0 && entry.rowCount >= 0
+                && entry.top + entry.rowCount <= height
+                && (i > 0 || (entry.top == 0 && entry.rowCount == height))
+                && entry.offset <= size
+                && entry.rowCount * rowBytes <= size - entry.offset;
+    }
+
+    if (!valid) {
+        ALOGW("Discarding invalid frame cache %s", path);
+        munmap(mapping, size);
+        unlink(path);
+        return false;
+    }
+
+    mMapping = (uint8_t*) mapping;
+    mMappingSize = size;
+    mMappedEntries = entries;
+    return true;
+}
+
+bool FrameSequenceState_cached::beginWriting(const char* path) {
+    const int frameCount = mFrameSequence.getFrameCount();
+    const size_t frameBytes =
+            mFrameSequence.getWidth() * mFrameSequence.getHeight() * mBytesPerPixel;
+    if ((off_t) (dataOffset(frameCount) + frameBytes) > mMaxBytes) {
+        // even the first frame won't fit
+        return false;
+    }
+
+    size_t pathLen = strlen(path);
+    char* tempPath = (char*) malloc(pathLen + 5);
+    memcpy(tempPath, path, pathLen);
+    memcpy(tempPath + pathLen, ".tmp", 5);
+
+    int fd = open(tempPath, O_RDWR | O_CREAT, 0600);
+    if (fd < 0) {
+        free(tempPath);
+        return false;
+    }
+    // Only one state may record a given cache; the lock is released if its process dies
+    if (flock(fd, LOCK_EX | LOCK_NB) != 0
+            || ftruncate(fd, 0) != 0
+            || lseek(fd, dataOffset(frameCount), SEEK_SET) < 0) {
+        close(fd);
+        free(tempPath);
+        return false;
+    }
+
+    mWriteFd = fd;
+    mPath = strdup(path);
+    mTempPath = tempPath;
+    mWriteOffset = dataOffset(frameCount);
+    mWrittenFrameCount = 0;
+    mEntries = new FrameCacheEntry[frameCount];
+    memset(mEntries, 0, frameCount * sizeof(FrameCacheEntry));
+    mLastFrame = new uint8_t[frameBytes];
+    return true;
+}
+
+void FrameSequenceState_cached::appendFrame(int frameNr, const void* outputPtr,
+        int outputByteStride, long delayMs) {
+    // Frames are only recorded in sequence order, each as a delta against the one before
+    if (frameNr != mWrittenFrameCount) return;
+
+    const int height = mFrameSequence.getHeight();
+    const size_t rowBytes = mFrameSequence.getWidth() * mBytesPerPixel;
+    const uint8_t* output = (const uint8_t*) outputPtr;
+
+    int top = 0;
+    int bottom = height;
+    if (frameNr > 0) {
+        while (top < height && !memcmp(output + top * outputByteStride,
+                mLastFrame + top * rowBytes, rowBytes)) {
+            top++;
+        }
+        while (bottom > top && !memcmp(output + (bottom - 1) * outputByteStride,
+                mLastFrame + (bottom - 1) * rowBytes, rowBytes)) {
+            bottom--;
+        }
+    }
+
+    if (mWriteOffset + (off_t) ((bottom - top) * rowBytes) > mMaxBytes) {
+        ALOGW("Frame cache would exceed %ld bytes, abandoning", (long) mMaxBytes);
+        abandonWriting();
+        return;
+    }
+
+    FrameCacheEntry& entry = mEntries[frameNr];
+    entry.offset = mWriteOffset;
+    entry.top = top;
+    entry.rowCount = bottom - top;
+    entry.delayMs = delayMs;
+    for (int y = top; y < bottom; y++) {
+        const uint8_t* row = output + y * outputByteStride;
+        if (!writeFully(mWriteFd, row, rowBytes)) {
+            ALOGW("Failed to write frame cache: %s", strerror(errno));
+            abandonWriting();
+            return;
+        }
+        memcpy(mLastFrame + y * rowBytes, row, rowBytes);
+    }
+    mWriteOffset += entry.rowCount * rowBytes;
+    mWrittenFrameCount++;
+
+    if (mWrittenFrameCount == mFrameSequence.getFrameCount()) {
+        if (finishWriting()) {
+            // later loops, and later states, draw from the mapping
+            mMode = mapCacheFile(mPath) ? CACHE_READING : CACHE_DISABLED;
+            // the wrapped state is still current with the output until a frame is read
+            mStateStale = false;
+            trimDirectory(mPath);
+        }
+        free(mPath);
+        mPath = NULL;
+    }
+}
+
+bool FrameSequenceState_cached::finishWriting() {
+    const int frameCount = mFrameSequence.getFrameCount();
+    FrameCacheHeader header;
+    memset(&header, 0, sizeof(header));
+    header.magic = FRAME_CACHE_MAGIC;
+    header.version = FRAME_CACHE_VERSION;
+    header.contentHash = mFrameSequence.getContentHash();
+    header.width = mFrameSequence.getWidth();
+    header.height = mFrameSequence.getHeight();
+    header.frameCount = frameCount;
+    header.bytesPerPixel = mBytesPerPixel;
+    header.dither = mDither ? 1 : 0;
+
+    // entries go down before the header, so the header marks the file complete
+    bool success = lseek(mWriteFd, entriesOffset(), SEEK_SET) >= 0
+            && writeFully(mWriteFd, mEntries, frameCount * sizeof(FrameCacheEntry))
+            && fsync(mWriteFd) == 0
+            && lseek(mWriteFd, 0, SEEK_SET) >= 0
+            && writeFully(mWriteFd, &header, sizeof(header))
+            && fsync(mWriteFd) == 0
+            && rename(mTempPath, mPath) == 0;
+    if (!success) {
+        ALOGW("Failed to complete frame cache: %s", strerror(errno));
+        abandonWriting();
+        return false;
+    }
+
+    close(mWriteFd);
+    mWriteFd = -1;
+    free(mTempPath);
+    mTempPath = NULL;
+    delete[] mEntries;
+    mEntries = NULL;
+    delete[] mLastFrame;
+    mLastFrame = NULL;
+    return true;
+}
+
+void FrameSequenceState_cached::abandonWriting() {
+    if (mWriteFd >= 0) {
+        unlink(mTempPath);
+        close(mWriteFd);
+        mWriteFd = -1;
+    }
+    free(mTempPath);
+    mTempPath = NULL;
+    free(mPath);
+    mPath = NULL;
+    delete[] mEntries;
+    mEntries = NULL;
+    delete[] mLastFrame;
+    mLastFrame = NULL;
+    mMode = CACHE_DISABLED;
+}
+
+/**
+ * Deletes the least recently used cache files, other than keepPath, until the rest fit in
+ * mMaxBytes, along with temporary files whose writer has died.
+ */
+void FrameSequenceState_cached::trimDirectory(const char* keepPath) {
+    DIR* dir = opendir(mCacheDir);
+    if (!dir) return;
+
+    CacheFile* files = NULL;
+    int fileCount = 0;
+    int fileCapacity = 0;
+    off_t totalSize = 0;
+    struct dirent* dirEntry;
+    while ((dirEntry = readdir(dir)) != NULL) {
+        char path[PATH_MAX];
+        int len = snprintf(path, sizeof(path), "%s/%s", mCacheDir, dirEntry->d_name);
+        if (len <= 0 || len >= (int) sizeof(path)) continue;
+
+        if (endsWith(dirEntry->d_name, FRAME_CACHE_TEMP_SUFFIX)) {
+            // a live writer holds the lock, so getting it means the file was abandoned
+            int fd = open(path, O_RDWR);
+            if (fd >= 0) {
+                if (flock(fd, LOCK_EX | LOCK_NB) == 0) unlink(path);
+                close(fd);
+            }
+            continue;
+        }
+
+        struct stat st;
+        if (!endsWith(dirEntry->d_name, FRAME_CACHE_SUFFIX) || !strcmp(path, keepPath)
+                || stat(path, &st) != 0) {
+            continue;
+        }
+        if (fileCount == fileCapacity) {
+            fileCapacity = fileCapacity ? fileCapacity * 2 : 16;
+            CacheFile* grown = (CacheFile*) realloc(files, fileCapacity * sizeof(CacheFile));
+            if (!grown) break;
+            files = grown;
+        }
+        CacheFile& file = files[fileCount++];
+        memcpy(file.path, path, len + 1);
+        file.size = st.st_size;
+        file.lastUsed = st.st_mtime;
+        totalSize += st.st_size;
+    }
+    closedir(dir);
+
+    struct stat keepStat;
+    if (stat(keepPath, &keepStat) == 0) {
+        totalSize += keepStat.st_size;
+    }
+
+    // states still reading an evicted file keep their mapping of it
+    qsort(files, fileCount, sizeof(CacheFile), compareLastUsed);
+    for (int i = 0; i < fileCount && totalSize > mMaxBytes; i++) {
+        if (unlink(files[i].path) == 0) {
+            totalSize -= files[i].size;
+        } else {
+            ALOGW("Failed to evict frame cache %s: %s", files[i].path, strerror(errno));
+        }
+    }
+    free(files);
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_FRAMESEQUENCE_CACHE_H
+#define RASTERMILL_FRAMESEQUENCE_CACHE_H
+
+#include <stdint.h>
+#include <sys/types.h>
+
+#include "Color.h"
+#include "FrameSequence.h"
+
+/**
+ * On-disk layout of a decoded frame cache file.
+ *
+ * The file starts with a FrameCacheHeader, followed by one FrameCacheEntry per frame, followed
+ * by the frame data. Frame 0 is stored in full; every later frame stores only the band of rows
+ * [top, top + rowCount) that differ from the frame before it. Rows are tightly packed, at
+ * width * bytesPerPixel bytes each.
+ *
+ * The header is written last, so a file with a valid header is always complete.
+ */
+struct FrameCacheHeader {
+    uint32_t magic;
+    uint32_t version;
+    uint64_t contentHash;
+    int32_t width;
+    int32_t height;
+    int32_t frameCount;
+    int32_t bytesPerPixel;
+    int32_t dither;
+    int32_t reserved;
+};
+
+struct FrameCacheEntry {
+    uint64_t offset;
+    int32_t top;
+    int32_t rowCount;
+    int32_t delayMs;
+    int32_t reserved;
+};
+
+/**
+ * Wraps another FrameSequenceState, recording the frames it produces into a file keyed by the
+ * sequence's content hash. Once every frame has been recorded, frames are copied out of a
+ * read-only mapping of that file instead of being decoded.
+ *
+ * The cache is bound to the pixel format (and dither setting) of the first frame drawn with it
+ * enabled; frames requested in any other format bypass it.
+ *
+ * maxBytes bounds the whole directory. Each file that is completed evicts the least recently
+ * used others until the rest fit.
+ */
+class FrameSequenceState_cached : public FrameSequenceState {
+public:
+    // Takes ownership of state
+    FrameSequenceState_cached(const FrameSequence& frameSequence, FrameSequenceState* state,
+            const char* cacheDir, off_t maxBytes);
+    virtual ~FrameSequenceState_cached();
+
+    virtual long drawFrame(int frameNr,
+            Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+
+    virtual long drawFrame565(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither);
+
+    virtual void setCacheEnabled(bool enabled);
+
+private:
+    enum CacheMode {
+        CACHE_UNOPENED,
+        CACHE_WRITING,
+        CACHE_READING,
+        CACHE_DISABLED
+    };
+
+    long drawFrameImpl(int frameNr, void* outputPtr, int outputByteStride, int bytesPerPixel,
+            int previousFrameNr, bool dither);
+    long decodeFrame(int frameNr, void* outputPtr, int outputByteStride, int bytesPerPixel,
+            int previousFrameNr, bool dither);
+    long readFrame(int frameNr, void* outputPtr, int outputByteStride, int previousFrameNr);
+
+    void openCache(int bytesPerPixel, bool dither);
+    bool mapCacheFile(const char* path);
+    bool beginWriting(const char* path);
+    void appendFrame(int frameNr, const void* outputPtr, int outputByteStride, long delayMs);
+    bool finishWriting();
+    void abandonWriting();
+    void trimDirectory(const char* keepPath);
+
+    const FrameSequence& mFrameSequence;
+    FrameSequenceState* mState;
+    char* mCacheDir;
+    off_t mMaxBytes;
+
+    bool mCacheEnabled;
+    CacheMode mMode;
+    int mBytesPerPixel;
+    bool mDither;
+    // true once a frame was copied from the cache, leaving mState's view of the output stale
+    bool mStateStale;
+
+    // CACHE_READING
+    uint8_t* mMapping;
+    size_t mMappingSize;
+    const FrameCacheEntry* mMappedEntries;
+
+    // CACHE_WRITING
+    int mWriteFd;
+    char* mPath;
+    char* mTempPath;
+    off_t mWriteOffset;
+    int mWrittenFrameCount;
+    FrameCacheEntry* mEntries;
+    // full copy of the last frame written, for finding the rows the next one changes
+    uint8_t* mLastFrame;
+};
+
+#endif //RASTERMILL_FRAMESEQUENCE_CACHE_H
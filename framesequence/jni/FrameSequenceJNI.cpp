@@ -18,6 +18,7 @@
 #include "JNIHelpers.h"
 #include "utils/log.h"
 #include "FrameSequence.h"
+#include "FrameSequenceCache.h"
 
 #include "FrameSequenceJNI.h"
 
@@ -72,9 +73,24 @@ static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
     delete frameSequence;
 }
 
-static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
+static jboolean nativeIsKeyFrame(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint frameNr) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->isKeyFrame(frameNr);
+}
+
+static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jstring cacheDir, jlong cacheMaxBytes) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
     FrameSequenceState* state = frameSequence->createState();
+    if (state && cacheDir) {
+        const char* cacheDirChars = env->GetStringUTFChars(cacheDir, NULL);
+        if (cacheDirChars) {
+            state = new FrameSequenceState_cached(*frameSequence, state, cacheDirChars,
+                    (off_t) cacheMaxBytes);
+            env->ReleaseStringUTFChars(cacheDir, cacheDirChars);
+        }
+    }
     return reinterpret_cast<jlong>(state);
 }
 
@@ -89,9 +105,16 @@ static void nativeDestroyState(
     delete frameSequenceState;
 }
 
+static void nativeSetFrameCacheEnabled(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jboolean enabled) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    frameSequenceState->setCacheEnabled(enabled);
+}
+
 static jlong JNICALL nativeGetFrame(
         JNIEnv* env, jobject clazz, jlong frameSequenceStateLong, jint frameNr,
-        jobject bitmap, jint previousFrameNr) {
+        jobject bitmap, jint previousFrameNr, jboolean dither) {
     FrameSequenceState* frameSequenceState =
             reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
     int ret;
@@ -110,9 +133,16 @@ static jlong JNICALL nativeGetFrame(
         return 0;
     }
 
-    int pixelStride = info.stride >> 2;
-    jlong delayMs = frameSequenceState->drawFrame(frameNr,
-            (Color8888*) pixels, pixelStride, previousFrameNr);
+    jlong delayMs;
+    if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
+        int pixelStride = info.stride >> 1;
+        delayMs = frameSequenceState->drawFrame565(frameNr,
+                (Color565*) pixels, pixelStride, previousFrameNr, dither);
+    } else {
+        int pixelStride = info.stride >> 2;
+        delayMs = frameSequenceState->drawFrame(frameNr,
+                (Color8888*) pixels, pixelStride, previousFrameNr);
+    }
 
     AndroidBitmap_unlockPixels(env, bitmap);
     return delayMs;
@@ -131,18 +161,26 @@ static JNINativeMethod gMethods[] = {
         "(J)V",
         (void*) nativeDestroyFrameSequence
     },
+    {   "nativeIsKeyFrame",
+        "(JI)Z",
+        (void*) nativeIsKeyFrame
+    },
     {   "nativeCreateState",
-        "(J)J",
+        "(JLjava/lang/String;J)J",
         (void*) nativeCreateState
     },
     {   "nativeGetFrame",
-        "(JILandroid/graphics/Bitmap;I)J",
+        "(JILandroid/graphics/Bitmap;IZ)J",
         (void*) nativeGetFrame
     },
     {   "nativeDestroyState",
         "(J)V",
         (void*) nativeDestroyState
     },
+    {   "nativeSetFrameCacheEnabled",
+        "(JZ)V",
+        (void*) nativeSetFrameCacheEnabled
+    },
 };
 
 jint FrameSequence_OnLoad(JNIEnv* env) {
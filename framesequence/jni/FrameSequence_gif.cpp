@@ -49,12 +49,19 @@ static bool willBeCleared(const GraphicsControlBlock& gcb) {
     return gcb.DisposalMode == DISPOSE_BACKGROUND || gcb.DisposalMode == DISPOSE_PREVIOUS;
 }
 
+static bool coversCanvas(const GifImageDesc& imageDesc, int width, int height) {
+    return imageDesc.Left <= 0 && imageDesc.Top <= 0
+            && imageDesc.Left + imageDesc.Width >= width
+            && imageDesc.Top + imageDesc.Height >= height;
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequence_gif::FrameSequence_gif(Stream* stream) :
-        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL) {
+        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL),
+        mKeyFrames(NULL) {
     mGif = DGifOpen(stream, streamReader, NULL);
     if (!mGif) {
         ALOGW("Gif load failed");
@@ -110,13 +117,45 @@ FrameSequence_gif::FrameSequence_gif(Stream* stream) :
         }
     }
 
+    // key frame logic - a frame is independent of earlier ones if it paints over the whole
+    // canvas, or if the frame before it cleared the whole canvas...
+    mKeyFrames = new bool[mGif->ImageCount];
+    GraphicsControlBlock prevGcb;
+    for (int i = 0; i < mGif->ImageCount; i++) {
+        DGifSavedExtensionToGCB(mGif, i, &gcb);
+        if (i == 0) {
+            mKeyFrames[i] = true;
+        } else if (gcb.DisposalMode == DISPOSE_PREVIOUS) {
+            mKeyFrames[i] = false;
+        } else {
+            const GifImageDesc& imageDesc = mGif->SavedImages[i].ImageDesc;
+            const GifImageDesc& prevImageDesc = mGif->SavedImages[i - 1].ImageDesc;
+            mKeyFrames[i] = (gcb.TransparentColor == NO_TRANSPARENT_COLOR
+                            && coversCanvas(imageDesc, mGif->SWidth, mGif->SHeight))
+                    || (prevGcb.DisposalMode == DISPOSE_BACKGROUND
+                            && coversCanvas(prevImageDesc, mGif->SWidth, mGif->SHeight));
+        }
+        prevGcb = gcb;
+    }
+    // ...and no later DISPOSE_PREVIOUS frame restores a frame from before it
+    int earliestRestored = mGif->ImageCount;
+    for (int i = mGif->ImageCount - 1; i > 0; i--) {
+        if (mRestoringFrames[i] >= 0) {
+            earliestRestored = min(earliestRestored, mRestoringFrames[i]);
+        }
+        if (earliestRestored < i) {
+            mKeyFrames[i] = false;
+        }
+    }
+
 #if GIF_DEBUG
     ALOGD("FrameSequence_gif created with size %d %d, frames %d dur %ld",
             mGif->SWidth, mGif->SHeight, mGif->ImageCount, durationMs);
     for (int i = 0; i < mGif->ImageCount; i++) {
         DGifSavedExtensionToGCB(mGif, i, &gcb);
-        ALOGD("    Frame %d - must preserve %d, restore point %d, trans color %d",
-                i, mPreservedFrames[i], mRestoringFrames[i], gcb.TransparentColor);
+        ALOGD("    Frame %d - must preserve %d, restore point %d, trans color %d, key frame %d",
+                i, mPreservedFrames[i], mRestoringFrames[i], gcb.TransparentColor,
+                mKeyFrames[i]);
     }
 #endif
 
@@ -136,6 +175,7 @@ FrameSequence_gif::~FrameSequence_gif() {
     }
     delete[] mPreservedFrames;
     delete[] mRestoringFrames;
+    delete[] mKeyFrames;
 }
 
 FrameSequenceState* FrameSequence_gif::createState() const {
@@ -154,18 +194,47 @@ static bool checkIfCover(const GifImageDesc& target, const GifImageDesc& covered
             && covered.Top + covered.Height <= target.Top + target.Height;
 }
 
-static void copyLine(Color8888* dst, const unsigned char* src, const ColorMapObject* cmap,
-                     int transparent, int width) {
-    for (; width > 0; width--, src++, dst++) {
+// Expands a gif color map into a full 256 entry table, so raster bytes can be used as indices
+// without bounds checks. Entries missing from a (corrupt) color map are opaque black.
+static void buildColorTable(Color8888* colorTable, const ColorMapObject* cmap) {
+    const int colorCount = cmap ? min(cmap->ColorCount, 256) : 0;
+    for (int i = 0; i < colorCount; i++) {
+        colorTable[i] = gifColorToColor8888(cmap->Colors[i]);
+    }
+    for (int i = colorCount; i < 256; i++) {
+        colorTable[i] = ARGB_TO_COLOR8888(0xff, 0, 0, 0);
+    }
+}
+
+static inline void storePixel(Color8888* dst, Color8888 color, int x, int y, bool dither) {
+    *dst = color;
+}
+
+static inline void storePixel(Color565* dst, Color8888 color, int x, int y, bool dither) {
+    *dst = dither ? color8888To565Dithered(color, x, y) : color8888To565(color);
+}
+
+template <typename Pixel>
+static void copyLine(Pixel* dst, const unsigned char* src, const Color8888* colorTable,
+        int transparent, int width, int x, int y, bool dither) {
+    if (transparent == NO_TRANSPARENT_COLOR) {
+        // every pixel of the frame is drawn, so skip the per pixel transparency check
+        for (; width > 0; width--, src++, dst++, x++) {
+            storePixel(dst, colorTable[*src], x, y, dither);
+        }
+        return;
+    }
+    for (; width > 0; width--, src++, dst++, x++) {
         if (*src != transparent) {
-            *dst = gifColorToColor8888(cmap->Colors[*src]);
+            storePixel(dst, colorTable[*src], x, y, dither);
         }
     }
 }
 
-static void setLineColor(Color8888* dst, Color8888 color, int width) {
-    for (; width > 0; width--, dst++) {
-        *dst = color;
+template <typename Pixel>
+static void setLineColor(Pixel* dst, Color8888 color, int width, int x, int y, bool dither) {
+    for (; width > 0; width--, dst++, x++) {
+        storePixel(dst, color, x, y, dither);
     }
 }
 
@@ -186,45 +255,69 @@ static void getCopySize(const GifImageDesc& imageDesc, int maxWidth, int maxHeig
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequenceState_gif::FrameSequenceState_gif(const FrameSequence_gif& frameSequence) :
-    mFrameSequence(frameSequence), mPreserveBuffer(NULL), mPreserveBufferFrame(-1) {
+    mFrameSequence(frameSequence), mPreserveBuffer(NULL), mPreserveBufferFrame(-1),
+    mPreserveBufferBytesPerPixel(0) {
 }
 
 FrameSequenceState_gif::~FrameSequenceState_gif() {
        delete[] mPreserveBuffer;
 }
 
-void FrameSequenceState_gif::savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr) {
+void FrameSequenceState_gif::savePreserveBuffer(void* outputPtr, int outputByteStride,
+        int bytesPerPixel, int frameNr) {
     if (frameNr == mPreserveBufferFrame) return;
 
     mPreserveBufferFrame = frameNr;
     const int width = mFrameSequence.getWidth();
     const int height = mFrameSequence.getHeight();
     if (!mPreserveBuffer) {
+        // sized for the largest supported pixel format
         mPreserveBuffer = new Color8888[width * height];
     }
+    char* preserveBytes = reinterpret_cast<char*>(mPreserveBuffer);
+    char* outputBytes = reinterpret_cast<char*>(outputPtr);
+    const int rowBytes = width * bytesPerPixel;
     for (int y = 0; y < height; y++) {
-        memcpy(mPreserveBuffer + width * y,
-                outputPtr + outputPixelStride * y,
-                width * 4);
+        memcpy(preserveBytes + rowBytes * y,
+                outputBytes + outputByteStride * y,
+                rowBytes);
     }
 }
 
-void FrameSequenceState_gif::restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride) {
+void FrameSequenceState_gif::restorePreserveBuffer(void* outputPtr, int outputByteStride,
+        int bytesPerPixel) {
     const int width = mFrameSequence.getWidth();
     const int height = mFrameSequence.getHeight();
     if (!mPreserveBuffer) {
         ALOGD("preserve buffer not allocated! ah!");
         return;
     }
+    const char* preserveBytes = reinterpret_cast<const char*>(mPreserveBuffer);
+    char* outputBytes = reinterpret_cast<char*>(outputPtr);
+    const int rowBytes = width * bytesPerPixel;
     for (int y = 0; y < height; y++) {
-        memcpy(outputPtr + outputPixelStride * y,
-                mPreserveBuffer + width * y,
-                width * 4);
+        memcpy(outputBytes + outputByteStride * y,
+                preserveBytes + rowBytes * y,
+                rowBytes);
     }
 }
 
 long FrameSequenceState_gif::drawFrame(int frameNr,
         Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr, false);
+}
+
+long FrameSequenceState_gif::drawFrame565(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither) {
+    if (!mFrameSequence.isOpaque()) {
+        ALOGW("Drawing non-opaque gif to RGB_565, transparency will be lost");
+    }
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr, dither);
+}
+
+template <typename Pixel>
+long FrameSequenceState_gif::drawFrameImpl(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr, bool dither) {
 
     GifFileType* gif = mFrameSequence.getGif();
     if (!gif) {
@@ -239,8 +332,17 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
 
     const int height = mFrameSequence.getHeight();
     const int width = mFrameSequence.getWidth();
+    const int bytesPerPixel = sizeof(Pixel);
+    const int outputByteStride = outputPixelStride * bytesPerPixel;
+
+    if (mPreserveBufferBytesPerPixel != bytesPerPixel) {
+        // preserved pixels were saved in another format, and can't be restored
+        mPreserveBufferFrame = -1;
+        mPreserveBufferBytesPerPixel = bytesPerPixel;
+    }
 
     GraphicsControlBlock gcb;
+    Color8888 colorTable[256];
 
     int start = max(previousFrameNr + 1, 0);
 
@@ -255,6 +357,14 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
         }
     }
 
+    // skip ahead to the latest key frame, as nothing drawn before it can show through
+    for (int i = frameNr; i > start; i--) {
+        if (mFrameSequence.isKeyFrame(i)) {
+            start = i;
+            break;
+        }
+    }
+
     for (int i = start; i <= frameNr; i++) {
         DGifSavedExtensionToGCB(gif, i, &gcb);
         const SavedImage& frame = gif->SavedImages[i];
@@ -264,13 +374,11 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
         ALOGD("producing frame %d, drawing frame %d (opaque %d, disp %d, del %d)",
                 frameNr, i, frameOpaque, gcb.DisposalMode, gcb.DelayTime);
 #endif
-        if (i == 0) {
-            //clear bitmap
-            Color8888 bgColor = mFrameSequence.getBackgroundColor();
+        if (i == start && mFrameSequence.isKeyFrame(i)) {
+            //clear bitmap - later key frames start from a cleared canvas rather than background
+            Color8888 bgColor = i == 0 ? mFrameSequence.getBackgroundColor() : TRANSPARENT;
             for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    outputPtr[y * outputPixelStride + x] = bgColor;
-                }
+                setLineColor(outputPtr + y * outputPixelStride, bgColor, width, 0, y, dither);
             }
         } else {
             GraphicsControlBlock prevGcb;
@@ -285,18 +393,19 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
             if (prevFrameDisposed && !prevFrameCompletelyCovered) {
                 switch (prevGcb.DisposalMode) {
                 case DISPOSE_BACKGROUND: {
-                    Color8888* dst = outputPtr + prevFrame.ImageDesc.Left +
+                    Pixel* dst = outputPtr + prevFrame.ImageDesc.Left +
                             prevFrame.ImageDesc.Top * outputPixelStride;
 
                     GifWord copyWidth, copyHeight;
                     getCopySize(prevFrame.ImageDesc, width, height, copyWidth, copyHeight);
-                    for (; copyHeight > 0; copyHeight--) {
-                        setLineColor(dst, TRANSPARENT, copyWidth);
+                    for (int y = prevFrame.ImageDesc.Top; copyHeight > 0; copyHeight--, y++) {
+                        setLineColor(dst, TRANSPARENT, copyWidth, prevFrame.ImageDesc.Left, y,
+                                false);
                         dst += outputPixelStride;
                     }
                 } break;
                 case DISPOSE_PREVIOUS: {
-                    restorePreserveBuffer(outputPtr, outputPixelStride);
+                    restorePreserveBuffer(outputPtr, outputByteStride, bytesPerPixel);
                 } break;
                 }
             }
@@ -304,7 +413,7 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
             if (mFrameSequence.getPreservedFrame(i - 1)) {
                 // currently drawn frame will be restored by a following DISPOSE_PREVIOUS draw, so
                 // we preserve it
-                savePreserveBuffer(outputPtr, outputPixelStride, i - 1);
+                savePreserveBuffer(outputPtr, outputByteStride, bytesPerPixel, i - 1);
             }
         }
 
@@ -319,14 +428,16 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
             if (cmap == NULL || cmap->ColorCount != (1 << cmap->BitsPerPixel)) {
                 ALOGW("Warning: potentially corrupt color map");
             }
+            buildColorTable(colorTable, cmap);
 
             const unsigned char* src = (unsigned char*)frame.RasterBits;
-            Color8888* dst = outputPtr + frame.ImageDesc.Left +
+            Pixel* dst = outputPtr + frame.ImageDesc.Left +
                     frame.ImageDesc.Top * outputPixelStride;
             GifWord copyWidth, copyHeight;
             getCopySize(frame.ImageDesc, width, height, copyWidth, copyHeight);
-            for (; copyHeight > 0; copyHeight--) {
-                copyLine(dst, src, cmap, gcb.TransparentColor, copyWidth);
+            for (int y = frame.ImageDesc.Top; copyHeight > 0; copyHeight--, y++) {
+                copyLine(dst, src, colorTable, gcb.TransparentColor, copyWidth,
+                        frame.ImageDesc.Left, y, dither);
                 src += frame.ImageDesc.Width;
                 dst += outputPixelStride;
             }
@@ -51,6 +51,8 @@ public:
 
     virtual FrameSequenceState* createState() const;
 
+    virtual bool isKeyFrame(int frameNr) const { return mKeyFrames[frameNr]; }
+
     GifFileType* getGif() const { return mGif; }
     Color8888 getBackgroundColor() const { return mBgColor; }
     bool getPreservedFrame(int frameIndex) const { return mPreservedFrames[frameIndex]; }
@@ -66,6 +68,9 @@ private:
 
     // array of ints per frame - if >= 0, points to the index of the preserve that frame needs
     int* mRestoringFrames;
+
+    // array of bool per frame - if true, frame can be drawn without drawing any prior frame
+    bool* mKeyFrames;
 };
 
 class FrameSequenceState_gif : public FrameSequenceState {
@@ -77,13 +82,23 @@ public:
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
 
+    virtual long drawFrame565(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither);
+
 private:
-    void savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr);
-    void restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride);
+    template <typename Pixel>
+    long drawFrameImpl(int frameNr, Pixel* outputPtr, int outputPixelStride,
+            int previousFrameNr, bool dither);
+
+    void savePreserveBuffer(void* outputPtr, int outputByteStride, int bytesPerPixel,
+            int frameNr);
+    void restorePreserveBuffer(void* outputPtr, int outputByteStride, int bytesPerPixel);
 
     const FrameSequence_gif& mFrameSequence;
     Color8888* mPreserveBuffer;
     int mPreserveBufferFrame;
+    // bytes per pixel of the contents of mPreserveBuffer
+    int mPreserveBufferBytesPerPixel;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_GIF_H
@@ -15,6 +15,9 @@
  */
 
 #include <string.h>
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
 #include "JNIHelpers.h"
 #include "utils/log.h"
 #include "utils/math.h"
@@ -24,6 +27,10 @@
 
 #define WEBP_DEBUG 0
 
+#if WEBP_DEBUG
+#include <time.h>
+#endif
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
@@ -37,15 +44,6 @@ static bool isFullFrame(const WebPIterator& frame, int canvasWidth, int canvasHe
     return (frame.width == canvasWidth && frame.height == canvasHeight);
 }
 
-// Returns true if the rectangle defined by 'frame' contains pixel (x, y).
-static bool FrameContainsPixel(const WebPIterator& frame, int x, int y) {
-    const int left = frame.x_offset;
-    const int right = left + frame.width;
-    const int top = frame.y_offset;
-    const int bottom = top + frame.height;
-    return x >= left && x < right && y >= top && y < bottom;
-}
-
 // Construct mIsKeyFrame array.
 void FrameSequence_webp::constructDependencyChain() {
     const size_t frameCount = getFrameCount();
@@ -149,26 +147,194 @@ static bool checkIfCover(const WebPIterator& target, const WebPIterator& covered
 }
 
 // Clear all pixels in a line to transparent.
-static void clearLine(Color8888* dst, int width) {
+template <typename Pixel>
+static void clearLine(Pixel* dst, int width) {
     memset(dst, 0, width * sizeof(*dst));  // Note: Assumes TRANSPARENT == 0x0.
 }
 
-// Copy all pixels from 'src' to 'dst'.
-static void copyFrame(const Color8888* src, int srcStride, Color8888* dst, int dstStride,
-        int width, int height) {
-    for (int y = 0; y < height; y++) {
+// A rectangle of canvas pixels, exclusive of its right and bottom edges.
+struct PixelRect {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    bool isEmpty() const { return left >= right || top >= bottom; }
+};
+
+static PixelRect makeRect(int left, int top, int right, int bottom) {
+    PixelRect rect = { left, top, right, bottom };
+    return rect;
+}
+
+static PixelRect frameRect(const WebPIterator& frame) {
+    return makeRect(frame.x_offset, frame.y_offset,
+            frame.x_offset + frame.width, frame.y_offset + frame.height);
+}
+
+static PixelRect unionRect(const PixelRect& a, const PixelRect& b) {
+    if (a.isEmpty()) return b;
+    if (b.isEmpty()) return a;
+    return makeRect(min(a.left, b.left), min(a.top, b.top),
+            max(a.right, b.right), max(a.bottom, b.bottom));
+}
+
+// Copy the pixels within 'rect' from 'src' to 'dst'.
+template <typename Pixel>
+static void copyRect(const Pixel* src, int srcStride, Pixel* dst, int dstStride,
+        const PixelRect& rect) {
+    if (rect.isEmpty()) return;
+    const int width = rect.right - rect.left;
+    src += rect.left + rect.top * srcStride;
+    dst += rect.left + rect.top * dstStride;
+    for (int y = rect.top; y < rect.bottom; y++) {
         memcpy(dst, src, width * sizeof(*dst));
         src += srcStride;
         dst += dstStride;
     }
 }
 
+// Returns the area of the canvas that may differ between a buffer holding 'fromFrame' and one
+// holding 'toFrame'. A frame that was skipped rather than decoded (because it is disposed to
+// background straight away) is missing only its own rectangle.
+static PixelRect getDirtyRect(const FrameSequence_webp& frameSequence,
+        int fromFrame, bool fromDecoded, int toFrame) {
+    const PixelRect canvas = makeRect(0, 0, frameSequence.getWidth(), frameSequence.getHeight());
+    if (fromFrame < 0 || fromFrame > toFrame) {
+        return canvas;  // Contents unknown.
+    }
+
+    WebPDemuxer* demux = frameSequence.getDemuxer();
+    WebPIterator iter;
+    if (!WebPDemuxGetFrame(demux, fromFrame + 1, &iter)) {
+        return canvas;
+    }
+    PixelRect dirty = fromDecoded ? makeRect(0, 0, 0, 0) : frameRect(iter);
+    for (int i = fromFrame + 1; i <= toFrame; i++) {
+        if (frameSequence.isKeyFrame(i)) {
+            dirty = canvas;
+            break;
+        }
+        const PixelRect prevRect = frameRect(iter);
+        const bool prevDisposed = iter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND;
+        if (!WebPDemuxGetFrame(demux, i + 1, &iter)) {
+            dirty = canvas;
+            break;
+        }
+        if (prevDisposed) {
+            dirty = unionRect(dirty, prevRect);
+        }
+        dirty = unionRect(dirty, frameRect(iter));
+    }
+    WebPDemuxReleaseIterator(&iter);
+    return dirty;
+}
+
+// Returns the libwebp output mode that produces pixels of the given type.
+static WEBP_CSP_MODE webpColorMode(const Color8888*) {
+    return MODE_rgbA;  // Pre-multiplied alpha mode.
+}
+
+static WEBP_CSP_MODE webpColorMode(const Color565*) {
+    return MODE_RGB_565;
+}
+
+// Pre-multiplied 'src' over 'dst': src + dst * (1 - src alpha), per channel, with the exact
+// rounded division by 255 of (x + 128 + ((x + 128) >> 8)) >> 8. Two channels are worked on at
+// once, one in each 16-bit half of a word, which no step can carry out of.
+static inline Color8888 blendPixel(Color8888 src, Color8888 dst) {
+    const uint32_t invAlpha = 0xff - (src >> 24);
+    if (!invAlpha) return src;
+    if (!src) return dst;
+
+    uint32_t rb = (dst & 0x00ff00ff) * invAlpha + 0x00800080;
+    uint32_t ag = ((dst >> 8) & 0x00ff00ff) * invAlpha + 0x00800080;
+    rb = ((rb + ((rb >> 8) & 0x00ff00ff)) >> 8) & 0x00ff00ff;
+    ag = ((ag + ((ag >> 8) & 0x00ff00ff)) >> 8) & 0x00ff00ff;
+
+    // Saturating add, should 'src' not be validly pre-multiplied.
+    rb += src & 0x00ff00ff;
+    ag += (src >> 8) & 0x00ff00ff;
+    rb |= ((rb >> 8) & 0x00010001) * 0xff;
+    ag |= ((ag >> 8) & 0x00010001) * 0xff;
+    return (rb & 0x00ff00ff) | ((ag & 0x00ff00ff) << 8);
+}
+
+// Blends each pixel of 'curr' over the pixel below it in 'prev', storing the result in 'curr'.
+static void blendLine(Color8888* curr, const Color8888* prev, int width) {
+    int x = 0;
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+    // Eight pixels at a time, one channel per register. Same rounding as blendPixel().
+    for (; x + 8 <= width; x += 8) {
+        uint8x8x4_t src = vld4_u8(reinterpret_cast<const uint8_t*>(curr + x));
+        const uint8x8x4_t dst = vld4_u8(reinterpret_cast<const uint8_t*>(prev + x));
+        const uint8x8_t invAlpha = vmvn_u8(src.val[3]);
+        for (int c = 0; c < 4; c++) {
+            const uint16x8_t product = vmull_u8(dst.val[c], invAlpha);
+            const uint8x8_t scaled = vraddhn_u16(product, vrshrq_n_u16(product, 8));
+            src.val[c] = vqadd_u8(src.val[c], scaled);
+        }
+        vst4_u8(reinterpret_cast<uint8_t*>(curr + x), src);
+    }
+#endif
+    for (; x < width; x++) {
+        curr[x] = blendPixel(curr[x], prev[x]);
+    }
+}
+
+// During the decoding of current frame, its pixels replaced the previous canvas rather than
+// being blended over it, as WEBP_MUX_BLEND requires. So, we blend them over the previous frame
+// buffer here. Pixels inside a previous frame rectangle that was disposed to background were
+// blended against transparent, which leaves them as decoded.
+static void blendWithPreviousFrame(const WebPIterator& currIter, Color8888* currBuffer,
+        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer,
+        int prevStride) {
+    const PixelRect curr = frameRect(currIter);
+    PixelRect disposed = makeRect(0, 0, 0, 0);
+    if (prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) {
+        disposed = frameRect(prevIter);
+    }
+
+    for (int y = curr.top; y < curr.bottom; y++) {
+        Color8888* currLine = currBuffer + y * currStride;
+        const Color8888* prevLine = prevBuffer + y * prevStride;
+        if (disposed.isEmpty() || y < disposed.top || y >= disposed.bottom) {
+            blendLine(currLine + curr.left, prevLine + curr.left, curr.right - curr.left);
+            continue;
+        }
+        // Blend only the spans to the left and right of the disposed rectangle.
+        const int leftEnd = min(curr.right, disposed.left);
+        if (curr.left < leftEnd) {
+            blendLine(currLine + curr.left, prevLine + curr.left, leftEnd - curr.left);
+        }
+        const int rightStart = max(curr.left, disposed.right);
+        if (rightStart < curr.right) {
+            blendLine(currLine + rightStart, prevLine + rightStart, curr.right - rightStart);
+        }
+    }
+}
+
+// RGB_565 output is only produced for opaque sequences, whose frames have nothing to blend.
+static void blendWithPreviousFrame(const WebPIterator& currIter, Color565* currBuffer,
+        int currStride, const WebPIterator& prevIter, const Color565* prevBuffer,
+        int prevStride) {
+}
+
+#if WEBP_DEBUG
+static int64_t currentTimeUs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
+#endif
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence state
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequenceState_webp::FrameSequenceState_webp(const FrameSequence_webp& frameSequence) :
-        mFrameSequence(frameSequence) {
+        mFrameSequence(frameSequence), mPreservedBufferFrame(-1),
+        mPreservedBufferDecoded(false), mPreservedBufferBytesPerPixel(0) {
     WebPInitDecoderConfig(&mDecoderConfig);
     mDecoderConfig.output.is_external_memory = 1;
     mDecoderConfig.output.colorspace = MODE_rgbA;  // Pre-multiplied alpha mode.
@@ -181,20 +347,25 @@ FrameSequenceState_webp::~FrameSequenceState_webp() {
     delete[] mPreservedBuffer;
 }
 
-void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
+template <typename Pixel>
+void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Pixel* currBuffer,
+        int currStride, int currBufferFrame, bool currBufferDecoded,
+        const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride) {
     const int canvasWidth = mFrameSequence.getWidth();
     const int canvasHeight = mFrameSequence.getHeight();
     const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
 
     if (currFrameIsKeyFrame) {  // Clear canvas.
         for (int y = 0; y < canvasHeight; y++) {
-            Color8888* dst = currBuffer + y * currStride;
+            Pixel* dst = currBuffer + y * currStride;
             clearLine(dst, canvasWidth);
         }
     } else {
-        // Preserve previous frame as starting state of current frame.
-        copyFrame(prevBuffer, prevStride, currBuffer, currStride, canvasWidth, canvasHeight);
+        // Preserve previous frame as starting state of current frame, copying only the area
+        // that differs from what the buffer already holds.
+        const PixelRect dirty = getDirtyRect(mFrameSequence, currBufferFrame, currBufferDecoded,
+                prevIter.frame_num - 1);
+        copyRect(prevBuffer, prevStride, currBuffer, currStride, dirty);
 
         // Dispose previous frame rectangle to Background if needed.
         bool prevFrameCompletelyCovered =
@@ -202,7 +373,7 @@ void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Colo
                 checkIfCover(currIter, prevIter);
         if ((prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND) &&
                 !prevFrameCompletelyCovered) {
-            Color8888* dst = currBuffer + prevIter.x_offset + prevIter.y_offset * currStride;
+            Pixel* dst = currBuffer + prevIter.x_offset + prevIter.y_offset * currStride;
             for (int j = 0; j < prevIter.height; j++) {
                 clearLine(dst, prevIter.width);
                 dst += currStride;
@@ -211,11 +382,13 @@ void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Colo
     }
 }
 
-bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color8888* currBuffer,
-        int currStride, const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride) {
-    Color8888* dst = currBuffer + currIter.x_offset + currIter.y_offset * currStride;
+template <typename Pixel>
+bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Pixel* currBuffer,
+        int currStride, const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride) {
+    Pixel* dst = currBuffer + currIter.x_offset + currIter.y_offset * currStride;
+    mDecoderConfig.output.colorspace = webpColorMode(dst);
     mDecoderConfig.output.u.RGBA.rgba = (uint8_t*)dst;
-    mDecoderConfig.output.u.RGBA.stride = currStride * 4;
+    mDecoderConfig.output.u.RGBA.stride = currStride * sizeof(Pixel);
     mDecoderConfig.output.u.RGBA.size = mDecoderConfig.output.u.RGBA.stride * currIter.height;
 
     const WebPData& currFrame = currIter.fragment;
@@ -223,62 +396,39 @@ bool FrameSequenceState_webp::decodeFrame(const WebPIterator& currIter, Color888
         return false;
     }
 
-    const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
     const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
-    // During the decoding of current frame, we may have set some pixels to be transparent
-    // (i.e. alpha < 255). However, the value of each of these pixels should have been determined
-    // by blending it against the value of that pixel in the previous frame if WEBP_MUX_BLEND was
-    // specified. So, we correct these pixels based on disposal method of the previous frame and
-    // the previous frame buffer.
     if (currIter.blend_method == WEBP_MUX_BLEND && !currFrameIsKeyFrame) {
-        if (prevIter.dispose_method == WEBP_MUX_DISPOSE_NONE) {
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
-                }
-            }
-        } else {  // prevIter.dispose_method == WEBP_MUX_DISPOSE_BACKGROUND
-            // Need to restore transparent pixels to as they were just after frame initialization.
-            // That is:
-            //   * Transparent if it belongs to previous frame rectangle <-- This is a no-op.
-            //   * Pixel in the previous canvas otherwise <-- Need to restore.
-            for (int y = 0; y < currIter.height; y++) {
-                const int canvasY = currIter.y_offset + y;
-                for (int x = 0; x < currIter.width; x++) {
-                    const int canvasX = currIter.x_offset + x;
-                    Color8888& currPixel = currBuffer[canvasY * currStride + canvasX];
-                    // FIXME: Use alpha-blending when alpha is between 0 and 255.
-                    if (!(currPixel & COLOR_8888_ALPHA_MASK)
-                            && !FrameContainsPixel(prevIter, canvasX, canvasY)) {
-                        const Color8888 prevPixel = prevBuffer[canvasY * prevStride + canvasX];
-                        currPixel = prevPixel;
-                    }
-                }
-            }
-        }
+        blendWithPreviousFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride);
     }
     return true;
 }
 
 long FrameSequenceState_webp::drawFrame(int frameNr,
         Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+long FrameSequenceState_webp::drawFrame565(int frameNr,
+        Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither) {
+    // Note: libwebp's RGB_565 output is not dithered, so 'dither' is ignored.
+    if (!mFrameSequence.isOpaque()) {
+        ALOGW("Drawing non-opaque WebP to RGB_565, transparency will be lost");
+    }
+    return drawFrameImpl(frameNr, outputPtr, outputPixelStride, previousFrameNr);
+}
+
+template <typename Pixel>
+long FrameSequenceState_webp::drawFrameImpl(int frameNr,
+        Pixel* outputPtr, int outputPixelStride, int previousFrameNr) {
     WebPDemuxer* demux = mFrameSequence.getDemuxer();
     ALOG_ASSERT(demux, "Cannot drawFrame, mDemux is NULL");
 
 #if WEBP_DEBUG
     ALOGD("  drawFrame called for frame# %d, previous frame# %d", frameNr, previousFrameNr);
+    const int64_t startTimeUs = currentTimeUs();
 #endif
 
     const int canvasWidth = mFrameSequence.getWidth();
-    const int canvasHeight = mFrameSequence.getHeight();
 
     // Find the first frame to be decoded.
     int start = max(previousFrameNr + 1, 0);
@@ -296,12 +446,25 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
     int ok = WebPDemuxGetFrame(demux, start, &currIter);  // Get frame number 'start - 1'.
     ALOG_ASSERT(ok, "Could not retrieve frame# %d", start - 1);
 
+    if (mPreservedBufferBytesPerPixel != (int) sizeof(Pixel)) {
+        // preserved pixels were drawn in another format, and can't be reused
+        mPreservedBufferFrame = -1;
+        mPreservedBufferBytesPerPixel = sizeof(Pixel);
+    }
+
     // Use preserve buffer only if needed.
-    Color8888* prevBuffer = (frameNr == 0) ? outputPtr : mPreservedBuffer;
+    Pixel* preservedBuffer = reinterpret_cast<Pixel*>(mPreservedBuffer);
+    Pixel* prevBuffer = (frameNr == 0) ? outputPtr : preservedBuffer;
     int prevStride = (frameNr == 0) ? outputPixelStride : canvasWidth;
-    Color8888* currBuffer = outputPtr;
+    Pixel* currBuffer = outputPtr;
     int currStride = outputPixelStride;
 
+    // Track the frame each buffer holds, so that only changed areas need copying between them.
+    int prevBufferFrame = (frameNr == 0) ? previousFrameNr : mPreservedBufferFrame;
+    bool prevBufferDecoded = (frameNr == 0) ? true : mPreservedBufferDecoded;
+    int currBufferFrame = previousFrameNr;
+    bool currBufferDecoded = true;
+
     for (int i = start; i <= frameNr; i++) {
         prevIter = currIter;
         ok = WebPDemuxGetFrame(demux, i + 1, &currIter);  // Get ith frame.
@@ -313,7 +476,7 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
               (currIter.blend_method == WEBP_MUX_BLEND) ? "yes" : "no", currIter.duration);
 #endif
         // We swap the prev/curr buffers as we go.
-        Color8888* tmpBuffer = prevBuffer;
+        Pixel* tmpBuffer = prevBuffer;
         prevBuffer = currBuffer;
         currBuffer = tmpBuffer;
 
@@ -321,23 +484,47 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
         prevStride = currStride;
         currStride = tmpStride;
 
+        int tmpFrame = prevBufferFrame;
+        prevBufferFrame = currBufferFrame;
+        currBufferFrame = tmpFrame;
+
+        bool tmpDecoded = prevBufferDecoded;
+        prevBufferDecoded = currBufferDecoded;
+        currBufferDecoded = tmpDecoded;
+
 #if WEBP_DEBUG
         ALOGD("            prev = %p, curr = %p, out = %p, tmp = %p",
               prevBuffer, currBuffer, outputPtr, mPreservedBuffer);
 #endif
         // Process this frame.
-        initializeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride);
+        initializeFrame(currIter, currBuffer, currStride, currBufferFrame, currBufferDecoded,
+                prevIter, prevBuffer, prevStride);
 
+        currBufferDecoded = false;
         if (i == frameNr || !willBeCleared(currIter)) {
             if (!decodeFrame(currIter, currBuffer, currStride, prevIter, prevBuffer, prevStride)) {
                 ALOGE("Error decoding frame# %d", i);
+                mPreservedBufferFrame = -1;
                 return -1;
             }
+            currBufferDecoded = true;
         }
+        currBufferFrame = i;
     }
 
     if (outputPtr != currBuffer) {
-        copyFrame(currBuffer, currStride, outputPtr, outputPixelStride, canvasWidth, canvasHeight);
+        // The output buffer holds the frame before, so only the area changed since needs copying.
+        copyRect(currBuffer, currStride, outputPtr, outputPixelStride,
+                getDirtyRect(mFrameSequence, prevBufferFrame, prevBufferDecoded, frameNr));
+    }
+
+    // Remember what the preserve buffer holds for the next call.
+    if (currBuffer == preservedBuffer) {
+        mPreservedBufferFrame = currBufferFrame;
+        mPreservedBufferDecoded = currBufferDecoded;
+    } else if (prevBuffer == preservedBuffer) {
+        mPreservedBufferFrame = prevBufferFrame;
+        mPreservedBufferDecoded = prevBufferDecoded;
     }
 
     // Return last frame's delay.
@@ -350,6 +537,10 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
     WebPDemuxReleaseIterator(&currIter);
     WebPDemuxReleaseIterator(&prevIter);
 
+#if WEBP_DEBUG
+    ALOGD("  drawFrame for frame# %d took %lld us", frameNr,
+            (long long) (currentTimeUs() - startTimeUs));
+#endif
     return lastFrameDelay;
 }
 
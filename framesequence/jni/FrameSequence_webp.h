@@ -55,7 +55,7 @@ public:
 
     WebPDemuxer* getDemuxer() const { return mDemux; }
 
-    bool isKeyFrame(size_t frameNr) const { return mIsKeyFrame[frameNr]; }
+    virtual bool isKeyFrame(int frameNr) const { return mIsKeyFrame[frameNr]; }
 
 private:
     void constructDependencyChain();
@@ -78,15 +78,30 @@ public:
     virtual long drawFrame(int frameNr,
             Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
 
+    virtual long drawFrame565(int frameNr,
+            Color565* outputPtr, int outputPixelStride, int previousFrameNr, bool dither);
+
 private:
-    void initializeFrame(const WebPIterator& currIter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
-    bool decodeFrame(const WebPIterator& iter, Color8888* currBuffer, int currStride,
-            const WebPIterator& prevIter, const Color8888* prevBuffer, int prevStride);
+    template <typename Pixel>
+    long drawFrameImpl(int frameNr, Pixel* outputPtr, int outputPixelStride,
+            int previousFrameNr);
+    template <typename Pixel>
+    void initializeFrame(const WebPIterator& currIter, Pixel* currBuffer, int currStride,
+            int currBufferFrame, bool currBufferDecoded,
+            const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride);
+    template <typename Pixel>
+    bool decodeFrame(const WebPIterator& iter, Pixel* currBuffer, int currStride,
+            const WebPIterator& prevIter, const Pixel* prevBuffer, int prevStride);
 
     const FrameSequence_webp& mFrameSequence;
     WebPDecoderConfig mDecoderConfig;
+    // Ping-pong buffer, sized for the largest supported pixel format.
     Color8888* mPreservedBuffer;
+    // Frame held by mPreservedBuffer, and whether it was decoded or skipped as disposed.
+    int mPreservedBufferFrame;
+    bool mPreservedBufferDecoded;
+    // bytes per pixel of the contents of mPreservedBuffer
+    int mPreservedBufferBytesPerPixel;
 };
 
 #endif //RASTERMILL_FRAMESQUENCE_WEBP_H
@@ -112,6 +112,18 @@ size_t JavaInputStream::doRead(void* dstBuffer, size_t size) {
     return totalBytesRead;
 }
 
+size_t HashingStream::doRead(void* buffer, size_t size) {
+    size_t bytesRead = mStream->read(buffer, size);
+    const uint8_t* bytes = (const uint8_t*) buffer;
+    uint64_t hash = mHash;
+    for (size_t i = 0; i < bytesRead; i++) {
+        hash ^= bytes[i];
+        hash *= 1099511628211ULL;
+    }
+    mHash = hash;
+    return bytesRead;
+}
+
 jint JavaStream_OnLoad(JNIEnv* env) {
     // Skip the verbose logging on error for these, as they won't be subject
     // to obfuscators or similar and are thus unlikely to ever fail
@@ -18,6 +18,7 @@
 #define RASTERMILL_STREAM_H
 
 #include <jni.h>
+#include <stdint.h>
 #include <stdio.h>
 #include <sys/types.h>
 
@@ -81,6 +82,23 @@ private:
     const size_t mByteArrayLength;
 };
 
+// Passes reads through to another stream, keeping a 64-bit FNV-1a hash of every byte consumed.
+class HashingStream : public Stream {
+public:
+    HashingStream(Stream* stream) :
+            mStream(stream),
+            mHash(14695981039346656037ULL) {}
+
+    uint64_t getHash() const { return mHash; }
+
+protected:
+    virtual size_t doRead(void* buffer, size_t size);
+
+private:
+    Stream* mStream;
+    uint64_t mHash;
+};
+
 jint JavaStream_OnLoad(JNIEnv* env);
 
 #endif //RASTERMILL_STREAM_H
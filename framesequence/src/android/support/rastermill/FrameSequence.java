@@ -18,6 +18,7 @@ package android.support.rastermill;
 
 import android.graphics.Bitmap;
 
+import java.io.File;
 import java.io.InputStream;
 
 public class FrameSequence {
@@ -31,6 +32,8 @@ public class FrameSequence {
     private final boolean mOpaque;
     private final int mFrameCount;
     private final int mDefaultLoopCount;
+    private volatile String mFrameCacheDirectory;
+    private volatile long mFrameCacheMaxBytes;
 
     public int getWidth() { return mWidth; }
     public int getHeight() { return mHeight; }
@@ -41,10 +44,13 @@ public class FrameSequence {
     private static native FrameSequence nativeDecodeByteArray(byte[] data, int offset, int length);
     private static native FrameSequence nativeDecodeStream(InputStream is, byte[] tempStorage);
     private static native void nativeDestroyFrameSequence(long nativeFrameSequence);
-    private static native long nativeCreateState(long nativeFrameSequence);
+    private static native boolean nativeIsKeyFrame(long nativeFrameSequence, int frameNr);
+    private static native long nativeCreateState(long nativeFrameSequence,
+            String cacheDirectory, long cacheMaxBytes);
     private static native void nativeDestroyState(long nativeState);
+    private static native void nativeSetFrameCacheEnabled(long nativeState, boolean enabled);
     private static native long nativeGetFrame(long nativeState, int frameNr,
-            Bitmap output, int previousFrameNr);
+            Bitmap output, int previousFrameNr, boolean dither);
 
     @SuppressWarnings("unused") // called by native
     private FrameSequence(long nativeFrameSequence, int width, int height,
@@ -75,16 +81,50 @@ public class FrameSequence {
         return nativeDecodeStream(stream, tempStorage);
     }
 
+    /**
+     * Enables an on-disk cache of decoded frames for drawables created after this call.
+     *
+     * The first complete loop is recorded into a file in directory, named by a hash of the
+     * encoded data, with each frame stored as the rows that changed since the previous one.
+     * Later loops, and later drawables of the same data (even after an app restart), copy frames
+     * out of a memory mapping of that file instead of decoding them. Recording is abandoned if
+     * the file would grow past maxBytes, and each completed file evicts the least recently used
+     * others until the directory fits in maxBytes.
+     *
+     * The cache is only opened from the thread frames are decoded on, so the first frame a
+     * drawable draws on the UI thread is always decoded, and recording starts with the next loop.
+     *
+     * Pass a null directory to disable the cache again.
+     */
+    public void setFrameCacheDirectory(File directory, long maxBytes) {
+        if (directory != null && maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        mFrameCacheMaxBytes = maxBytes;
+        mFrameCacheDirectory = directory != null ? directory.getAbsolutePath() : null;
+    }
+
+    /**
+     * Returns true if frameNr can be drawn without drawing any of the frames before it.
+     */
+    boolean isKeyFrame(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameCount) {
+            throw new IllegalArgumentException("invalid frame number " + frameNr);
+        }
+        return nativeIsKeyFrame(mNativeFrameSequence, frameNr);
+    }
+
     State createState() {
         if (mNativeFrameSequence == 0) {
             throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
         }
 
-        long nativeState = nativeCreateState(mNativeFrameSequence);
+        long nativeState = nativeCreateState(mNativeFrameSequence, mFrameCacheDirectory,
+                mFrameCacheMaxBytes);
         if (nativeState == 0) {
             return null;
         }
-        return new State(nativeState);
+        return new State(nativeState, mOpaque);
     }
 
     @Override
@@ -110,9 +150,11 @@ public class FrameSequence {
      */
     static class State {
         private long mNativeState;
+        private final boolean mOpaque;
 
-        public State(long nativeState) {
+        public State(long nativeState, boolean opaque) {
             mNativeState = nativeState;
+            mOpaque = opaque;
         }
 
         public void destroy() {
@@ -122,15 +164,47 @@ public class FrameSequence {
             }
         }
 
+        /**
+         * Enables or disables the frame cache, if there is one. While disabled, frames are drawn
+         * without touching the disk, so that they may be drawn on the UI thread.
+         */
+        public void setFrameCacheEnabled(boolean enabled) {
+            if (mNativeState == 0) {
+                throw new IllegalStateException("attempted to use destroyed FrameSequenceState");
+            }
+            nativeSetFrameCacheEnabled(mNativeState, enabled);
+        }
+
         // TODO: consider adding alternate API for drawing into a SurfaceTexture
         public long getFrame(int frameNr, Bitmap output, int previousFrameNr) {
-            if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
-                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
+            return getFrame(frameNr, output, previousFrameNr, false);
+        }
+
+        /**
+         * Draws a frame into output, which must be ARGB_8888, or RGB_565 if the frame sequence
+         * is opaque. The dither flag only affects RGB_565 output.
+         *
+         * Note: previousFrameNr only refers to the contents of output if all frames in it were
+         * drawn with the same Bitmap.Config.
+         */
+        public long getFrame(int frameNr, Bitmap output, int previousFrameNr, boolean dither) {
+            if (!isSupportedConfig(output, mOpaque)) {
+                throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888,"
+                        + " or RGB_565 for opaque frame sequences");
             }
             if (mNativeState == 0) {
                 throw new IllegalStateException("attempted to draw destroyed FrameSequenceState");
             }
-            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr);
+            return nativeGetFrame(mNativeState, frameNr, output, previousFrameNr, dither);
         }
     }
+
+    /**
+     * Returns true if frames of a sequence with the given opacity can be drawn into bitmap.
+     */
+    static boolean isSupportedConfig(Bitmap bitmap, boolean opaque) {
+        if (bitmap == null) return false;
+        return bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                || (opaque && bitmap.getConfig() == Bitmap.Config.RGB_565);
+    }
 }
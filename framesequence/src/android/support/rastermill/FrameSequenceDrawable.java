@@ -44,6 +44,14 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         }
     }
 
+    /**
+     * Returns the handler of the background thread shared by all frame sequence decoding.
+     */
+    static Handler getDecodingThreadHandler() {
+        initializeDecodingThread();
+        return sDecodingThreadHandler;
+    }
+
     public static interface OnFinishedListener {
         /**
          * Called when a FrameSequenceDrawable has finished looping.
@@ -57,6 +65,9 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
     public static interface BitmapProvider {
         /**
          * Called by FrameSequenceDrawable to aquire an 8888 Bitmap with minimum dimensions.
+         *
+         * For opaque frame sequences, an RGB_565 Bitmap may be returned instead, halving the
+         * memory and bandwidth used for each frame.
          */
         public abstract Bitmap acquireBitmap(int minWidth, int minHeight);
 
@@ -69,7 +80,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         public abstract void releaseBitmap(Bitmap bitmap);
     }
 
-    private static BitmapProvider sAllocatingBitmapProvider = new BitmapProvider() {
+    static BitmapProvider sAllocatingBitmapProvider = new BitmapProvider() {
         @Override
         public Bitmap acquireBitmap(int minWidth, int minHeight) {
             return Bitmap.createBitmap(minWidth, minHeight, Bitmap.Config.ARGB_8888);
@@ -119,6 +130,7 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
 
     private final Paint mPaint;
     private final Rect mSrcRect;
+    private volatile boolean mDither;
 
     //Protects the fields below
     private final Object mLock = new Object();
@@ -161,7 +173,8 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
                 mState = STATE_DECODING;
             }
             int lastFrame = nextFrame - 2;
-            long invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame);
+            long invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame,
+                    mDither);
 
             synchronized (mLock) {
                 if (mNextFrameToDecode < 0 || mState != STATE_DECODING) return;
@@ -182,13 +195,13 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         }
     };
 
-    private static Bitmap acquireAndValidateBitmap(BitmapProvider bitmapProvider,
-            int minWidth, int minHeight) {
+    static Bitmap acquireAndValidateBitmap(BitmapProvider bitmapProvider,
+            int minWidth, int minHeight, boolean opaque) {
         Bitmap bitmap = bitmapProvider.acquireBitmap(minWidth, minHeight);
 
         if (bitmap.getWidth() < minWidth
                 || bitmap.getHeight() < minHeight
-                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                || !FrameSequence.isSupportedConfig(bitmap, opaque)) {
             throw new IllegalArgumentException("Invalid bitmap provided");
         }
 
@@ -206,10 +219,14 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         mFrameSequenceState = frameSequence.createState();
         final int width = frameSequence.getWidth();
         final int height = frameSequence.getHeight();
+        final boolean opaque = frameSequence.isOpaque();
 
         mBitmapProvider = bitmapProvider;
-        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
-        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height);
+        mFrontBitmap = acquireAndValidateBitmap(bitmapProvider, width, height, opaque);
+        mBackBitmap = acquireAndValidateBitmap(bitmapProvider, width, height, opaque);
+        if (mFrontBitmap.getConfig() != mBackBitmap.getConfig()) {
+            throw new IllegalArgumentException("Bitmaps provided must share the same config");
+        }
         mSrcRect = new Rect(0, 0, width, height);
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
@@ -217,7 +234,10 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         mLastSwap = 0;
 
         mNextFrameToDecode = -1;
+        // opening the frame cache touches the disk, so leave it to the decoding thread
+        mFrameSequenceState.setFrameCacheEnabled(false);
         mFrameSequenceState.getFrame(0, mFrontBitmap, -1);
+        mFrameSequenceState.setFrameCacheEnabled(true);
         initializeDecodingThread();
     }
 
@@ -390,6 +410,15 @@ public class FrameSequenceDrawable extends Drawable implements Animatable, Runna
         mPaint.setFilterBitmap(filter);
     }
 
+    /**
+     * Enables ordered dithering of frames decoded into RGB_565 Bitmaps. Takes effect from the
+     * next decoded frame, and has no effect on ARGB_8888 Bitmaps.
+     */
+    @Override
+    public void setDither(boolean dither) {
+        mDither = dither;
+    }
+
     @Override
     public void setAlpha(int alpha) {
         mPaint.setAlpha(alpha);
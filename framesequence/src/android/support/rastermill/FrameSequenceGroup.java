@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Plays one FrameSequence in lockstep across any number of Drawables.
+ *
+ * Every member Drawable draws the same shared front Bitmap, so a single FrameSequence.State and a
+ * single pair of Bitmaps serve all of them: decode cost and memory use do not grow with the number
+ * of copies on screen. Members keep their own bounds, alpha and color filter.
+ *
+ * The group plays while at least one of its members is running, and all members show the same
+ * frame at all times.
+ */
+public class FrameSequenceGroup {
+    public static interface OnFinishedListener {
+        /**
+         * Called when a FrameSequenceGroup has finished looping.
+         *
+         * Note that this is will not be called if every member is explicitly stopped, or marked
+         * invisible.
+         */
+        public abstract void onFinished(FrameSequenceGroup group);
+    }
+
+    /**
+     * Register a callback to be invoked when the group finishes looping.
+     *
+     * @see #setLoopBehavior(int)
+     */
+    public void setOnFinishedListener(OnFinishedListener onFinishedListener) {
+        mOnFinishedListener = onFinishedListener;
+    }
+
+    /**
+     * Define looping behavior of the shared frame sequence.
+     *
+     * Must be one of FrameSequenceDrawable.LOOP_ONCE, LOOP_INF, or LOOP_DEFAULT
+     */
+    public void setLoopBehavior(int loopBehavior) {
+        mLoopBehavior = loopBehavior;
+    }
+
+    /**
+     * Enables ordered dithering of frames decoded into RGB_565 Bitmaps, for every member.
+     */
+    public void setDither(boolean dither) {
+        mDither = dither;
+    }
+
+    private final FrameSequence mFrameSequence;
+    private final FrameSequence.State mFrameSequenceState;
+    private final FrameSequenceDrawable.BitmapProvider mBitmapProvider;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mDecodingThreadHandler;
+    private final Rect mSrcRect;
+    private volatile boolean mDither;
+
+    //Protects the fields below
+    private final Object mLock = new Object();
+
+    private final ArrayList<WeakReference<Member>> mMembers =
+            new ArrayList<WeakReference<Member>>();
+    private boolean mDestroyed = false;
+    private Bitmap mFrontBitmap;
+    private Bitmap mBackBitmap;
+
+    private static final int STATE_SCHEDULED = 1;
+    private static final int STATE_DECODING = 2;
+    private static final int STATE_WAITING_TO_SWAP = 3;
+    private static final int STATE_READY_TO_SWAP = 4;
+
+    private int mState;
+    private int mCurrentLoop;
+    private int mLoopBehavior = FrameSequenceDrawable.LOOP_DEFAULT;
+
+    private long mLastSwap;
+    private long mNextSwap;
+    private int mNextFrameToDecode;
+    private OnFinishedListener mOnFinishedListener;
+
+    /**
+     * Runs on decoding thread, only modifies mBackBitmap's pixels
+     */
+    private Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int nextFrame;
+            Bitmap bitmap;
+            synchronized (mLock) {
+                if (mDestroyed) return;
+
+                nextFrame = mNextFrameToDecode;
+                if (nextFrame < 0) {
+                    return;
+                }
+                bitmap = mBackBitmap;
+                mState = STATE_DECODING;
+            }
+            int lastFrame = nextFrame - 2;
+            long invalidateTimeMs = mFrameSequenceState.getFrame(nextFrame, bitmap, lastFrame,
+                    mDither);
+
+            long nextSwap;
+            synchronized (mLock) {
+                if (mNextFrameToDecode < 0 || mState != STATE_DECODING) return;
+                mNextSwap = invalidateTimeMs + mLastSwap;
+                nextSwap = mNextSwap;
+
+                mState = STATE_WAITING_TO_SWAP;
+            }
+            mMainHandler.postAtTime(mReadyToSwapRunnable, nextSwap);
+        }
+    };
+
+    /**
+     * Runs on the main thread once the back Bitmap is due on screen.
+     */
+    private Runnable mReadyToSwapRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mState != STATE_WAITING_TO_SWAP || mNextFrameToDecode < 0) return;
+                mState = STATE_READY_TO_SWAP;
+            }
+            invalidateMembers();
+        }
+    };
+
+    private Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            invalidateMembers();
+        }
+    };
+
+    private Runnable mCallbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mOnFinishedListener != null) {
+                mOnFinishedListener.onFinished(FrameSequenceGroup.this);
+            }
+        }
+    };
+
+    public FrameSequenceGroup(FrameSequence frameSequence) {
+        this(frameSequence, FrameSequenceDrawable.sAllocatingBitmapProvider);
+    }
+
+    public FrameSequenceGroup(FrameSequence frameSequence,
+            FrameSequenceDrawable.BitmapProvider bitmapProvider) {
+        if (frameSequence == null || bitmapProvider == null) throw new IllegalArgumentException();
+
+        mFrameSequence = frameSequence;
+        mFrameSequenceState = frameSequence.createState();
+        final int width = frameSequence.getWidth();
+        final int height = frameSequence.getHeight();
+        final boolean opaque = frameSequence.isOpaque();
+
+        mBitmapProvider = bitmapProvider;
+        mFrontBitmap = FrameSequenceDrawable.acquireAndValidateBitmap(
+                bitmapProvider, width, height, opaque);
+        mBackBitmap = FrameSequenceDrawable.acquireAndValidateBitmap(
+                bitmapProvider, width, height, opaque);
+        if (mFrontBitmap.getConfig() != mBackBitmap.getConfig()) {
+            throw new IllegalArgumentException("Bitmaps provided must share the same config");
+        }
+        mSrcRect = new Rect(0, 0, width, height);
+
+        mLastSwap = 0;
+
+        mNextFrameToDecode = -1;
+        // as in FrameSequenceDrawable, the frame cache waits for the decoding thread
+        mFrameSequenceState.setFrameCacheEnabled(false);
+        mFrameSequenceState.getFrame(0, mFrontBitmap, -1);
+        mFrameSequenceState.setFrameCacheEnabled(true);
+        mDecodingThreadHandler = FrameSequenceDrawable.getDecodingThreadHandler();
+    }
+
+    /**
+     * Creates a new Drawable that plays this group's frame sequence in step with every other
+     * member. The group holds its members weakly, so there is no need to remove them.
+     */
+    public Drawable newDrawable() {
+        Member member = new Member();
+        synchronized (mLock) {
+            checkDestroyedLocked();
+            mMembers.add(new WeakReference<Member>(member));
+        }
+        return member;
+    }
+
+    private void checkDestroyedLocked() {
+        if (mDestroyed) {
+            throw new IllegalStateException("Cannot perform operation on recycled group");
+        }
+    }
+
+    public boolean isDestroyed() {
+        synchronized (mLock) {
+            return mDestroyed;
+        }
+    }
+
+    /**
+     * Marks the group and all its members as permanently recycled (and thus unusable), and
+     * releases the shared Bitmaps to the group's BitmapProvider.
+     */
+    public void destroy() {
+        Bitmap bitmapToReleaseA;
+        Bitmap bitmapToReleaseB;
+        synchronized (mLock) {
+            checkDestroyedLocked();
+
+            bitmapToReleaseA = mFrontBitmap;
+            bitmapToReleaseB = mBackBitmap;
+
+            mFrontBitmap = null;
+            mBackBitmap = null;
+            mNextFrameToDecode = -1;
+            mDestroyed = true;
+        }
+        mMainHandler.removeCallbacks(mReadyToSwapRunnable);
+
+        // For simplicity and safety, we don't destroy the state object here
+        mBitmapProvider.releaseBitmap(bitmapToReleaseA);
+        mBitmapProvider.releaseBitmap(bitmapToReleaseB);
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            mFrameSequenceState.destroy();
+            if (!mDestroyed) {
+                destroy();
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private boolean isRunningLocked() {
+        return mNextFrameToDecode > -1 && !mDestroyed;
+    }
+
+    private boolean hasRunningMemberLocked() {
+        for (int i = mMembers.size() - 1; i >= 0; i--) {
+            Member member = mMembers.get(i).get();
+            if (member == null) {
+                mMembers.remove(i);
+            } else if (member.mRunning) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleDecodeLocked() {
+        mState = STATE_SCHEDULED;
+        mNextFrameToDecode = (mNextFrameToDecode + 1) % mFrameSequence.getFrameCount();
+        mDecodingThreadHandler.post(mDecodeRunnable);
+    }
+
+    /**
+     * Invalidates every live member, so that all of them pick up the current front Bitmap in the
+     * same traversal. Must be called on the main thread.
+     */
+    private void invalidateMembers() {
+        ArrayList<Member> members = new ArrayList<Member>();
+        synchronized (mLock) {
+            for (int i = mMembers.size() - 1; i >= 0; i--) {
+                Member member = mMembers.get(i).get();
+                if (member == null) {
+                    mMembers.remove(i);
+                } else {
+                    members.add(member);
+                }
+            }
+        }
+        for (Member member : members) {
+            member.invalidateSelf();
+        }
+    }
+
+    private void startMember(Member member) {
+        synchronized (mLock) {
+            checkDestroyedLocked();
+            member.mRunning = true;
+            if (isRunningLocked() || mState == STATE_SCHEDULED) return; // already playing
+            mCurrentLoop = 0;
+            scheduleDecodeLocked();
+        }
+    }
+
+    private void stopMember(Member member) {
+        synchronized (mLock) {
+            member.mRunning = false;
+            if (hasRunningMemberLocked()) return;
+            mNextFrameToDecode = -1;
+        }
+        mMainHandler.removeCallbacks(mReadyToSwapRunnable);
+    }
+
+    private boolean isMemberRunning(Member member) {
+        synchronized (mLock) {
+            return member.mRunning && isRunningLocked();
+        }
+    }
+
+    private void drawMember(Member member, Canvas canvas) {
+        Bitmap frontBitmap;
+        boolean markedReadyHere = false;
+        boolean lateSwap = false;
+        synchronized (mLock) {
+            checkDestroyedLocked();
+            if (mState == STATE_WAITING_TO_SWAP) {
+                // may have failed to schedule mark ready runnable,
+                // so go ahead and swap if swapping is due
+                if (mNextSwap - SystemClock.uptimeMillis() <= 0) {
+                    mState = STATE_READY_TO_SWAP;
+                    markedReadyHere = true;
+                }
+            }
+
+            if (isRunningLocked() && mState == STATE_READY_TO_SWAP) {
+                // Every member was invalidated together, so the view system re-records all of
+                // them in this traversal and none still references the old mFrontBitmap
+                Bitmap tmp = mBackBitmap;
+                mBackBitmap = mFrontBitmap;
+                mFrontBitmap = tmp;
+                lateSwap = markedReadyHere;
+
+                mLastSwap = SystemClock.uptimeMillis();
+
+                boolean continueLooping = true;
+                if (mNextFrameToDecode == mFrameSequence.getFrameCount() - 1) {
+                    mCurrentLoop++;
+                    if ((mLoopBehavior == FrameSequenceDrawable.LOOP_ONCE && mCurrentLoop == 1)
+                            || (mLoopBehavior == FrameSequenceDrawable.LOOP_DEFAULT
+                                    && mCurrentLoop == mFrameSequence.getDefaultLoopCount())) {
+                        continueLooping = false;
+                    }
+                }
+
+                if (continueLooping) {
+                    scheduleDecodeLocked();
+                } else {
+                    mMainHandler.post(mCallbackRunnable);
+                }
+            }
+            frontBitmap = mFrontBitmap;
+        }
+
+        if (lateSwap) {
+            // the mark ready runnable invalidates every member, but a late swap made by this
+            // member's draw leaves the others showing the previous frame, so bring them up to
+            // date
+            mMainHandler.post(mInvalidateRunnable);
+        }
+        canvas.drawBitmap(frontBitmap, mSrcRect, member.getBounds(), member.mPaint);
+    }
+
+    /**
+     * A Drawable showing the group's shared front Bitmap. Starting or stopping a member only
+     * affects the shared playback when it is the first to start or the last to stop.
+     */
+    private class Member extends Drawable implements Animatable {
+        private final Paint mPaint;
+
+        // protected by the group's mLock
+        private boolean mRunning;
+
+        Member() {
+            mPaint = new Paint();
+            mPaint.setFilterBitmap(true);
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            drawMember(this, canvas);
+        }
+
+        @Override
+        public void start() {
+            startMember(this);
+        }
+
+        @Override
+        public void stop() {
+            stopMember(this);
+        }
+
+        @Override
+        public boolean isRunning() {
+            return isMemberRunning(this);
+        }
+
+        @Override
+        public boolean setVisible(boolean visible, boolean restart) {
+            boolean changed = super.setVisible(visible, restart);
+
+            if (!visible) {
+                stop();
+            } else if (restart || changed) {
+                stop();
+                start();
+            }
+
+            return changed;
+        }
+
+        // drawing properties
+
+        @Override
+        public void setFilterBitmap(boolean filter) {
+            mPaint.setFilterBitmap(filter);
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            mPaint.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            mPaint.setColorFilter(colorFilter);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mFrameSequence.getWidth();
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mFrameSequence.getHeight();
+        }
+
+        @Override
+        public int getOpacity() {
+            return mFrameSequence.isOpaque() ? PixelFormat.OPAQUE : PixelFormat.TRANSPARENT;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Renders every frame of a FrameSequence once, in order, using several threads.
+ *
+ * The sequence is split into segments that each start at a key frame (a frame that can be drawn
+ * without any frame before it), and each segment is rendered with its own FrameSequence.State.
+ * Frames rendered ahead of the one being delivered are buffered, up to a fixed number of Bitmaps,
+ * and handed to the FrameSink strictly in frame order on the calling thread.
+ */
+public class FrameSequenceRenderer {
+    public static interface FrameSink {
+        /**
+         * Called once per frame, in frame order, on the thread that called render().
+         *
+         * The Bitmap is only valid for the duration of the call, and must not be retained.
+         *
+         * @param delayMs the time the previous frame should be shown before this one
+         */
+        public abstract void onFrame(int frameNr, Bitmap frame, long delayMs);
+    }
+
+    private final FrameSequence mFrameSequence;
+    private final FrameSequenceDrawable.BitmapProvider mBitmapProvider;
+    private final int mMaxBufferedFrames;
+    private final Paint mCopyPaint;
+
+    public FrameSequenceRenderer(FrameSequence frameSequence) {
+        this(frameSequence, FrameSequenceDrawable.sAllocatingBitmapProvider, 8);
+    }
+
+    /**
+     * @param maxBufferedFrames the number of frames that may be rendered ahead of delivery, each
+     *         held in a Bitmap from bitmapProvider
+     */
+    public FrameSequenceRenderer(FrameSequence frameSequence,
+            FrameSequenceDrawable.BitmapProvider bitmapProvider, int maxBufferedFrames) {
+        if (frameSequence == null || bitmapProvider == null || maxBufferedFrames < 0) {
+            throw new IllegalArgumentException();
+        }
+        mFrameSequence = frameSequence;
+        mBitmapProvider = bitmapProvider;
+        mMaxBufferedFrames = maxBufferedFrames;
+        mCopyPaint = new Paint();
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Renders all frames, delivering them to sink, and returns once the last has been delivered.
+     *
+     * Up to parallelism - 1 segment workers are posted to executor; the calling thread renders
+     * too, so rendering always makes progress even if executor never runs them.
+     *
+     * @throws InterruptedException if the calling thread is interrupted, in which case rendering
+     *         is abandoned and any buffered Bitmaps are released
+     */
+    public void render(Executor executor, int parallelism, FrameSink sink)
+            throws InterruptedException {
+        if (executor == null || sink == null || parallelism < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        final Job job = new Job(splitSegments(parallelism), sink);
+        for (int i = 1; i < parallelism && i < job.mSegments.size(); i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Segment segment;
+                    while ((segment = job.claimNextSegment()) != null) {
+                        job.renderBuffered(segment);
+                    }
+                }
+            });
+        }
+        job.run();
+    }
+
+    /**
+     * Splits the sequence at key frames into runs of roughly equal length, a few per thread so
+     * that the frames waiting to be delivered are always near the front of the queue.
+     */
+    private ArrayList<Segment> splitSegments(int parallelism) {
+        final int frameCount = mFrameSequence.getFrameCount();
+        final int targetLength = Math.max(1, frameCount / (parallelism * 4));
+
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        int segmentStart = 0;
+        for (int i = 1; i < frameCount; i++) {
+            if (i - segmentStart >= targetLength && mFrameSequence.isKeyFrame(i)) {
+                segments.add(new Segment(segmentStart, i));
+                segmentStart = i;
+            }
+        }
+        segments.add(new Segment(segmentStart, frameCount));
+        return segments;
+    }
+
+    private Bitmap acquireBitmap() {
+        return FrameSequenceDrawable.acquireAndValidateBitmap(mBitmapProvider,
+                mFrameSequence.getWidth(), mFrameSequence.getHeight(), mFrameSequence.isOpaque());
+    }
+
+    private static class Segment {
+        final int mStart;
+        final int mEnd;
+        boolean mClaimed;
+
+        Segment(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+    }
+
+    private class Job {
+        final ArrayList<Segment> mSegments;
+        final FrameSink mSink;
+
+        //Protects the fields below
+        final Object mLock = new Object();
+
+        final Bitmap[] mFrames;
+        final long[] mDelays;
+        int mNextToDeliver;
+        int mBufferedCount;
+        boolean mCancelled;
+        Throwable mFailure;
+
+        Job(ArrayList<Segment> segments, FrameSink sink) {
+            mSegments = segments;
+            mSink = sink;
+            mFrames = new Bitmap[mFrameSequence.getFrameCount()];
+            mDelays = new long[mFrameSequence.getFrameCount()];
+        }
+
+        Segment claimNextSegment() {
+            synchronized (mLock) {
+                if (mCancelled || mFailure != null) return null;
+                for (Segment segment : mSegments) {
+                    if (!segment.mClaimed) {
+                        segment.mClaimed = true;
+                        return segment;
+                    }
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Runs on the calling thread. Renders each segment no worker has claimed yet, and waits
+         * for the others to be buffered.
+         */
+        void run() throws InterruptedException {
+            try {
+                for (Segment segment : mSegments) {
+                    boolean claimed;
+                    synchronized (mLock) {
+                        claimed = !segment.mClaimed;
+                        segment.mClaimed = true;
+                    }
+                    if (claimed) {
+                        renderSegment(segment, false);
+                    } else {
+                        for (int i = segment.mStart; i < segment.mEnd; i++) {
+                            deliverBuffered(i);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                throw e;
+            } catch (RuntimeException e) {
+                cancel();
+                throw e;
+            } catch (Error e) {
+                cancel();
+                throw e;
+            }
+        }
+
+        /**
+         * Runs on a worker. Anything that stops the segment being rendered, other than the job
+         * being cancelled, is recorded so that the delivering thread fails instead of waiting
+         * forever for frames that will never be published.
+         */
+        void renderBuffered(Segment segment) {
+            try {
+                renderSegment(segment, true);
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        private void fail(Throwable t) {
+            synchronized (mLock) {
+                if (!mCancelled && mFailure == null) mFailure = t;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Renders a segment with a fresh State. Unbuffered frames go straight to the sink,
+         * otherwise each is copied into a buffer Bitmap for the delivering thread.
+         */
+        private void renderSegment(Segment segment, boolean buffered) throws InterruptedException {
+            FrameSequence.State state = mFrameSequence.createState();
+            Bitmap canvasBitmap = acquireBitmap();
+            try {
+                for (int i = segment.mStart; i < segment.mEnd; i++) {
+                    long delayMs = state.getFrame(i, canvasBitmap,
+                            i == segment.mStart ? -1 : i - 1);
+                    if (!buffered) {
+                        mSink.onFrame(i, canvasBitmap, delayMs);
+                        synchronized (mLock) {
+                            mNextToDeliver = i + 1;
+                            mLock.notifyAll();
+                        }
+                    } else {
+                        Bitmap buffer = waitForBuffer(i);
+                        if (buffer == null) return; // cancelled
+                        new Canvas(buffer).drawBitmap(canvasBitmap, 0, 0, mCopyPaint);
+                        publish(i, buffer, delayMs);
+                    }
+                }
+            } finally {
+                state.destroy();
+                mBitmapProvider.releaseBitmap(canvasBitmap);
+            }
+        }
+
+        /**
+         * Blocks until frameNr may be buffered, then acquires a Bitmap for it. The next frame to
+         * be delivered is never held back, so the delivering thread can't be starved.
+         */
+        private Bitmap waitForBuffer(int frameNr) throws InterruptedException {
+            synchronized (mLock) {
+                while (!mCancelled && mBufferedCount >= mMaxBufferedFrames
+                        && frameNr != mNextToDeliver) {
+                    mLock.wait();
+                }
+                if (mCancelled) return null;
+                mBufferedCount++;
+            }
+            return acquireBitmap();
+        }
+
+        private void publish(int frameNr, Bitmap buffer, long delayMs) {
+            synchronized (mLock) {
+                if (!mCancelled) {
+                    mFrames[frameNr] = buffer;
+                    mDelays[frameNr] = delayMs;
+                    mLock.notifyAll();
+                    return;
+                }
+            }
+            mBitmapProvider.releaseBitmap(buffer);
+        }
+
+        private void deliverBuffered(int frameNr) throws InterruptedException {
+            Bitmap buffer;
+            long delayMs;
+            synchronized (mLock) {
+                mNextToDeliver = frameNr;
+                mLock.notifyAll();
+                while (mFrames[frameNr] == null) {
+                    if (mFailure != null) throw new RuntimeException(mFailure);
+                    mLock.wait();
+                }
+                buffer = mFrames[frameNr];
+                delayMs = mDelays[frameNr];
+                mFrames[frameNr] = null;
+            }
+
+            try {
+                mSink.onFrame(frameNr, buffer, delayMs);
+            } finally {
+                mBitmapProvider.releaseBitmap(buffer);
+                synchronized (mLock) {
+                    mBufferedCount--;
+                    mNextToDeliver = frameNr + 1;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        private void cancel() {
+            ArrayList<Bitmap> toRelease = new ArrayList<Bitmap>();
+            synchronized (mLock) {
+                mCancelled = true;
+                for (int i = 0; i < mFrames.length; i++) {
+                    if (mFrames[i] != null) {
+                        toRelease.add(mFrames[i]);
+                        mFrames[i] = null;
+                    }
+                }
+                mLock.notifyAll();
+            }
+            for (Bitmap bitmap : toRelease) {
+                mBitmapProvider.releaseBitmap(bitmap);
+            }
+        }
+    }
+}
@@ -31,8 +31,17 @@ LOCAL_SRC_FILES := \
     variablespeed.cc \
     ring_buffer.cc \
     sola_time_scaler.cc \
+    fixed_point_sola_time_scaler.cc \
     jni_entry.cc \
     decode_buffer.cc \
+    sample_conversion.cc \
+    offline_renderer.cc \
+    wav_io.cc \
+    pipeline_stats.cc \
+    buffer_sizer.cc \
+    level_envelope.cc \
+    silence_skipper.cc \
+    opensl_audio_backend.cc \
 
 LOCAL_C_INCLUDES := \
     $(call include-path-for, wilhelm) \
@@ -47,3 +56,122 @@ LOCAL_SHARED_LIBRARIES := \
     liblog \
 
 include $(BUILD_SHARED_LIBRARY)
+
+# Host micro-benchmark for the sample format conversions.
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS += -Wall
+LOCAL_CPPFLAGS += -Wall
+
+LOCAL_CPP_EXTENSION := .cc
+LOCAL_MODULE := variablespeed_conversion_benchmark
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    sample_conversion.cc \
+    sample_conversion_benchmark.cc \
+
+include $(BUILD_HOST_EXECUTABLE)
+
+# Host benchmark comparing the SolaAnalyzer implementations.
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS += -Wall
+LOCAL_CPPFLAGS += -Wall
+
+LOCAL_CPP_EXTENSION := .cc
+LOCAL_MODULE := variablespeed_sola_analyzer_benchmark
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    ring_buffer.cc \
+    sola_time_scaler.cc \
+    sola_analyzer_benchmark.cc \
+
+LOCAL_STATIC_LIBRARIES := \
+    liblog \
+
+include $(BUILD_HOST_EXECUTABLE)
+
+# Host tool rendering WAV files through the time scaler offline.
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS += -Wall
+LOCAL_CPPFLAGS += -Wall
+
+LOCAL_CPP_EXTENSION := .cc
+LOCAL_MODULE := variablespeed_render
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    ring_buffer.cc \
+    sola_time_scaler.cc \
+    sample_conversion.cc \
+    offline_renderer.cc \
+    wav_io.cc \
+    render_main.cc \
+
+LOCAL_STATIC_LIBRARIES := \
+    liblog \
+
+include $(BUILD_HOST_EXECUTABLE)
+
+# Host benchmark suite for the time scaler and the buffers feeding it.
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS += -Wall
+LOCAL_CPPFLAGS += -Wall
+
+LOCAL_CPP_EXTENSION := .cc
+LOCAL_MODULE := variablespeed_benchmark
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    ring_buffer.cc \
+    sola_time_scaler.cc \
+    fixed_point_sola_time_scaler.cc \
+    sample_conversion.cc \
+    decode_buffer.cc \
+    variablespeed_benchmark.cc \
+
+LOCAL_STATIC_LIBRARIES := \
+    libcutils \
+    liblog \
+
+include $(BUILD_HOST_EXECUTABLE)
+
+# Host simulation of the whole engine, with the decoder and audio player
+# standing in for OpenSL on a virtual clock.
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS += -Wall
+LOCAL_CPPFLAGS += -Wall
+
+LOCAL_CPP_EXTENSION := .cc
+LOCAL_MODULE := variablespeed_simulation
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    variablespeed.cc \
+    ring_buffer.cc \
+    sola_time_scaler.cc \
+    fixed_point_sola_time_scaler.cc \
+    decode_buffer.cc \
+    sample_conversion.cc \
+    offline_renderer.cc \
+    wav_io.cc \
+    pipeline_stats.cc \
+    buffer_sizer.cc \
+    level_envelope.cc \
+    silence_skipper.cc \
+    host_audio_backend.cc \
+    simulation_main.cc \
+
+LOCAL_STATIC_LIBRARIES := \
+    libutils \
+    libcutils \
+    liblog \
+
+LOCAL_LDLIBS := -lpthread
+
+include $(BUILD_HOST_EXECUTABLE)
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_AUDIO_BACKEND_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_AUDIO_BACKEND_H_
+
+#include <integral_types.h>
+#include <stdint.h>
+
+#include <string>
+
+// Where a decoder reads its audio from: a uri, or length bytes from offset
+// in an open file descriptor if fd is not negative.
+struct DecoderSource {
+  DecoderSource() : fd(-1), offset(0), length(0) {}
+
+  std::string uri;
+  int fd;
+  int64 offset;
+  int64 length;
+};
+
+// Decodes a source to interleaved 16-bit PCM, delivering it a buffer at a
+// time to its listener on a thread of its own.  It is created paused.
+class PcmDecoder {
+ public:
+  class Listener {
+   public:
+    virtual ~Listener() {}
+    // Called with each buffer of decoded audio, in order.  The decoder may
+    // reuse the buffer once this returns, and decodes nothing more until it
+    // does, so blocking here holds the decoder back.
+    virtual void OnDecodedBuffer(const int8_t* data, size_t sizeInBytes) = 0;
+    // Called once, when the whole source has been decoded, or with
+    // decodedToEnd false if the source could not be read.  It may be called
+    // again after a seek.
+    virtual void OnDecoderFinished(bool decodedToEnd) = 0;
+  };
+
+  // Stops decoding.  The listener is not called once this has returned.
+  virtual ~PcmDecoder() {}
+
+  virtual void Play() = 0;
+  virtual void Pause() = 0;
+  // Moves to the position in the source, which should be done paused.
+  virtual void Seek(int positionMillis) = 0;
+  // Reads the format of the decoded audio, leaving either value as it is if
+  // the decoder does not know it yet.  It is known by the first buffer.
+  virtual void GetFormat(uint32* sampleRate, uint32* channels) = 0;
+  // Returns the duration of the source, or zero if it is not known yet.
+  virtual uint32 GetDurationMillis() = 0;
+};
+
+// Plays interleaved 16-bit PCM from a queue of buffers, telling its listener
+// on a thread of its own as each buffer finishes.  It is created stopped.
+class PcmPlayer {
+ public:
+  class Listener {
+   public:
+    virtual ~Listener() {}
+    // Called as the buffer at the head of the queue finishes playing.
+    virtual void OnBufferPlayed() = 0;
+  };
+
+  // Stops playing.  The listener is not called once this has returned.
+  virtual ~PcmPlayer() {}
+
+  virtual void Play() = 0;
+  virtual void Pause() = 0;
+  // Adds a buffer to the end of the queue, which must stay valid until it
+  // has been played or cleared.  Returns false if it could not be added.
+  virtual bool Enqueue(const int16* samples, size_t sizeInBytes) = 0;
+  // Drops every buffer in the queue, without telling the listener.
+  virtual void Clear() = 0;
+};
+
+// Creates the decoders and audio players an AudioEngine plays through, and
+// keeps the time it paces itself by.  OpenSLAudioBackend is the one used on
+// the device, and HostAudioBackend stands in for it on the host.
+class AudioBackend {
+ public:
+  virtual ~AudioBackend() {}
+
+  // Returns a paused decoder of the source.  A source that cannot be read is
+  // reported to the listener.
+  virtual PcmDecoder* CreateDecoder(const DecoderSource& source,
+      int audioStreamType, PcmDecoder::Listener* listener) = 0;
+  // Returns a stopped audio player for audio in the given format, whose
+  // queue holds up to queueDepth buffers.
+  virtual PcmPlayer* CreatePlayer(uint32 sampleRate, uint32 channels,
+      size_t queueDepth, int audioStreamType,
+      PcmPlayer::Listener* listener) = 0;
+  // Reads the duration of a source without decoding it.  Returns -1 if it
+  // cannot be determined.
+  virtual int ProbeDuration(const DecoderSource& source) = 0;
+
+  // The time, for the engine's pacing decisions.
+  virtual int64 NowMicros() = 0;
+  // Called by the engine's playback loop and decoding callback to wait.
+  virtual void SleepMicros(int64 micros) = 0;
+  // Called by the decoding callback to wait for the playback loop to make
+  // room for more audio, for at most micros.  Returns as soon as Wake() is
+  // called, or at once if it has been called since the last wait returned.
+  virtual void WaitMicros(int64 micros) = 0;
+  // Ends the current or the next WaitMicros().  May be called from any
+  // thread.
+  virtual void Wake() = 0;
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_AUDIO_BACKEND_H_
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <buffer_sizer.h>
+
+#include <algorithm>
+
+#include <cutils/atomic.h>
+
+namespace {
+
+// How often the sizes are reconsidered, short of an underrun.
+const int64 kWindowMicros = 1000 * 1000;
+// How many windows in a row must have had room to spare before shrinking.
+const int kQuietWindowsBeforeShrinking = 10;
+
+}  // namespace
+
+BufferSizer::BufferSizer(size_t playBufferCountLowerBound,
+    size_t playBufferCountUpperBound, size_t decodeMaxSizeLowerBound,
+    size_t decodeMaxSizeUpperBound, size_t playBufferCount,
+    size_t decodeMaxSize)
+    : play_buffer_count_lower_bound_(playBufferCountLowerBound),
+      play_buffer_count_upper_bound_(playBufferCountUpperBound),
+      decode_max_size_lower_bound_(decodeMaxSizeLowerBound),
+      decode_max_size_upper_bound_(decodeMaxSizeUpperBound),
+      play_buffer_count_(std::min(std::max(playBufferCount,
+          playBufferCountLowerBound), playBufferCountUpperBound)),
+      decode_max_size_(std::min(std::max(decodeMaxSize,
+          decodeMaxSizeLowerBound), decodeMaxSizeUpperBound)),
+      buffer_micros_(0), last_underrun_count_(0), window_start_micros_(0),
+      quiet_windows_(0), last_callback_micros_(0), last_seen_restarts_(0),
+      restarts_(0), max_lateness_micros_(0) {
+  CHECK(playBufferCountLowerBound > 0);
+  CHECK(playBufferCountLowerBound <= playBufferCountUpperBound);
+  CHECK(decodeMaxSizeLowerBound <= decodeMaxSizeUpperBound);
+}
+
+void BufferSizer::RecordPlayerCallback(int64 nowMicros) {
+  int32_t restarts = android_atomic_acquire_load(&restarts_);
+  if (restarts != last_seen_restarts_ || last_callback_micros_ == 0) {
+    // The first callback since the player started has nothing to go by.
+    last_seen_restarts_ = restarts;
+    last_callback_micros_ = nowMicros;
+    return;
+  }
+  int64 lateness = nowMicros - last_callback_micros_ - buffer_micros_;
+  last_callback_micros_ = nowMicros;
+  int32_t current;
+  do {
+    current = android_atomic_acquire_load(&max_lateness_micros_);
+    if (lateness <= current) {
+      return;
+    }
+  } while (android_atomic_release_cas(current, static_cast<int32_t>(lateness),
+      &max_lateness_micros_) != 0);
+}
+
+void BufferSizer::Restart(int64 bufferMicros) {
+  buffer_micros_ = bufferMicros;
+  android_atomic_release_store(restarts_ + 1, &restarts_);
+}
+
+bool BufferSizer::Update(int64 nowMicros, int32_t underrunCount) {
+  size_t oldPlayBufferCount = play_buffer_count_;
+  size_t oldDecodeMaxSize = decode_max_size_;
+  if (underrunCount != last_underrun_count_) {
+    last_underrun_count_ = underrunCount;
+    quiet_windows_ = 0;
+    Grow();
+  } else if (nowMicros - window_start_micros_ >= kWindowMicros) {
+    window_start_micros_ = nowMicros;
+    int32_t lateness;
+    do {
+      lateness = android_atomic_acquire_load(&max_lateness_micros_);
+    } while (android_atomic_release_cas(lateness, 0,
+        &max_lateness_micros_) != 0);
+    // While one buffer plays, the rest are queued behind it, and they are
+    // all that covers a late callback.
+    int64 headroom = (play_buffer_count_ - 1) * buffer_micros_;
+    int64 headroomAfterShrinking = headroom - buffer_micros_;
+    if (2 * lateness > headroom) {
+      quiet_windows_ = 0;
+      Grow();
+    } else if (2 * lateness < headroomAfterShrinking) {
+      if (++quiet_windows_ >= kQuietWindowsBeforeShrinking) {
+        quiet_windows_ = 0;
+        Shrink();
+      }
+    } else {
+      quiet_windows_ = 0;
+    }
+  }
+  return play_buffer_count_ != oldPlayBufferCount ||
+      decode_max_size_ != oldDecodeMaxSize;
+}
+
+void BufferSizer::Grow() {
+  play_buffer_count_ = std::min(play_buffer_count_ + 1,
+      play_buffer_count_upper_bound_);
+  decode_max_size_ = std::min(decode_max_size_ * 2,
+      decode_max_size_upper_bound_);
+}
+
+void BufferSizer::Shrink() {
+  play_buffer_count_ = std::max(play_buffer_count_ - 1,
+      play_buffer_count_lower_bound_);
+  decode_max_size_ = std::max(decode_max_size_ / 2,
+      decode_max_size_lower_bound_);
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_BUFFER_SIZER_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_BUFFER_SIZER_H_
+
+#include <integral_types.h>
+#include <macros.h>
+#include <stdint.h>
+#include <stdlib.h>
+
+// Decides how much audio an AudioEngine in adaptive mode keeps buffered.
+//
+// An underrun, or audio player callbacks arriving so late that the audio
+// queued behind the playing buffer barely covered the wait, grows the play
+// buffer count by one and doubles the decode buffer limit.  A long enough
+// stretch with plenty to spare shrinks them again a step at a time, to bring
+// the latency back down.  Sizes always stay within the bounds given.
+//
+// The audio player's callback calls RecordPlayerCallback(), and the playback
+// loop everything else.  The only value they share is updated with
+// compare-and-swap.
+class BufferSizer {
+ public:
+  BufferSizer(size_t playBufferCountLowerBound,
+      size_t playBufferCountUpperBound, size_t decodeMaxSizeLowerBound,
+      size_t decodeMaxSizeUpperBound, size_t playBufferCount,
+      size_t decodeMaxSize);
+
+  // Called by the audio player's callback each time a buffer finishes.
+  void RecordPlayerCallback(int64 nowMicros);
+  // Called when the playback loop rebuilds the audio player, or seeks, so
+  // that the gap in the callbacks is not taken for lateness.  bufferMicros
+  // is how long a full play buffer lasts.
+  void Restart(int64 bufferMicros);
+  // Called regularly by the playback loop with the number of underruns so
+  // far.  Returns true if the sizes have changed.
+  bool Update(int64 nowMicros, int32_t underrunCount);
+
+  size_t play_buffer_count() const { return play_buffer_count_; }
+  size_t decode_max_size() const { return decode_max_size_; }
+
+ private:
+  void Grow();
+  void Shrink();
+
+  const size_t play_buffer_count_lower_bound_;
+  const size_t play_buffer_count_upper_bound_;
+  const size_t decode_max_size_lower_bound_;
+  const size_t decode_max_size_upper_bound_;
+  size_t play_buffer_count_;
+  size_t decode_max_size_;
+  // How long a full play buffer lasts.
+  int64 buffer_micros_;
+  int32_t last_underrun_count_;
+  int64 window_start_micros_;
+  // The number of windows in a row with room to spare.
+  int quiet_windows_;
+
+  // Written only by the audio player's callback.
+  int64 last_callback_micros_;
+  int32_t last_seen_restarts_;
+  // Written only by the playback loop.
+  volatile int32_t restarts_;
+  // The latest a callback has been, beyond the length of a buffer, since
+  // the playback loop last took it.
+  volatile int32_t max_lateness_micros_;
+
+  DISALLOW_COPY_AND_ASSIGN(BufferSizer);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_BUFFER_SIZER_H_
@@ -16,71 +16,90 @@
 
 #include <decode_buffer.h>
 
+#include <string.h>
+
+#include <algorithm>
+
+#include <cutils/atomic.h>
+
 namespace {
 
 static const size_t kNumberOfBytesPerSample = 2;
 
+size_t RoundUpToPowerOfTwo(size_t value) {
+  size_t result = 1;
+  while (result < value) {
+    result <<= 1;
+  }
+  return result;
+}
+
 }  // namespace
 
 DecodeBuffer::DecodeBuffer(size_t sizeOfOneBuffer, size_t maxSize)
-    : sizeOfOneBuffer_(sizeOfOneBuffer), maxSize_(maxSize),
-      start_(0), end_(0), advancedCount_(0), data_() {
-  Clear();
+    : maxSizeLimit_(maxSize), maxSize_(maxSize),
+      capacity_(RoundUpToPowerOfTwo(
+          maxSize / kNumberOfBytesPerSample + sizeOfOneBuffer)),
+      data_(new int16[capacity_]), write_(0), read_(0) {
 }
 
 DecodeBuffer::~DecodeBuffer() {
-  Clear();
+  delete[] data_;
 }
 
 size_t DecodeBuffer::GetSizeInBytes() const {
-  return kNumberOfBytesPerSample * (end_ - start_);
+  uint32 write = android_atomic_acquire_load(&write_);
+  uint32 read = android_atomic_acquire_load(&read_);
+  return kNumberOfBytesPerSample * (write - read);
 }
 
 bool DecodeBuffer::IsTooLarge() const {
-  return GetSizeInBytes() > maxSize_;
+  return GetSizeInBytes() >
+      static_cast<size_t>(android_atomic_acquire_load(&maxSize_));
 }
 
-void DecodeBuffer::AddData(int8_t* pointer, size_t lengthInBytes) {
-  for (size_t i = 0; i < lengthInBytes / kNumberOfBytesPerSample; ++i) {
-    PushValue(reinterpret_cast<int16*>(pointer)[i]);
-  }
+void DecodeBuffer::SetMaxSize(size_t maxSize) {
+  CHECK(maxSize <= maxSizeLimit_);
+  android_atomic_release_store(maxSize, &maxSize_);
+}
+
+size_t DecodeBuffer::AddData(const int8_t* pointer, size_t lengthInBytes) {
+  const int16* values = reinterpret_cast<const int16*>(pointer);
+  uint32 write = write_;
+  uint32 read = android_atomic_acquire_load(&read_);
+  size_t count = std::min(lengthInBytes / kNumberOfBytesPerSample,
+      capacity_ - (write - read));
+  size_t offset = write & (capacity_ - 1);
+  size_t firstPart = std::min(count, capacity_ - offset);
+  memcpy(data_ + offset, values, firstPart * kNumberOfBytesPerSample);
+  memcpy(data_, values + firstPart,
+      (count - firstPart) * kNumberOfBytesPerSample);
+  android_atomic_release_store(write + count, &write_);
+  return count * kNumberOfBytesPerSample;
 }
 
 void DecodeBuffer::Clear() {
-  while (data_.size() > 0) {
-    delete[] data_.front();
-    data_.erase(data_.begin());
-  }
-  start_ = 0;
-  end_ = 0;
-  advancedCount_ = 0;
+  android_atomic_release_store(android_atomic_acquire_load(&write_), &read_);
 }
 
 size_t DecodeBuffer::GetTotalAdvancedCount() const {
-  return advancedCount_;
+  return static_cast<uint32>(android_atomic_acquire_load(&read_));
 }
 
 void DecodeBuffer::AdvanceHeadPointerShorts(size_t numberOfShorts) {
-  start_ += numberOfShorts;
-  while (start_ > sizeOfOneBuffer_) {
-    data_.push_back(data_.front());
-    data_.erase(data_.begin());
-    start_ -= sizeOfOneBuffer_;
-    end_ -= sizeOfOneBuffer_;
-  }
-  advancedCount_ += numberOfShorts;
+  android_atomic_release_store(read_ + numberOfShorts, &read_);
 }
 
-void DecodeBuffer::PushValue(int16 value) {
-  size_t bufferIndex = end_ / sizeOfOneBuffer_;
-  if (bufferIndex >= data_.size()) {
-    data_.push_back(new int16[sizeOfOneBuffer_]);
+size_t DecodeBuffer::GetContiguousShorts(size_t index,
+    const int16** data) const {
+  uint32 read = read_;
+  uint32 write = android_atomic_acquire_load(&write_);
+  size_t available = write - read;
+  if (index >= available) {
+    *data = NULL;
+    return 0;
   }
-  data_.at(bufferIndex)[end_ % sizeOfOneBuffer_] = value;
-  ++end_;
-}
-
-int16 DecodeBuffer::GetAtIndex(size_t index) {
-  return data_.at((start_ + index) / sizeOfOneBuffer_)
-      [(start_ + index) % sizeOfOneBuffer_];
+  size_t offset = (read + index) & (capacity_ - 1);
+  *data = data_ + offset;
+  return std::min(available - index, capacity_ - offset);
 }
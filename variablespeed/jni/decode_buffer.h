@@ -20,38 +20,49 @@
 #include <integral_types.h>
 #include <macros.h>
 #include <stdlib.h>
-#include <vector>
 
-// DecodeBuffer is used to store arrays of int16 values for audio.
+// DecodeBuffer is a ring buffer of int16 values for audio.
 //
-// This class is not thread-safe.  You should provide your own
-// synchronization if you wish to use it from multiple threads.
+// It is safe for exactly one producer thread, which calls AddData() and
+// IsTooLarge(), and one consumer thread, which calls the remaining methods,
+// to use it concurrently without any locking.  SetMaxSize() may be called
+// from any thread.  The two threads only
+// communicate through the read and write counters, using acquire and release
+// semantics.  Clear() must only be called by the consumer.
 class DecodeBuffer {
  public:
+  // The buffer holds at least maxSize bytes plus sizeOfOneBuffer values, so
+  // that a producer which stops adding once IsTooLarge() is true always has
+  // room for one more buffer of data.
   DecodeBuffer(size_t sizeOfOneBuffer, size_t maxSize);
   virtual ~DecodeBuffer();
   size_t GetSizeInBytes() const;
-  void AddData(int8_t* pointer, size_t lengthInBytes);
+  // Copies as much of the data as will fit, returning the number of bytes
+  // copied.
+  size_t AddData(const int8_t* pointer, size_t lengthInBytes);
   void Clear();
   void AdvanceHeadPointerShorts(size_t numberOfShorts);
-  int16 GetAtIndex(size_t index);
+  // Points data at the value index places after the head, and returns the
+  // number of values that can be read contiguously from there.
+  size_t GetContiguousShorts(size_t index, const int16** data) const;
   bool IsTooLarge() const;
+  // Moves the size at which the buffer counts as too large, which may be no
+  // more than the maxSize it was constructed with.
+  void SetMaxSize(size_t maxSize);
   size_t GetTotalAdvancedCount() const;
 
  private:
-  void PushValue(int16 value);
-
-  size_t sizeOfOneBuffer_;
-  size_t maxSize_;
-  size_t start_;
-  size_t end_;
-  size_t advancedCount_;
-  // This vector isn't ideal because we perform a number of queue-like
-  // operations: namely removing from the front and appending at the back.
-  // However we also need constant-time access to the elements of this
-  // vector, and therefore it's not good enough to use a std::queue.
-  // In practice this data structure choice doesn't seem to be a bottleneck.
-  std::vector<int16*> data_;
+  // The largest maxSize_ may be, which the capacity allows for.
+  const size_t maxSizeLimit_;
+  volatile int32_t maxSize_;
+  // The capacity of data_, which is a power of two.
+  size_t capacity_;
+  int16* data_;
+  // Free-running counts of the values ever written and read. Only the
+  // producer stores to write_ and only the consumer stores to read_, and
+  // the difference between them is the number of values held.
+  volatile int32_t write_;
+  volatile int32_t read_;
 
   DISALLOW_COPY_AND_ASSIGN(DecodeBuffer);
 };
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "fixed_point_sola_time_scaler.h"
+
+#include <hlogging.h>
+
+namespace video_editing {
+
+namespace {
+
+// The shortest time the ring buffers hold, as for SolaTimeScaler.
+const double kMinRingBufferDuration = 2.0;
+
+// The input buffer has one writer and reader.
+// The output buffer has one reader/updater, and one reader/consumer.
+const int kInputReader = 0;
+const int kOutputAnalysis = 0;
+const int kOutputConsumer = 1;
+
+}  // namespace
+
+FixedPointSolaTimeScaler::FixedPointSolaTimeScaler()
+    : initialized_(false), draining_(false), num_channels_(0),
+      sample_rate_(0), input_buffer_(NULL), output_buffer_(NULL) {
+}
+
+FixedPointSolaTimeScaler::~FixedPointSolaTimeScaler() {
+  delete input_buffer_;
+  delete output_buffer_;
+}
+
+void FixedPointSolaTimeScaler::Init(double sample_rate,
+                                    int num_channels,
+                                    double initial_speed,
+                                    double window_duration,
+                                    double overlap_duration) {
+  MutexLock lock(&mutex_);  // lock out processing while updating
+
+  sample_rate_ = sample_rate;
+  num_channels_ = num_channels;
+  speed_ = initial_speed;
+  window_duration_ = window_duration;
+  overlap_duration_ = overlap_duration;
+
+  initialized_ = true;
+  params_.Generate(sample_rate_, window_duration_, &overlap_duration_,
+                   &speed_);
+  Reset();
+}
+
+void FixedPointSolaTimeScaler::set_speed(double speed) {
+  MutexLock lock(&mutex_);  // lock out processing while updating
+
+  speed_ = speed;
+  params_.Generate(sample_rate_, window_duration_, &overlap_duration_,
+                   &speed_);
+}
+
+double FixedPointSolaTimeScaler::speed() const {
+  MutexLock lock(&mutex_);
+  return speed_;
+}
+
+void FixedPointSolaTimeScaler::Reset() {
+  CHECK(initialized_);
+  double duration = max(kMinRingBufferDuration, 20. * window_duration_);
+  draining_ = false;
+
+  delete input_buffer_;
+  input_buffer_ = new Int16RingBuffer();
+  input_buffer_->Init(static_cast<int>
+      (sample_rate_ * duration), num_channels_, 1);
+
+  delete output_buffer_;
+  output_buffer_ = new Int16RingBuffer();
+  output_buffer_->Init(static_cast<int>
+      (sample_rate_ * params_.ratio * duration), num_channels_, 2);
+
+  analyzer_.Init(sample_rate_, num_channels_);
+}
+
+int FixedPointSolaTimeScaler::input_limit() const {
+  CHECK(initialized_);
+  return input_buffer_->overhead();
+}
+
+int FixedPointSolaTimeScaler::available() {
+  CHECK(initialized_);
+
+  int available = output_buffer_->available(kOutputConsumer);
+  if (available > params_.min_output_to_hold) {
+    available -= params_.min_output_to_hold;
+  } else if (draining_) {
+    Process();
+    available = output_buffer_->available(kOutputConsumer);
+    if (available > params_.min_output_to_hold) {
+      available -= params_.min_output_to_hold;
+    }
+  } else {
+    available = 0;
+  }
+  return available;
+}
+
+void FixedPointSolaTimeScaler::Drain() {
+  CHECK(initialized_);
+
+  draining_ = true;
+}
+
+int FixedPointSolaTimeScaler::InjectSamples(const int16* buffer,
+                                            int num_frames) {
+  CHECK(initialized_);
+
+  // Do not write more frames than the buffer can accept.
+  num_frames = std::min(input_limit(), num_frames);
+  if (!num_frames) {
+    return 0;
+  }
+
+  // Copy samples to the input buffer and then process whatever can be consumed.
+  input_buffer_->Write(buffer, num_frames);
+  Process();
+  return num_frames;
+}
+
+int FixedPointSolaTimeScaler::RetrieveSamples(int16* buffer, int num_frames) {
+  CHECK(initialized_);
+
+  // Do not read more frames than available.
+  num_frames = std::min(available(), num_frames);
+  if (!num_frames) {
+    return 0;
+  }
+
+  output_buffer_->Copy(kOutputConsumer, buffer, num_frames);
+  output_buffer_->Seek(kOutputConsumer,
+                       output_buffer_->Tell(kOutputConsumer) + num_frames);
+
+  return num_frames;
+}
+
+// Follows SolaTimeScaler::Process() step for step, on 16-bit samples.
+bool FixedPointSolaTimeScaler::Process() {
+  CHECK(initialized_);
+  bool generated_data = false;
+
+  while (((input_buffer_->available(kInputReader) >
+           params_.max_frames_to_merge) || draining_) &&
+         (output_buffer_->overhead() >= params_.max_frames_to_merge)) {
+    MutexLock lock(&mutex_);  // lock out updates while processing each window
+
+    int input_count = std::min(input_buffer_->available(kInputReader),
+                               params_.max_frames_to_merge);
+    if (input_count == 0) {
+      break;
+    }
+    int16* input_pointer = input_buffer_->GetPointer(kInputReader, input_count);
+
+    int output_merge_cnt = output_buffer_->available(kOutputAnalysis);
+    int16* output_pointer =
+        output_buffer_->GetPointer(kOutputAnalysis, output_merge_cnt);
+
+    int merge_offset = std::min(output_merge_cnt, params_.half_overlap_frames);
+    if ((output_merge_cnt >= (2 * params_.num_overlap_frames)) &&
+        (input_count >= params_.num_overlap_frames)) {
+      merge_offset = analyzer_.FindBestOffset(input_pointer, output_pointer,
+          merge_offset, params_.half_overlap_frames,
+          params_.num_overlap_frames);
+    } else if ((output_merge_cnt > 0) && !draining_) {
+      LOGE("no correlation performed");
+    }
+
+    int crossfade_count = std::max(0, (output_merge_cnt - merge_offset));
+    crossfade_count = std::min(crossfade_count, input_count);
+    int remaining_count = input_count - crossfade_count;
+
+    int16* merge_pointer = output_pointer + (merge_offset * num_channels_);
+    for (int i = 0; i < crossfade_count; ++i) {
+      // Linear cross-fade, with the gains in Q15, rounding to nearest.  The
+      // gains sum to one, so the result can't overflow.
+      int32 input_scale = (i << 15) / crossfade_count;
+      int32 output_scale = (1 << 15) - input_scale;
+      for (int j = 0; j < num_channels_; ++j) {
+        *merge_pointer = static_cast<int16>(
+            ((*merge_pointer * output_scale) +
+             (*input_pointer++ * input_scale) + (1 << 14)) >> 15);
+        ++merge_pointer;
+      }
+    }
+    output_buffer_->MergeBack(kOutputAnalysis,
+                              output_pointer, output_merge_cnt);
+    output_buffer_->Write(input_pointer, remaining_count);
+
+    int output_advance = params_.target_merge_offset;
+    if (output_merge_cnt < params_.half_overlap_frames) {
+      output_advance -= params_.half_overlap_frames;
+    }
+    if (draining_) {
+      output_advance =
+          std::min(output_advance, output_buffer_->available(kOutputAnalysis));
+    }
+    output_buffer_->Seek(kOutputAnalysis,
+        output_buffer_->Tell(kOutputAnalysis) + output_advance);
+
+    input_buffer_->Seek(kInputReader, input_buffer_->Tell(kInputReader) +
+                        std::min(input_count, params_.input_window_offset));
+
+    if ((crossfade_count + remaining_count) > 0) {
+      generated_data = true;
+    }
+  }  // while (more to process)
+  return generated_data;
+}
+
+}  // namespace video_editing
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_FIXED_POINT_SOLA_TIME_SCALER_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_FIXED_POINT_SOLA_TIME_SCALER_H_
+
+#include <no_synchronization.h>
+
+#include "integral_types.h"
+#include "macros.h"
+#include "ring_buffer.h"
+#include "sola_time_scaler.h"
+
+namespace video_editing {
+
+// A SolaTimeScaler that works on 16-bit samples throughout, for devices where
+// converting to and from floats, and the float overlap-add, cost too much.
+//
+// It chooses the same merge points as a SolaTimeScaler with a
+// SolaBitPackedAnalyzer, since the sign bits of the samples are the same, and
+// cross-fades with Q15 fixed-point gains, so that each merged sample is within
+// one least significant bit of the float result.
+class FixedPointSolaTimeScaler : public TimeScaler {
+ public:
+  FixedPointSolaTimeScaler();
+  virtual ~FixedPointSolaTimeScaler();
+
+  // Initializes the scaler, exactly as SolaTimeScaler::Init().
+  void Init(double sample_rate, int num_channels, double initial_speed,
+            double window_duration, double overlap_duration);
+
+  virtual void set_speed(double speed);
+  virtual double speed() const;
+  virtual void Drain();
+  virtual void Reset();
+  virtual int input_limit() const;
+  virtual int available();
+
+  // Feeds audio to the timescaler, and processes as much data as possible.
+  // @param buffer pointer to interleaved 16-bit input samples
+  // @param num_frames number of frames (num_samples / num_channels)
+  // @returns number of frames actually accepted
+  int InjectSamples(const int16* buffer, int num_frames);
+
+  // Retrieves audio data from the timescaler.
+  // @param buffer pointer to buffer to receive interleaved 16-bit output
+  // @param num_frames maximum desired number of frames
+  // @returns number of frames actually returned
+  int RetrieveSamples(int16* buffer, int num_frames);
+
+  int num_channels() const { return num_channels_; }
+
+ private:
+  // Munges input samples to produce output.
+  // @returns true if any output samples were generated
+  bool Process();
+
+  mutable Mutex mutex_;       // allows concurrent produce/consume/param change
+  bool initialized_;          // set true when input parameters have been set
+  bool draining_;             // set true to drain latency
+
+  int num_channels_;
+  double sample_rate_;
+  double window_duration_;
+  double overlap_duration_;
+  double speed_;
+  SolaParameters params_;
+
+  Int16RingBuffer* input_buffer_;
+  Int16RingBuffer* output_buffer_;
+  SolaBitPackedAnalyzer analyzer_;
+
+  DISALLOW_COPY_AND_ASSIGN(FixedPointSolaTimeScaler);
+};
+
+}  // namespace video_editing
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_FIXED_POINT_SOLA_TIME_SCALER_H_
@@ -0,0 +1,645 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <host_audio_backend.h>
+
+#include <pthread.h>
+#include <string.h>
+
+#include <hlogging.h>
+#include <wav_io.h>
+
+#include <algorithm>
+#include <deque>
+
+namespace {
+
+// How often an idle decoder or audio player looks for something to do, and
+// how often a thread waiting for one of them to stop checks whether it has.
+const int64 kIdleMicros = 1000;
+
+const size_t kNumberOfBytesPerInt16 = 2;
+
+const char kFileUriPrefix[] = "file://";
+
+// Runs Run() on a new thread that takes part in the clock's simulation.
+class ClockThread {
+ public:
+  explicit ClockThread(VirtualClock* clock)
+      : clock_(clock), stopping_(false), exited_(false), started_(false) {}
+  virtual ~ClockThread() {
+    CHECK(!started_ || exited_);
+  }
+
+  void Start() {
+    ticket_ = clock_->AddThread();
+    started_ = true;
+    CHECK(pthread_create(&thread_, NULL, ThreadMain, this) == 0);
+  }
+
+  // Asks Run() to return, and sleeps on the clock until it has.  Called by
+  // a thread taking part.
+  void Stop() {
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      stopping_ = true;
+    }
+    while (!HasExited()) {
+      clock_->SleepMicros(kIdleMicros);
+    }
+    pthread_join(thread_, NULL);
+  }
+
+ protected:
+  virtual void Run() = 0;
+
+  bool IsStopping() {
+    android::Mutex::Autolock autoLock(lock_);
+    return stopping_;
+  }
+
+  VirtualClock* clock_;
+
+ private:
+  static void* ThreadMain(void* arg) {
+    ClockThread* thread = static_cast<ClockThread*>(arg);
+    thread->clock_->BeginThread(thread->ticket_);
+    thread->Run();
+    {
+      android::Mutex::Autolock autoLock(thread->lock_);
+      thread->exited_ = true;
+    }
+    thread->clock_->EndThread();
+    return NULL;
+  }
+
+  bool HasExited() {
+    android::Mutex::Autolock autoLock(lock_);
+    return exited_;
+  }
+
+  android::Mutex lock_;
+  bool stopping_;
+  bool exited_;
+  bool started_;
+  int64 ticket_;
+  pthread_t thread_;
+
+  DISALLOW_COPY_AND_ASSIGN(ClockThread);
+};
+
+// Opens the WAV file a source names.  Only paths and file:// uris can be
+// read on the host.
+bool OpenSource(const DecoderSource& source, MappedWavFile* wav) {
+  if (source.fd >= 0) {
+    LOGE("file descriptors are not supported on the host");
+    return false;
+  }
+  const char* path = source.uri.c_str();
+  if (strncmp(path, kFileUriPrefix, strlen(kFileUriPrefix)) == 0) {
+    path += strlen(kFileUriPrefix);
+  }
+  if (!wav->Open(path)) {
+    LOGE("could not read %s", path);
+    return false;
+  }
+  return true;
+}
+
+// Delivers the samples of a WAV file a buffer at a time, as a decoder would.
+class HostDecoder : public PcmDecoder, public ClockThread {
+ public:
+  HostDecoder(VirtualClock* clock, const HostAudioBackend::Options& options,
+      const DecoderSource& source, Listener* listener)
+      : ClockThread(clock), options_(options), listener_(listener),
+        opened_(OpenSource(source, &wav_)), prefetched_(false),
+        playing_(false), seekPending_(false), reachedEnd_(false),
+        framePosition_(0), generation_(0),
+        buffer_(new int8_t[options.decodeBufferSizeInBytes]) {
+    Start();
+  }
+
+  virtual ~HostDecoder() {
+    Stop();
+    delete[] buffer_;
+  }
+
+  virtual void Play() {
+    android::Mutex::Autolock autoLock(lock_);
+    playing_ = true;
+  }
+
+  virtual void Pause() {
+    android::Mutex::Autolock autoLock(lock_);
+    playing_ = false;
+  }
+
+  virtual void Seek(int positionMillis) {
+    android::Mutex::Autolock autoLock(lock_);
+    if (!opened_) {
+      return;
+    }
+    framePosition_ = std::min(wav_.num_frames(),
+        static_cast<int64>(positionMillis) * wav_.sample_rate() / 1000);
+    reachedEnd_ = false;
+    seekPending_ = true;
+    // Whatever is being decoded is from before the seek.
+    ++generation_;
+  }
+
+  virtual void GetFormat(uint32* sampleRate, uint32* channels) {
+    android::Mutex::Autolock autoLock(lock_);
+    if (opened_ && prefetched_) {
+      *sampleRate = wav_.sample_rate();
+      *channels = wav_.num_channels();
+    }
+  }
+
+  virtual uint32 GetDurationMillis() {
+    android::Mutex::Autolock autoLock(lock_);
+    if (!opened_ || !prefetched_) {
+      return 0;
+    }
+    return wav_.num_frames() * 1000 / wav_.sample_rate();
+  }
+
+ protected:
+  virtual void Run() {
+    clock_->SleepMicros(options_.openMicros);
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      prefetched_ = true;
+    }
+    if (!opened_) {
+      listener_->OnDecoderFinished(false);
+    }
+    while (!IsStopping()) {
+      if (opened_) {
+        DecodeNextBuffer();
+      } else {
+        clock_->SleepMicros(kIdleMicros);
+      }
+    }
+  }
+
+ private:
+  void DecodeNextBuffer() {
+    int64 framePosition = -1;
+    int generation = 0;
+    bool seekPending = false;
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      if (playing_ && !reachedEnd_) {
+        framePosition = framePosition_;
+        generation = generation_;
+        seekPending = seekPending_;
+        seekPending_ = false;
+      }
+    }
+    if (framePosition < 0) {
+      clock_->SleepMicros(kIdleMicros);
+      return;
+    }
+    clock_->SleepMicros(options_.decodeMicrosPerBuffer +
+        (seekPending ? options_.seekMicros : 0));
+
+    int channels = wav_.num_channels();
+    int64 frameCount = std::min<int64>(
+        options_.decodeBufferSizeInBytes / (kNumberOfBytesPerInt16 * channels),
+        wav_.num_frames() - framePosition);
+    bool reachedEnd;
+    {
+      // The buffer is dropped if there was a seek while it was decoded, or
+      // the decoder was paused.
+      android::Mutex::Autolock autoLock(lock_);
+      if (generation != generation_ || !playing_) {
+        return;
+      }
+      framePosition_ += frameCount;
+      reachedEnd = reachedEnd_ = framePosition_ >= wav_.num_frames();
+    }
+    if (frameCount > 0) {
+      size_t sizeInBytes = frameCount * channels * kNumberOfBytesPerInt16;
+      memcpy(buffer_, wav_.samples() + framePosition * channels, sizeInBytes);
+      listener_->OnDecodedBuffer(buffer_, sizeInBytes);
+    }
+    if (reachedEnd) {
+      {
+        android::Mutex::Autolock autoLock(lock_);
+        if (generation != generation_) {
+          return;
+        }
+      }
+      listener_->OnDecoderFinished(true);
+    }
+  }
+
+  const HostAudioBackend::Options options_;
+  Listener* listener_;
+  MappedWavFile wav_;
+  const bool opened_;
+
+  // Protects the state below, which the decoding thread reads.
+  android::Mutex lock_;
+  // Set once the decoder has taken the time to open its source.
+  bool prefetched_;
+  bool playing_;
+  // Set by a seek, until the decoding thread has taken the time for it.
+  bool seekPending_;
+  bool reachedEnd_;
+  int64 framePosition_;
+  // Moves on with each seek, so that a buffer being decoded across one is
+  // dropped.
+  int generation_;
+
+  // The buffer delivered to the listener, confined to the decoding thread.
+  int8_t* buffer_;
+
+  DISALLOW_COPY_AND_ASSIGN(HostDecoder);
+};
+
+// Plays each buffer for as long as its audio lasts, writing it to the
+// backend's output.  Like the OpenSL buffer queue, the queue holds at most
+// queueDepth buffers, the one playing included, and refuses any more.
+class HostPlayer : public PcmPlayer, public ClockThread {
+ public:
+  HostPlayer(VirtualClock* clock, HostAudioBackend* backend,
+      uint32 sampleRate, uint32 channels, size_t queueDepth,
+      Listener* listener)
+      : ClockThread(clock), backend_(backend), sampleRate_(sampleRate),
+        channels_(channels), queueDepth_(queueDepth), listener_(listener),
+        playing_(false),
+        idle_(true), ranDry_(false), silenceFrames_(0), generation_(0) {
+    Start();
+  }
+
+  virtual ~HostPlayer() {
+    Stop();
+  }
+
+  virtual void Play() {
+    android::Mutex::Autolock autoLock(lock_);
+    playing_ = true;
+  }
+
+  virtual void Pause() {
+    android::Mutex::Autolock autoLock(lock_);
+    playing_ = false;
+    idle_ = true;
+    ranDry_ = false;
+    silenceFrames_ = 0;
+  }
+
+  virtual bool Enqueue(const int16* samples, size_t sizeInBytes) {
+    android::Mutex::Autolock autoLock(lock_);
+    if (queue_.size() >= queueDepth_) {
+      backend_->RecordRejectedEnqueue();
+      return false;
+    }
+    Buffer buffer;
+    buffer.samples = samples;
+    buffer.frameCount = sizeInBytes / (kNumberOfBytesPerInt16 * channels_);
+    queue_.push_back(buffer);
+    return true;
+  }
+
+  virtual void Clear() {
+    android::Mutex::Autolock autoLock(lock_);
+    queue_.clear();
+    idle_ = true;
+    ranDry_ = false;
+    silenceFrames_ = 0;
+    // The buffer being played, if any, is not reported.
+    ++generation_;
+  }
+
+ protected:
+  virtual void Run() {
+    while (!IsStopping()) {
+      PlayNextBuffer();
+    }
+  }
+
+ private:
+  struct Buffer {
+    const int16* samples;
+    int frameCount;
+  };
+
+  void PlayNextBuffer() {
+    bool hasBuffer = false;
+    Buffer buffer;
+    int generation = 0;
+    bool resumed = false;
+    int64 silenceFrames = 0;
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      if (playing_ && !queue_.empty()) {
+        hasBuffer = true;
+        buffer = queue_.front();
+        generation = generation_;
+        resumed = idle_;
+        idle_ = false;
+        ranDry_ = false;
+        silenceFrames = silenceFrames_;
+        silenceFrames_ = 0;
+      } else if (playing_ && ranDry_) {
+        silenceFrames_ += sampleRate_ * kIdleMicros / 1000000;
+      }
+    }
+    if (!hasBuffer) {
+      clock_->SleepMicros(kIdleMicros);
+      return;
+    }
+    if (resumed) {
+      backend_->RecordOutputStart();
+    }
+    if (silenceFrames > 0) {
+      backend_->RecordStarved(silenceFrames * 1000000 / sampleRate_);
+      std::vector<int16> silence(silenceFrames * channels_);
+      backend_->WriteOutput(sampleRate_, channels_, &silence[0],
+          silenceFrames);
+    }
+    backend_->WriteOutput(sampleRate_, channels_, buffer.samples,
+        buffer.frameCount);
+    clock_->SleepMicros(
+        static_cast<int64>(buffer.frameCount) * 1000000 / sampleRate_);
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      if (generation != generation_) {
+        return;
+      }
+      queue_.pop_front();
+      if (queue_.empty() && playing_) {
+        idle_ = true;
+        ranDry_ = true;
+      }
+    }
+    listener_->OnBufferPlayed();
+  }
+
+  HostAudioBackend* backend_;
+  const uint32 sampleRate_;
+  const uint32 channels_;
+  const size_t queueDepth_;
+  Listener* listener_;
+
+  // Protects the state below, which the playing thread reads.
+  android::Mutex lock_;
+  bool playing_;
+  std::deque<Buffer> queue_;
+  // Set while there is nothing being played.
+  bool idle_;
+  // Set once the queue has run dry while playing, until the next buffer.
+  bool ranDry_;
+  // How long the player has been dry, which is written as silence if more
+  // audio follows, but not if the player is paused, cleared or destroyed
+  // first.
+  int64 silenceFrames_;
+  // Moves on with each clear, so that a buffer being played across one is
+  // not reported.
+  int generation_;
+
+  DISALLOW_COPY_AND_ASSIGN(HostPlayer);
+};
+
+}  // namespace
+
+// ****************************************************************************
+// VirtualClock methods.
+
+VirtualClock::VirtualClock()
+    : nowMicros_(0), sleepers_(), nextTicket_(1), turn_(0), waiters_(),
+      wakePending_(false) {
+}
+
+int64 VirtualClock::NowMicros() {
+  android::Mutex::Autolock autoLock(lock_);
+  return nowMicros_;
+}
+
+void VirtualClock::SleepMicros(int64 micros) {
+  android::Mutex::Autolock autoLock(lock_);
+  int64 ticket = nextTicket_++;
+  sleepers_.insert(std::make_pair(nowMicros_ + std::max<int64>(micros, 0),
+      ticket));
+  RunNextLocked();
+  while (turn_ != ticket) {
+    turnChanged_.wait(lock_);
+  }
+}
+
+void VirtualClock::WaitMicros(int64 micros) {
+  android::Mutex::Autolock autoLock(lock_);
+  if (wakePending_) {
+    wakePending_ = false;
+    return;
+  }
+  int64 ticket = nextTicket_++;
+  int64 wakeMicros = nowMicros_ + std::max<int64>(micros, 0);
+  sleepers_.insert(std::make_pair(wakeMicros, ticket));
+  waiters_[ticket] = wakeMicros;
+  RunNextLocked();
+  while (turn_ != ticket) {
+    turnChanged_.wait(lock_);
+  }
+  waiters_.erase(ticket);
+}
+
+// Moves the waiting threads to the front of the queue for the current time,
+// so that they run as soon as the thread waking them sleeps, before any
+// thread that went to sleep after them.
+void VirtualClock::Wake() {
+  android::Mutex::Autolock autoLock(lock_);
+  if (waiters_.empty()) {
+    wakePending_ = true;
+    return;
+  }
+  for (std::map<int64, int64>::iterator it = waiters_.begin();
+      it != waiters_.end(); ++it) {
+    sleepers_.erase(std::make_pair(it->second, it->first));
+    sleepers_.insert(std::make_pair(nowMicros_, it->first));
+    it->second = nowMicros_;
+  }
+}
+
+int64 VirtualClock::AddThread() {
+  android::Mutex::Autolock autoLock(lock_);
+  int64 ticket = nextTicket_++;
+  sleepers_.insert(std::make_pair(nowMicros_, ticket));
+  return ticket;
+}
+
+void VirtualClock::BeginThread(int64 ticket) {
+  android::Mutex::Autolock autoLock(lock_);
+  while (turn_ != ticket) {
+    turnChanged_.wait(lock_);
+  }
+}
+
+void VirtualClock::EndThread() {
+  android::Mutex::Autolock autoLock(lock_);
+  RunNextLocked();
+}
+
+// Must be called with lock_ held, by the thread whose turn it is.
+void VirtualClock::RunNextLocked() {
+  if (sleepers_.empty()) {
+    turn_ = -1;
+    return;
+  }
+  std::set<std::pair<int64, int64> >::iterator next = sleepers_.begin();
+  nowMicros_ = std::max(nowMicros_, next->first);
+  turn_ = next->second;
+  sleepers_.erase(next);
+  turnChanged_.broadcast();
+}
+
+// ****************************************************************************
+// HostAudioBackend methods.
+
+HostAudioBackend::Options::Options()
+    : openMicros(20000), decodeMicrosPerBuffer(500), seekMicros(10000),
+      decodeBufferSizeInBytes(2304) {
+}
+
+HostAudioBackend::HostAudioBackend(VirtualClock* clock,
+    const Options& options, const char* outputPath)
+    : clock_(clock), options_(options),
+      output_(outputPath == NULL ? NULL : new PcmFileSink(outputPath, true)),
+      outputOpen_(false), outputSampleRate_(0), outputChannels_(0),
+      outputStartTimes_(), starvedMicros_(0), framesPlayed_(0),
+      engineWaitCount_(0), rejectedEnqueueCount_(0) {
+}
+
+HostAudioBackend::~HostAudioBackend() {
+  if (outputOpen_ && !output_->Close()) {
+    LOGE("could not finish writing the output");
+  }
+  delete output_;
+}
+
+PcmDecoder* HostAudioBackend::CreateDecoder(const DecoderSource& source,
+    int, PcmDecoder::Listener* listener) {
+  return new HostDecoder(clock_, options_, source, listener);
+}
+
+PcmPlayer* HostAudioBackend::CreatePlayer(uint32 sampleRate,
+    uint32 channels, size_t queueDepth, int, PcmPlayer::Listener* listener) {
+  return new HostPlayer(clock_, this, sampleRate, channels, queueDepth,
+      listener);
+}
+
+int HostAudioBackend::ProbeDuration(const DecoderSource& source) {
+  MappedWavFile wav;
+  if (!OpenSource(source, &wav)) {
+    return -1;
+  }
+  return wav.num_frames() * 1000 / wav.sample_rate();
+}
+
+int64 HostAudioBackend::NowMicros() {
+  return clock_->NowMicros();
+}
+
+void HostAudioBackend::SleepMicros(int64 micros) {
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    ++engineWaitCount_;
+  }
+  clock_->SleepMicros(micros);
+}
+
+void HostAudioBackend::WaitMicros(int64 micros) {
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    ++engineWaitCount_;
+  }
+  clock_->WaitMicros(micros);
+}
+
+void HostAudioBackend::Wake() {
+  clock_->Wake();
+}
+
+std::vector<int64> HostAudioBackend::GetOutputStartTimes() {
+  android::Mutex::Autolock autoLock(lock_);
+  return outputStartTimes_;
+}
+
+int64 HostAudioBackend::GetStarvedMicros() {
+  android::Mutex::Autolock autoLock(lock_);
+  return starvedMicros_;
+}
+
+int64 HostAudioBackend::GetFramesPlayed() {
+  android::Mutex::Autolock autoLock(lock_);
+  return framesPlayed_;
+}
+
+int64 HostAudioBackend::GetEngineWaitCount() {
+  android::Mutex::Autolock autoLock(lock_);
+  return engineWaitCount_;
+}
+
+int64 HostAudioBackend::GetRejectedEnqueueCount() {
+  android::Mutex::Autolock autoLock(lock_);
+  return rejectedEnqueueCount_;
+}
+
+void HostAudioBackend::RecordOutputStart() {
+  int64 nowMicros = clock_->NowMicros();
+  android::Mutex::Autolock autoLock(lock_);
+  outputStartTimes_.push_back(nowMicros);
+}
+
+void HostAudioBackend::RecordStarved(int64 micros) {
+  android::Mutex::Autolock autoLock(lock_);
+  starvedMicros_ += micros;
+}
+
+void HostAudioBackend::RecordRejectedEnqueue() {
+  android::Mutex::Autolock autoLock(lock_);
+  ++rejectedEnqueueCount_;
+}
+
+// The output takes the format of the first audio player, and a player in any
+// other format, after a queued source changes it, is not written.
+void HostAudioBackend::WriteOutput(uint32 sampleRate, uint32 channels,
+    const int16* samples, int frameCount) {
+  android::Mutex::Autolock autoLock(lock_);
+  framesPlayed_ += frameCount;
+  if (output_ == NULL) {
+    return;
+  }
+  if (!outputOpen_) {
+    if (!output_->Open(sampleRate, channels)) {
+      LOGE("could not open the output");
+      delete output_;
+      output_ = NULL;
+      return;
+    }
+    outputOpen_ = true;
+    outputSampleRate_ = sampleRate;
+    outputChannels_ = channels;
+  }
+  if (sampleRate != outputSampleRate_ || channels != outputChannels_) {
+    return;
+  }
+  if (!output_->Write(samples, frameCount)) {
+    LOGE("could not write the output");
+  }
+}
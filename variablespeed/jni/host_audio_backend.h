@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_HOST_AUDIO_BACKEND_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_HOST_AUDIO_BACKEND_H_
+
+#include <audio_backend.h>
+#include <integral_types.h>
+#include <macros.h>
+#include <utils/threads.h>
+
+#include <map>
+#include <set>
+#include <utility>
+#include <vector>
+
+class PcmFileSink;
+
+// A clock for simulating the threads of an AudioEngine, which only moves
+// when every thread taking part is asleep on it, and then straight to the
+// earliest time one of them wakes.
+//
+// Only one of the threads runs at a time.  They take turns in the order of
+// the times they wake, and of the order they went to sleep in for the same
+// time, so a simulation goes the same way every time, and as fast as the
+// host can run it.  A thread must not block on anything but the clock while
+// it is its turn, other than on locks that no sleeping thread holds.
+class VirtualClock {
+ public:
+  // The thread constructing the clock takes part, and has the first turn.
+  VirtualClock();
+
+  int64 NowMicros();
+  // Gives the other threads their turns until the time has moved on by
+  // micros.
+  void SleepMicros(int64 micros);
+  // As SleepMicros(), but the turn comes back as soon as another thread
+  // calls Wake(), or at once if one has since this thread last waited.
+  void WaitMicros(int64 micros);
+  void Wake();
+
+  // Called by a thread taking part before it starts another that will.
+  // Returns the ticket that the new thread must give to BeginThread().
+  int64 AddThread();
+  // Called by a new thread before anything else, to wait for its turn.
+  void BeginThread(int64 ticket);
+  // Called by a thread that is to stop taking part, before it exits or
+  // waits on another thread, to give up its turn for good.
+  void EndThread();
+
+ private:
+  void RunNextLocked();
+
+  android::Mutex lock_;
+  android::Condition turnChanged_;
+  int64 nowMicros_;
+  // The threads waiting for a turn, as the time each wakes and its ticket,
+  // which orders them when they wake at the same time.
+  std::set<std::pair<int64, int64> > sleepers_;
+  int64 nextTicket_;
+  // The ticket of the thread whose turn it is, or -1 if none remain.
+  int64 turn_;
+  // The threads in WaitMicros(), as their tickets and the times they wake
+  // unless woken first.
+  std::map<int64, int64> waiters_;
+  bool wakePending_;
+
+  DISALLOW_COPY_AND_ASSIGN(VirtualClock);
+};
+
+// Stands in for OpenSLAudioBackend on the host, so that the whole engine can
+// be run, and measured, without a device.
+//
+// Its decoders read 16-bit PCM WAV files, named by a path or a file:// uri,
+// and its audio players write what they play to a WAV file, with silence
+// wherever they had nothing to play.  Each runs on a thread of its own,
+// taking turns on the VirtualClock and taking the time the options give for
+// each step.  It must be created and used by the thread that created the
+// clock.
+class HostAudioBackend : public AudioBackend {
+ public:
+  struct Options {
+    Options();
+
+    // How long a decoder takes to open its source, before it knows the
+    // format and duration.
+    int64 openMicros;
+    // How long a decoder takes to decode each buffer, and to find its place
+    // after a seek.
+    int64 decodeMicrosPerBuffer;
+    int64 seekMicros;
+    // The size of the buffers a decoder delivers.
+    size_t decodeBufferSizeInBytes;
+  };
+
+  // Writes what the audio players play to outputPath, unless it is NULL.
+  HostAudioBackend(VirtualClock* clock, const Options& options,
+      const char* outputPath);
+  virtual ~HostAudioBackend();
+
+  virtual PcmDecoder* CreateDecoder(const DecoderSource& source,
+      int audioStreamType, PcmDecoder::Listener* listener);
+  virtual PcmPlayer* CreatePlayer(uint32 sampleRate, uint32 channels,
+      size_t queueDepth, int audioStreamType, PcmPlayer::Listener* listener);
+  virtual int ProbeDuration(const DecoderSource& source);
+
+  virtual int64 NowMicros();
+  virtual void SleepMicros(int64 micros);
+  virtual void WaitMicros(int64 micros);
+  virtual void Wake();
+
+  // The times at which an audio player began playing after having had
+  // nothing to play: on starting, and after a pause, a clear or running dry.
+  std::vector<int64> GetOutputStartTimes();
+  // How long the audio players were playing with nothing queued, once they
+  // had played something.
+  int64 GetStarvedMicros();
+  int64 GetFramesPlayed();
+  // How many times the engine waited, in SleepMicros() or WaitMicros().
+  int64 GetEngineWaitCount();
+  // How many buffers an audio player refused for want of room in its queue,
+  // each of which the engine drops.
+  int64 GetRejectedEnqueueCount();
+
+  // Called by the audio players.
+  void RecordOutputStart();
+  void RecordStarved(int64 micros);
+  void RecordRejectedEnqueue();
+  void WriteOutput(uint32 sampleRate, uint32 channels, const int16* samples,
+      int frameCount);
+
+ private:
+  VirtualClock* clock_;
+  const Options options_;
+
+  // Protects the output and the figures below.
+  android::Mutex lock_;
+  PcmFileSink* output_;
+  bool outputOpen_;
+  uint32 outputSampleRate_;
+  uint32 outputChannels_;
+  std::vector<int64> outputStartTimes_;
+  int64 starvedMicros_;
+  int64 framesPlayed_;
+  int64 engineWaitCount_;
+  int64 rejectedEnqueueCount_;
+
+  DISALLOW_COPY_AND_ASSIGN(HostAudioBackend);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_HOST_AUDIO_BACKEND_H_
@@ -16,9 +16,14 @@
 
 #include <stdlib.h>
 #include <assert.h>
+#include <sys/stat.h>
 
 #include <jni.h>
+#include <level_envelope.h>
+#include <offline_renderer.h>
+#include <opensl_audio_backend.h>
 #include <variablespeed.h>
+#include <wav_io.h>
 
 // Quick #define to make sure I get all the JNI method calls right.
 #define JNI_METHOD(x, y) \
@@ -38,59 +43,336 @@ class MethodLog {
   const char* name_;
 };
 
+// Probes durations through OpenSL.  Each engine decodes and plays through a
+// backend of its own, so that one engine's Wake() cannot end another's wait.
+static OpenSLAudioBackend gAudioBackend;
+
+// What the java layer's opaque long handle points to: an engine, its backend,
+// and a global reference to the direct buffer it publishes the played
+// position into.  The engine writes into the buffer's memory without the java
+// layer, so the reference keeps the buffer from being collected until the
+// engine is gone.
+struct EngineHandle {
+  OpenSLAudioBackend* backend;
+  AudioEngine* engine;
+  jobject playedPositionBuffer;
+};
+
+static AudioEngine* GetEngine(jlong handle) {
+  CHECK(handle != 0);
+  return reinterpret_cast<EngineHandle*>(handle)->engine;
+}
+
+// Hands the envelope to a java WaveformListener.  It is called on the
+// playback loop, which runs on the java thread that called one of the play
+// methods, so that thread is already attached.
+class JavaEnvelopeSink : public EnvelopeSink {
+ public:
+  JavaEnvelopeSink(JNIEnv* env, jobject listener) {
+    CHECK(env->GetJavaVM(&vm_) == JNI_OK);
+    listener_ = env->NewGlobalRef(listener);
+    jclass listenerClass = env->GetObjectClass(listener);
+    onWaveform_ = env->GetMethodID(listenerClass, "onWaveform",
+        "(I[S[S[S)V");
+    env->DeleteLocalRef(listenerClass);
+    CHECK(onWaveform_ != NULL);
+  }
+
+  virtual ~JavaEnvelopeSink() {
+    GetEnv()->DeleteGlobalRef(listener_);
+  }
+
+  virtual void OnEnvelope(int64 firstBucket,
+      const LevelEnvelope::Bucket* buckets, size_t count) {
+    JNIEnv* env = GetEnv();
+    jshortArray minimums = env->NewShortArray(count);
+    jshortArray maximums = env->NewShortArray(count);
+    jshortArray rootMeanSquares = env->NewShortArray(count);
+    CHECK(minimums != NULL && maximums != NULL && rootMeanSquares != NULL);
+    jshort* minimum = env->GetShortArrayElements(minimums, NULL);
+    jshort* maximum = env->GetShortArrayElements(maximums, NULL);
+    jshort* rms = env->GetShortArrayElements(rootMeanSquares, NULL);
+    for (size_t i = 0; i < count; ++i) {
+      minimum[i] = buckets[i].minimum;
+      maximum[i] = buckets[i].maximum;
+      rms[i] = buckets[i].rms;
+    }
+    env->ReleaseShortArrayElements(rootMeanSquares, rms, 0);
+    env->ReleaseShortArrayElements(maximums, maximum, 0);
+    env->ReleaseShortArrayElements(minimums, minimum, 0);
+    env->CallVoidMethod(listener_, onWaveform_, static_cast<jint>(firstBucket),
+        minimums, maximums, rootMeanSquares);
+    if (env->ExceptionCheck()) {
+      // Playback carries on without the envelope the listener failed on.
+      LOGE("waveform listener threw an exception");
+      env->ExceptionDescribe();
+      env->ExceptionClear();
+    }
+    env->DeleteLocalRef(rootMeanSquares);
+    env->DeleteLocalRef(maximums);
+    env->DeleteLocalRef(minimums);
+  }
+
+ private:
+  JNIEnv* GetEnv() {
+    JNIEnv* env = NULL;
+    CHECK(vm_->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_4) ==
+        JNI_OK);
+    return env;
+  }
+
+  JavaVM* vm_;
+  jobject listener_;
+  jmethodID onWaveform_;
+
+  DISALLOW_COPY_AND_ASSIGN(JavaEnvelopeSink);
+};
+
+// Returns the given range of a direct buffer, which the java layer has
+// already checked lies within it.
+static const uint8* GetDirectBufferRange(JNIEnv* env, jobject buffer,
+    jint offset, jint length) {
+  CHECK(offset >= 0 && length >= 0);
+  CHECK(env->GetDirectBufferCapacity(buffer) >=
+      static_cast<jlong>(offset) + length);
+  const uint8* address =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(buffer));
+  CHECK(address != NULL);
+  return address + offset;
+}
+
 extern "C" {
-JNI_METHOD(playFileDescriptor, void) (JNIEnv*, jclass, jint fd, jlong offset,
-    jlong length) {
+JNI_METHOD(playFileDescriptor, void) (JNIEnv*, jclass, jlong handle, jint fd,
+    jlong offset, jlong length) {
   MethodLog _("playFileDescriptor");
-  AudioEngine::GetEngine()->PlayFileDescriptor(fd, offset, length);
+  GetEngine(handle)->PlayFileDescriptor(fd, offset, length);
 }
 
-JNI_METHOD(playUri, void) (JNIEnv* env, jclass, jstring uri) {
+JNI_METHOD(playUri, void) (JNIEnv* env, jclass, jlong handle, jstring uri) {
   MethodLog _("playUri");
   const char* utf8 = env->GetStringUTFChars(uri, NULL);
   CHECK(NULL != utf8);
-  AudioEngine::GetEngine()->PlayUri(utf8);
+  GetEngine(handle)->PlayUri(utf8);
 }
 
-JNI_METHOD(setVariableSpeed, void) (JNIEnv*, jclass, jfloat speed) {
+JNI_METHOD(playCachedPcm, jboolean) (JNIEnv* env, jclass, jlong handle,
+    jstring path) {
+  MethodLog _("playCachedPcm");
+  const char* utf8 = env->GetStringUTFChars(path, NULL);
+  CHECK(NULL != utf8);
+  bool played = GetEngine(handle)->PlayCachedPcm(utf8);
+  env->ReleaseStringUTFChars(path, utf8);
+  return played;
+}
+
+JNI_METHOD(isSampleAligned, jboolean) (JNIEnv* env, jclass, jobject buffer,
+    jint offset) {
+  MethodLog _("isSampleAligned");
+  const uint8* address = GetDirectBufferRange(env, buffer, offset, 0);
+  return reinterpret_cast<uintptr_t>(address) % sizeof(int16) == 0;
+}
+
+JNI_METHOD(playPcmBuffer, jboolean) (JNIEnv* env, jclass, jlong handle,
+    jobject buffer, jint offset, jint length, jint sampleRate,
+    jint channels) {
+  MethodLog _("playPcmBuffer");
+  const uint8* samples = GetDirectBufferRange(env, buffer, offset, length);
+  if (reinterpret_cast<uintptr_t>(samples) % sizeof(int16) != 0) {
+    LOGE("pcm buffer is not aligned for 16-bit samples");
+    return false;
+  }
+  GetEngine(handle)->PlayPcm(reinterpret_cast<const int16*>(samples),
+      length / (sizeof(int16) * channels), sampleRate, channels);
+  return true;
+}
+
+JNI_METHOD(playWavBuffer, jboolean) (JNIEnv* env, jclass, jlong handle,
+    jobject buffer, jint offset, jint length) {
+  MethodLog _("playWavBuffer");
+  return GetEngine(handle)->PlayWavBuffer(
+      GetDirectBufferRange(env, buffer, offset, length), length);
+}
+
+JNI_METHOD(cacheDecodedPcm, void) (JNIEnv* env, jclass, jlong handle,
+    jstring path) {
+  MethodLog _("cacheDecodedPcm");
+  const char* utf8 = env->GetStringUTFChars(path, NULL);
+  CHECK(NULL != utf8);
+  GetEngine(handle)->CacheDecodedPcm(utf8);
+  env->ReleaseStringUTFChars(path, utf8);
+}
+
+JNI_METHOD(setWaveformListener, void) (JNIEnv* env, jclass, jlong handle,
+    jobject listener, jint bucketMillis) {
+  MethodLog _("setWaveformListener");
+  GetEngine(handle)->SetEnvelopeSink(new JavaEnvelopeSink(env, listener),
+      bucketMillis);
+}
+
+JNI_METHOD(queueFileDescriptor, void) (JNIEnv*, jclass, jlong handle,
+    jint fd, jlong offset, jlong length, jint startMillis) {
+  MethodLog _("queueFileDescriptor");
+  GetEngine(handle)->QueueFileDescriptor(fd, offset, length, startMillis);
+}
+
+JNI_METHOD(queueUri, void) (JNIEnv* env, jclass, jlong handle, jstring uri,
+    jint startMillis) {
+  MethodLog _("queueUri");
+  const char* utf8 = env->GetStringUTFChars(uri, NULL);
+  CHECK(NULL != utf8);
+  GetEngine(handle)->QueueUri(utf8, startMillis);
+  env->ReleaseStringUTFChars(uri, utf8);
+}
+
+JNI_METHOD(setVariableSpeed, void) (JNIEnv*, jclass, jlong handle,
+    jfloat speed) {
   MethodLog _("setVariableSpeed");
-  AudioEngine::GetEngine()->SetVariableSpeed(speed);
+  GetEngine(handle)->SetVariableSpeed(speed);
 }
 
-JNI_METHOD(startPlayback, void) (JNIEnv*, jclass) {
+JNI_METHOD(startPlayback, void) (JNIEnv*, jclass, jlong handle) {
   MethodLog _("startPlayback");
-  AudioEngine::GetEngine()->RequestStart();
+  GetEngine(handle)->RequestStart();
 }
 
-JNI_METHOD(stopPlayback, void) (JNIEnv*, jclass) {
+JNI_METHOD(stopPlayback, void) (JNIEnv*, jclass, jlong handle) {
   MethodLog _("stopPlayback");
-  AudioEngine::GetEngine()->RequestStop();
+  GetEngine(handle)->RequestStop();
+}
+
+JNI_METHOD(seekTo, void) (JNIEnv*, jclass, jlong handle,
+    jint positionMillis) {
+  MethodLog _("seekTo");
+  GetEngine(handle)->RequestSeek(positionMillis);
+}
+
+JNI_METHOD(getTotalDuration, jint) (JNIEnv*, jclass, jlong handle) {
+  return GetEngine(handle)->GetTotalDuration();
+}
+
+JNI_METHOD(getStats, void) (JNIEnv* env, jclass, jlong handle,
+    jintArray values) {
+  CHECK(env->GetArrayLength(values) == PipelineStats::kNumberOfValues);
+  int32_t snapshot[PipelineStats::kNumberOfValues];
+  GetEngine(handle)->GetStats(snapshot);
+  env->SetIntArrayRegion(values, 0, PipelineStats::kNumberOfValues,
+      reinterpret_cast<jint*>(snapshot));
+}
+
+JNI_METHOD(probeUriDuration, jint) (JNIEnv* env, jclass, jstring uri) {
+  MethodLog _("probeUriDuration");
+  const char* utf8 = env->GetStringUTFChars(uri, NULL);
+  CHECK(NULL != utf8);
+  DecoderSource source;
+  source.uri = utf8;
+  env->ReleaseStringUTFChars(uri, utf8);
+  int duration = gAudioBackend.ProbeDuration(source);
+  return duration;
 }
 
-JNI_METHOD(getCurrentPosition, jint) (JNIEnv*, jclass) {
-  return AudioEngine::GetEngine()->GetCurrentPosition();
+JNI_METHOD(probeWavBufferDuration, jint) (JNIEnv* env, jclass,
+    jobject buffer, jint offset, jint length) {
+  MethodLog _("probeWavBufferDuration");
+  MappedWavFile wav;
+  if (!wav.Wrap(GetDirectBufferRange(env, buffer, offset, length), length)) {
+    return -1;
+  }
+  return wav.num_frames() * 1000 / wav.sample_rate();
 }
 
-JNI_METHOD(getTotalDuration, jint) (JNIEnv*, jclass) {
-  return AudioEngine::GetEngine()->GetTotalDuration();
+JNI_METHOD(probeFileDescriptorDuration, jint) (JNIEnv*, jclass, jint fd,
+    jlong offset, jlong length) {
+  MethodLog _("probeFileDescriptorDuration");
+  DecoderSource source;
+  source.fd = fd;
+  source.offset = offset;
+  source.length = length;
+  return gAudioBackend.ProbeDuration(source);
 }
 
-JNI_METHOD(initializeEngine, void) (JNIEnv*, jclass,
+JNI_METHOD(getFileDescriptorModifiedMillis, jlong) (JNIEnv*, jclass,
+    jint fd) {
+  MethodLog _("getFileDescriptorModifiedMillis");
+  struct stat status;
+  if (fstat(fd, &status) != 0 || !S_ISREG(status.st_mode)) {
+    return -1;
+  }
+  return static_cast<jlong>(status.st_mtime) * 1000;
+}
+
+JNI_METHOD(renderWavFile, jlong) (JNIEnv* env, jclass, jstring input,
+    jstring output, jfloat initialSpeed, jintArray changePositionsMillis,
+    jfloatArray changeSpeeds, jfloat windowDuration,
+    jfloat windowOverlapDuration) {
+  MethodLog _("renderWavFile");
+  SpeedSchedule schedule(initialSpeed);
+  jsize changeCount = env->GetArrayLength(changePositionsMillis);
+  jint* positions = env->GetIntArrayElements(changePositionsMillis, NULL);
+  jfloat* speeds = env->GetFloatArrayElements(changeSpeeds, NULL);
+  CHECK(positions != NULL && speeds != NULL);
+  for (jsize i = 0; i < changeCount; ++i) {
+    schedule.AddChange(positions[i], speeds[i]);
+  }
+  env->ReleaseFloatArrayElements(changeSpeeds, speeds, JNI_ABORT);
+  env->ReleaseIntArrayElements(changePositionsMillis, positions, JNI_ABORT);
+
+  const char* inputUtf8 = env->GetStringUTFChars(input, NULL);
+  const char* outputUtf8 = env->GetStringUTFChars(output, NULL);
+  CHECK(inputUtf8 != NULL && outputUtf8 != NULL);
+  jlong frames = -1;
+  WavFileSource source;
+  if (source.Open(inputUtf8)) {
+    PcmFileSink sink(outputUtf8, true);
+    OfflineRenderer renderer(windowDuration, windowOverlapDuration);
+    frames = renderer.Render(&source, schedule, &sink);
+  }
+  env->ReleaseStringUTFChars(output, outputUtf8);
+  env->ReleaseStringUTFChars(input, inputUtf8);
+  return frames;
+}
+
+JNI_METHOD(initializeEngine, jlong) (JNIEnv* env, jclass,
     jint targetFrames, jfloat windowDuration,
     jfloat windowOverlapDuration, jint maxPlayBufferCount,
     jfloat initialRate, jint decodeInitialSize, jint decodeMaxSize,
-    jint startPositionMillis, jint audioStreamType) {
+    jint startPositionMillis, jint audioStreamType, jboolean fixedPoint,
+    jboolean adaptiveBuffering, jint playBufferCountLowerBound,
+    jint playBufferCountUpperBound, jint decodeMaxSizeLowerBound,
+    jint decodeMaxSizeUpperBound, jboolean skipSilence, jint silenceThreshold,
+    jint maxPauseMillis, jobject playedPositionBuffer) {
   MethodLog _("initializeEngine");
-  AudioEngine *engine = new AudioEngine(targetFrames,
+  // The engine publishes the played position straight into this direct
+  // buffer, which the java layer reads without calling in.
+  CHECK(env->GetDirectBufferCapacity(playedPositionBuffer) >=
+      static_cast<jlong>(sizeof(int32_t)));
+  volatile int32_t* playedPositionMillis = static_cast<volatile int32_t*>(
+      env->GetDirectBufferAddress(playedPositionBuffer));
+  CHECK(playedPositionMillis != NULL);
+  OpenSLAudioBackend* backend = new OpenSLAudioBackend;
+  AudioEngine *engine = new AudioEngine(backend, targetFrames,
       windowDuration, windowOverlapDuration, maxPlayBufferCount, initialRate,
-      decodeInitialSize, decodeMaxSize, startPositionMillis, audioStreamType);
-  if (!AudioEngine::CompareAndSetEngine(NULL, engine)) {
-    delete engine;
-  }
+      decodeInitialSize, decodeMaxSize, startPositionMillis, audioStreamType,
+      fixedPoint, adaptiveBuffering, playBufferCountLowerBound,
+      playBufferCountUpperBound, decodeMaxSizeLowerBound,
+      decodeMaxSizeUpperBound, skipSilence, silenceThreshold, maxPauseMillis,
+      playedPositionMillis);
+  EngineHandle* engineHandle = new EngineHandle;
+  engineHandle->backend = backend;
+  engineHandle->engine = engine;
+  engineHandle->playedPositionBuffer = env->NewGlobalRef(playedPositionBuffer);
+  CHECK(engineHandle->playedPositionBuffer != NULL);
+  return reinterpret_cast<jlong>(engineHandle);
 }
 
-JNI_METHOD(shutdownEngine, void) (JNIEnv*, jclass) {
+JNI_METHOD(shutdownEngine, void) (JNIEnv* env, jclass, jlong handle) {
   MethodLog _("shutdownEngine");
-  AudioEngine::DeleteEngine();
+  CHECK(handle != 0);
+  EngineHandle* engineHandle = reinterpret_cast<EngineHandle*>(handle);
+  // Only once the engine is gone may its backend, and the buffer it writes
+  // into, go too.
+  delete engineHandle->engine;
+  delete engineHandle->backend;
+  env->DeleteGlobalRef(engineHandle->playedPositionBuffer);
+  delete engineHandle;
 }
 }  // extern "C"
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <level_envelope.h>
+
+#include <math.h>
+
+#include <algorithm>
+
+LevelEnvelope::LevelEnvelope()
+    : bucket_frames_(0), channels_(0), bucket_index_(0), frame_in_bucket_(0),
+      sample_count_(0), minimum_(0), maximum_(0), sum_of_squares_(0),
+      first_completed_(0) {
+}
+
+void LevelEnvelope::Start(int bucketFrames, int channels, int64 startFrame) {
+  CHECK(bucketFrames > 0 && channels > 0 && startFrame >= 0);
+  Stop();
+  bucket_frames_ = bucketFrames;
+  channels_ = channels;
+  bucket_index_ = startFrame / bucketFrames;
+  frame_in_bucket_ = startFrame % bucketFrames;
+}
+
+void LevelEnvelope::Stop() {
+  bucket_frames_ = 0;
+  sample_count_ = 0;
+  sum_of_squares_ = 0;
+  completed_.clear();
+}
+
+void LevelEnvelope::Add(const int16* samples, int frameCount) {
+  CHECK(started());
+  while (frameCount > 0) {
+    int frames = std::min(frameCount, bucket_frames_ - frame_in_bucket_);
+    const int16* end = samples + frames * channels_;
+    if (sample_count_ == 0) {
+      minimum_ = samples[0];
+      maximum_ = samples[0];
+    }
+    for (const int16* sample = samples; sample < end; ++sample) {
+      minimum_ = std::min(minimum_, *sample);
+      maximum_ = std::max(maximum_, *sample);
+      sum_of_squares_ += static_cast<int32>(*sample) * *sample;
+    }
+    sample_count_ += frames * channels_;
+    samples = end;
+    frameCount -= frames;
+    frame_in_bucket_ += frames;
+    if (frame_in_bucket_ == bucket_frames_) {
+      CompleteBucket();
+    }
+  }
+}
+
+void LevelEnvelope::Flush() {
+  if (sample_count_ > 0) {
+    CompleteBucket();
+  }
+}
+
+int64 LevelEnvelope::TakeCompleted(std::vector<Bucket>* buckets) {
+  if (completed_.empty()) {
+    return -1;
+  }
+  buckets->insert(buckets->end(), completed_.begin(), completed_.end());
+  completed_.clear();
+  return first_completed_;
+}
+
+void LevelEnvelope::CompleteBucket() {
+  if (sample_count_ > 0) {
+    if (completed_.empty()) {
+      first_completed_ = bucket_index_;
+    }
+    Bucket bucket;
+    bucket.minimum = minimum_;
+    bucket.maximum = maximum_;
+    // A full scale negative square wave would overflow by one.
+    bucket.rms = static_cast<int16>(std::min(32767.0,
+        sqrt(static_cast<double>(sum_of_squares_) / sample_count_)));
+    completed_.push_back(bucket);
+  }
+  ++bucket_index_;
+  frame_in_bucket_ = 0;
+  sample_count_ = 0;
+  sum_of_squares_ = 0;
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_LEVEL_ENVELOPE_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_LEVEL_ENVELOPE_H_
+
+#include <integral_types.h>
+#include <macros.h>
+#include <stdlib.h>
+
+#include <vector>
+
+// Summarizes audio as a coarse envelope, for drawing its waveform: for each
+// bucket of a fixed number of frames, the lowest and highest sample and the
+// root mean square level, taken across all channels.
+//
+// Buckets are numbered from the start of the audio, so bucket i covers
+// frames [i * bucketFrames, (i + 1) * bucketFrames), however far into the
+// audio the samples added start.  A bucket that was only partly covered, by
+// starting part way into it or flushing before it filled, has the levels of
+// the part that was seen.
+//
+// Not thread safe.
+class LevelEnvelope {
+ public:
+  struct Bucket {
+    int16 minimum;
+    int16 maximum;
+    int16 rms;
+  };
+
+  LevelEnvelope();
+
+  // Discards everything, and expects interleaved samples of the given
+  // number of channels, starting at startFrame.
+  void Start(int bucketFrames, int channels, int64 startFrame);
+  // Discards everything, until the next Start().
+  void Stop();
+  bool started() const { return bucket_frames_ > 0; }
+
+  // Adds the frames that follow those already added.
+  void Add(const int16* samples, int frameCount);
+  // Completes the bucket being filled, if anything has been added to it, for
+  // when no more samples follow until the next Start().
+  void Flush();
+  // Moves the completed buckets to the end of buckets, returning the number
+  // of the first, or -1 if none have been completed since the last call.
+  int64 TakeCompleted(std::vector<Bucket>* buckets);
+
+ private:
+  void CompleteBucket();
+
+  int bucket_frames_;
+  int channels_;
+  // The bucket being filled, and how many frames into it the next starts.
+  int64 bucket_index_;
+  int frame_in_bucket_;
+  // The levels of the samples added to the bucket being filled.
+  int sample_count_;
+  int16 minimum_;
+  int16 maximum_;
+  int64 sum_of_squares_;
+  // Buckets completed but not yet taken, numbered from first_completed_.
+  std::vector<Bucket> completed_;
+  int64 first_completed_;
+
+  DISALLOW_COPY_AND_ASSIGN(LevelEnvelope);
+};
+
+// Receives the envelope of the audio an AudioEngine plays, as it is built.
+class EnvelopeSink {
+ public:
+  virtual ~EnvelopeSink() {}
+
+  // Called on the playback thread with the buckets completed since the last
+  // call, the first of which is numbered firstBucket.
+  virtual void OnEnvelope(int64 firstBucket,
+      const LevelEnvelope::Bucket* buckets, size_t count) = 0;
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_LEVEL_ENVELOPE_H_
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <offline_renderer.h>
+
+#include <sample_conversion.h>
+#include <sola_time_scaler.h>
+
+#include <algorithm>
+
+namespace {
+
+// The number of frames moved through the scaler at a time.
+const int kFramesPerChunk = 4096;
+
+}  // namespace
+
+SpeedSchedule::SpeedSchedule(float speed) : initial_speed_(speed) {
+}
+
+void SpeedSchedule::AddChange(int64 positionMillis, float speed) {
+  CHECK(changes_.empty() || changes_.back().first <= positionMillis);
+  changes_.push_back(std::make_pair(positionMillis, speed));
+}
+
+OfflineRenderer::OfflineRenderer(float window_duration,
+    float overlap_duration)
+    : window_duration_(window_duration), overlap_duration_(overlap_duration) {
+}
+
+OfflineRenderer::~OfflineRenderer() {
+}
+
+int64 OfflineRenderer::Render(PcmSource* source,
+    const SpeedSchedule& schedule, PcmSink* sink) {
+  const int sampleRate = source->sample_rate();
+  const int channels = source->num_channels();
+  if (!sink->Open(sampleRate, channels)) {
+    return -1;
+  }
+
+  video_editing::SolaTimeScaler scaler;
+  scaler.set_analyzer(new video_editing::SolaBitPackedAnalyzer());
+  scaler.Init(sampleRate, channels, schedule.initial_speed(),
+      window_duration_, overlap_duration_);
+
+  std::vector<int16> shorts(kFramesPerChunk * channels);
+  std::vector<float> floats(kFramesPerChunk * channels);
+  int64 framesRead = 0;
+  int64 framesWritten = 0;
+  int nextChange = 0;
+  bool endOfInput = false;
+  while (true) {
+    // Drain whatever output is ready before feeding in more.
+    int available = scaler.available();
+    if (available > 0) {
+      int count = scaler.RetrieveSamples(&floats[0],
+          std::min(available, kFramesPerChunk));
+      ConvertFloatsToShorts(&floats[0], &shorts[0], count * channels);
+      if (!sink->Write(&shorts[0], count)) {
+        return -1;
+      }
+      framesWritten += count;
+      continue;
+    }
+    if (endOfInput) {
+      break;
+    }
+
+    // Read no further than the next speed change, so that it takes effect
+    // at the right input position.
+    int64 changeFrame = -1;
+    while (nextChange < schedule.num_changes()) {
+      changeFrame = schedule.change_position_millis(nextChange) * sampleRate
+          / 1000;
+      if (changeFrame > framesRead) {
+        break;
+      }
+      scaler.set_speed(schedule.change_speed(nextChange++));
+      changeFrame = -1;
+    }
+    int framesToRead = std::min(kFramesPerChunk, scaler.input_limit());
+    if (changeFrame > 0) {
+      framesToRead = static_cast<int>(
+          std::min<int64>(framesToRead, changeFrame - framesRead));
+    }
+    CHECK(framesToRead > 0);
+    int count = source->Read(&shorts[0], framesToRead);
+    if (count < 0) {
+      return -1;
+    }
+    if (count == 0) {
+      endOfInput = true;
+      scaler.Drain();
+      continue;
+    }
+    ConvertShortsToFloats(&shorts[0], &floats[0], count * channels);
+    CHECK(scaler.InjectSamples(&floats[0], count) == count);
+    framesRead += count;
+  }
+
+  if (!sink->Close()) {
+    return -1;
+  }
+  return framesWritten;
+}
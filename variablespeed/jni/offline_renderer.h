@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_OFFLINE_RENDERER_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_OFFLINE_RENDERER_H_
+
+#include <integral_types.h>
+#include <macros.h>
+
+#include <vector>
+
+// Supplies interleaved 16-bit PCM to an OfflineRenderer.
+class PcmSource {
+ public:
+  virtual ~PcmSource() { }
+  virtual int sample_rate() const = 0;
+  virtual int num_channels() const = 0;
+  // Reads up to num_frames frames into buffer.
+  // @returns the number of frames read, zero at the end, or -1 on error
+  virtual int Read(int16* buffer, int num_frames) = 0;
+};
+
+// Receives the interleaved 16-bit PCM produced by an OfflineRenderer.
+class PcmSink {
+ public:
+  virtual ~PcmSink() { }
+  // Called once, before any Write(), with the format of the output.
+  virtual bool Open(int sample_rate, int num_channels) = 0;
+  virtual bool Write(const int16* buffer, int num_frames) = 0;
+  // Called once after the last Write().
+  virtual bool Close() = 0;
+};
+
+// The playback speed to use over the course of the input.
+class SpeedSchedule {
+ public:
+  // A schedule playing everything at the given speed.
+  explicit SpeedSchedule(float speed);
+
+  // Plays from input position positionMillis onwards at the given speed,
+  // until the next change. Changes must be added in increasing order of
+  // position.
+  void AddChange(int64 positionMillis, float speed);
+
+  float initial_speed() const { return initial_speed_; }
+  int num_changes() const { return changes_.size(); }
+  int64 change_position_millis(int i) const { return changes_[i].first; }
+  float change_speed(int i) const { return changes_[i].second; }
+
+ private:
+  float initial_speed_;
+  std::vector<std::pair<int64, float> > changes_;
+};
+
+// Runs PCM through the SOLA time scaler as fast as possible, rather than at
+// the pace of an audio player, for rendering time-scaled copies of audio in
+// the background, or for measuring the signal processing on a host.
+class OfflineRenderer {
+ public:
+  // @param window_duration processing window size, in seconds
+  // @param overlap_duration correlation overlap size, in seconds
+  OfflineRenderer(float window_duration, float overlap_duration);
+  virtual ~OfflineRenderer();
+
+  // Renders all of source into sink.
+  // @returns the number of frames written, or -1 if the source or sink
+  //          failed
+  int64 Render(PcmSource* source, const SpeedSchedule& schedule,
+      PcmSink* sink);
+
+ private:
+  const float window_duration_;
+  const float overlap_duration_;
+
+  DISALLOW_COPY_AND_ASSIGN(OfflineRenderer);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_OFFLINE_RENDERER_H_
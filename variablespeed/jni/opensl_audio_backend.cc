@@ -0,0 +1,718 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <opensl_audio_backend.h>
+
+#include <SLES/OpenSLES.h>
+#include <SLES/OpenSLES_Android.h>
+#include <SLES/OpenSLES_AndroidConfiguration.h>
+
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+#include <hlogging.h>
+#include <pipeline_stats.h>
+
+#include <sys/system_properties.h>
+
+#include <utils/threads.h>
+
+// ****************************************************************************
+// Constants, utility methods and other miscellany used throughout this file.
+
+namespace {
+
+// These variables are used to determine the size of the buffer queue used by
+// the decoder.
+// This is not the same as the large buffer used to hold the uncompressed data
+// - for that see the engine's decode buffer.
+// The choice of 1152 corresponds to the number of samples per mp3 frame, so is
+// a good choice of size for a decoding buffer in the absence of other
+// information (we don't know exactly what formats we will be working with).
+const size_t kNumberOfBuffersInQueue = 4;
+const size_t kNumberOfSamplesPerBuffer = 1152;
+const size_t kBufferSizeInBytes = 2 * kNumberOfSamplesPerBuffer;
+
+// How long to wait for OpenSL to prefetch enough to know the duration, when
+// probing a source.  The duration is read again on each prefetch event, and
+// after kProbeRecheckMicros without one, in case it became known without an
+// event of its own.
+const int64 kProbeTimeoutMicros = 2 * 1000 * 1000;
+const int64 kProbeRecheckMicros = 50 * 1000;
+
+// Used in detecting errors with the OpenSL ES framework.
+const SLuint32 kPrefetchErrorCandidate =
+    SL_PREFETCHEVENT_STATUSCHANGE | SL_PREFETCHEVENT_FILLLEVELCHANGE;
+
+#define CheckSLResult(message, result) \
+    CheckSLResult_Real(message, result, __LINE__)
+
+// Helper function for debugging - checks the OpenSL result for success.
+void CheckSLResult_Real(const char* message, SLresult result, int line) {
+  // This can be helpful when debugging.
+  // LOGD("sl result %d for %s", result, message);
+  if (SL_RESULT_SUCCESS != result) {
+    LOGE("slresult was %d at %s file opensl_audio_backend line %d",
+        static_cast<int>(result), message, line);
+  }
+  CHECK(SL_RESULT_SUCCESS == result);
+}
+
+// Whether logging should be enabled. Only used if LOG_OPENSL_API_CALL is
+// defined to use it.
+bool gLogEnabled = false;
+// The property to set in order to enable logging.
+const char *const kLogTagVariableSpeed = "log.tag.VariableSpeed";
+
+bool ShouldLog() {
+  char buffer[PROP_VALUE_MAX];
+  __system_property_get(kLogTagVariableSpeed, buffer);
+  return strlen(buffer) > 0;
+}
+
+}  // namespace
+
+// ****************************************************************************
+// Macros for making working with OpenSL easier.
+
+// Log based on the value of a property.
+#define LOG_OPENSL_API_CALL(string) (gLogEnabled && LOGV(string))
+
+// The regular macro: log an api call, make the api call, check the result.
+#define OpenSL(obj, method, ...) \
+{ \
+  LOG_OPENSL_API_CALL("OpenSL " #method "(" #obj ", " #__VA_ARGS__ ")"); \
+  SLresult result = (*obj)->method(obj, __VA_ARGS__); \
+  CheckSLResult("OpenSL " #method "(" #obj ", " #__VA_ARGS__ ")", result); \
+}
+
+// Special case call for api call that has void return value, can't be checked.
+#define VoidOpenSL(obj, method) \
+{ \
+  LOG_OPENSL_API_CALL("OpenSL (void) " #method "(" #obj ")"); \
+  (*obj)->method(obj); \
+}
+
+// Special case for api call with checked result but takes no arguments.
+#define OpenSL0(obj, method) \
+{ \
+  LOG_OPENSL_API_CALL("OpenSL " #method "(" #obj ")"); \
+  SLresult result = (*obj)->method(obj); \
+  CheckSLResult("OpenSL " #method "(" #obj ")", result); \
+}
+
+// Special case for api call whose result we want to store, not check.
+// We have to encapsulate the two calls in braces, so that this expression
+// evaluates to the last expression not the first.
+#define ReturnOpenSL(obj, method, ...) \
+( \
+    LOG_OPENSL_API_CALL("OpenSL (int) " \
+        #method "(" #obj ", " #__VA_ARGS__ ")"), \
+    (*obj)->method(obj, __VA_ARGS__) \
+) \
+
+// ****************************************************************************
+// Static utility methods.
+
+// Set the audio stream type for the player.
+//
+// Must be called before it is realized.
+//
+// The caller must have requested the SL_IID_ANDROIDCONFIGURATION interface when
+// creating the player.
+static void setAudioStreamType(SLObjectItf audioPlayer, SLint32 audioStreamType) {
+  SLAndroidConfigurationItf playerConfig;
+  OpenSL(audioPlayer, GetInterface, SL_IID_ANDROIDCONFIGURATION, &playerConfig);
+  // The STREAM_XXX constants defined by android.media.AudioManager match the
+  // corresponding SL_ANDROID_STREAM_XXX constants defined by
+  // include/SLES/OpenSLES_AndroidConfiguration.h, so we can just pass the
+  // value across.
+  OpenSL(playerConfig, SetConfiguration, SL_ANDROID_KEY_STREAM_TYPE,
+         &audioStreamType, sizeof(audioStreamType));
+}
+
+static void ReadSampleRateAndChannelCount(
+    SLMetadataExtractionItf decoderMetadata, uint32 *sampleRateOut,
+    uint32 *channelsOut) {
+  SLuint32 itemCount;
+  OpenSL(decoderMetadata, GetItemCount, &itemCount);
+  SLuint32 i, keySize, valueSize;
+  SLMetadataInfo *keyInfo, *value;
+  for (i = 0; i < itemCount; ++i) {
+    keyInfo = value = NULL;
+    keySize = valueSize = 0;
+    OpenSL(decoderMetadata, GetKeySize, i, &keySize);
+    keyInfo = static_cast<SLMetadataInfo*>(malloc(keySize));
+    if (keyInfo) {
+      OpenSL(decoderMetadata, GetKey, i, keySize, keyInfo);
+      if (keyInfo->encoding == SL_CHARACTERENCODING_ASCII
+          || keyInfo->encoding == SL_CHARACTERENCODING_UTF8) {
+        OpenSL(decoderMetadata, GetValueSize, i, &valueSize);
+        value = static_cast<SLMetadataInfo*>(malloc(valueSize));
+        if (value) {
+          OpenSL(decoderMetadata, GetValue, i, valueSize, value);
+          if (strcmp((char*) keyInfo->data, ANDROID_KEY_PCMFORMAT_SAMPLERATE) == 0) {
+            SLuint32 sampleRate = *(reinterpret_cast<SLuint32*>(value->data));
+            LOGD("sample Rate: %d", sampleRate);
+            *sampleRateOut = sampleRate;
+          } else if (strcmp((char*) keyInfo->data, ANDROID_KEY_PCMFORMAT_NUMCHANNELS) == 0) {
+            SLuint32 channels = *(reinterpret_cast<SLuint32*>(value->data));
+            LOGD("channels: %d", channels);
+            *channelsOut = channels;
+          }
+          free(value);
+        }
+      }
+      free(keyInfo);
+    }
+  }
+}
+
+static android::Mutex sharedEngineLock;
+static SLObjectItf sharedEngine = NULL;
+static SLEngineItf sharedEngineInterface = NULL;
+static int sharedEngineUsers = 0;
+
+static SLEngineItf AcquireSharedEngine() {
+  android::Mutex::Autolock autoLock(sharedEngineLock);
+  if (sharedEngineUsers++ == 0) {
+    // Determine whether we should log calls.
+    gLogEnabled = ShouldLog();
+    SLEngineOption EngineOption[] = { {
+        SL_ENGINEOPTION_THREADSAFE, SL_BOOLEAN_TRUE } };
+    SLresult result = slCreateEngine(&sharedEngine, 1, EngineOption, 0, NULL,
+        NULL);
+    CheckSLResult("create engine", result);
+    OpenSL(sharedEngine, Realize, SL_BOOLEAN_FALSE);
+    OpenSL(sharedEngine, GetInterface, SL_IID_ENGINE, &sharedEngineInterface);
+  }
+  return sharedEngineInterface;
+}
+
+static void ReleaseSharedEngine() {
+  android::Mutex::Autolock autoLock(sharedEngineLock);
+  CHECK(sharedEngineUsers > 0);
+  if (--sharedEngineUsers == 0) {
+    VoidOpenSL(sharedEngine, Destroy);
+    sharedEngine = NULL;
+    sharedEngineInterface = NULL;
+  }
+}
+
+// The OpenSL data source for a DecoderSource, valid for as long as both are.
+class SLSource {
+ public:
+  explicit SLSource(const DecoderSource& source) {
+    mime_.formatType = SL_DATAFORMAT_MIME;
+    mime_.mimeType = NULL;
+    mime_.containerType = SL_CONTAINERTYPE_UNSPECIFIED;
+    if (source.fd >= 0) {
+      fd_.locatorType = SL_DATALOCATOR_ANDROIDFD;
+      fd_.fd = source.fd;
+      fd_.offset = source.offset;
+      fd_.length = source.length;
+      dataSource_.pLocator = &fd_;
+    } else {
+      uri_.locatorType = SL_DATALOCATOR_URI;
+      uri_.URI = const_cast<SLchar*>(
+          reinterpret_cast<const SLchar*>(source.uri.c_str()));
+      dataSource_.pLocator = &uri_;
+    }
+    dataSource_.pFormat = &mime_;
+  }
+
+  SLDataSource* get() { return &dataSource_; }
+
+ private:
+  SLDataLocator_URI uri_;
+  SLDataLocator_AndroidFD fd_;
+  SLDataFormat_MIME mime_;
+  SLDataSource dataSource_;
+
+  DISALLOW_COPY_AND_ASSIGN(SLSource);
+};
+
+// ****************************************************************************
+// The decoder: an OpenSL audio player that plays from the source into a
+// buffer queue.
+
+class OpenSLDecoder : public PcmDecoder {
+ public:
+  OpenSLDecoder(const DecoderSource& source, int audioStreamType,
+      Listener* listener);
+  virtual ~OpenSLDecoder();
+
+  virtual void Play();
+  virtual void Pause();
+  virtual void Seek(int positionMillis);
+  virtual void GetFormat(uint32* sampleRate, uint32* channels);
+  virtual uint32 GetDurationMillis();
+
+  void BufferQueueCallback();
+  void PlayEventCallback(SLuint32 event);
+  void PrefetchEventCallback(SLPrefetchStatusItf caller, SLuint32 event);
+
+ private:
+  Listener* listener_;
+  SLObjectItf object_;
+  SLPlayItf play_;
+  SLAndroidSimpleBufferQueueItf queue_;
+  SLPrefetchStatusItf prefetch_;
+  SLSeekItf seek_;
+  SLMetadataExtractionItf metadata_;
+  // Local storage for decoded audio data, filled by the buffer queue, and
+  // the buffer within it that is filled next.
+  // The buffer is confined to the decoding callback.
+  int8_t pcmData_[kNumberOfBuffersInQueue * kBufferSizeInBytes];
+  int8_t* nextBuffer_;
+
+  DISALLOW_COPY_AND_ASSIGN(OpenSLDecoder);
+};
+
+// The callbacks from OpenSL require static callback functions.
+// They just delegate to the decoder that registered them, which is passed as
+// the callback context.
+
+static void DecodingBufferQueueCb(SLAndroidSimpleBufferQueueItf,
+    void* context) {
+  static_cast<OpenSLDecoder*>(context)->BufferQueueCallback();
+}
+
+static void DecodingEventCb(SLPlayItf, void* context, SLuint32 event) {
+  static_cast<OpenSLDecoder*>(context)->PlayEventCallback(event);
+}
+
+static void PrefetchEventCb(SLPrefetchStatusItf caller, void* context,
+    SLuint32 event) {
+  static_cast<OpenSLDecoder*>(context)->PrefetchEventCallback(caller, event);
+}
+
+OpenSLDecoder::OpenSLDecoder(const DecoderSource& source,
+    int audioStreamType, Listener* listener)
+    : listener_(listener), object_(NULL), play_(NULL), queue_(NULL),
+      prefetch_(NULL), seek_(NULL), metadata_(NULL), nextBuffer_(pcmData_) {
+  SLEngineItf engineInterface = AcquireSharedEngine();
+
+  // Define the source and sink for the decoding player: comes from the given
+  // source, is sent to another buffer queue.
+  SLDataLocator_AndroidSimpleBufferQueue decBuffQueue;
+  decBuffQueue.locatorType = SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE;
+  decBuffQueue.numBuffers = kNumberOfBuffersInQueue;
+  // A valid value seems required here but is currently ignored.
+  SLDataFormat_PCM pcm = {SL_DATAFORMAT_PCM, 1, SL_SAMPLINGRATE_44_1,
+      SL_PCMSAMPLEFORMAT_FIXED_16, 16,
+      SL_SPEAKER_FRONT_LEFT, SL_BYTEORDER_LITTLEENDIAN};
+  SLDataSink decDest = { &decBuffQueue, &pcm };
+
+  // Create the decoder with the given source and sink.
+  const size_t decoderInterfaceCount = 5;
+  const SLInterfaceID decodePlayerInterfaces[decoderInterfaceCount] = {
+      SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_PREFETCHSTATUS, SL_IID_SEEK,
+      SL_IID_METADATAEXTRACTION, SL_IID_ANDROIDCONFIGURATION };
+  const SLboolean decodePlayerRequired[decoderInterfaceCount] = {
+      SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE };
+  SLSource audioSrc(source);
+  OpenSL(engineInterface, CreateAudioPlayer, &object_, audioSrc.get(),
+      &decDest, decoderInterfaceCount, decodePlayerInterfaces,
+      decodePlayerRequired);
+  // Not sure if this is necessary, but just in case.
+  setAudioStreamType(object_, audioStreamType);
+  OpenSL(object_, Realize, SL_BOOLEAN_FALSE);
+
+  // Get the play, buffer queue, prefetch, seek and metadata interfaces.
+  OpenSL(object_, GetInterface, SL_IID_PLAY, &play_);
+  OpenSL(object_, GetInterface, SL_IID_PREFETCHSTATUS, &prefetch_);
+  OpenSL(object_, GetInterface, SL_IID_SEEK, &seek_);
+  OpenSL(object_, GetInterface, SL_IID_METADATAEXTRACTION, &metadata_);
+  OpenSL(object_, GetInterface, SL_IID_ANDROIDSIMPLEBUFFERQUEUE, &queue_);
+
+  // Register a callback on the decoder queue, so that we will be called
+  // throughout the decoding process (and can then extract the decoded audio
+  // for the next bit of the pipeline).
+  OpenSL(queue_, RegisterCallback, DecodingBufferQueueCb, this);
+
+  // Enqueue buffers to map the region of memory allocated to store the
+  // decoded data.
+  for (size_t i = 0; i < kNumberOfBuffersInQueue; i++) {
+    OpenSL(queue_, Enqueue, pcmData_ + i * kBufferSizeInBytes,
+        kBufferSizeInBytes);
+  }
+
+  // Register for the end of the stream, and for prefetch errors, if we can't
+  // open the resource to decode.
+  OpenSL(play_, SetCallbackEventsMask, SL_PLAYEVENT_HEADATEND);
+  OpenSL(play_, RegisterCallback, DecodingEventCb, this);
+  OpenSL(prefetch_, SetCallbackEventsMask, kPrefetchErrorCandidate);
+  OpenSL(prefetch_, RegisterCallback, PrefetchEventCb, this);
+}
+
+OpenSLDecoder::~OpenSLDecoder() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_STOPPED);
+  OpenSL(prefetch_, RegisterCallback, NULL, NULL);
+  // This is returning slresult 13 if I do no playback.
+  // Repro is to comment out all before this line, and all after enqueueing
+  // my buffers.
+  // OpenSL0(queue_, Clear);
+  OpenSL(queue_, RegisterCallback, NULL, NULL);
+  OpenSL(play_, RegisterCallback, NULL, NULL);
+  VoidOpenSL(object_, AbortAsyncOperation);
+  VoidOpenSL(object_, Destroy);
+  ReleaseSharedEngine();
+}
+
+void OpenSLDecoder::Play() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_PLAYING);
+}
+
+void OpenSLDecoder::Pause() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_PAUSED);
+}
+
+void OpenSLDecoder::Seek(int positionMillis) {
+  OpenSL(seek_, SetPosition, positionMillis, SL_SEEKMODE_ACCURATE);
+}
+
+void OpenSLDecoder::GetFormat(uint32* sampleRate, uint32* channels) {
+  ReadSampleRateAndChannelCount(metadata_, sampleRate, channels);
+}
+
+uint32 OpenSLDecoder::GetDurationMillis() {
+  SLmillisecond durationInMsec = SL_TIME_UNKNOWN;
+  OpenSL(play_, GetDuration, &durationInMsec);
+  if (durationInMsec == SL_TIME_UNKNOWN) {
+    LOGE("can't get duration");
+    return 0;
+  }
+  LOGD("duration: %d", static_cast<int>(durationInMsec));
+  return durationInMsec;
+}
+
+void OpenSLDecoder::BufferQueueCallback() {
+  listener_->OnDecodedBuffer(nextBuffer_, kBufferSizeInBytes);
+  // The listener has finished with the buffer, so it can be filled again.
+  OpenSL(queue_, Enqueue, nextBuffer_, kBufferSizeInBytes);
+  nextBuffer_ += kBufferSizeInBytes;
+  if (nextBuffer_ >= pcmData_ + sizeof(pcmData_)) {
+    nextBuffer_ = pcmData_;
+  }
+}
+
+void OpenSLDecoder::PlayEventCallback(SLuint32 event) {
+  if (SL_PLAYEVENT_HEADATEND & event) {
+    listener_->OnDecoderFinished(true);
+  }
+}
+
+void OpenSLDecoder::PrefetchEventCallback(SLPrefetchStatusItf caller,
+    SLuint32 event) {
+  // If there was a problem during decoding, then signal the end.
+  SLpermille level = 0;
+  SLuint32 status;
+  OpenSL(caller, GetFillLevel, &level);
+  OpenSL(caller, GetPrefetchStatus, &status);
+  if ((kPrefetchErrorCandidate == (event & kPrefetchErrorCandidate)) &&
+      (level == 0) &&
+      (status == SL_PREFETCHSTATUS_UNDERFLOW)) {
+    LOGI("prefetcheventcallback error while prefetching data");
+    listener_->OnDecoderFinished(false);
+  }
+}
+
+// ****************************************************************************
+// The audio player: an OpenSL audio player that plays from a buffer queue to
+// its own output mix.
+
+class OpenSLPlayer : public PcmPlayer {
+ public:
+  OpenSLPlayer(uint32 sampleRate, uint32 channels, size_t queueDepth,
+      int audioStreamType, Listener* listener);
+  virtual ~OpenSLPlayer();
+
+  virtual void Play();
+  virtual void Pause();
+  virtual bool Enqueue(const int16* samples, size_t sizeInBytes);
+  virtual void Clear();
+
+  void BufferQueueCallback();
+
+ private:
+  Listener* listener_;
+  SLObjectItf outputMix_;
+  SLObjectItf object_;
+  SLPlayItf play_;
+  SLAndroidSimpleBufferQueueItf queue_;
+
+  DISALLOW_COPY_AND_ASSIGN(OpenSLPlayer);
+};
+
+static void PlayingBufferQueueCb(SLAndroidSimpleBufferQueueItf,
+    void* context) {
+  static_cast<OpenSLPlayer*>(context)->BufferQueueCallback();
+}
+
+static SLuint32 GetSLChannels(uint32 channels) {
+  switch (channels) {
+    case 2:
+      return SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT;
+    case 1:
+      return SL_SPEAKER_FRONT_CENTER;
+    default:
+      LOGE("unknown channels %d, using 2", channels);
+      return SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT;
+  }
+}
+
+OpenSLPlayer::OpenSLPlayer(uint32 sampleRate, uint32 channels,
+    size_t queueDepth, int audioStreamType, Listener* listener)
+    : listener_(listener), outputMix_(NULL), object_(NULL), play_(NULL),
+      queue_(NULL) {
+  SLEngineItf engineInterface = AcquireSharedEngine();
+  OpenSL(engineInterface, CreateOutputMix, &outputMix_, 0, NULL, NULL);
+  OpenSL(outputMix_, Realize, SL_BOOLEAN_FALSE);
+
+  // Define the source and sink for the audio player: comes from a buffer queue
+  // and goes to the output mix.  The queue must hold as many buffers as the
+  // engine may have playing, or the ones past its depth fail to enqueue.
+  SLDataLocator_AndroidSimpleBufferQueue loc_bufq = {
+      SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE,
+      static_cast<SLuint32>(queueDepth) };
+  // OpenSL takes the sample rate in milliHertz.
+  SLDataFormat_PCM format_pcm = {SL_DATAFORMAT_PCM, channels,
+      sampleRate * 1000, SL_PCMSAMPLEFORMAT_FIXED_16,
+      SL_PCMSAMPLEFORMAT_FIXED_16, GetSLChannels(channels),
+      SL_BYTEORDER_LITTLEENDIAN};
+  SLDataSource playingSrc = {&loc_bufq, &format_pcm};
+  SLDataLocator_OutputMix loc_outmix = {SL_DATALOCATOR_OUTPUTMIX, outputMix_};
+  SLDataSink audioSnk = {&loc_outmix, NULL};
+
+  // Create the audio player, which will play from the buffer queue and send to
+  // the output mix.
+  const size_t playerInterfaceCount = 2;
+  const SLInterfaceID iids[playerInterfaceCount] = {
+      SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_ANDROIDCONFIGURATION };
+  const SLboolean reqs[playerInterfaceCount] = { SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE };
+  OpenSL(engineInterface, CreateAudioPlayer, &object_, &playingSrc,
+      &audioSnk, playerInterfaceCount, iids, reqs);
+  setAudioStreamType(object_, audioStreamType);
+  OpenSL(object_, Realize, SL_BOOLEAN_FALSE);
+
+  OpenSL(object_, GetInterface, SL_IID_PLAY, &play_);
+  OpenSL(object_, GetInterface, SL_IID_ANDROIDSIMPLEBUFFERQUEUE, &queue_);
+  OpenSL(queue_, RegisterCallback, PlayingBufferQueueCb, this);
+}
+
+OpenSLPlayer::~OpenSLPlayer() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_STOPPED);
+  OpenSL0(queue_, Clear);
+  OpenSL(queue_, RegisterCallback, NULL, NULL);
+  VoidOpenSL(object_, AbortAsyncOperation);
+  VoidOpenSL(object_, Destroy);
+  VoidOpenSL(outputMix_, Destroy);
+  ReleaseSharedEngine();
+}
+
+void OpenSLPlayer::Play() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_PLAYING);
+}
+
+void OpenSLPlayer::Pause() {
+  OpenSL(play_, SetPlayState, SL_PLAYSTATE_PAUSED);
+}
+
+bool OpenSLPlayer::Enqueue(const int16* samples, size_t sizeInBytes) {
+  return ReturnOpenSL(queue_, Enqueue, samples, sizeInBytes)
+      == SL_RESULT_SUCCESS;
+}
+
+void OpenSLPlayer::Clear() {
+  OpenSL0(queue_, Clear);
+}
+
+void OpenSLPlayer::BufferQueueCallback() {
+  listener_->OnBufferPlayed();
+}
+
+// ****************************************************************************
+// OpenSLAudioBackend methods.
+
+PcmDecoder* OpenSLAudioBackend::CreateDecoder(const DecoderSource& source,
+    int audioStreamType, PcmDecoder::Listener* listener) {
+  return new OpenSLDecoder(source, audioStreamType, listener);
+}
+
+PcmPlayer* OpenSLAudioBackend::CreatePlayer(uint32 sampleRate,
+    uint32 channels, size_t queueDepth, int audioStreamType,
+    PcmPlayer::Listener* listener) {
+  return new OpenSLPlayer(sampleRate, channels, queueDepth, audioStreamType,
+      listener);
+}
+
+// Wakes the thread probing the duration of a source whenever OpenSL reports
+// progress prefetching it, so that the duration is read as soon as it is
+// known rather than by polling.
+class DurationProbe {
+ public:
+  DurationProbe() : eventCount_(0), failed_(false) {}
+
+  void PrefetchEventCallback(SLPrefetchStatusItf caller, SLuint32 event) {
+    SLpermille level = 0;
+    SLuint32 status;
+    OpenSL(caller, GetFillLevel, &level);
+    OpenSL(caller, GetPrefetchStatus, &status);
+    android::Mutex::Autolock autoLock(lock_);
+    ++eventCount_;
+    if ((kPrefetchErrorCandidate == (event & kPrefetchErrorCandidate)) &&
+        (level == 0) &&
+        (status == SL_PREFETCHSTATUS_UNDERFLOW)) {
+      failed_ = true;
+    }
+    eventArrived_.broadcast();
+  }
+
+  // Waits up to timeoutMicros for an event beyond the eventCount already
+  // seen.  Returns the count of events so far, and sets failed if the
+  // prefetching has failed.
+  int WaitForEvent(int eventCount, int64 timeoutMicros, bool* failed) {
+    android::Mutex::Autolock autoLock(lock_);
+    if (eventCount_ == eventCount && !failed_) {
+      eventArrived_.waitRelative(lock_, timeoutMicros * 1000);
+    }
+    *failed = failed_;
+    return eventCount_;
+  }
+
+ private:
+  android::Mutex lock_;
+  android::Condition eventArrived_;
+  int eventCount_;
+  bool failed_;
+
+  DISALLOW_COPY_AND_ASSIGN(DurationProbe);
+};
+
+static void ProbePrefetchEventCb(SLPrefetchStatusItf caller, void* context,
+    SLuint32 event) {
+  static_cast<DurationProbe*>(context)->PrefetchEventCallback(caller, event);
+}
+
+// Creates a paused player for the source, which prefetches enough of it to
+// learn its duration, without decoding any audio into the buffer queue.
+// Failures are expected here, for files we cannot read, so they are
+// reported rather than checked.
+int OpenSLAudioBackend::ProbeDuration(const DecoderSource& source) {
+  SLEngineItf engineInterface = AcquireSharedEngine();
+
+  SLDataLocator_AndroidSimpleBufferQueue probeBuffQueue;
+  probeBuffQueue.locatorType = SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE;
+  probeBuffQueue.numBuffers = kNumberOfBuffersInQueue;
+  // A valid value seems required here but is currently ignored.
+  SLDataFormat_PCM pcm = {SL_DATAFORMAT_PCM, 1, SL_SAMPLINGRATE_44_1,
+      SL_PCMSAMPLEFORMAT_FIXED_16, 16,
+      SL_SPEAKER_FRONT_LEFT, SL_BYTEORDER_LITTLEENDIAN};
+  SLDataSink probeDest = { &probeBuffQueue, &pcm };
+
+  const size_t probeInterfaceCount = 3;
+  const SLInterfaceID probeInterfaces[probeInterfaceCount] = {
+      SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_PLAY, SL_IID_PREFETCHSTATUS };
+  const SLboolean probeRequired[probeInterfaceCount] = {
+      SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE };
+  SLSource audioSrc(source);
+  DurationProbe probe;
+  SLObjectItf prober = NULL;
+  SLPlayItf proberPlay = NULL;
+  SLPrefetchStatusItf proberPrefetch = NULL;
+  int durationMillis = -1;
+  if (ReturnOpenSL(engineInterface, CreateAudioPlayer, &prober,
+          audioSrc.get(), &probeDest, probeInterfaceCount, probeInterfaces,
+          probeRequired) != SL_RESULT_SUCCESS) {
+    LOGE("could not create player to probe duration");
+    prober = NULL;
+  } else if (ReturnOpenSL(prober, Realize, SL_BOOLEAN_FALSE)
+             != SL_RESULT_SUCCESS ||
+      ReturnOpenSL(prober, GetInterface, SL_IID_PLAY, &proberPlay)
+             != SL_RESULT_SUCCESS ||
+      ReturnOpenSL(prober, GetInterface, SL_IID_PREFETCHSTATUS,
+          &proberPrefetch) != SL_RESULT_SUCCESS ||
+      ReturnOpenSL(proberPrefetch, SetCallbackEventsMask,
+          kPrefetchErrorCandidate) != SL_RESULT_SUCCESS ||
+      ReturnOpenSL(proberPrefetch, RegisterCallback, ProbePrefetchEventCb,
+          &probe) != SL_RESULT_SUCCESS ||
+      ReturnOpenSL(proberPlay, SetPlayState, SL_PLAYSTATE_PAUSED)
+             != SL_RESULT_SUCCESS) {
+    LOGE("could not prefetch to probe duration");
+  } else {
+    int64 deadline = PipelineStats::NowMicros() + kProbeTimeoutMicros;
+    int eventCount = 0;
+    while (true) {
+      SLmillisecond duration = SL_TIME_UNKNOWN;
+      if (ReturnOpenSL(proberPlay, GetDuration, &duration)
+          != SL_RESULT_SUCCESS) {
+        break;
+      }
+      if (duration != SL_TIME_UNKNOWN) {
+        durationMillis = static_cast<int>(duration);
+        break;
+      }
+      int64 remaining = deadline - PipelineStats::NowMicros();
+      if (remaining <= 0) {
+        LOGE("timed out prefetching to probe duration");
+        break;
+      }
+      bool failed;
+      eventCount = probe.WaitForEvent(eventCount,
+          std::min(remaining, kProbeRecheckMicros), &failed);
+      if (failed) {
+        LOGE("could not prefetch to probe duration");
+        break;
+      }
+    }
+  }
+
+  if (prober != NULL) {
+    if (proberPrefetch != NULL) {
+      // The probe goes once this returns, so must hear no more events.
+      OpenSL(proberPrefetch, RegisterCallback, NULL, NULL);
+    }
+    VoidOpenSL(prober, Destroy);
+  }
+  ReleaseSharedEngine();
+  return durationMillis;
+}
+
+int64 OpenSLAudioBackend::NowMicros() {
+  return PipelineStats::NowMicros();
+}
+
+void OpenSLAudioBackend::SleepMicros(int64 micros) {
+  usleep(micros);
+}
+
+void OpenSLAudioBackend::WaitMicros(int64 micros) {
+  android::Mutex::Autolock autoLock(wakeLock_);
+  if (!wakePending_) {
+    wakeRequested_.waitRelative(wakeLock_, micros * 1000);
+  }
+  wakePending_ = false;
+}
+
+void OpenSLAudioBackend::Wake() {
+  android::Mutex::Autolock autoLock(wakeLock_);
+  wakePending_ = true;
+  wakeRequested_.broadcast();
+}
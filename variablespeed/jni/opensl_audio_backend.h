@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_OPENSL_AUDIO_BACKEND_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_OPENSL_AUDIO_BACKEND_H_
+
+#include <audio_backend.h>
+#include <macros.h>
+#include <utils/threads.h>
+
+// Decodes with, and plays through, OpenSL ES.
+//
+// OpenSL ES on Android permits only a single engine object per process, so
+// every decoder and player, from however many instances of this class,
+// shares one.  It is created on first use and destroyed when the last of
+// them has gone.  The only state of this class is what WaitMicros() and
+// Wake() share, so each AudioEngine needs an instance of its own.
+class OpenSLAudioBackend : public AudioBackend {
+ public:
+  OpenSLAudioBackend() : wakePending_(false) {}
+  virtual ~OpenSLAudioBackend() {}
+
+  virtual PcmDecoder* CreateDecoder(const DecoderSource& source,
+      int audioStreamType, PcmDecoder::Listener* listener);
+  virtual PcmPlayer* CreatePlayer(uint32 sampleRate, uint32 channels,
+      size_t queueDepth, int audioStreamType, PcmPlayer::Listener* listener);
+  virtual int ProbeDuration(const DecoderSource& source);
+
+  virtual int64 NowMicros();
+  virtual void SleepMicros(int64 micros);
+  virtual void WaitMicros(int64 micros);
+  virtual void Wake();
+
+ private:
+  android::Mutex wakeLock_;
+  android::Condition wakeRequested_;
+  bool wakePending_;
+
+  DISALLOW_COPY_AND_ASSIGN(OpenSLAudioBackend);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_OPENSL_AUDIO_BACKEND_H_
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <pipeline_stats.h>
+
+#include <time.h>
+
+#include <cutils/atomic.h>
+
+PipelineStats::PipelineStats()
+    : processTotalMicros_(0), decodeCallbackTotalMicros_(0) {
+  for (int i = 0; i < kNumberOfValues; ++i) {
+    values_[i] = 0;
+  }
+}
+
+int64 PipelineStats::NowMicros() {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return static_cast<int64>(now.tv_sec) * 1000000 + now.tv_nsec / 1000;
+}
+
+void PipelineStats::RecordUnderrun() {
+  Increment(kUnderrunCount);
+}
+
+void PipelineStats::RecordDecodeBufferSize(size_t bytes) {
+  RaiseTo(kDecodeBufferHighWaterBytes, bytes);
+}
+
+void PipelineStats::RecordProcessTime(int64 micros) {
+  Increment(kProcessCount);
+  AddToMean(kProcessMeanMicros, micros, kProcessCount, &processTotalMicros_);
+  RaiseTo(kProcessMaxMicros, micros);
+}
+
+void PipelineStats::RecordDecodeCallbackTime(int64 micros) {
+  Increment(kDecodeCallbackCount);
+  AddToMean(kDecodeCallbackMeanMicros, micros, kDecodeCallbackCount,
+      &decodeCallbackTotalMicros_);
+  RaiseTo(kDecodeCallbackMaxMicros, micros);
+}
+
+void PipelineStats::Snapshot(int32_t* values) const {
+  for (int i = 0; i < kNumberOfValues; ++i) {
+    values[i] = android_atomic_acquire_load(&values_[i]);
+  }
+}
+
+int32_t PipelineStats::GetUnderrunCount() const {
+  return android_atomic_acquire_load(&values_[kUnderrunCount]);
+}
+
+// Since each counter has only one writer, a read followed by a store cannot
+// lose an update.
+
+void PipelineStats::Increment(int index) {
+  android_atomic_release_store(values_[index] + 1, &values_[index]);
+}
+
+void PipelineStats::AddToMean(int index, int64 micros, int countIndex,
+    int64* total) {
+  *total += micros;
+  android_atomic_release_store(
+      static_cast<int32_t>(*total / values_[countIndex]), &values_[index]);
+}
+
+void PipelineStats::RaiseTo(int index, int64 value) {
+  if (value > values_[index]) {
+    android_atomic_release_store(static_cast<int32_t>(value),
+        &values_[index]);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_PIPELINE_STATS_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_PIPELINE_STATS_H_
+
+#include <integral_types.h>
+#include <macros.h>
+#include <stdint.h>
+
+// Counters describing the health of an AudioEngine's playback pipeline.
+//
+// Each counter has a single writer: the underrun count is written by the
+// audio player's callback, the decode buffer and callback figures by the
+// decoder's callback, and the processing figures by the main playback loop.
+// So recording is a plain store with release semantics, cheap enough to
+// leave enabled all the time.  A snapshot may be read from any thread, but
+// different counters in it may be a few updates apart.
+class PipelineStats {
+ public:
+  // The order of the values written by Snapshot().
+  enum {
+    kUnderrunCount,
+    kDecodeBufferBytes,
+    kDecodeBufferHighWaterBytes,
+    kProcessCount,
+    kProcessMeanMicros,
+    kProcessMaxMicros,
+    kDecodeCallbackCount,
+    kDecodeCallbackMeanMicros,
+    kDecodeCallbackMaxMicros,
+    kNumberOfValues,
+  };
+
+  PipelineStats();
+
+  // The current time, for measuring durations to record.
+  static int64 NowMicros();
+
+  // The audio player ran out of buffers before the end of the audio.
+  void RecordUnderrun();
+  // The decoder has just added to the decode buffer, which now holds bytes.
+  void RecordDecodeBufferSize(size_t bytes);
+  // The time scaler took micros to process a block of input.
+  void RecordProcessTime(int64 micros);
+  // A decoder callback took micros to hand its buffer back to the decoder.
+  void RecordDecodeCallbackTime(int64 micros);
+
+  // Copies the counters into values, which must have room for
+  // kNumberOfValues, in the order above.  The current decode buffer size is
+  // not recorded here, and must be filled in by the caller.
+  void Snapshot(int32_t* values) const;
+  // The number of underruns so far, for the engine's own use.
+  int32_t GetUnderrunCount() const;
+
+ private:
+  void Increment(int index);
+  void RaiseTo(int index, int64 value);
+  // Adds micros to total, which only the writer of the mean at index reads,
+  // and publishes the new mean over count.  Summing in 64 bits means the
+  // mean stays right however long playback runs, where a 32-bit total of
+  // microseconds would wrap after about 36 minutes.
+  void AddToMean(int index, int64 micros, int countIndex, int64* total);
+
+  volatile int32_t values_[kNumberOfValues];
+  int64 processTotalMicros_;
+  int64 decodeCallbackTotalMicros_;
+
+  DISALLOW_COPY_AND_ASSIGN(PipelineStats);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_PIPELINE_STATS_H_
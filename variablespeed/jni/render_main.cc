@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Renders a WAV file at a different speed, as fast as the CPU allows.
+//
+// usage: variablespeed_render in.wav out.wav|out.pcm speed
+//            [position_millis:speed,...] [window_seconds overlap_seconds]
+//
+// Output ending in .pcm is written as bare interleaved 16-bit samples.
+
+#include <offline_renderer.h>
+#include <wav_io.h>
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+namespace {
+
+const float kDefaultWindowDuration = 0.08f;
+const float kDefaultOverlapDuration = 0.008f;
+
+bool EndsWith(const char* text, const char* suffix) {
+  size_t textLength = strlen(text);
+  size_t suffixLength = strlen(suffix);
+  return textLength >= suffixLength &&
+      strcmp(text + textLength - suffixLength, suffix) == 0;
+}
+
+// Parses a comma separated list of position_millis:speed pairs.
+bool ParseChanges(const char* text, SpeedSchedule* schedule) {
+  while (*text != '\0') {
+    char* end;
+    long long positionMillis = strtoll(text, &end, 10);
+    if (*end != ':') {
+      return false;
+    }
+    float speed = strtof(end + 1, &end);
+    if (*end != ',' && *end != '\0') {
+      return false;
+    }
+    schedule->AddChange(positionMillis, speed);
+    text = *end == ',' ? end + 1 : end;
+  }
+  return true;
+}
+
+double CpuSeconds() {
+  return static_cast<double>(clock()) / CLOCKS_PER_SEC;
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  if (argc != 4 && argc != 5 && argc != 6 && argc != 7) {
+    fprintf(stderr, "usage: %s in.wav out.wav|out.pcm speed "
+        "[position_millis:speed,...] [window_seconds overlap_seconds]\n",
+        argv[0]);
+    return 2;
+  }
+  SpeedSchedule schedule(strtof(argv[3], NULL));
+  if ((argc == 5 || argc == 7) && !ParseChanges(argv[4], &schedule)) {
+    fprintf(stderr, "could not parse speed changes: %s\n", argv[4]);
+    return 2;
+  }
+  float windowDuration = kDefaultWindowDuration;
+  float overlapDuration = kDefaultOverlapDuration;
+  if (argc >= 6) {
+    windowDuration = strtof(argv[argc - 2], NULL);
+    overlapDuration = strtof(argv[argc - 1], NULL);
+  }
+
+  WavFileSource source;
+  if (!source.Open(argv[1])) {
+    fprintf(stderr, "could not read %s\n", argv[1]);
+    return 1;
+  }
+  PcmFileSink sink(argv[2], !EndsWith(argv[2], ".pcm"));
+  OfflineRenderer renderer(windowDuration, overlapDuration);
+
+  double start = CpuSeconds();
+  int64 frames = renderer.Render(&source, schedule, &sink);
+  double elapsed = CpuSeconds() - start;
+  if (frames < 0) {
+    fprintf(stderr, "rendering failed\n");
+    return 1;
+  }
+  double outputSeconds = static_cast<double>(frames) / source.sample_rate();
+  printf("rendered %lld frames (%.2f s of audio) in %.3f s of cpu, %.1fx "
+      "real time\n", static_cast<long long>(frames), outputSeconds, elapsed,
+      elapsed > 0 ? outputSeconds / elapsed : 0);
+  return 0;
+}
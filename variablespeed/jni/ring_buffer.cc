@@ -20,7 +20,9 @@
 
 namespace video_editing {
 
-void RingBuffer::Init(int size, int num_channels, int num_readers) {
+template <typename Sample>
+void SampleRingBuffer<Sample>::Init(int size, int num_channels,
+                                    int num_readers) {
   size_ = size;
   num_channels_ = num_channels;
   num_readers_ = num_readers;
@@ -29,25 +31,28 @@ void RingBuffer::Init(int size, int num_channels, int num_readers) {
   Reset();
 }
 
-RingBuffer::RingBuffer()
+template <typename Sample>
+SampleRingBuffer<Sample>::SampleRingBuffer()
     : initialized_(false), samples_(NULL),
       num_readers_(0), temp_read_buffer_(NULL) {
 }
 
-RingBuffer::~RingBuffer() {
+template <typename Sample>
+SampleRingBuffer<Sample>::~SampleRingBuffer() {
   delete[] samples_;
   delete[] temp_read_buffer_;
 }
 
-void RingBuffer::Reset() {
+template <typename Sample>
+void SampleRingBuffer<Sample>::Reset() {
   delete[] samples_;
-  samples_ = new float[size_ * num_channels_];
+  samples_ = new Sample[size_ * num_channels_];
   memset(samples_, 0,
          size_ * num_channels_ * sizeof(samples_[0]));
 
   temp_read_buffer_size_ = 1024;
   delete[] temp_read_buffer_;
-  temp_read_buffer_ = new float[temp_read_buffer_size_ * num_channels_];
+  temp_read_buffer_ = new Sample[temp_read_buffer_size_ * num_channels_];
   memset(temp_read_buffer_, 0,
          temp_read_buffer_size_ * num_channels_ * sizeof(samples_[0]));
   readers_.clear();
@@ -58,28 +63,34 @@ void RingBuffer::Reset() {
   head_ = 0;
 }
 
-int RingBuffer::available(int reader) const {
+template <typename Sample>
+int SampleRingBuffer<Sample>::available(int reader) const {
   return head_logical_ - readers_[reader];
 }
 
-int RingBuffer::overhead() const {
+template <typename Sample>
+int SampleRingBuffer<Sample>::overhead() const {
   int64 tail = GetTail();
   return tail + size_ - head_logical_;
 }
 
-int64 RingBuffer::GetTail() const {
+template <typename Sample>
+int64 SampleRingBuffer<Sample>::GetTail() const {
   return *min_element(readers_.begin(), readers_.end());
 }
 
-int64 RingBuffer::Tell(int reader) const {
+template <typename Sample>
+int64 SampleRingBuffer<Sample>::Tell(int reader) const {
   return readers_[reader];
 }
 
-void RingBuffer::Seek(int reader, int64 position) {
+template <typename Sample>
+void SampleRingBuffer<Sample>::Seek(int reader, int64 position) {
   readers_[reader] = position;
 }
 
-void RingBuffer::Write(const float* samples, int num_frames) {
+template <typename Sample>
+void SampleRingBuffer<Sample>::Write(const Sample* samples, int num_frames) {
   if (!num_frames) {
     return;
   }
@@ -98,7 +109,9 @@ void RingBuffer::Write(const float* samples, int num_frames) {
   head_logical_ += num_frames;
 }
 
-void RingBuffer::Copy(int reader, float* destination, int num_frames) const {
+template <typename Sample>
+void SampleRingBuffer<Sample>::Copy(int reader, Sample* destination,
+                                    int num_frames) const {
   int pos = Tell(reader) % size_;
   if (pos + num_frames <= size_) {
     memcpy(destination, samples_ + pos * num_channels_,
@@ -113,7 +126,8 @@ void RingBuffer::Copy(int reader, float* destination, int num_frames) const {
   }
 }
 
-float* RingBuffer::GetPointer(int reader, int num_frames) {
+template <typename Sample>
+Sample* SampleRingBuffer<Sample>::GetPointer(int reader, int num_frames) {
   int pos = Tell(reader) % size_;
   if (pos + num_frames <= size_) {
     return samples_ + pos * num_channels_;
@@ -122,14 +136,16 @@ float* RingBuffer::GetPointer(int reader, int num_frames) {
       temp_read_buffer_size_ = num_frames;
       delete[] temp_read_buffer_;
       temp_read_buffer_ =
-          new float[temp_read_buffer_size_ * num_channels_];  // NOLINT
+          new Sample[temp_read_buffer_size_ * num_channels_];  // NOLINT
     }
     Copy(reader, temp_read_buffer_, num_frames);
     return temp_read_buffer_;
   }
 }
 
-void RingBuffer::MergeBack(int reader, const float* source, int num_frames) {
+template <typename Sample>
+void SampleRingBuffer<Sample>::MergeBack(int reader, const Sample* source,
+                                         int num_frames) {
   // If the source pointer is not the temporary buffer,
   // data updates were performed in place, so there is nothing to do.
   // Otherwise, copy samples from the temp buffer back to the ring buffer.
@@ -149,4 +165,7 @@ void RingBuffer::MergeBack(int reader, const float* source, int num_frames) {
   }
 }
 
+template class SampleRingBuffer<float>;
+template class SampleRingBuffer<int16>;
+
 }  // namespace video_editing
@@ -29,13 +29,17 @@
 // boundaries).
 //
 // This code is not thread-safe.
+//
+// It is instantiated for float samples, as RingBuffer, and for 16-bit
+// samples, as Int16RingBuffer.
 
 namespace video_editing {
 
-class RingBuffer {
+template <typename Sample>
+class SampleRingBuffer {
  public:
-  RingBuffer();
-  virtual ~RingBuffer();
+  SampleRingBuffer();
+  virtual ~SampleRingBuffer();
 
   // Initializes a RingBuffer.
   // @param size: size of the buffer in frames.
@@ -56,13 +60,13 @@ class RingBuffer {
   // Reads samples for a reading head.
   // @param reader reading head index.
   // @param num_frames number of frames to read.
-  // @param destination float buffer to which the samples will be written.
-  void Copy(int reader, float* destination, int num_frames) const;
+  // @param destination buffer to which the samples will be written.
+  void Copy(int reader, Sample* destination, int num_frames) const;
 
   // Writes samples.
-  // @param samples float buffer containing the samples.
+  // @param samples buffer containing the samples.
   // @param num_frames number of frames to write.
-  void Write(const float* samples, int num_frames);
+  void Write(const Sample* samples, int num_frames);
 
   // Flushes the content of the buffer and reset the position of the heads.
   void Reset();
@@ -82,7 +86,7 @@ class RingBuffer {
   // @param reader reading head index.
   // @param num_frames number of frames to read.
   // @returns pointer to a continuous buffer containing num_frames.
-  float* GetPointer(int reader, int num_frames);
+  Sample* GetPointer(int reader, int num_frames);
 
   // Merges updated data back into the ring buffer, if it was updated in
   // the temporary buffer.  This operation follows a GetPointer() that
@@ -91,14 +95,14 @@ class RingBuffer {
   // @param reader reading head index.
   // @param source pointer to a continuous buffer containing num_frames.
   // @param num_frames number of frames to copy back to the ring buffer.
-  void MergeBack(int reader, const float* source, int num_frames);
+  void MergeBack(int reader, const Sample* source, int num_frames);
 
  private:
   // Returns the position of the laziest reader.
   int64 GetTail() const;
 
   bool initialized_;
-  float* samples_;
+  Sample* samples_;
   std::vector<int64> readers_;
   int size_;
   int num_channels_;
@@ -106,12 +110,15 @@ class RingBuffer {
   int64 head_logical_;
   int head_;
 
-  float* temp_read_buffer_;
+  Sample* temp_read_buffer_;
   int temp_read_buffer_size_;
 
-  DISALLOW_COPY_AND_ASSIGN(RingBuffer);
+  DISALLOW_COPY_AND_ASSIGN(SampleRingBuffer);
 };
 
+typedef SampleRingBuffer<float> RingBuffer;
+typedef SampleRingBuffer<int16> Int16RingBuffer;
+
 }  // namespace video_editing
 
 #endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_RING_BUFFER_H_
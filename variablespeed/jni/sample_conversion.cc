@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <sample_conversion.h>
+
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#define SAMPLE_CONVERSION_NEON
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define SAMPLE_CONVERSION_SSE2
+#endif
+
+namespace {
+
+// The float range that survives truncation toward zero into an int16.
+const float kMinShort = -32768.0f;
+const float kMaxShort = 32767.0f;
+
+inline int16 FloatToShort(float value) {
+  // Written so that NaN, which fails both comparisons, becomes zero.
+  if (value >= kMaxShort) {
+    return 32767;
+  }
+  if (value <= kMinShort) {
+    return -32768;
+  }
+  if (value == value) {
+    return static_cast<int16>(value);
+  }
+  return 0;
+}
+
+}  // namespace
+
+void ConvertShortsToFloats(const int16* in, float* out, size_t count) {
+  size_t i = 0;
+#if defined(SAMPLE_CONVERSION_NEON)
+  for (; i + 8 <= count; i += 8) {
+    int16x8_t shorts = vld1q_s16(in + i);
+    vst1q_f32(out + i, vcvtq_f32_s32(vmovl_s16(vget_low_s16(shorts))));
+    vst1q_f32(out + i + 4, vcvtq_f32_s32(vmovl_s16(vget_high_s16(shorts))));
+  }
+#elif defined(SAMPLE_CONVERSION_SSE2)
+  for (; i + 8 <= count; i += 8) {
+    __m128i shorts = _mm_loadu_si128(reinterpret_cast<const __m128i*>(in + i));
+    // Place each short in the top half of an int, then shift it back down
+    // to sign-extend it.
+    __m128i low = _mm_srai_epi32(_mm_unpacklo_epi16(shorts, shorts), 16);
+    __m128i high = _mm_srai_epi32(_mm_unpackhi_epi16(shorts, shorts), 16);
+    _mm_storeu_ps(out + i, _mm_cvtepi32_ps(low));
+    _mm_storeu_ps(out + i + 4, _mm_cvtepi32_ps(high));
+  }
+#endif
+  for (; i < count; ++i) {
+    out[i] = in[i];
+  }
+}
+
+void ConvertFloatsToShorts(const float* in, int16* out, size_t count) {
+  size_t i = 0;
+#if defined(SAMPLE_CONVERSION_NEON)
+  // The float to int conversion saturates and turns NaN into zero, and the
+  // narrowing saturates again, so no clamping is needed.
+  for (; i + 8 <= count; i += 8) {
+    int32x4_t low = vcvtq_s32_f32(vld1q_f32(in + i));
+    int32x4_t high = vcvtq_s32_f32(vld1q_f32(in + i + 4));
+    vst1q_s16(out + i, vcombine_s16(vqmovn_s32(low), vqmovn_s32(high)));
+  }
+#elif defined(SAMPLE_CONVERSION_SSE2)
+  // Out of range conversions give INT_MIN, so clamp first.  The clamp
+  // returns its second operand for NaN, which the final mask turns to zero.
+  const __m128 minShort = _mm_set1_ps(kMinShort);
+  const __m128 maxShort = _mm_set1_ps(kMaxShort);
+  for (; i + 8 <= count; i += 8) {
+    __m128 lowIn = _mm_loadu_ps(in + i);
+    __m128 highIn = _mm_loadu_ps(in + i + 4);
+    __m128 low = _mm_min_ps(_mm_max_ps(lowIn, minShort), maxShort);
+    __m128 high = _mm_min_ps(_mm_max_ps(highIn, minShort), maxShort);
+    low = _mm_and_ps(low, _mm_cmpord_ps(lowIn, lowIn));
+    high = _mm_and_ps(high, _mm_cmpord_ps(highIn, highIn));
+    __m128i shorts = _mm_packs_epi32(_mm_cvttps_epi32(low),
+        _mm_cvttps_epi32(high));
+    _mm_storeu_si128(reinterpret_cast<__m128i*>(out + i), shorts);
+  }
+#endif
+  for (; i < count; ++i) {
+    out[i] = FloatToShort(in[i]);
+  }
+}
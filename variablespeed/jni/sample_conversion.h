@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_SAMPLE_CONVERSION_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_SAMPLE_CONVERSION_H_
+
+#include <integral_types.h>
+
+// Block conversions between the int16 PCM used by OpenSL and the float
+// samples used by the time scaler.
+//
+// These use NEON on ARM and SSE2 on x86 where the compiler supports it, and
+// plain loops elsewhere.  All of the implementations give identical results.
+
+// Converts count int16 samples into floats of the same value.
+void ConvertShortsToFloats(const int16* in, float* out, size_t count);
+
+// Converts count float samples into int16, rounding toward zero and
+// saturating values outside the int16 range.
+void ConvertFloatsToShorts(const float* in, int16* out, size_t count);
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_SAMPLE_CONVERSION_H_
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host micro-benchmark for the block sample conversions.
+//
+// Compares them against the per-sample loops they replaced, after checking
+// that they agree with the scalar conversion, and prints the number of
+// samples converted per second.
+
+#include <sample_conversion.h>
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include <vector>
+
+namespace {
+
+// Roughly one second of stereo audio, in the order of size the engine
+// converts at once.
+const size_t kBlockSize = 2 * 44100;
+const int kIterations = 500;
+
+double NowSeconds() {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return now.tv_sec + now.tv_nsec / 1e9;
+}
+
+void PerSampleShortsToFloats(const int16* in, float* out, size_t count) {
+  for (size_t i = 0; i < count; ++i) {
+    out[i] = in[i];
+  }
+}
+
+void PerSampleFloatsToShorts(const float* in, int16* out, size_t count) {
+  for (size_t i = 0; i < count; ++i) {
+    out[i] = static_cast<int16>(in[i]);
+  }
+}
+
+template <typename In, typename Out>
+double SamplesPerSecond(void (*convert)(const In*, Out*, size_t),
+    const std::vector<In>& in, std::vector<Out>* out) {
+  double start = NowSeconds();
+  for (int i = 0; i < kIterations; ++i) {
+    convert(&in[0], &(*out)[0], in.size());
+  }
+  return in.size() * static_cast<double>(kIterations) / (NowSeconds() - start);
+}
+
+bool CheckShortsToFloats() {
+  std::vector<int16> in;
+  for (int value = -32768; value <= 32767; ++value) {
+    in.push_back(static_cast<int16>(value));
+  }
+  std::vector<float> out(in.size());
+  ConvertShortsToFloats(&in[0], &out[0], in.size());
+  for (size_t i = 0; i < in.size(); ++i) {
+    if (out[i] != in[i]) {
+      fprintf(stderr, "short %d converted to %f\n", in[i], out[i]);
+      return false;
+    }
+  }
+  return true;
+}
+
+bool CheckFloatsToShorts() {
+  const float edges[] = { 0.0f, -0.0f, 0.5f, -0.5f, 0.99f, -0.99f, 1.5f,
+      -1.5f, 32766.9f, 32767.0f, 32767.5f, 32768.0f, -32767.9f, -32768.0f,
+      -32768.5f, -32769.0f, 1e10f, -1e10f, INFINITY, -INFINITY, NAN };
+  std::vector<float> in(edges, edges + sizeof(edges) / sizeof(edges[0]));
+  for (int i = 0; i < 100000; ++i) {
+    in.push_back((rand() / static_cast<float>(RAND_MAX) - 0.5f) * 80000.0f);
+  }
+  std::vector<int16> out(in.size());
+  ConvertFloatsToShorts(&in[0], &out[0], in.size());
+  for (size_t i = 0; i < in.size(); ++i) {
+    float clamped = in[i] != in[i] ? 0.0f
+        : in[i] > 32767.0f ? 32767.0f : in[i] < -32768.0f ? -32768.0f : in[i];
+    if (out[i] != static_cast<int16>(clamped)) {
+      fprintf(stderr, "float %f converted to %d\n", in[i], out[i]);
+      return false;
+    }
+  }
+  return true;
+}
+
+}  // namespace
+
+int main() {
+  if (!CheckShortsToFloats() || !CheckFloatsToShorts()) {
+    return 1;
+  }
+
+  std::vector<int16> shorts(kBlockSize);
+  std::vector<float> floats(kBlockSize);
+  for (size_t i = 0; i < kBlockSize; ++i) {
+    shorts[i] = static_cast<int16>(rand());
+    floats[i] = shorts[i] * 0.9f;
+  }
+
+  printf("int16 to float, per sample: %8.1f Msamples/s\n",
+      SamplesPerSecond(PerSampleShortsToFloats, shorts, &floats) / 1e6);
+  printf("int16 to float, block:      %8.1f Msamples/s\n",
+      SamplesPerSecond(ConvertShortsToFloats, shorts, &floats) / 1e6);
+  printf("float to int16, per sample: %8.1f Msamples/s\n",
+      SamplesPerSecond(PerSampleFloatsToShorts, floats, &shorts) / 1e6);
+  printf("float to int16, block:      %8.1f Msamples/s\n",
+      SamplesPerSecond(ConvertFloatsToShorts, floats, &shorts) / 1e6);
+  return 0;
+}
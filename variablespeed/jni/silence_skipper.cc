@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <silence_skipper.h>
+
+#include <algorithm>
+
+SilenceSkipper::SilenceSkipper(int sampleRate, int channels, int16 threshold,
+    int maxPauseMillis)
+    : channels_(channels),
+      block_frames_(std::max(1, sampleRate / 100)),
+      max_pause_frames_(static_cast<int64>(sampleRate) * maxPauseMillis / 1000),
+      threshold_squared_(static_cast<int64>(threshold) * threshold),
+      pause_frames_(0) {
+  CHECK(sampleRate > 0 && channels > 0 && threshold >= 0 &&
+      maxPauseMillis >= 0);
+}
+
+int SilenceSkipper::Next(const int16* samples, int frameCount, bool* skip) {
+  int frames = 0;
+  while (frames < frameCount) {
+    int block = std::min(block_frames_, frameCount - frames);
+    bool silent = IsSilent(samples + frames * channels_, block);
+    bool skipBlock = silent && pause_frames_ >= max_pause_frames_;
+    // The block is judged again by the next call, if it ends the run.
+    if (frames > 0 && skipBlock != *skip) {
+      break;
+    }
+    *skip = skipBlock;
+    pause_frames_ = silent ? pause_frames_ + block : 0;
+    frames += block;
+  }
+  return frames;
+}
+
+void SilenceSkipper::Reset() {
+  pause_frames_ = 0;
+}
+
+bool SilenceSkipper::IsSilent(const int16* samples, int frameCount) const {
+  int sampleCount = frameCount * channels_;
+  int64 sumOfSquares = 0;
+  for (int i = 0; i < sampleCount; ++i) {
+    sumOfSquares += static_cast<int32>(samples[i]) * samples[i];
+  }
+  return sumOfSquares < threshold_squared_ * sampleCount;
+}
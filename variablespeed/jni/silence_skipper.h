@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_SILENCE_SKIPPER_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_SILENCE_SKIPPER_H_
+
+#include <integral_types.h>
+#include <macros.h>
+
+// Shortens pauses in audio before it is time scaled, so that long silences
+// in speech play out as no more than a given length.
+//
+// The audio is judged in blocks of 10ms, each of which is silent if its root
+// mean square level is below the threshold.  Once a pause has lasted the
+// maximum, the rest of it is skipped, until a block is loud again.  Nothing
+// is delayed to look ahead, so every pause keeps its first part, which is
+// what separates the words either side of it.
+//
+// Not thread safe.
+class SilenceSkipper {
+ public:
+  SilenceSkipper(int sampleRate, int channels, int16 threshold,
+      int maxPauseMillis);
+
+  // Looks at the interleaved frames about to be time scaled, and returns how
+  // many of them from the start are all to be played or all to be skipped,
+  // setting skip to say which.  The next call must start with the frames
+  // after those.
+  int Next(const int16* samples, int frameCount, bool* skip);
+  // Forgets the pause so far, for when the audio jumps elsewhere.
+  void Reset();
+
+ private:
+  bool IsSilent(const int16* samples, int frameCount) const;
+
+  const int channels_;
+  const int block_frames_;
+  const int max_pause_frames_;
+  // The threshold level, squared to compare mean squares against.
+  const int64 threshold_squared_;
+  // How long the current pause has lasted, or zero if the audio is loud.
+  int64 pause_frames_;
+
+  DISALLOW_COPY_AND_ASSIGN(SilenceSkipper);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_SILENCE_SKIPPER_H_
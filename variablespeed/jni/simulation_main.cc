@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Plays a WAV file through the whole engine on the host, with
+// HostAudioBackend standing in for OpenSL, while a script changes the speed
+// and seeks.  Then reports the underruns, the latency of starting and of
+// each seek, and the CPU time taken.  The time is simulated, so a run takes
+// only as long as the CPU needs, and goes the same way every time.
+//
+// usage: variablespeed_simulation in.wav out.wav
+//            [time_millis:speed=S|time_millis:seek=P,...] [--fixed-point]
+//            [--adaptive] [--decode-micros=N] [--seek-micros=N]
+//
+// The decoder takes decode-micros to deliver each buffer, and seek-micros
+// more after a seek.  Without a script, a default one is run.
+
+#include <host_audio_backend.h>
+#include <pipeline_stats.h>
+#include <variablespeed.h>
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <vector>
+
+namespace {
+
+const char kDefaultScript[] =
+    "1000:speed=1.5,2500:seek=500,4000:speed=0.75,5500:seek=2000,"
+    "7000:speed=2";
+
+// The engine settings, as EngineParameters has them by default.
+const size_t kTargetFrames = 1000;
+const float kWindowDuration = 0.08f;
+const float kWindowOverlapDuration = 0.008f;
+const size_t kMaxPlayBufferCount = 2;
+const size_t kDecodeInitialSize = 5 * 1024;
+const size_t kDecodeMaxSize = 20 * 1024;
+const int kStreamMusic = 3;
+const size_t kPlayBufferCountLowerBound = 2;
+const size_t kPlayBufferCountUpperBound = 8;
+const size_t kDecodeMaxSizeLowerBound = 5 * 1024;
+const size_t kDecodeMaxSizeUpperBound = 80 * 1024;
+const int kSilenceThreshold = 500;
+const int kMaxPauseMillis = 400;
+
+struct Event {
+  int64 timeMillis;
+  bool seek;
+  float speed;
+  int positionMillis;
+};
+
+// Parses a comma separated list of time_millis:speed=S and
+// time_millis:seek=P events, in time order.
+bool ParseScript(const char* text, std::vector<Event>* events) {
+  while (*text != '\0') {
+    char* end;
+    Event event;
+    event.timeMillis = strtoll(text, &end, 10);
+    event.seek = false;
+    event.speed = 1.0f;
+    event.positionMillis = 0;
+    if (strncmp(end, ":speed=", 7) == 0) {
+      event.speed = strtof(end + 7, &end);
+    } else if (strncmp(end, ":seek=", 6) == 0) {
+      event.seek = true;
+      event.positionMillis = strtol(end + 6, &end, 10);
+    } else {
+      return false;
+    }
+    if ((*end != ',' && *end != '\0') || (!events->empty() &&
+        event.timeMillis < events->back().timeMillis)) {
+      return false;
+    }
+    events->push_back(event);
+    text = *end == ',' ? end + 1 : end;
+  }
+  return true;
+}
+
+// Runs the script on a thread of its own, taking part in the simulation.
+struct Script {
+  VirtualClock* clock;
+  AudioEngine* engine;
+  std::vector<Event> events;
+  int64 ticket;
+  // Set once the engine has finished playing, after which nothing more is
+  // done.
+  android::Mutex lock;
+  bool finished;
+};
+
+bool IsFinished(Script* script) {
+  android::Mutex::Autolock autoLock(script->lock);
+  return script->finished;
+}
+
+void* RunScript(void* arg) {
+  Script* script = static_cast<Script*>(arg);
+  script->clock->BeginThread(script->ticket);
+  for (size_t i = 0; i < script->events.size(); ++i) {
+    const Event& event = script->events[i];
+    int64 waitMicros = event.timeMillis * 1000 - script->clock->NowMicros();
+    if (waitMicros > 0) {
+      script->clock->SleepMicros(waitMicros);
+    }
+    if (IsFinished(script)) {
+      break;
+    }
+    if (event.seek) {
+      script->engine->RequestSeek(event.positionMillis);
+    } else {
+      script->engine->SetVariableSpeed(event.speed);
+    }
+  }
+  script->clock->EndThread();
+  return NULL;
+}
+
+// Returns the first time at or after fromMicros that the output started, or
+// -1 if it never did.
+int64 FirstOutputStart(const std::vector<int64>& startTimes,
+    int64 fromMicros) {
+  for (size_t i = 0; i < startTimes.size(); ++i) {
+    if (startTimes[i] >= fromMicros) {
+      return startTimes[i];
+    }
+  }
+  return -1;
+}
+
+void PrintLatency(const char* what, int64 fromMicros, int64 toMicros) {
+  if (toMicros < 0) {
+    printf("%s: never played\n", what);
+  } else {
+    printf("%s: %.1f ms\n", what, (toMicros - fromMicros) / 1000.0);
+  }
+}
+
+double CpuSeconds() {
+  struct timespec now;
+  clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &now);
+  return now.tv_sec + now.tv_nsec / 1e9;
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  const char* paths[2] = { NULL, NULL };
+  const char* scriptText = kDefaultScript;
+  int pathCount = 0;
+  bool scriptGiven = false;
+  bool fixedPoint = false;
+  bool adaptiveBuffering = false;
+  HostAudioBackend::Options options;
+  bool usage = false;
+  for (int i = 1; i < argc; ++i) {
+    if (strcmp(argv[i], "--fixed-point") == 0) {
+      fixedPoint = true;
+    } else if (strcmp(argv[i], "--adaptive") == 0) {
+      adaptiveBuffering = true;
+    } else if (strncmp(argv[i], "--decode-micros=", 16) == 0) {
+      options.decodeMicrosPerBuffer = strtoll(argv[i] + 16, NULL, 10);
+    } else if (strncmp(argv[i], "--seek-micros=", 14) == 0) {
+      options.seekMicros = strtoll(argv[i] + 14, NULL, 10);
+    } else if (pathCount < 2) {
+      paths[pathCount++] = argv[i];
+    } else if (!scriptGiven) {
+      scriptText = argv[i];
+      scriptGiven = true;
+    } else {
+      usage = true;
+    }
+  }
+  if (usage || pathCount != 2) {
+    fprintf(stderr, "usage: %s in.wav out.wav "
+        "[time_millis:speed=S|time_millis:seek=P,...] [--fixed-point] "
+        "[--adaptive] [--decode-micros=N] [--seek-micros=N]\n", argv[0]);
+    return 2;
+  }
+  std::vector<Event> events;
+  if (!ParseScript(scriptText, &events)) {
+    fprintf(stderr, "could not parse script: %s\n", scriptText);
+    return 2;
+  }
+
+  VirtualClock clock;
+  HostAudioBackend backend(&clock, options, paths[1]);
+  DecoderSource source;
+  source.uri = paths[0];
+  int durationMillis = backend.ProbeDuration(source);
+  if (durationMillis < 0) {
+    fprintf(stderr, "could not read %s\n", paths[0]);
+    return 1;
+  }
+
+  volatile int32_t playedPositionMillis = 0;
+  AudioEngine* engine = new AudioEngine(&backend, kTargetFrames,
+      kWindowDuration, kWindowOverlapDuration, kMaxPlayBufferCount, 1.0f,
+      kDecodeInitialSize, kDecodeMaxSize, 0, kStreamMusic, fixedPoint,
+      adaptiveBuffering, kPlayBufferCountLowerBound,
+      kPlayBufferCountUpperBound, kDecodeMaxSizeLowerBound,
+      kDecodeMaxSizeUpperBound, false, kSilenceThreshold, kMaxPauseMillis,
+      &playedPositionMillis);
+
+  Script script;
+  script.clock = &clock;
+  script.engine = engine;
+  script.events = events;
+  script.finished = false;
+  script.ticket = clock.AddThread();
+  pthread_t scriptThread;
+  if (pthread_create(&scriptThread, NULL, RunScript, &script) != 0) {
+    fprintf(stderr, "could not start the script\n");
+    return 1;
+  }
+
+  double cpuStart = CpuSeconds();
+  engine->RequestStart();
+  engine->PlayUri(paths[0]);
+  double cpuSeconds = CpuSeconds() - cpuStart;
+  int64 endMicros = clock.NowMicros();
+  {
+    android::Mutex::Autolock autoLock(script.lock);
+    script.finished = true;
+  }
+  // Lets the script run to its end, without the engine.
+  clock.EndThread();
+  pthread_join(scriptThread, NULL);
+
+  int32_t stats[PipelineStats::kNumberOfValues];
+  engine->GetStats(stats);
+  int finalPositionMillis = engine->GetCurrentPosition();
+  delete engine;
+
+  int64 framesPlayed = backend.GetFramesPlayed();
+  std::vector<int64> outputStartTimes = backend.GetOutputStartTimes();
+  printf("source of %d ms, played to %d ms in %.1f ms of simulated time, "
+      "%lld frames played\n", durationMillis, finalPositionMillis,
+      endMicros / 1000.0, static_cast<long long>(framesPlayed));
+  PrintLatency("start latency", 0, FirstOutputStart(outputStartTimes, 0));
+  for (size_t i = 0; i < events.size(); ++i) {
+    if (!events[i].seek || events[i].timeMillis * 1000 > endMicros) {
+      continue;
+    }
+    char what[64];
+    snprintf(what, sizeof(what), "seek to %d ms at %lld ms latency",
+        events[i].positionMillis,
+        static_cast<long long>(events[i].timeMillis));
+    PrintLatency(what, events[i].timeMillis * 1000,
+        FirstOutputStart(outputStartTimes, events[i].timeMillis * 1000));
+  }
+  printf("underruns: %d, with %.1f ms of silence between buffers\n",
+      stats[PipelineStats::kUnderrunCount],
+      backend.GetStarvedMicros() / 1000.0);
+  printf("buffers refused by the audio player: %lld\n",
+      static_cast<long long>(backend.GetRejectedEnqueueCount()));
+  printf("decode buffer high water mark: %d bytes\n",
+      stats[PipelineStats::kDecodeBufferHighWaterBytes]);
+  printf("decode callbacks: %d, %d us mean and %d us max of host time, "
+      "%lld engine waits\n", stats[PipelineStats::kDecodeCallbackCount],
+      stats[PipelineStats::kDecodeCallbackMeanMicros],
+      stats[PipelineStats::kDecodeCallbackMaxMicros],
+      static_cast<long long>(backend.GetEngineWaitCount()));
+  double simulatedSeconds = endMicros / 1e6;
+  printf("cpu: %.3f s in total, %.3f ms per second simulated, "
+      "%d us mean in the time scaler over %d blocks\n", cpuSeconds,
+      simulatedSeconds > 0 ? cpuSeconds * 1000 / simulatedSeconds : 0,
+      stats[PipelineStats::kProcessMeanMicros],
+      stats[PipelineStats::kProcessCount]);
+  return 0;
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host benchmark for the SolaAnalyzer implementations.
+//
+// Time-scales a few seconds of a synthetic voice-like signal with each
+// analyzer, using the engine's default window and overlap, and prints the
+// CPU time taken per second of audio.  The bit-packed analyzer must produce
+// exactly the same output as the default one.
+//
+// For the coarse-to-fine analyzer, which may choose different offsets, it
+// also prints a quality figure: the correlation score of each offset chosen,
+// as a percentage of the best score the exhaustive search would have found,
+// averaged over all windows.  This must stay above kMinimumQuality.
+
+#include <sola_time_scaler.h>
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include <algorithm>
+#include <vector>
+
+using video_editing::SolaAnalyzer;
+using video_editing::SolaBitPackedAnalyzer;
+using video_editing::SolaCoarseToFineAnalyzer;
+using video_editing::SolaTimeScaler;
+
+namespace {
+
+const int kSampleRate = 44100;
+const int kSeconds = 10;
+const float kWindowDuration = 0.08f;
+const float kOverlapDuration = 0.008f;
+// The number of frames the engine hands to the scaler at once.
+const int kTargetFrames = 1000;
+// The tolerance promised for SolaCoarseToFineAnalyzer, as a percentage.
+const double kMinimumQuality = 99.0;
+
+double CpuSeconds() {
+  struct timespec now;
+  clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &now);
+  return now.tv_sec + now.tv_nsec / 1e9;
+}
+
+// A harmonic series with a wandering pitch, plus a little noise.
+std::vector<float> MakeSignal(int num_channels) {
+  std::vector<float> signal(kSampleRate * kSeconds * num_channels);
+  double phase = 0;
+  for (int i = 0; i < kSampleRate * kSeconds; ++i) {
+    double t = static_cast<double>(i) / kSampleRate;
+    phase += 2 * M_PI * (140 + 30 * sin(2 * M_PI * 0.7 * t)) / kSampleRate;
+    double value = 0;
+    for (int harmonic = 1; harmonic <= 8; ++harmonic) {
+      value += sin(harmonic * phase) / harmonic;
+    }
+    for (int channel = 0; channel < num_channels; ++channel) {
+      double noise = (rand() / static_cast<double>(RAND_MAX) - 0.5) * 0.05;
+      signal[i * num_channels + channel] =
+          static_cast<float>(8000 * (value + noise));
+    }
+  }
+  return signal;
+}
+
+// Runs the whole signal through a scaler using the given analyzer, which it
+// takes ownership of, returning the output and the CPU time taken.
+std::vector<float> Scale(const std::vector<float>& signal, int num_channels,
+                         double speed, SolaAnalyzer* analyzer,
+                         double* cpu_seconds) {
+  SolaTimeScaler scaler;
+  scaler.set_analyzer(analyzer);
+  scaler.Init(kSampleRate, num_channels, speed, kWindowDuration,
+              kOverlapDuration);
+  std::vector<float> input(signal);
+  std::vector<float> output;
+  std::vector<float> chunk(kTargetFrames * num_channels);
+  int total_frames = signal.size() / num_channels;
+  int position = 0;
+  double start = CpuSeconds();
+  while (true) {
+    int available = scaler.available();
+    if (available > 0) {
+      int count = scaler.RetrieveSamples(&chunk[0],
+                                         std::min(available, kTargetFrames));
+      output.insert(output.end(), chunk.begin(),
+                    chunk.begin() + count * num_channels);
+      continue;
+    }
+    if (position >= total_frames) {
+      break;
+    }
+    int count = std::min(std::min(total_frames - position, kTargetFrames),
+                         scaler.input_limit());
+    count = scaler.InjectSamples(&input[position * num_channels], count);
+    if (count <= 0) {
+      break;
+    }
+    position += count;
+  }
+  *cpu_seconds = CpuSeconds() - start;
+  return output;
+}
+
+// Wraps another analyzer, and compares the score of each offset it chooses
+// with the best score found by an exhaustive search.  The average is written
+// to quality when the scaler deletes this analyzer.
+class QualityAnalyzer : public SolaAnalyzer {
+ public:
+  QualityAnalyzer(SolaAnalyzer* analyzer, int num_channels, double* quality)
+      : analyzer_(analyzer), quality_(quality), total_quality_(0),
+        num_searches_(0) {
+    analyzer_->Init(kSampleRate, num_channels);
+    exhaustive_.Init(kSampleRate, num_channels);
+  }
+  virtual ~QualityAnalyzer() {
+    *quality_ = num_searches_ > 0 ? total_quality_ / num_searches_ : 100;
+    delete analyzer_;
+  }
+
+  virtual int FindBestOffset(const float* input, const float* output,
+                             int center, int half_range, int num_frames) {
+    int chosen = analyzer_->FindBestOffset(input, output, center, half_range,
+                                           num_frames);
+    int best = exhaustive_.FindBestOffset(input, output, center, half_range,
+                                          num_frames);
+    int chosen_score = exhaustive_.Correlate(input,
+        output + chosen * num_channels_, num_frames);
+    int best_score = exhaustive_.Correlate(input,
+        output + best * num_channels_, num_frames);
+    total_quality_ += best_score > 0 ? 100.0 * chosen_score / best_score : 100;
+    ++num_searches_;
+    return chosen;
+  }
+
+
+ private:
+  SolaAnalyzer* analyzer_;
+  double* quality_;
+  SolaAnalyzer exhaustive_;
+  double total_quality_;
+  int num_searches_;
+};
+
+}  // namespace
+
+int main() {
+  const double speeds[] = { 0.5, 1.5, 2.5 };
+  bool passed = true;
+  for (int num_channels = 1; num_channels <= 2; ++num_channels) {
+    std::vector<float> signal = MakeSignal(num_channels);
+    for (size_t s = 0; s < sizeof(speeds) / sizeof(speeds[0]); ++s) {
+      double default_seconds;
+      double packed_seconds;
+      double coarse_seconds;
+      double unused_seconds;
+      std::vector<float> expected = Scale(signal, num_channels, speeds[s],
+          new SolaAnalyzer(), &default_seconds);
+      std::vector<float> actual = Scale(signal, num_channels, speeds[s],
+          new SolaBitPackedAnalyzer(), &packed_seconds);
+      Scale(signal, num_channels, speeds[s], new SolaCoarseToFineAnalyzer(),
+            &coarse_seconds);
+      double quality;
+      Scale(signal, num_channels, speeds[s], new QualityAnalyzer(
+                new SolaCoarseToFineAnalyzer(), num_channels, &quality),
+            &unused_seconds);
+      bool same = expected == actual;
+      passed = passed && same && quality >= kMinimumQuality;
+      printf("%d ch %.1fx: default %6.2f ms/s, bit-packed %6.2f ms/s (%s), "
+             "coarse-to-fine %6.2f ms/s (quality %.2f%%)\n",
+             num_channels, speeds[s], 1000 * default_seconds / kSeconds,
+             1000 * packed_seconds / kSeconds,
+             same ? "identical" : "DIFFERENT",
+             1000 * coarse_seconds / kSeconds, quality);
+    }
+  }
+  return passed ? 0 : 1;
+}
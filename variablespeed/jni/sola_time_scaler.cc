@@ -17,6 +17,7 @@
 #include "sola_time_scaler.h"
 
 #include <math.h>
+#include <stdlib.h>
 #include <hlogging.h>
 #include <algorithm>
 
@@ -43,6 +44,194 @@ int SolaAnalyzer::Correlate(const float* buffer1, const float* buffer2,
   return score;
 }
 
+// Returns the offset at which the input best fits the output.
+int SolaAnalyzer::FindBestOffset(const float* input, const float* output,
+                                 int center, int half_range, int num_frames) {
+  const int perfect_score = num_frames * num_channels_;
+  int best_offset = center;
+  int best_score = 0;
+  int score;
+  for (int i = 0; i <= half_range; ++i) {
+    score = Correlate(input, output + ((center + i) * num_channels_),
+                      num_frames);
+    if (score > best_score) {
+      best_score = score;
+      best_offset = center + i;
+      if (score == perfect_score) {
+        break;  // It doesn't get better than perfect.
+      }
+    }
+    if (i > 0) {
+      score = Correlate(input, output + ((center - i) * num_channels_),
+                        num_frames);
+      if (score > best_score) {
+        best_score = score;
+        best_offset = center - i;
+        if (score == perfect_score) {
+          break;  // It doesn't get better than perfect.
+        }
+      }
+    }
+  }
+  return best_offset;
+}
+
+// Sets bit i of the words to the sign bit of samples[i].
+void SolaBitPackedAnalyzer::PackSignBits(const float* samples,
+                                         int num_samples,
+                                         std::vector<uint64>* words) {
+  words->assign((num_samples + 63) / 64 + 1, 0);
+  for (int i = 0; i < num_samples; ++i) {
+    uint64 sign = bit_cast<uint32>(samples[i]) >> 31;
+    (*words)[i >> 6] |= sign << (i & 63);
+  }
+}
+
+void SolaBitPackedAnalyzer::PackSignBits(const int16* samples,
+                                         int num_samples,
+                                         std::vector<uint64>* words) {
+  words->assign((num_samples + 63) / 64 + 1, 0);
+  for (int i = 0; i < num_samples; ++i) {
+    uint64 sign = static_cast<uint16>(samples[i]) >> 15;
+    (*words)[i >> 6] |= sign << (i & 63);
+  }
+}
+
+// Counts matching sign bits between the input and a window of the output.
+int SolaBitPackedAnalyzer::Score(int bit_offset, int num_samples) const {
+  const uint64* input = &input_bits_[0];
+  const uint64* output = &output_bits_[bit_offset >> 6];
+  const int shift = bit_offset & 63;
+  const int num_words = (num_samples + 63) / 64;
+  int mismatches = 0;
+  for (int k = 0; k < num_words; ++k) {
+    // Gather the 64 output bits that line up with input word k.
+    uint64 word = shift == 0 ? output[k]
+        : (output[k] >> shift) | (output[k + 1] << (64 - shift));
+    uint64 diff = input[k] ^ word;
+    if (k == num_words - 1 && (num_samples & 63) != 0) {
+      diff &= (static_cast<uint64>(1) << (num_samples & 63)) - 1;
+    }
+    mismatches += __builtin_popcountll(diff);
+  }
+  return num_samples - mismatches;
+}
+
+// Searches the offsets in the same order as the default analyzer, so that
+// the same offset is chosen.
+int SolaBitPackedAnalyzer::FindBestOffset(const float* input,
+                                          const float* output,
+                                          int center, int half_range,
+                                          int num_frames) {
+  CHECK(initialized_);
+  const int num_samples = num_frames * num_channels_;
+  const int first_frame = center - half_range;
+  PackSignBits(input, num_samples, &input_bits_);
+  PackSignBits(output + (first_frame * num_channels_),
+               (2 * half_range + num_frames) * num_channels_, &output_bits_);
+  return SearchPackedOffsets(center, half_range, num_samples);
+}
+
+int SolaBitPackedAnalyzer::FindBestOffset(const int16* input,
+                                          const int16* output,
+                                          int center, int half_range,
+                                          int num_frames) {
+  CHECK(initialized_);
+  const int num_samples = num_frames * num_channels_;
+  const int first_frame = center - half_range;
+  PackSignBits(input, num_samples, &input_bits_);
+  PackSignBits(output + (first_frame * num_channels_),
+               (2 * half_range + num_frames) * num_channels_, &output_bits_);
+  return SearchPackedOffsets(center, half_range, num_samples);
+}
+
+int SolaBitPackedAnalyzer::SearchPackedOffsets(int center, int half_range,
+                                               int num_samples) const {
+  int best_offset = center;
+  int best_score = 0;
+  int score;
+  for (int i = 0; i <= half_range; ++i) {
+    score = Score((half_range + i) * num_channels_, num_samples);
+    if (score > best_score) {
+      best_score = score;
+      best_offset = center + i;
+      if (score == num_samples) {
+        break;  // It doesn't get better than perfect.
+      }
+    }
+    if (i > 0) {
+      score = Score((half_range - i) * num_channels_, num_samples);
+      if (score > best_score) {
+        best_score = score;
+        best_offset = center - i;
+        if (score == num_samples) {
+          break;  // It doesn't get better than perfect.
+        }
+      }
+    }
+  }
+  return best_offset;
+}
+
+// Sums each run of decimation_factor_ frames, per channel.
+void SolaCoarseToFineAnalyzer::Decimate(const float* samples,
+                                        int num_decimated_frames,
+                                        std::vector<float>* decimated) const {
+  decimated->assign(num_decimated_frames * num_channels_, 0.f);
+  float* out = &(*decimated)[0];
+  for (int i = 0; i < num_decimated_frames; ++i) {
+    for (int j = 0; j < decimation_factor_; ++j) {
+      for (int c = 0; c < num_channels_; ++c) {
+        out[c] += *samples++;
+      }
+    }
+    out += num_channels_;
+  }
+}
+
+// Finds the best decimated offset, then refines it at full resolution.
+int SolaCoarseToFineAnalyzer::FindBestOffset(const float* input,
+                                             const float* output,
+                                             int center, int half_range,
+                                             int num_frames) {
+  CHECK(initialized_);
+  const int factor = decimation_factor_;
+  const int num_decimated_frames = num_frames / factor;
+  if (factor < 2 || half_range < factor || num_decimated_frames < 8) {
+    // Too small to be worth decimating.
+    return SolaAnalyzer::FindBestOffset(input, output, center, half_range,
+                                        num_frames);
+  }
+
+  // Coarse offset k is frame first_frame + k * factor of the output.
+  const int first_frame = center - half_range;
+  const int num_coarse_offsets = (2 * half_range) / factor + 1;
+  Decimate(input, num_decimated_frames, &decimated_input_);
+  Decimate(output + (first_frame * num_channels_),
+           num_coarse_offsets - 1 + num_decimated_frames, &decimated_output_);
+
+  int best_offset = center;
+  int best_score = -1;
+  for (int k = 0; k < num_coarse_offsets; ++k) {
+    int score = Correlate(&decimated_input_[0],
+                          &decimated_output_[k * num_channels_],
+                          num_decimated_frames);
+    int offset = first_frame + k * factor;
+    // As in the exhaustive search, prefer offsets nearer the center.
+    if (score > best_score || (score == best_score &&
+        abs(offset - center) < abs(best_offset - center))) {
+      best_score = score;
+      best_offset = offset;
+    }
+  }
+
+  // Refine around the coarse choice, staying within the original range.
+  int fine_range = std::min(factor - 1,
+      half_range - abs(best_offset - center));
+  return SolaAnalyzer::FindBestOffset(input, output, best_offset,
+                                      fine_range, num_frames);
+}
+
 // Trivial SolaAnalyzer class to bypass correlation.
 class SolaBypassAnalyzer : public SolaAnalyzer {
  public:
@@ -103,46 +292,58 @@ void SolaTimeScaler::set_speed(double speed) {
   GenerateParameters();
 }
 
-// Generates processing parameters from the current settings.
-void SolaTimeScaler::GenerateParameters() {
-  if (speed_ < 0.1) {
-    LOGE("Requested speed %fx limited to 0.1x", speed_);
-    speed_ = 0.1;
-  } else if (speed_ > 8.0) {
-    LOGE("Requested speed %fx limited to 8.0x", speed_);
-    speed_ = 8.0;
+double SolaTimeScaler::speed() const {
+  MutexLock lock(&mutex_);
+  return speed_;
+}
+
+// Limits the settings, and derives the frame counts from them.
+void SolaParameters::Generate(double sample_rate, double window_duration,
+                              double* overlap_duration, double* speed) {
+  if (*speed < 0.1) {
+    LOGE("Requested speed %fx limited to 0.1x", *speed);
+    *speed = 0.1;
+  } else if (*speed > 8.0) {
+    LOGE("Requested speed %fx limited to 8.0x", *speed);
+    *speed = 8.0;
   }
 
-  ratio_ = 1.0 / speed_;
+  ratio = 1.0 / *speed;
 
-  num_window_frames_ = nearbyint(sample_rate_ * window_duration_);
+  num_window_frames = nearbyint(sample_rate * window_duration);
 
   // Limit the overlap to half the window size, and round up to an odd number.
   // Half of overlap window (rounded down) is also a useful number.
-  overlap_duration_ = min(overlap_duration_, window_duration_ / 2.0);
-  num_overlap_frames_ = nearbyint(sample_rate_ * overlap_duration_);
-  num_overlap_frames_ |= 1;
-  half_overlap_frames_ = num_overlap_frames_ >> 1;
+  *overlap_duration = min(*overlap_duration, window_duration / 2.0);
+  num_overlap_frames = nearbyint(sample_rate * *overlap_duration);
+  num_overlap_frames |= 1;
+  half_overlap_frames = num_overlap_frames >> 1;
 
-  if (speed_ >= 1.) {
+  if (*speed >= 1.) {
     // For compression (speed up), adjacent input windows overlap in the output.
-    input_window_offset_ = num_window_frames_;
-    target_merge_offset_ = nearbyint(num_window_frames_ * ratio_);
+    input_window_offset = num_window_frames;
+    target_merge_offset = nearbyint(num_window_frames * ratio);
   } else {
     // For expansion (slow down), each input window start point overlaps the
     // previous, and they are placed adjacently in the output
     // (+/- half the overlap size).
-    input_window_offset_ = nearbyint(num_window_frames_ * speed_);
-    target_merge_offset_ = num_window_frames_;
+    input_window_offset = nearbyint(num_window_frames * *speed);
+    target_merge_offset = num_window_frames;
   }
 
   // Make sure we copy enough extra data to be able to perform a
   // frame correlation over the range of target merge point +/- half overlap,
   // even when the previous merge point was adjusted backwards a half overlap.
-  max_frames_to_merge_ = max(num_window_frames_,
-      target_merge_offset_ + (2 * num_overlap_frames_));
-  min_output_to_hold_=
-      max_frames_to_merge_ + num_overlap_frames_ - target_merge_offset_;
+  max_frames_to_merge = max(num_window_frames,
+      target_merge_offset + (2 * num_overlap_frames));
+  min_output_to_hold=
+      max_frames_to_merge + num_overlap_frames - target_merge_offset;
+}
+
+// Generates processing parameters from the current settings.
+void SolaTimeScaler::GenerateParameters() {
+  params_.Generate(sample_rate_, window_duration_, &overlap_duration_,
+                   &speed_);
 }
 
 // The input buffer has one writer and reader.
@@ -164,7 +365,7 @@ void SolaTimeScaler::Reset() {
   delete output_buffer_;
   output_buffer_ = new RingBuffer();
   output_buffer_->Init(static_cast<int>
-      (sample_rate_ * ratio_ * duration), num_channels_, 2);
+      (sample_rate_ * params_.ratio * duration), num_channels_, 2);
 
   if (analyzer_ == NULL) {
     if (FLAGS_sola_enable_correlation) {
@@ -187,13 +388,13 @@ int SolaTimeScaler::available() {
   CHECK(initialized_);
 
   int available = output_buffer_->available(kOutputConsumer);
-  if (available > min_output_to_hold_) {
-    available -= min_output_to_hold_;
+  if (available > params_.min_output_to_hold) {
+    available -= params_.min_output_to_hold;
   } else if (draining_) {
     Process();
     available = output_buffer_->available(kOutputConsumer);
-    if (available > min_output_to_hold_) {
-      available -= min_output_to_hold_;
+    if (available > params_.min_output_to_hold) {
+      available -= params_.min_output_to_hold;
     }
   } else {
     available = 0;
@@ -249,13 +450,15 @@ bool SolaTimeScaler::Process() {
   // We can only process data if there is sufficient input available
   // (or we are draining the latency), and there is sufficient room
   // for output to be merged.
-  while (((input_buffer_->available(kInputReader) > max_frames_to_merge_) ||
-         draining_) && (output_buffer_->overhead() >= max_frames_to_merge_)) {
+  while (((input_buffer_->available(kInputReader) >
+           params_.max_frames_to_merge) || draining_) &&
+         (output_buffer_->overhead() >= params_.max_frames_to_merge)) {
     MutexLock lock(&mutex_);  // lock out updates while processing each window
 
     // Determine the number of samples to merge into the output.
     int input_count =
-        min(input_buffer_->available(kInputReader), max_frames_to_merge_);
+        min(input_buffer_->available(kInputReader),
+            params_.max_frames_to_merge);
     if (input_count == 0) {
       break;
     }
@@ -273,38 +476,13 @@ bool SolaTimeScaler::Process() {
     // If there is not enough data to do a proper correlation,
     // just merge at the ideal target point. Otherwise,
     // find the best correlation score, working from the center out.
-    int merge_offset = min(output_merge_cnt, half_overlap_frames_);
-
-    if ((output_merge_cnt >= (2 * num_overlap_frames_)) &&
-        (input_count >= num_overlap_frames_)) {
-      int best_offset = merge_offset;
-      int best_score = 0;
-      int score;
-      for (int i = 0; i <= half_overlap_frames_; ++i) {
-        score = analyzer_->Correlate(input_pointer,
-            output_pointer + ((merge_offset + i) * num_channels_),
-            num_overlap_frames_);
-        if (score > best_score) {
-          best_score = score;
-          best_offset = merge_offset + i;
-          if (score == (num_overlap_frames_ * num_channels_)) {
-            break;  // It doesn't get better than perfect.
-          }
-        }
-        if (i > 0) {
-          score = analyzer_->Correlate(input_pointer,
-              output_pointer + ((merge_offset - i) * num_channels_),
-              num_overlap_frames_);
-          if (score > best_score) {
-            best_score = score;
-            best_offset = merge_offset - i;
-            if (score == (num_overlap_frames_ * num_channels_)) {
-              break;  // It doesn't get better than perfect.
-            }
-          }
-        }
-      }
-      merge_offset = best_offset;
+    int merge_offset = min(output_merge_cnt, params_.half_overlap_frames);
+
+    if ((output_merge_cnt >= (2 * params_.num_overlap_frames)) &&
+        (input_count >= params_.num_overlap_frames)) {
+      merge_offset = analyzer_->FindBestOffset(input_pointer, output_pointer,
+          merge_offset, params_.half_overlap_frames,
+          params_.num_overlap_frames);
     } else if ((output_merge_cnt > 0) && !draining_) {
       LOGE("no correlation performed");
     }
@@ -337,11 +515,11 @@ bool SolaTimeScaler::Process() {
     // minus half an overlap window.  The target merge point is always
     // calculated as a delta from the previous ideal target, not the actual
     // target, to avoid drift.
-    int output_advance = target_merge_offset_;
-    if (output_merge_cnt < half_overlap_frames_) {
+    int output_advance = params_.target_merge_offset;
+    if (output_merge_cnt < params_.half_overlap_frames) {
       // On the first window, back up the pointer for the next correlation.
       // Thereafter, that compensation is preserved.
-      output_advance -= half_overlap_frames_;
+      output_advance -= params_.half_overlap_frames;
     }
 
     // Don't advance beyond the available data, when finishing up.
@@ -354,7 +532,7 @@ bool SolaTimeScaler::Process() {
 
     // Advance the input pointer beyond the frames that are no longer needed.
     input_buffer_->Seek(kInputReader, input_buffer_->Tell(kInputReader) +
-                        min(input_count, input_window_offset_));
+                        min(input_count, params_.input_window_offset));
 
     if ((crossfade_count + remaining_count) > 0) {
       generated_data = true;
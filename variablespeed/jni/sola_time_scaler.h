@@ -24,6 +24,7 @@
 #include <list>
 #include <vector>
 
+#include "integral_types.h"
 #include "macros.h"
 
 // Time-domain audio playback rate scaler using phase-aligned Synchronized
@@ -31,7 +32,8 @@
 
 namespace video_editing {
 
-class RingBuffer;
+template <typename Sample> class SampleRingBuffer;
+typedef SampleRingBuffer<float> RingBuffer;
 
 // The default SolaAnalyzer implements a sign-bit cross-correlation
 // function for determining the best fit between two signals.
@@ -59,6 +61,19 @@ class SolaAnalyzer {
   virtual int Correlate(const float* buffer1, const float* buffer2,
                         int num_frames);
 
+  // Returns the offset at which the input best fits the output.
+  // Offsets from center - half_range to center + half_range are tried,
+  // working from the center out, so that the offset nearest the center wins
+  // a tie.  The default implementation calls Correlate() at every offset.
+  // @param input pointer to interleaved input samples
+  // @param output pointer to interleaved samples to fit the input against
+  // @param center the ideal offset, in frames from output
+  // @param half_range the largest distance from center to try
+  // @param num_frames number of frames to correlate at each offset
+  // @returns the best offset, in frames from output
+  virtual int FindBestOffset(const float* input, const float* output,
+                             int center, int half_range, int num_frames);
+
  protected:
   bool initialized_;
   int sample_rate_;
@@ -67,8 +82,105 @@ class SolaAnalyzer {
   DISALLOW_COPY_AND_ASSIGN(SolaAnalyzer);
 };
 
+// A SolaAnalyzer giving exactly the same results as the default, but which
+// packs the sign bits of each signal into 64-bit words once per search, and
+// then scores each offset a word at a time with XOR and popcount.
+class SolaBitPackedAnalyzer : public SolaAnalyzer {
+ public:
+  SolaBitPackedAnalyzer() { }
+
+  virtual int FindBestOffset(const float* input, const float* output,
+                             int center, int half_range, int num_frames);
+
+  // The same search over 16-bit samples, whose sign bits are compared just
+  // as those of floats are.
+  int FindBestOffset(const int16* input, const int16* output,
+                     int center, int half_range, int num_frames);
+
+ private:
+  // Sets bit i of the words to the sign bit of samples[i], with one spare
+  // zero word on the end.
+  static void PackSignBits(const float* samples, int num_samples,
+                           std::vector<uint64>* words);
+  static void PackSignBits(const int16* samples, int num_samples,
+                           std::vector<uint64>* words);
+
+  // Returns the number of matching sign bits between the packed input and
+  // the packed output starting at bit_offset.
+  int Score(int bit_offset, int num_samples) const;
+
+  // Searches the packed signals, in the same order as the default analyzer.
+  int SearchPackedOffsets(int center, int half_range, int num_samples) const;
+
+  std::vector<uint64> input_bits_;
+  std::vector<uint64> output_bits_;
+
+  DISALLOW_COPY_AND_ASSIGN(SolaBitPackedAnalyzer);
+};
+
+// A SolaAnalyzer that trades a little accuracy for a much cheaper search.
+// It first correlates copies of both signals decimated by a fixed factor,
+// at every decimation_factor'th offset, and then searches at full resolution
+// only within decimation_factor - 1 frames of the best coarse offset.
+// With the default factor of 4 this scores roughly a tenth as many samples
+// as the exhaustive search, and the offsets it chooses correlate on average
+// within 1% as well as the exhaustive ones (see sola_analyzer_benchmark).
+class SolaCoarseToFineAnalyzer : public SolaAnalyzer {
+ public:
+  explicit SolaCoarseToFineAnalyzer(int decimation_factor = 4)
+      : decimation_factor_(decimation_factor) { }
+
+  virtual int FindBestOffset(const float* input, const float* output,
+                             int center, int half_range, int num_frames);
+
+ private:
+  // Sums each run of decimation_factor_ frames, per channel, into decimated.
+  void Decimate(const float* samples, int num_decimated_frames,
+                std::vector<float>* decimated) const;
+
+  const int decimation_factor_;
+  std::vector<float> decimated_input_;
+  std::vector<float> decimated_output_;
+
+  DISALLOW_COPY_AND_ASSIGN(SolaCoarseToFineAnalyzer);
+};
+
+// The frame counts that a SOLA time scaler works with, derived from its
+// settings.
+struct SolaParameters {
+  // Limits speed to the supported range, and overlap_duration to half the
+  // window, then derives the frame counts from them.
+  void Generate(double sample_rate, double window_duration,
+                double* overlap_duration, double* speed);
+
+  double ratio;               // inverse of speed
+  int num_window_frames;      // window duration expressed as frame count
+  int num_overlap_frames;     // overlap duration expressed as frame count
+  int half_overlap_frames;    // half of the overlap
+  int input_window_offset;    // frame delta between input windows
+  int target_merge_offset;    // ideal frame delta between output windows
+  int max_frames_to_merge;    // ideal frame count to merge to output
+  int min_output_to_hold;     // number of output frames needed for next merge
+};
+
+// The operations shared by the time scalers, whatever their sample format.
+class TimeScaler {
+ public:
+  TimeScaler() { }
+  virtual ~TimeScaler() { }
+
+  virtual void set_speed(double speed) = 0;
+  virtual double speed() const = 0;
+  virtual void Drain() = 0;
+  virtual void Reset() = 0;
+  virtual int input_limit() const = 0;
+  virtual int available() = 0;
 
-class SolaTimeScaler {
+ private:
+  DISALLOW_COPY_AND_ASSIGN(TimeScaler);
+};
+
+class SolaTimeScaler : public TimeScaler {
  public:
   // Default constructor.
   SolaTimeScaler();
@@ -93,14 +205,17 @@ class SolaTimeScaler {
   // This may be called concurrently with processing, and will
   // take effect on the next processing window.
   // @param speed rate scaling factor
-  void set_speed(double speed);
+  virtual void set_speed(double speed);
+
+  // Returns the rate scaling factor in effect, after limiting.
+  virtual double speed() const;
 
   // Indicates that we are done with the input and won't call Process anymore
   // This processes all the data reamining in the analysis buffer.
-  void Drain();
+  virtual void Drain();
 
   // Flushes the buffers associated with the scaler.
-  void Reset();
+  virtual void Reset();
 
   // Feeds audio to the timescaler, and processes as much data as possible.
   // @param buffer pointer to interleaved float input samples
@@ -116,11 +231,11 @@ class SolaTimeScaler {
 
   // Returns the number of frames that the input buffer can accept.
   // @returns number of frames for the next Process() call
-  int input_limit() const;
+  virtual int input_limit() const;
 
   // Returns the number of available output frames.
   // @returns number of frames that can be retrieved
-  int available();
+  virtual int available();
 
   int num_channels() const { return num_channels_; }
 
@@ -137,14 +252,7 @@ class SolaTimeScaler {
   double speed_;              // varispeed rate
 
   // Derived parameters.
-  double ratio_;              // inverse of speed
-  int num_window_frames_;     // window_duration_ expressed as frame count
-  int num_overlap_frames_;    // overlap_duration_ expressed as frame count
-  int half_overlap_frames_;   // half of the overlap
-  int input_window_offset_;   // frame delta between input windows
-  int target_merge_offset_;   // ideal frame delta between output windows
-  int max_frames_to_merge_;   // ideal frame count to merge to output
-  int min_output_to_hold_;    // number of output frames needed for next merge
+  SolaParameters params_;
 
   RingBuffer* input_buffer_;
   RingBuffer* output_buffer_;
@@ -17,16 +17,21 @@
 #include <variablespeed.h>
 
 #include <unistd.h>
+#include <stdio.h>
 #include <stdlib.h>
 
+#include <fixed_point_sola_time_scaler.h>
 #include <sola_time_scaler.h>
 #include <ring_buffer.h>
+#include <sample_conversion.h>
+#include <wav_io.h>
 
 #include <hlogging.h>
 
+#include <algorithm>
 #include <vector>
 
-#include <sys/system_properties.h>
+#include <cutils/atomic.h>
 
 // ****************************************************************************
 // Constants, utility methods, structures and other miscellany used throughout
@@ -34,16 +39,6 @@
 
 namespace {
 
-// These variables are used to determine the size of the buffer queue used by
-// the decoder.
-// This is not the same as the large buffer used to hold the uncompressed data
-// - for that see the member variable decodeBuffer_.
-// The choice of 1152 corresponds to the number of samples per mp3 frame, so is
-// a good choice of size for a decoding buffer in the absence of other
-// information (we don't know exactly what formats we will be working with).
-const size_t kNumberOfBuffersInQueue = 4;
-const size_t kNumberOfSamplesPerBuffer = 1152;
-const size_t kBufferSizeInBytes = 2 * kNumberOfSamplesPerBuffer;
 const size_t kSampleSizeInBytes = 4;
 
 // When calculating play buffer size before pushing to audio player.
@@ -54,255 +49,90 @@ const size_t kNumberOfBytesPerInt16 = 2;
 // condition rather than busy-looping.
 const int kSleepTimeMicros = 1000;
 
-// Used in detecting errors with the OpenSL ES framework.
-const SLuint32 kPrefetchErrorCandidate =
-    SL_PREFETCHEVENT_STATUSCHANGE | SL_PREFETCHEVENT_FILLLEVELCHANGE;
+// The longest the decoding callback waits for the playback loop to make room
+// before looking again.  It is woken as soon as there is room, or the engine
+// stops or seeks, so this only bounds a wakeup that never comes.
+const int kDecodeWaitMicros = 50000;
 
 // Structure used when we perform a decoding callback.
-typedef struct CallbackContext_ {
-  // Pointer to local storage buffers for decoded audio data.
-  int8_t* pDataBase;
-  // Pointer to the current buffer within local storage.
-  int8_t* pData;
-  // Used to read the sample rate and channels from the decoding stream during
-  // the first decoding callback.
-  SLMetadataExtractionItf decoderMetadata;
-  // The play interface used for reading duration.
-  SLPlayItf playItf;
-} CallbackContext;
-
-// Local storage for decoded audio data.
-int8_t pcmData[kNumberOfBuffersInQueue * kBufferSizeInBytes];
-
-#define CheckSLResult(message, result) \
-    CheckSLResult_Real(message, result, __LINE__)
-
-// Helper function for debugging - checks the OpenSL result for success.
-void CheckSLResult_Real(const char* message, SLresult result, int line) {
-  // This can be helpful when debugging.
-  // LOGD("sl result %d for %s", result, message);
-  if (SL_RESULT_SUCCESS != result) {
-    LOGE("slresult was %d at %s file variablespeed line %d",
-        static_cast<int>(result), message, line);
-  }
-  CHECK(SL_RESULT_SUCCESS == result);
-}
-
-// Whether logging should be enabled. Only used if LOG_OPENSL_API_CALL is
-// defined to use it.
-bool gLogEnabled = false;
-// The property to set in order to enable logging.
-const char *const kLogTagVariableSpeed = "log.tag.VariableSpeed";
-
-bool ShouldLog() {
-  char buffer[PROP_VALUE_MAX];
-  __system_property_get(kLogTagVariableSpeed, buffer);
-  return strlen(buffer) > 0;
-}
+struct CallbackContext {
+  // The engine that the decoding callback should be delivered to.
+  AudioEngine* engine;
+  // Used to read the sample rate, channels and duration of the decoding
+  // stream during the decoding callbacks.
+  PcmDecoder* decoder;
+  // Where this source begins on the timeline positions are reported on.
+  int startMillis;
+  // Whether the first decoding callback must check the format of the audio
+  // against that of the audio player, which is true for queued sources.
+  bool checkFormat;
+  // Set once this source's decoder has reached its end, or failed, and
+  // decodedToEnd set only if it reached the end.
+  // Guarded by the engine's lock_.
+  bool endReached;
+  bool decodedToEnd;
+  // The number of decoding callbacks running for this source, which is only
+  // raised with the engine's lock_ held.
+  volatile int32_t callbacksInProgress;
+};
 
 }  // namespace
 
-// ****************************************************************************
-// Static instance of audio engine, and methods for getting, setting and
-// deleting it.
-
-// The single global audio engine instance.
-AudioEngine* AudioEngine::audioEngine_ = NULL;
-android::Mutex publishEngineLock_;
-
-AudioEngine* AudioEngine::GetEngine() {
-  android::Mutex::Autolock autoLock(publishEngineLock_);
-  if (audioEngine_ == NULL) {
-    LOGE("you haven't initialized the audio engine");
-    CHECK(false);
-    return NULL;
-  }
-  return audioEngine_;
-}
-
-void AudioEngine::SetEngine(AudioEngine* engine) {
-  if (audioEngine_ != NULL) {
-    LOGE("you have already set the audio engine");
-    CHECK(false);
-    return;
-  }
-  audioEngine_ = engine;
-}
-
-bool AudioEngine::CompareAndSetEngine(AudioEngine* expect, AudioEngine* update) {
-  android::Mutex::Autolock autoLock(publishEngineLock_);
-  if (audioEngine_ == expect) {
-    DeleteEngine();
-    audioEngine_ = update;
-    return true;
-  }
-  return false;
-}
-
-void AudioEngine::DeleteEngine() {
-  if (audioEngine_ != NULL) {
-    delete audioEngine_;
-    audioEngine_ = NULL;
-  }
-}
-
-// ****************************************************************************
-// The callbacks from the engine require static callback functions.
-// Here are the static functions - they just delegate to instance methods on
-// the engine.
-
-static void PlayingBufferQueueCb(SLAndroidSimpleBufferQueueItf, void*) {
-  AudioEngine::GetEngine()->PlayingBufferQueueCallback();
-}
-
-static void PrefetchEventCb(SLPrefetchStatusItf caller, void*, SLuint32 event) {
-  AudioEngine::GetEngine()->PrefetchEventCallback(caller, event);
-}
-
-static void DecodingBufferQueueCb(SLAndroidSimpleBufferQueueItf queueItf,
-    void *context) {
-  AudioEngine::GetEngine()->DecodingBufferQueueCallback(queueItf, context);
-}
-
-static void DecodingEventCb(SLPlayItf caller, void*, SLuint32 event) {
-  AudioEngine::GetEngine()->DecodingEventCallback(caller, event);
-}
-
-// ****************************************************************************
-// Macros for making working with OpenSL easier.
-
-// Log based on the value of a property.
-#define LOG_OPENSL_API_CALL(string) (gLogEnabled && LOGV(string))
-
-// The regular macro: log an api call, make the api call, check the result.
-#define OpenSL(obj, method, ...) \
-{ \
-  LOG_OPENSL_API_CALL("OpenSL " #method "(" #obj ", " #__VA_ARGS__ ")"); \
-  SLresult result = (*obj)->method(obj, __VA_ARGS__); \
-  CheckSLResult("OpenSL " #method "(" #obj ", " #__VA_ARGS__ ")", result); \
-}
-
-// Special case call for api call that has void return value, can't be checked.
-#define VoidOpenSL(obj, method) \
-{ \
-  LOG_OPENSL_API_CALL("OpenSL (void) " #method "(" #obj ")"); \
-  (*obj)->method(obj); \
-}
-
-// Special case for api call with checked result but takes no arguments.
-#define OpenSL0(obj, method) \
-{ \
-  LOG_OPENSL_API_CALL("OpenSL " #method "(" #obj ")"); \
-  SLresult result = (*obj)->method(obj); \
-  CheckSLResult("OpenSL " #method "(" #obj ")", result); \
-}
-
-// Special case for api call whose result we want to store, not check.
-// We have to encapsulate the two calls in braces, so that this expression
-// evaluates to the last expression not the first.
-#define ReturnOpenSL(obj, method, ...) \
-( \
-    LOG_OPENSL_API_CALL("OpenSL (int) " \
-        #method "(" #obj ", " #__VA_ARGS__ ")"), \
-    (*obj)->method(obj, __VA_ARGS__) \
-) \
-
-// ****************************************************************************
-// Static utility methods.
-
-// Set the audio stream type for the player.
-//
-// Must be called before it is realized.
-//
-// The caller must have requested the SL_IID_ANDROIDCONFIGURATION interface when
-// creating the player.
-static void setAudioStreamType(SLObjectItf audioPlayer, SLint32 audioStreamType) {
-  SLAndroidConfigurationItf playerConfig;
-  OpenSL(audioPlayer, GetInterface, SL_IID_ANDROIDCONFIGURATION, &playerConfig);
-  // The STREAM_XXX constants defined by android.media.AudioManager match the
-  // corresponding SL_ANDROID_STREAM_XXX constants defined by
-  // include/SLES/OpenSLES_AndroidConfiguration.h, so we can just pass the
-  // value across.
-  OpenSL(playerConfig, SetConfiguration, SL_ANDROID_KEY_STREAM_TYPE,
-         &audioStreamType, sizeof(audioStreamType));
-}
-
-// Must be called with callbackLock_ held.
-static void ReadSampleRateAndChannelCount(CallbackContext *pContext,
-    SLuint32 *sampleRateOut, SLuint32 *channelsOut) {
-  SLMetadataExtractionItf decoderMetadata = pContext->decoderMetadata;
-  SLuint32 itemCount;
-  OpenSL(decoderMetadata, GetItemCount, &itemCount);
-  SLuint32 i, keySize, valueSize;
-  SLMetadataInfo *keyInfo, *value;
-  for (i = 0; i < itemCount; ++i) {
-    keyInfo = value = NULL;
-    keySize = valueSize = 0;
-    OpenSL(decoderMetadata, GetKeySize, i, &keySize);
-    keyInfo = static_cast<SLMetadataInfo*>(malloc(keySize));
-    if (keyInfo) {
-      OpenSL(decoderMetadata, GetKey, i, keySize, keyInfo);
-      if (keyInfo->encoding == SL_CHARACTERENCODING_ASCII
-          || keyInfo->encoding == SL_CHARACTERENCODING_UTF8) {
-        OpenSL(decoderMetadata, GetValueSize, i, &valueSize);
-        value = static_cast<SLMetadataInfo*>(malloc(valueSize));
-        if (value) {
-          OpenSL(decoderMetadata, GetValue, i, valueSize, value);
-          if (strcmp((char*) keyInfo->data, ANDROID_KEY_PCMFORMAT_SAMPLERATE) == 0) {
-            SLuint32 sampleRate = *(reinterpret_cast<SLuint32*>(value->data));
-            LOGD("sample Rate: %d", sampleRate);
-            *sampleRateOut = sampleRate;
-          } else if (strcmp((char*) keyInfo->data, ANDROID_KEY_PCMFORMAT_NUMCHANNELS) == 0) {
-            SLuint32 channels = *(reinterpret_cast<SLuint32*>(value->data));
-            LOGD("channels: %d", channels);
-            *channelsOut = channels;
-          }
-          free(value);
-        }
-      }
-      free(keyInfo);
-    }
-  }
-}
-
-// Must be called with callbackLock_ held.
-static void RegisterCallbackContextAndAddEnqueueBuffersToDecoder(
-    SLAndroidSimpleBufferQueueItf decoderQueue, CallbackContext* context) {
-  // Register a callback on the decoder queue, so that we will be called
-  // throughout the decoding process (and can then extract the decoded audio
-  // for the next bit of the pipeline).
-  OpenSL(decoderQueue, RegisterCallback, DecodingBufferQueueCb, context);
-
-  // Enqueue buffers to map the region of memory allocated to store the
-  // decoded data.
-  for (size_t i = 0; i < kNumberOfBuffersInQueue; i++) {
-    OpenSL(decoderQueue, Enqueue, context->pData, kBufferSizeInBytes);
-    context->pData += kBufferSizeInBytes;
-  }
-  context->pData = context->pDataBase;
-}
-
 // ****************************************************************************
 // Constructor and Destructor.
 
-AudioEngine::AudioEngine(size_t targetFrames, float windowDuration,
-    float windowOverlapDuration, size_t maxPlayBufferCount, float initialRate,
-    size_t decodeInitialSize, size_t decodeMaxSize, size_t startPositionMillis,
-    int audioStreamType)
-    : decodeBuffer_(decodeInitialSize, decodeMaxSize),
-      playingBuffers_(), freeBuffers_(), timeScaler_(NULL),
-      floatBuffer_(NULL), injectBuffer_(NULL),
+AudioEngine::AudioEngine(AudioBackend* backend, size_t targetFrames,
+    float windowDuration, float windowOverlapDuration,
+    size_t maxPlayBufferCount, float initialRate, size_t decodeInitialSize,
+    size_t decodeMaxSize, size_t startPositionMillis,
+    int audioStreamType, bool fixedPoint, bool adaptiveBuffering,
+    size_t playBufferCountLowerBound, size_t playBufferCountUpperBound,
+    size_t decodeMaxSizeLowerBound, size_t decodeMaxSizeUpperBound,
+    bool skipSilence, int silenceThreshold, int maxPauseMillis,
+    volatile int32_t* playedPositionMillis)
+    : backend_(backend), decodeBuffer_(decodeInitialSize, adaptiveBuffering ?
+          std::max(decodeMaxSize, decodeMaxSizeUpperBound) : decodeMaxSize),
+      bufferSizer_(NULL),
+      playingBuffers_(), playingBufferEndMillis_(), freeBuffers_(),
+      enqueuedPositionMillis_(startPositionMillis),
+      currentSourceStartMillis_(0), hasPendingBoundary_(false),
+      pendingBoundaryValues_(0), pendingBoundaryMillis_(0),
+      drainingForFormatChange_(false),
+      playedPositionMillis_(playedPositionMillis), cachedSamples_(NULL),
+      cachedFrameCount_(0), cachedFramePosition_(0), pcmCacheSink_(NULL),
+      pcmCacheOpen_(false), pcmCacheContext_(NULL), envelopeSink_(NULL),
+      envelopeBucketMillis_(0), envelopeSource_(NULL),
+      envelopeStartMillis_(0), timeScaler_(NULL),
+      fixedPoint_(fixedPoint), skipSilence_(skipSilence),
+      silenceThreshold_(silenceThreshold), maxPauseMillis_(maxPauseMillis),
+      silenceSkipper_(NULL), skippedFrames_(0), floatBuffer_(NULL),
+      injectBuffer_(NULL),
+      injectShortBuffer_(NULL),
       mSampleRate(0), mChannels(0),
       targetFrames_(targetFrames),
       windowDuration_(windowDuration),
       windowOverlapDuration_(windowOverlapDuration),
-      maxPlayBufferCount_(maxPlayBufferCount), initialRate_(initialRate),
+      maxPlayBufferCount_(maxPlayBufferCount),
+      playerQueueDepth_(maxPlayBufferCount), initialRate_(initialRate),
       startPositionMillis_(startPositionMillis),
       audioStreamType_(audioStreamType),
       totalDurationMs_(0), decoderCurrentPosition_(0), startRequested_(false),
-      stopRequested_(false), finishedDecoding_(false) {
-  // Determine whether we should log calls.
-  gLogEnabled = ShouldLog();
+      stopRequested_(false), finishedDecoding_(false),
+      currentDecoderContext_(NULL), queuedSources_(),
+      formatChangeRequested_(false), nextSampleRate_(0), nextChannels_(0),
+      seekRequested_(false), seekPositionMillis_(0), seeking_(false),
+      speedRequested_(false), requestedSpeed_(initialRate) {
+  PublishPlayedPosition(startPositionMillis);
+  if (adaptiveBuffering) {
+    // The decode buffer has room for the largest limit, but starts with the
+    // one given, or as near as the bounds allow.
+    bufferSizer_ = new BufferSizer(playBufferCountLowerBound,
+        playBufferCountUpperBound, decodeMaxSizeLowerBound,
+        decodeMaxSizeUpperBound, maxPlayBufferCount, decodeMaxSize);
+    maxPlayBufferCount_ = bufferSizer_->play_buffer_count();
+    playerQueueDepth_ = playBufferCountUpperBound;
+    decodeBuffer_.SetMaxSize(bufferSizer_->decode_max_size());
+  }
 }
 
 AudioEngine::~AudioEngine() {
@@ -311,6 +141,12 @@ AudioEngine::~AudioEngine() {
     delete timeScaler_;
     timeScaler_ = NULL;
   }
+  delete bufferSizer_;
+  bufferSizer_ = NULL;
+  delete envelopeSink_;
+  envelopeSink_ = NULL;
+  delete silenceSkipper_;
+  silenceSkipper_ = NULL;
 
   // delete all outstanding playing and free buffers
   android::Mutex::Autolock autoLock(playBufferLock_);
@@ -327,20 +163,39 @@ AudioEngine::~AudioEngine() {
   floatBuffer_ = NULL;
   delete[] injectBuffer_;
   injectBuffer_ = NULL;
+  delete[] injectShortBuffer_;
+  injectShortBuffer_ = NULL;
 }
 
 // ****************************************************************************
 // Regular AudioEngine class methods.
 
+// The time scaler belongs to the playback thread, which builds it and, on a
+// change of format, destroys it, so the speed is only handed over here.
 void AudioEngine::SetVariableSpeed(float speed) {
-  // TODO: Mutex for shared time scaler accesses.
-  if (HasSampleRateAndChannels()) {
-    GetTimeScaler()->set_speed(speed);
+  android::Mutex::Autolock autoLock(lock_);
+  speedRequested_ = true;
+  requestedSpeed_ = speed;
+}
+
+bool AudioEngine::GetSpeedRequest(float* speed) {
+  android::Mutex::Autolock autoLock(lock_);
+  if (!speedRequested_) {
+    return false;
+  }
+  speedRequested_ = false;
+  *speed = requestedSpeed_;
+  return true;
+}
+
+// Sets the speed of the time scaler, or if it has yet to be built, because
+// the sample rate and number of channels are not known, the speed it starts
+// at.  See http://b/5140693.
+void AudioEngine::ApplySpeed(float speed) {
+  if (timeScaler_ != NULL) {
+    timeScaler_->set_speed(speed);
   } else {
-    // This is being called at a point where we have not yet processed enough
-    // data to determine the sample rate and number of channels.
-    // Ignore the call.  See http://b/5140693.
-    LOGD("set varaible speed called, sample rate and channels not ready yet");
+    initialRate_ = speed;
   }
 }
 
@@ -360,18 +215,40 @@ bool AudioEngine::GetWasStartRequested() {
 }
 
 void AudioEngine::RequestStop() {
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    stopRequested_ = true;
+  }
+  backend_->Wake();
+}
+
+void AudioEngine::RequestSeek(int positionMillis) {
+  android::Mutex::Autolock autoLock(lock_);
+  seekRequested_ = true;
+  seekPositionMillis_ = positionMillis;
+}
+
+bool AudioEngine::GetSeekRequest(int* positionMillis) {
   android::Mutex::Autolock autoLock(lock_);
-  stopRequested_ = true;
+  if (!seekRequested_) {
+    return false;
+  }
+  seekRequested_ = false;
+  *positionMillis = seekPositionMillis_;
+  return true;
+}
+
+bool AudioEngine::IsSeeking() {
+  android::Mutex::Autolock autoLock(lock_);
+  return seeking_;
 }
 
 int AudioEngine::GetCurrentPosition() {
-  android::Mutex::Autolock autoLock(decodeBufferLock_);
-  double result = decodeBuffer_.GetTotalAdvancedCount();
-  // TODO: This is horrible, but should be removed soon once the outstanding
-  // issue with get current position on decoder is fixed.
-  android::Mutex::Autolock autoLock2(callbackLock_);
-  return static_cast<int>(
-      (result * 1000) / mSampleRate / mChannels + startPositionMillis_);
+  return android_atomic_acquire_load(playedPositionMillis_);
+}
+
+void AudioEngine::PublishPlayedPosition(int positionMillis) {
+  android_atomic_release_store(positionMillis, playedPositionMillis_);
 }
 
 int AudioEngine::GetTotalDuration() {
@@ -379,33 +256,74 @@ int AudioEngine::GetTotalDuration() {
   return static_cast<int>(totalDurationMs_);
 }
 
-video_editing::SolaTimeScaler* AudioEngine::GetTimeScaler() {
+void AudioEngine::GetStats(int32_t* values) {
+  stats_.Snapshot(values);
+  values[PipelineStats::kDecodeBufferBytes] = decodeBuffer_.GetSizeInBytes();
+}
+
+video_editing::TimeScaler* AudioEngine::GetTimeScaler() {
   if (timeScaler_ == NULL) {
     CHECK(HasSampleRateAndChannels());
     android::Mutex::Autolock autoLock(callbackLock_);
-    timeScaler_ = new video_editing::SolaTimeScaler();
-    timeScaler_->Init(mSampleRate, mChannels, initialRate_, windowDuration_,
-        windowOverlapDuration_);
+    if (fixedPoint_) {
+      video_editing::FixedPointSolaTimeScaler* scaler =
+          new video_editing::FixedPointSolaTimeScaler();
+      scaler->Init(mSampleRate, mChannels, initialRate_, windowDuration_,
+          windowOverlapDuration_);
+      timeScaler_ = scaler;
+    } else {
+      video_editing::SolaTimeScaler* scaler =
+          new video_editing::SolaTimeScaler();
+      scaler->set_analyzer(new video_editing::SolaBitPackedAnalyzer());
+      scaler->Init(mSampleRate, mChannels, initialRate_, windowDuration_,
+          windowOverlapDuration_);
+      timeScaler_ = scaler;
+    }
   }
   return timeScaler_;
 }
 
-bool AudioEngine::EnqueueNextBufferOfAudio(
-    SLAndroidSimpleBufferQueueItf audioPlayerQueue) {
+bool AudioEngine::EnqueueNextBufferOfAudio(PcmPlayer* player) {
   size_t channels;
+  uint32 sampleRate;
   {
     android::Mutex::Autolock autoLock(callbackLock_);
     channels = mChannels;
+    sampleRate = mSampleRate;
   }
   size_t frameSizeInBytes = kSampleSizeInBytes * channels;
+
+  // Get a free playing buffer.
+  int16* playBuffer;
+  {
+    android::Mutex::Autolock autoLock(playBufferLock_);
+    if (freeBuffers_.size() > 0) {
+      // If we have a free buffer, recycle it.
+      playBuffer = freeBuffers_.top();
+      freeBuffers_.pop();
+    } else {
+      // Otherwise allocate a new one.
+      playBuffer = new int16[targetFrames_ * channels];
+    }
+  }
+
   size_t frameCount = 0;
   while (frameCount < targetFrames_) {
     size_t framesLeft = targetFrames_ - frameCount;
     // If there is data already in the time scaler, retrieve it.
     if (GetTimeScaler()->available() > 0) {
       size_t retrieveCount = min(GetTimeScaler()->available(), framesLeft);
-      int count = GetTimeScaler()->RetrieveSamples(
-          floatBuffer_ + frameCount * channels, retrieveCount);
+      int count;
+      if (fixedPoint_) {
+        // The fixed point scaler's output is played as it is.
+        count = static_cast<video_editing::FixedPointSolaTimeScaler*>(
+            GetTimeScaler())->RetrieveSamples(
+                playBuffer + frameCount * channels, retrieveCount);
+      } else {
+        count = static_cast<video_editing::SolaTimeScaler*>(
+            GetTimeScaler())->RetrieveSamples(
+                floatBuffer_ + frameCount * channels, retrieveCount);
+      }
       if (count <= 0) {
         LOGD("error: count was %d", count);
         break;
@@ -413,28 +331,116 @@ bool AudioEngine::EnqueueNextBufferOfAudio(
       frameCount += count;
       continue;
     }
-    // If there is no data in the time scaler, then feed some into it.
-    android::Mutex::Autolock autoLock(decodeBufferLock_);
+    // If there is no data in the time scaler, then feed some into it, from
+    // the PCM in memory if that is being played.
+    if (cachedSamples_ != NULL && cachedFramePosition_ < cachedFrameCount_) {
+      size_t framesToInject = std::min<int64>(
+          cachedFrameCount_ - cachedFramePosition_,
+          std::min<size_t>(targetFrames_, GetTimeScaler()->input_limit()));
+      if (framesToInject <= 0) {
+        break;
+      }
+      const int16* samples = cachedSamples_ + cachedFramePosition_ * channels;
+      size_t framesSkipped = SkipSilence(samples, &framesToInject);
+      if (framesSkipped > 0) {
+        AddToEnvelope(cachedSamples_, samples, framesSkipped * channels);
+        SetCachedPcmPosition(cachedFramePosition_ + framesSkipped);
+        continue;
+      }
+      int count = InjectContiguousSamples(samples, framesToInject, channels);
+      if (count <= 0) {
+        LOGD("error: count was %d", count);
+        break;
+      }
+      AddToEnvelope(cachedSamples_, samples, count * channels);
+      SetCachedPcmPosition(cachedFramePosition_ + count);
+      continue;
+    }
     size_t framesInDecodeBuffer =
         decodeBuffer_.GetSizeInBytes() / frameSizeInBytes;
     size_t framesScalerCanHandle = GetTimeScaler()->input_limit();
     size_t framesToInject = min(framesInDecodeBuffer,
         min(targetFrames_, framesScalerCanHandle));
+    // Stop at the start of a queued source, and from there on count the
+    // position in that source.
+    if (hasPendingBoundary_) {
+      uint32 valuesToBoundary =
+          pendingBoundaryValues_ - decodeBuffer_.GetTotalAdvancedCount();
+      if (valuesToBoundary == 0) {
+        enqueuedPositionMillis_ = pendingBoundaryMillis_;
+        skippedFrames_ = 0;
+        hasPendingBoundary_ = false;
+      } else {
+        framesToInject = std::min<size_t>(framesToInject,
+            valuesToBoundary / channels);
+      }
+    }
     if (framesToInject <= 0) {
       // No more frames left to inject.
       break;
     }
-    for (size_t i = 0; i < framesToInject * channels; ++i) {
-      injectBuffer_[i] = decodeBuffer_.GetAtIndex(i);
+    if (silenceSkipper_ != NULL) {
+      // Only the samples up to the end of the decode buffer are judged, so
+      // that they are in one piece.
+      const int16* samples;
+      size_t contiguousFrames =
+          decodeBuffer_.GetContiguousShorts(0, &samples) / channels;
+      if (contiguousFrames > 0) {
+        framesToInject = min(framesToInject, contiguousFrames);
+        size_t framesSkipped = SkipSilence(samples, &framesToInject);
+        if (framesSkipped > 0) {
+          decodeBuffer_.AdvanceHeadPointerShorts(framesSkipped * channels);
+          continue;
+        }
+      }
+    }
+    size_t samplesToInject = framesToInject * channels;
+    int count;
+    if (fixedPoint_) {
+      // Inject straight from the decode buffer, unless the samples wrap
+      // around its end.
+      const int16* samples;
+      size_t length = decodeBuffer_.GetContiguousShorts(0, &samples);
+      if (length < samplesToInject) {
+        size_t samplesCopied = 0;
+        while (samplesCopied < samplesToInject) {
+          length = decodeBuffer_.GetContiguousShorts(samplesCopied, &samples);
+          length = std::min(length, samplesToInject - samplesCopied);
+          memcpy(injectShortBuffer_ + samplesCopied, samples,
+              length * kNumberOfBytesPerInt16);
+          samplesCopied += length;
+        }
+        samples = injectShortBuffer_;
+      }
+      count = InjectContiguousSamples(samples, framesToInject, channels);
+    } else {
+      size_t samplesCopied = 0;
+      while (samplesCopied < samplesToInject) {
+        const int16* samples;
+        size_t length = decodeBuffer_.GetContiguousShorts(samplesCopied,
+            &samples);
+        length = std::min(length, samplesToInject - samplesCopied);
+        ConvertShortsToFloats(samples, injectBuffer_ + samplesCopied, length);
+        samplesCopied += length;
+      }
+      int64 processStart = PipelineStats::NowMicros();
+      count = static_cast<video_editing::SolaTimeScaler*>(
+          GetTimeScaler())->InjectSamples(injectBuffer_, framesToInject);
+      stats_.RecordProcessTime(PipelineStats::NowMicros() - processStart);
     }
-    int count = GetTimeScaler()->InjectSamples(injectBuffer_, framesToInject);
     if (count <= 0) {
       LOGD("error: count was %d", count);
       break;
     }
     decodeBuffer_.AdvanceHeadPointerShorts(count * channels);
   }
+  // The decoding callback may be waiting for the room just made.
+  backend_->Wake();
   if (frameCount <= 0) {
+    {
+      android::Mutex::Autolock autoLock(playBufferLock_);
+      freeBuffers_.push(playBuffer);
+    }
     // We must have finished playback.
     if (GetEndOfDecoderReached()) {
       // If we've finished decoding, clear the buffer - so we will terminate.
@@ -443,37 +449,79 @@ bool AudioEngine::EnqueueNextBufferOfAudio(
     return false;
   }
 
-  // Get a free playing buffer.
-  int16* playBuffer;
-  {
-    android::Mutex::Autolock autoLock(playBufferLock_);
-    if (freeBuffers_.size() > 0) {
-      // If we have a free buffer, recycle it.
-      playBuffer = freeBuffers_.top();
-      freeBuffers_.pop();
-    } else {
-      // Otherwise allocate a new one.
-      playBuffer = new int16[targetFrames_ * channels];
-    }
-  }
-
   // Try to play the buffer.
-  for (size_t i = 0; i < frameCount * channels; ++i) {
-    playBuffer[i] = floatBuffer_[i];
+  if (!fixedPoint_) {
+    ConvertFloatsToShorts(floatBuffer_, playBuffer, frameCount * channels);
   }
   size_t sizeOfPlayBufferInBytes =
       frameCount * channels * kNumberOfBytesPerInt16;
-  SLresult result = ReturnOpenSL(audioPlayerQueue, Enqueue, playBuffer,
-      sizeOfPlayBufferInBytes);
-  if (result == SL_RESULT_SUCCESS) {
+  bool enqueued = player->Enqueue(playBuffer, sizeOfPlayBufferInBytes);
+  if (enqueued) {
+    // Each output frame stands for speed frames of the source, and the
+    // silence skipped since the last buffer follows them.
+    enqueuedPositionMillis_ += (frameCount * GetTimeScaler()->speed() +
+        skippedFrames_) * 1000 / sampleRate;
+    skippedFrames_ = 0;
     android::Mutex::Autolock autoLock(playBufferLock_);
     playingBuffers_.push(playBuffer);
+    playingBufferEndMillis_.push(static_cast<int>(enqueuedPositionMillis_));
   } else {
     LOGE("could not enqueue audio buffer");
     delete[] playBuffer;
   }
 
-  return (result == SL_RESULT_SUCCESS);
+  return enqueued;
+}
+
+// Injects samples that are all in one piece into the time scaler, converting
+// them to floats first unless it is the fixed point scaler.
+int AudioEngine::InjectContiguousSamples(const int16* samples,
+    size_t frameCount, size_t channels) {
+  if (!fixedPoint_) {
+    ConvertShortsToFloats(samples, injectBuffer_, frameCount * channels);
+  }
+  int64 processStart = PipelineStats::NowMicros();
+  int count;
+  if (fixedPoint_) {
+    count = static_cast<video_editing::FixedPointSolaTimeScaler*>(
+        GetTimeScaler())->InjectSamples(samples, frameCount);
+  } else {
+    count = static_cast<video_editing::SolaTimeScaler*>(
+        GetTimeScaler())->InjectSamples(injectBuffer_, frameCount);
+  }
+  stats_.RecordProcessTime(PipelineStats::NowMicros() - processStart);
+  return count;
+}
+
+// Asks the silence skipper about the frames about to be injected.  Returns
+// how many at their start to skip, or zero having limited framesToInject to
+// those to play.
+size_t AudioEngine::SkipSilence(const int16* samples,
+    size_t* framesToInject) {
+  if (silenceSkipper_ == NULL) {
+    return 0;
+  }
+  bool skip = false;
+  size_t frames = silenceSkipper_->Next(samples, *framesToInject, &skip);
+  if (skip) {
+    skippedFrames_ += frames;
+    return frames;
+  }
+  *framesToInject = frames;
+  return 0;
+}
+
+bool AudioEngine::HasAudioToInject() {
+  return !IsDecodeBufferEmpty() ||
+      (cachedSamples_ != NULL && cachedFramePosition_ < cachedFrameCount_);
+}
+
+// Moves through the cached PCM, which counts as decoded to the end once the
+// position reaches it.
+void AudioEngine::SetCachedPcmPosition(int64 framePosition) {
+  cachedFramePosition_ = std::min(framePosition, cachedFrameCount_);
+  android::Mutex::Autolock autoLock(lock_);
+  finishedDecoding_ = cachedFramePosition_ >= cachedFrameCount_;
 }
 
 bool AudioEngine::GetEndOfDecoderReached() {
@@ -481,264 +529,573 @@ bool AudioEngine::GetEndOfDecoderReached() {
   return finishedDecoding_;
 }
 
-void AudioEngine::SetEndOfDecoderReached() {
+void AudioEngine::SetEndOfDecoderReached(void* context, bool decodedToEnd) {
   android::Mutex::Autolock autoLock(lock_);
-  finishedDecoding_ = true;
+  static_cast<CallbackContext*>(context)->endReached = true;
+  static_cast<CallbackContext*>(context)->decodedToEnd = decodedToEnd;
+  // A queued decoder may fail while it is waiting to start, which must not
+  // end the one playing.
+  if (context == currentDecoderContext_) {
+    finishedDecoding_ = true;
+  }
 }
 
 bool AudioEngine::PlayFileDescriptor(int fd, int64 offset, int64 length) {
-  SLDataLocator_AndroidFD loc_fd = {
-      SL_DATALOCATOR_ANDROIDFD, fd, offset, length };
-  SLDataFormat_MIME format_mime = {
-      SL_DATAFORMAT_MIME, NULL, SL_CONTAINERTYPE_UNSPECIFIED };
-  SLDataSource audioSrc = { &loc_fd, &format_mime };
-  return PlayFromThisSource(audioSrc);
+  DecoderSource source;
+  source.fd = fd;
+  source.offset = offset;
+  source.length = length;
+  return PlayFromThisSource(&source);
 }
 
 bool AudioEngine::PlayUri(const char* uri) {
-  // Source of audio data for the decoding
-  SLDataLocator_URI decUri = { SL_DATALOCATOR_URI,
-      const_cast<SLchar*>(reinterpret_cast<const SLchar*>(uri)) };
-  SLDataFormat_MIME decMime = {
-      SL_DATAFORMAT_MIME, NULL, SL_CONTAINERTYPE_UNSPECIFIED };
-  SLDataSource decSource = { &decUri, &decMime };
-  return PlayFromThisSource(decSource);
+  DecoderSource source;
+  source.uri = uri;
+  return PlayFromThisSource(&source);
+}
+
+bool AudioEngine::PlayCachedPcm(const char* path) {
+  MappedWavFile cache;
+  if (!cache.Open(path)) {
+    return false;
+  }
+  LOGD("playing decoded pcm cached in %s", path);
+  // The mapping goes with the cache, once played.
+  return PlayPcm(cache.samples(), cache.num_frames(), cache.sample_rate(),
+      cache.num_channels());
+}
+
+bool AudioEngine::PlayWavBuffer(const void* data, size_t size) {
+  MappedWavFile wav;
+  if (!wav.Wrap(data, size)) {
+    return false;
+  }
+  return PlayPcm(wav.samples(), wav.num_frames(), wav.sample_rate(),
+      wav.num_channels());
+}
+
+bool AudioEngine::PlayPcm(const int16* samples, int64 frameCount,
+    int sampleRate, int channels) {
+  CHECK(sampleRate > 0 && channels > 0);
+  size_t startPositionMillis;
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    mSampleRate = sampleRate;
+    mChannels = channels;
+    startPositionMillis = startPositionMillis_;
+  }
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    totalDurationMs_ = frameCount * 1000 / sampleRate;
+  }
+  cachedSamples_ = samples;
+  cachedFrameCount_ = frameCount;
+  StartEnvelope(samples, startPositionMillis);
+  SetCachedPcmPosition(
+      static_cast<int64>(startPositionMillis) * sampleRate / 1000);
+  bool result = PlayFromThisSource(NULL);
+  cachedSamples_ = NULL;
+  return result;
+}
+
+void AudioEngine::QueueUri(const char* uri, int startMillis) {
+  QueuedSource source;
+  source.source.uri = uri;
+  source.startMillis = startMillis;
+  android::Mutex::Autolock autoLock(lock_);
+  queuedSources_.push_back(source);
+}
+
+void AudioEngine::QueueFileDescriptor(int fd, int64 offset, int64 length,
+    int startMillis) {
+  QueuedSource source;
+  source.source.fd = fd;
+  source.source.offset = offset;
+  source.source.length = length;
+  source.startMillis = startMillis;
+  android::Mutex::Autolock autoLock(lock_);
+  queuedSources_.push_back(source);
+}
+
+bool AudioEngine::HasQueuedSources() {
+  android::Mutex::Autolock autoLock(lock_);
+  return !queuedSources_.empty();
 }
 
 bool AudioEngine::IsDecodeBufferEmpty() {
-  android::Mutex::Autolock autoLock(decodeBufferLock_);
   return decodeBuffer_.GetSizeInBytes() <= 0;
 }
 
 void AudioEngine::ClearDecodeBuffer() {
-  android::Mutex::Autolock autoLock(decodeBufferLock_);
   decodeBuffer_.Clear();
 }
 
-static size_t ReadDuration(SLPlayItf playItf) {
-  SLmillisecond durationInMsec = SL_TIME_UNKNOWN;
-  OpenSL(playItf, GetDuration, &durationInMsec);
-  if (durationInMsec == SL_TIME_UNKNOWN) {
-    LOGE("can't get duration");
-    return 0;
+bool AudioEngine::HasSampleRateAndChannels() {
+  android::Mutex::Autolock autoLock(callbackLock_);
+  return mChannels != 0 && mSampleRate != 0;
+}
+
+// A decoder, with the context its callbacks are given.  It receives the
+// callbacks, and delivers them to the engine.
+struct AudioDecoder : public PcmDecoder::Listener {
+  virtual void OnDecodedBuffer(const int8_t* data, size_t sizeInBytes) {
+    if (context.engine->BeginDecodingCallback(&context)) {
+      context.engine->DecodingBufferQueueCallback(data, sizeInBytes, &context);
+      context.engine->EndDecodingCallback(&context);
+    }
   }
-  LOGD("duration: %d", static_cast<int>(durationInMsec));
-  return durationInMsec;
+
+  virtual void OnDecoderFinished(bool decodedToEnd) {
+    context.engine->SetEndOfDecoderReached(&context, decodedToEnd);
+  }
+
+  PcmDecoder* pcm;
+  CallbackContext context;
+};
+
+AudioDecoder* AudioEngine::CreateDecoder(const DecoderSource& source,
+    int startMillis, bool checkFormat) {
+  AudioDecoder* decoder = new AudioDecoder;
+
+  // Initialize the callback structure, used during the decoding.
+  CallbackContext* context = &decoder->context;
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    context->engine = this;
+    context->decoder = NULL;
+    context->startMillis = startMillis;
+    context->checkFormat = checkFormat;
+    context->endReached = false;
+    context->decodedToEnd = false;
+    context->callbacksInProgress = 0;
+  }
+  // The decoder is paused, so delivers no audio before it has been set.
+  decoder->pcm = backend_->CreateDecoder(source, audioStreamType_, decoder);
+  android::Mutex::Autolock autoLock(callbackLock_);
+  context->decoder = decoder->pcm;
+  return decoder;
 }
 
-static size_t ReadPosition(SLPlayItf playItf) {
-  SLmillisecond positionInMsec = SL_TIME_UNKNOWN;
-  OpenSL(playItf, GetPosition, &positionInMsec);
-  if (positionInMsec == SL_TIME_UNKNOWN) {
-    LOGE("can't get position");
-    return 0;
+void AudioEngine::DestroyDecoder(AudioDecoder* decoder) {
+  delete decoder->pcm;
+  delete decoder;
+}
+
+void AudioEngine::CacheDecodedPcm(const char* path) {
+  android::Mutex::Autolock autoLock(pcmCacheLock_);
+  pcmCachePath_ = path;
+}
+
+// Begins caching the PCM from the decoder of the source, if the engine was
+// asked to and it is decoded from its start.
+void AudioEngine::StartPcmCache(AudioDecoder* decoder) {
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    if (startPositionMillis_ != 0) {
+      return;
+    }
   }
-  LOGW("decoder position: %d", static_cast<int>(positionInMsec));
-  return positionInMsec;
+  android::Mutex::Autolock autoLock(pcmCacheLock_);
+  if (pcmCachePath_.empty()) {
+    return;
+  }
+  // Named for this engine, in case another is caching the same source.
+  char suffix[64];
+  snprintf(suffix, sizeof(suffix), ".%d.%p.tmp", getpid(), this);
+  pcmCacheTempPath_ = pcmCachePath_ + suffix;
+  pcmCacheSink_ = new PcmFileSink(pcmCacheTempPath_.c_str(), true);
+  pcmCacheOpen_ = false;
+  pcmCacheContext_ = &decoder->context;
 }
 
-static void CreateAndRealizeEngine(SLObjectItf &engine,
-    SLEngineItf &engineInterface) {
-  SLEngineOption EngineOption[] = { {
-      SL_ENGINEOPTION_THREADSAFE, SL_BOOLEAN_TRUE } };
-  SLresult result = slCreateEngine(&engine, 1, EngineOption, 0, NULL, NULL);
-  CheckSLResult("create engine", result);
-  OpenSL(engine, Realize, SL_BOOLEAN_FALSE);
-  OpenSL(engine, GetInterface, SL_IID_ENGINE, &engineInterface);
+// Called by the decoding callback with each buffer of audio it decodes.
+void AudioEngine::WriteToPcmCache(void* context, const int8_t* data,
+    size_t sizeInBytes) {
+  uint32 sampleRate;
+  uint32 channels;
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    sampleRate = mSampleRate;
+    channels = mChannels;
+  }
+  android::Mutex::Autolock autoLock(pcmCacheLock_);
+  if (pcmCacheSink_ == NULL || context != pcmCacheContext_ || channels == 0) {
+    return;
+  }
+  if (!pcmCacheOpen_) {
+    if (!pcmCacheSink_->Open(sampleRate, channels)) {
+      ClosePcmCacheLocked(false);
+      return;
+    }
+    pcmCacheOpen_ = true;
+  }
+  int frameCount = sizeInBytes / (kNumberOfBytesPerInt16 * channels);
+  if (!pcmCacheSink_->Write(reinterpret_cast<const int16*>(data),
+          frameCount)) {
+    LOGE("could not write to %s", pcmCacheTempPath_.c_str());
+    ClosePcmCacheLocked(false);
+  }
 }
 
-SLuint32 AudioEngine::GetSLSampleRate() {
-  android::Mutex::Autolock autoLock(callbackLock_);
-  return mSampleRate * 1000;
+// Called once the decoder has finished, or with NULL to abandon the cache.
+// The cached PCM is kept only if the decoder it came from reached the end.
+void AudioEngine::FinishPcmCache(AudioDecoder* decoder) {
+  bool decodedToEnd;
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    decodedToEnd = decoder != NULL && decoder->context.decodedToEnd;
+  }
+  android::Mutex::Autolock autoLock(pcmCacheLock_);
+  if (pcmCacheSink_ != NULL) {
+    ClosePcmCacheLocked(
+        decodedToEnd && pcmCacheContext_ == &decoder->context);
+  }
 }
 
-SLuint32 AudioEngine::GetSLChannels() {
-  android::Mutex::Autolock autoLock(callbackLock_);
-  switch (mChannels) {
-    case 2:
-      return SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT;
-    case 1:
-      return SL_SPEAKER_FRONT_CENTER;
-    default:
-      LOGE("unknown channels %d, using 2", mChannels);
-      return SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT;
+// Must be called with pcmCacheLock_ held.
+void AudioEngine::ClosePcmCacheLocked(bool keep) {
+  bool closed = pcmCacheOpen_ && pcmCacheSink_->Close();
+  delete pcmCacheSink_;
+  pcmCacheSink_ = NULL;
+  pcmCacheOpen_ = false;
+  pcmCacheContext_ = NULL;
+  if (keep && closed &&
+      rename(pcmCacheTempPath_.c_str(), pcmCachePath_.c_str()) == 0) {
+    LOGD("cached decoded pcm in %s", pcmCachePath_.c_str());
+  } else {
+    unlink(pcmCacheTempPath_.c_str());
   }
 }
 
-SLuint32 AudioEngine::GetChannelCount() {
-  android::Mutex::Autolock autoLock(callbackLock_);
-  return mChannels;
-}
-
-static void CreateAndRealizeAudioPlayer(SLuint32 slSampleRate,
-    SLuint32 channelCount, SLuint32 slChannels, SLint32 audioStreamType, SLObjectItf &outputMix,
-    SLObjectItf &audioPlayer, SLEngineItf &engineInterface) {
-  // Define the source and sink for the audio player: comes from a buffer queue
-  // and goes to the output mix.
-  SLDataLocator_AndroidSimpleBufferQueue loc_bufq = {
-      SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, 2 };
-  SLDataFormat_PCM format_pcm = {SL_DATAFORMAT_PCM, channelCount, slSampleRate,
-      SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
-      slChannels, SL_BYTEORDER_LITTLEENDIAN};
-  SLDataSource playingSrc = {&loc_bufq, &format_pcm};
-  SLDataLocator_OutputMix loc_outmix = {SL_DATALOCATOR_OUTPUTMIX, outputMix};
-  SLDataSink audioSnk = {&loc_outmix, NULL};
-
-  // Create the audio player, which will play from the buffer queue and send to
-  // the output mix.
-  const size_t playerInterfaceCount = 2;
-  const SLInterfaceID iids[playerInterfaceCount] = {
-      SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_ANDROIDCONFIGURATION };
-  const SLboolean reqs[playerInterfaceCount] = { SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE };
-  OpenSL(engineInterface, CreateAudioPlayer, &audioPlayer, &playingSrc,
-      &audioSnk, playerInterfaceCount, iids, reqs);
-  setAudioStreamType(audioPlayer, audioStreamType);
-  OpenSL(audioPlayer, Realize, SL_BOOLEAN_FALSE);
+void AudioEngine::SetEnvelopeSink(EnvelopeSink* sink, int bucketMillis) {
+  CHECK(bucketMillis > 0);
+  android::Mutex::Autolock autoLock(envelopeLock_);
+  delete envelopeSink_;
+  envelopeSink_ = sink;
+  envelopeBucketMillis_ = bucketMillis;
 }
 
-bool AudioEngine::HasSampleRateAndChannels() {
-  android::Mutex::Autolock autoLock(callbackLock_);
-  return mChannels != 0 && mSampleRate != 0;
+// Begins the envelope of the source, identified by the callback context of
+// its decoder or by its samples in memory, if one is wanted.
+void AudioEngine::StartEnvelope(const void* source, int startMillis) {
+  android::Mutex::Autolock autoLock(envelopeLock_);
+  if (envelopeSink_ == NULL) {
+    return;
+  }
+  envelope_.Stop();
+  envelopeSource_ = source;
+  envelopeStartMillis_ = startMillis;
 }
 
-bool AudioEngine::PlayFromThisSource(const SLDataSource& audioSrc) {
-  ClearDecodeBuffer();
+// Called with each run of interleaved samples decoded or read from memory,
+// in order.
+void AudioEngine::AddToEnvelope(const void* source, const int16* samples,
+    int sampleCount) {
+  uint32 sampleRate;
+  uint32 channels;
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    sampleRate = mSampleRate;
+    channels = mChannels;
+  }
+  android::Mutex::Autolock autoLock(envelopeLock_);
+  if (source == NULL || source != envelopeSource_ || channels == 0) {
+    return;
+  }
+  if (!envelope_.started()) {
+    envelope_.Start(
+        std::max<int>(1, sampleRate * envelopeBucketMillis_ / 1000), channels,
+        static_cast<int64>(envelopeStartMillis_) * sampleRate / 1000);
+  }
+  envelope_.Add(samples, sampleCount / channels);
+}
 
-  SLObjectItf engine;
-  SLEngineItf engineInterface;
-  CreateAndRealizeEngine(engine, engineInterface);
-
-  // Define the source and sink for the decoding player: comes from the source
-  // this method was called with, is sent to another buffer queue.
-  SLDataLocator_AndroidSimpleBufferQueue decBuffQueue;
-  decBuffQueue.locatorType = SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE;
-  decBuffQueue.numBuffers = kNumberOfBuffersInQueue;
-  // A valid value seems required here but is currently ignored.
-  SLDataFormat_PCM pcm = {SL_DATAFORMAT_PCM, 1, SL_SAMPLINGRATE_44_1,
-      SL_PCMSAMPLEFORMAT_FIXED_16, 16,
-      SL_SPEAKER_FRONT_LEFT, SL_BYTEORDER_LITTLEENDIAN};
-  SLDataSink decDest = { &decBuffQueue, &pcm };
-
-  // Create the decoder with the given source and sink.
-  const size_t decoderInterfaceCount = 5;
-  SLObjectItf decoder;
-  const SLInterfaceID decodePlayerInterfaces[decoderInterfaceCount] = {
-      SL_IID_ANDROIDSIMPLEBUFFERQUEUE, SL_IID_PREFETCHSTATUS, SL_IID_SEEK,
-      SL_IID_METADATAEXTRACTION, SL_IID_ANDROIDCONFIGURATION };
-  const SLboolean decodePlayerRequired[decoderInterfaceCount] = {
-      SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE, SL_BOOLEAN_TRUE };
-  SLDataSource sourceCopy(audioSrc);
-  OpenSL(engineInterface, CreateAudioPlayer, &decoder, &sourceCopy, &decDest,
-      decoderInterfaceCount, decodePlayerInterfaces, decodePlayerRequired);
-  // Not sure if this is necessary, but just in case.
-  setAudioStreamType(decoder, audioStreamType_);
-  OpenSL(decoder, Realize, SL_BOOLEAN_FALSE);
-
-  // Get the play interface from the decoder, and register event callbacks.
-  // Get the buffer queue, prefetch and seek interfaces.
-  SLPlayItf decoderPlay = NULL;
-  SLAndroidSimpleBufferQueueItf decoderQueue = NULL;
-  SLPrefetchStatusItf decoderPrefetch = NULL;
-  SLSeekItf decoderSeek = NULL;
-  SLMetadataExtractionItf decoderMetadata = NULL;
-  OpenSL(decoder, GetInterface, SL_IID_PLAY, &decoderPlay);
-  OpenSL(decoderPlay, SetCallbackEventsMask, SL_PLAYEVENT_HEADATEND);
-  OpenSL(decoderPlay, RegisterCallback, DecodingEventCb, NULL);
-  OpenSL(decoder, GetInterface, SL_IID_PREFETCHSTATUS, &decoderPrefetch);
-  OpenSL(decoder, GetInterface, SL_IID_SEEK, &decoderSeek);
-  OpenSL(decoder, GetInterface, SL_IID_METADATAEXTRACTION, &decoderMetadata);
-  OpenSL(decoder, GetInterface, SL_IID_ANDROIDSIMPLEBUFFERQUEUE,
-      &decoderQueue);
+// Completes the envelope up to a seek, and continues it from where the
+// source is played next.
+void AudioEngine::RestartEnvelope(int startMillis) {
+  DeliverEnvelope(true);
+  android::Mutex::Autolock autoLock(envelopeLock_);
+  envelope_.Stop();
+  envelopeStartMillis_ = startMillis;
+}
 
-  // Initialize the callback structure, used during the decoding.
-  CallbackContext callbackContext;
+// Completes the envelope, once its source has ended.
+void AudioEngine::StopEnvelope() {
+  DeliverEnvelope(true);
+  android::Mutex::Autolock autoLock(envelopeLock_);
+  envelope_.Stop();
+  envelopeSource_ = NULL;
+}
+
+// Hands the buckets completed so far to the sink, first completing the one
+// being filled if flush is set.  Called by the playback loop.
+void AudioEngine::DeliverEnvelope(bool flush) {
+  std::vector<LevelEnvelope::Bucket> buckets;
+  int64 firstBucket;
+  {
+    android::Mutex::Autolock autoLock(envelopeLock_);
+    if (envelopeSink_ == NULL || !envelope_.started()) {
+      return;
+    }
+    if (flush) {
+      envelope_.Flush();
+    }
+    firstBucket = envelope_.TakeCompleted(&buckets);
+  }
+  // The sink is only replaced before playback, so is safe to call unlocked.
+  if (!buckets.empty()) {
+    envelopeSink_->OnEnvelope(firstBucket, &buckets[0], buckets.size());
+  }
+}
+
+// Creates a paused decoder for the next queued source, if there is one, so
+// that it is ready to start the moment the current one ends.
+AudioDecoder* AudioEngine::PrerollNextSource() {
+  QueuedSource source;
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    if (queuedSources_.empty()) {
+      return NULL;
+    }
+    source = queuedSources_.front();
+    queuedSources_.pop_front();
+  }
+  // Pausing lets the decoder prefetch without delivering any audio yet.
+  AudioDecoder* decoder = CreateDecoder(source.source, source.startMillis,
+      true);
+  decoder->pcm->Pause();
+  return decoder;
+}
+
+// The next decoder may start once the current one has decoded everything,
+// and none of its callbacks is still adding to the decode buffer, which must
+// only ever have one producer.  There is no current decoder while the cached
+// PCM is playing, and that has been decoded once it has all been injected.
+bool AudioEngine::CanStartNextDecoder(AudioDecoder* current) {
+  return GetEndOfDecoderReached() && (current == NULL ||
+      android_atomic_acquire_load(&current->context.callbacksInProgress) == 0);
+}
+
+void AudioEngine::StartNextDecoder(AudioDecoder* next) {
+  // Everything already in the decode buffer comes before the new source.
+  hasPendingBoundary_ = true;
+  pendingBoundaryValues_ = decodeBuffer_.GetTotalAdvancedCount() +
+      decodeBuffer_.GetSizeInBytes() / kNumberOfBytesPerInt16;
+  pendingBoundaryMillis_ = next->context.startMillis;
+  currentSourceStartMillis_ = next->context.startMillis;
+  // Any PCM in memory has all been played.
+  cachedSamples_ = NULL;
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    currentDecoderContext_ = &next->context;
+    finishedDecoding_ = next->context.endReached;
+  }
+  next->pcm->Play();
+}
+
+void AudioEngine::RequestFormatChange(uint32 sampleRate, uint32 channels) {
+  android::Mutex::Autolock autoLock(lock_);
+  formatChangeRequested_ = true;
+  nextSampleRate_ = sampleRate;
+  nextChannels_ = channels;
+}
+
+bool AudioEngine::IsFormatChangeRequested() {
+  android::Mutex::Autolock autoLock(lock_);
+  return formatChangeRequested_;
+}
+
+// Plays out all the audio in the old format, draining the time scaler once
+// the decode buffer is empty. Returns true once it has all been played.
+bool AudioEngine::DrainForFormatChange(PcmPlayer* player) {
+  if (player == NULL || timeScaler_ == NULL) {
+    // Nothing has been played in the old format.
+    return true;
+  }
+  if (HasAudioToInject()) {
+    return false;
+  }
+  if (!drainingForFormatChange_) {
+    timeScaler_->Drain();
+    drainingForFormatChange_ = true;
+  }
+  while (!GetWasStopRequested() &&
+         !GetHasReachedPlayingBuffersLimit() &&
+         timeScaler_->available() > 0 &&
+         EnqueueNextBufferOfAudio(player)) {
+  }
+  bool drained = timeScaler_->available() <= 0;
+  android::Mutex::Autolock autoLock(playBufferLock_);
+  return drained && playingBuffers_.size() <= 0;
+}
+
+// Switches to the new format, once the audio player for the old one has been
+// destroyed. The time scaler and buffers are rebuilt on demand.
+void AudioEngine::FinishFormatChange() {
+  if (timeScaler_ != NULL) {
+    // Carry on at the same speed.
+    initialRate_ = timeScaler_->speed();
+    delete timeScaler_;
+    timeScaler_ = NULL;
+  }
+  delete[] floatBuffer_;
+  floatBuffer_ = NULL;
+  delete[] injectBuffer_;
+  injectBuffer_ = NULL;
+  delete[] injectShortBuffer_;
+  injectShortBuffer_ = NULL;
+  {
+    // The free buffers are sized for the old number of channels.
+    android::Mutex::Autolock autoLock(playBufferLock_);
+    while (freeBuffers_.size() > 0) {
+      delete[] freeBuffers_.top();
+      freeBuffers_.pop();
+    }
+  }
+  drainingForFormatChange_ = false;
+
+  uint32 sampleRate;
+  uint32 channels;
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    sampleRate = nextSampleRate_;
+    channels = nextChannels_;
+  }
   {
     android::Mutex::Autolock autoLock(callbackLock_);
-    callbackContext.pDataBase = pcmData;
-    callbackContext.pData = pcmData;
-    callbackContext.decoderMetadata = decoderMetadata;
-    callbackContext.playItf = decoderPlay;
-    RegisterCallbackContextAndAddEnqueueBuffersToDecoder(
-        decoderQueue, &callbackContext);
+    mSampleRate = sampleRate;
+    mChannels = channels;
   }
+  // Lets the waiting decoder deliver its audio.
+  android::Mutex::Autolock autoLock(lock_);
+  formatChangeRequested_ = false;
+}
+
+// Plays the source, or the cached PCM if source is NULL.
+bool AudioEngine::PlayFromThisSource(const DecoderSource* source) {
+  ClearDecodeBuffer();
+
+  // The decoder of the source being played, or NULL while the cached PCM is.
+  AudioDecoder* decoder = NULL;
+  if (source != NULL) {
+    decoder = CreateDecoder(*source, 0, false);
+    {
+      android::Mutex::Autolock autoLock(lock_);
+      currentDecoderContext_ = &decoder->context;
+    }
+    StartPcmCache(decoder);
+    StartEnvelope(&decoder->context, startPositionMillis_);
 
-  // Initialize the callback for prefetch errors, if we can't open the
-  // resource to decode.
-  OpenSL(decoderPrefetch, SetCallbackEventsMask, kPrefetchErrorCandidate);
-  OpenSL(decoderPrefetch, RegisterCallback, PrefetchEventCb, &decoderPrefetch);
+    // Seek to the start position.
+    decoder->pcm->Seek(startPositionMillis_);
 
-  // Seek to the start position.
-  OpenSL(decoderSeek, SetPosition, startPositionMillis_, SL_SEEKMODE_ACCURATE);
+    // Start decoding immediately.
+    decoder->pcm->Play();
+  }
 
-  // Start decoding immediately.
-  OpenSL(decoderPlay, SetPlayState, SL_PLAYSTATE_PLAYING);
+  // The decoder for the next queued source, once it has been created.
+  AudioDecoder* nextDecoder = NULL;
 
-  // These variables hold the audio player and its output.
-  // They will only be constructed once the decoder has invoked the callback,
+  // The audio player.
+  // It will only be constructed once the decoder has invoked the callback,
   // and given us the correct sample rate, number of channels and duration.
-  SLObjectItf outputMix = NULL;
-  SLObjectItf audioPlayer = NULL;
-  SLPlayItf audioPlayerPlay = NULL;
-  SLAndroidSimpleBufferQueueItf audioPlayerQueue = NULL;
+  PcmPlayer* player = NULL;
 
   // The main loop - until we're told to stop: if there is audio data coming
   // out of the decoder, feed it through the time scaler.
   // As it comes out of the time scaler, feed it into the audio player.
-  while (!Finished()) {
+  // Queued sources are decoded one after another into the same decode
+  // buffer, so the audio player plays them without a gap.
+  while (!Finished() || (nextDecoder != NULL && !GetWasStopRequested())) {
+    float speed;
+    if (GetSpeedRequest(&speed)) {
+      ApplySpeed(speed);
+    }
     if (GetWasStartRequested() && HasSampleRateAndChannels()) {
       // Build the audio player.
       // TODO: What happens if I maliciously call start lots of times?
-      floatBuffer_ = new float[targetFrames_ * mChannels];
-      injectBuffer_ = new float[targetFrames_ * mChannels];
-      OpenSL(engineInterface, CreateOutputMix, &outputMix, 0, NULL, NULL);
-      OpenSL(outputMix, Realize, SL_BOOLEAN_FALSE);
-      CreateAndRealizeAudioPlayer(GetSLSampleRate(), GetChannelCount(),
-          GetSLChannels(), audioStreamType_, outputMix, audioPlayer,
-          engineInterface);
-      OpenSL(audioPlayer, GetInterface, SL_IID_PLAY, &audioPlayerPlay);
-      OpenSL(audioPlayer, GetInterface, SL_IID_ANDROIDSIMPLEBUFFERQUEUE,
-          &audioPlayerQueue);
-      OpenSL(audioPlayerQueue, RegisterCallback, PlayingBufferQueueCb, NULL);
+      if (fixedPoint_) {
+        injectShortBuffer_ = new int16[targetFrames_ * mChannels];
+      } else {
+        floatBuffer_ = new float[targetFrames_ * mChannels];
+        injectBuffer_ = new float[targetFrames_ * mChannels];
+      }
+      if (skipSilence_) {
+        delete silenceSkipper_;
+        silenceSkipper_ = new SilenceSkipper(mSampleRate, mChannels,
+            silenceThreshold_, maxPauseMillis_);
+      }
+      uint32 sampleRate;
+      uint32 channels;
+      {
+        android::Mutex::Autolock autoLock(callbackLock_);
+        sampleRate = mSampleRate;
+        channels = mChannels;
+      }
+      player = backend_->CreatePlayer(sampleRate, channels, playerQueueDepth_,
+          audioStreamType_, this);
+      RestartBufferSizer();
       ClearRequestStart();
-      OpenSL(audioPlayerPlay, SetPlayState, SL_PLAYSTATE_PLAYING);
-    }
-    EnqueueMoreAudioIfNecessary(audioPlayerQueue);
-    usleep(kSleepTimeMicros);
-  }
-
-  // Delete the audio player and output mix, iff they have been created.
-  if (audioPlayer != NULL) {
-    OpenSL(audioPlayerPlay, SetPlayState, SL_PLAYSTATE_STOPPED);
-    OpenSL0(audioPlayerQueue, Clear);
-    OpenSL(audioPlayerQueue, RegisterCallback, NULL, NULL);
-    VoidOpenSL(audioPlayer, AbortAsyncOperation);
-    VoidOpenSL(audioPlayer, Destroy);
-    VoidOpenSL(outputMix, Destroy);
-    audioPlayer = NULL;
-    audioPlayerPlay = NULL;
-    audioPlayerQueue = NULL;
-    outputMix = NULL;
-  }
-
-  // Delete the decoder.
-  OpenSL(decoderPlay, SetPlayState, SL_PLAYSTATE_STOPPED);
-  OpenSL(decoderPrefetch, RegisterCallback, NULL, NULL);
-  // This is returning slresult 13 if I do no playback.
-  // Repro is to comment out all before this line, and all after enqueueing
-  // my buffers.
-  // OpenSL0(decoderQueue, Clear);
-  OpenSL(decoderQueue, RegisterCallback, NULL, NULL);
-  decoderSeek = NULL;
-  decoderPrefetch = NULL;
-  decoderQueue = NULL;
-  OpenSL(decoderPlay, RegisterCallback, NULL, NULL);
-  VoidOpenSL(decoder, AbortAsyncOperation);
-  VoidOpenSL(decoder, Destroy);
-  decoderPlay = NULL;
-
-  // Delete the engine.
-  VoidOpenSL(engine, Destroy);
-  engineInterface = NULL;
+      player->Play();
+    }
+    int seekPositionMillis;
+    if (GetSeekRequest(&seekPositionMillis)) {
+      SeekInPlace(seekPositionMillis, decoder, player);
+    }
+    if (nextDecoder == NULL) {
+      nextDecoder = PrerollNextSource();
+    }
+    if (CanStartNextDecoder(decoder)) {
+      FinishPcmCache(decoder);
+      DeliverEnvelope(true);
+      if (nextDecoder != NULL) {
+        StopEnvelope();
+        if (decoder != NULL) {
+          DestroyDecoder(decoder);
+        }
+        decoder = nextDecoder;
+        nextDecoder = NULL;
+        StartNextDecoder(decoder);
+      }
+    }
+    // A queued source in a different format needs a new audio player, once
+    // everything in the old format has been played.
+    if (IsFormatChangeRequested() &&
+        DrainForFormatChange(player)) {
+      bool rebuildAudioPlayer = player != NULL;
+      if (rebuildAudioPlayer) {
+        delete player;
+        player = NULL;
+      }
+      FinishFormatChange();
+      if (rebuildAudioPlayer) {
+        RequestStart();
+      }
+    }
+    EnqueueMoreAudioIfNecessary(player);
+    AdaptBufferSizes();
+    DeliverEnvelope(false);
+    backend_->SleepMicros(kSleepTimeMicros);
+  }
+  StopEnvelope();
+
+  // Delete the audio player, iff it has been created.
+  delete player;
+
+  // Throw away the cache if decoding never finished.
+  FinishPcmCache(NULL);
+
+  // Delete the decoders.
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    currentDecoderContext_ = NULL;
+  }
+  if (decoder != NULL) {
+    DestroyDecoder(decoder);
+  }
+  if (nextDecoder != NULL) {
+    DestroyDecoder(nextDecoder);
+  }
 
   return true;
 }
@@ -749,8 +1106,9 @@ bool AudioEngine::Finished() {
   }
   android::Mutex::Autolock autoLock(playBufferLock_);
   return playingBuffers_.size() <= 0 &&
-      IsDecodeBufferEmpty() &&
-      GetEndOfDecoderReached();
+      !HasAudioToInject() &&
+      GetEndOfDecoderReached() &&
+      !HasQueuedSources();
 }
 
 bool AudioEngine::GetWasStopRequested() {
@@ -763,102 +1121,265 @@ bool AudioEngine::GetHasReachedPlayingBuffersLimit() {
   return playingBuffers_.size() >= maxPlayBufferCount_;
 }
 
-void AudioEngine::EnqueueMoreAudioIfNecessary(
-    SLAndroidSimpleBufferQueueItf audioPlayerQueue) {
+void AudioEngine::EnqueueMoreAudioIfNecessary(PcmPlayer* player) {
   bool keepEnqueueing = true;
-  while (audioPlayerQueue != NULL &&
+  while (player != NULL &&
          !GetWasStopRequested() &&
-         !IsDecodeBufferEmpty() &&
+         HasAudioToInject() &&
          !GetHasReachedPlayingBuffersLimit() &&
          keepEnqueueing) {
-    keepEnqueueing = EnqueueNextBufferOfAudio(audioPlayerQueue);
+    keepEnqueueing = EnqueueNextBufferOfAudio(player);
   }
 }
 
+// Tells the buffer sizer that the audio player has just started, after which
+// its callbacks should come a play buffer apart.
+void AudioEngine::RestartBufferSizer() {
+  if (bufferSizer_ == NULL) {
+    return;
+  }
+  uint32 sampleRate;
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    sampleRate = mSampleRate;
+  }
+  bufferSizer_->Restart(static_cast<int64>(targetFrames_) * 1000000 /
+      sampleRate);
+}
+
+void AudioEngine::AdaptBufferSizes() {
+  if (bufferSizer_ == NULL || !bufferSizer_->Update(
+          backend_->NowMicros(), stats_.GetUnderrunCount())) {
+    return;
+  }
+  LOGD("adapting to %d play buffers and a decode buffer of %d bytes",
+      static_cast<int>(bufferSizer_->play_buffer_count()),
+      static_cast<int>(bufferSizer_->decode_max_size()));
+  decodeBuffer_.SetMaxSize(bufferSizer_->decode_max_size());
+  android::Mutex::Autolock autoLock(playBufferLock_);
+  maxPlayBufferCount_ = bufferSizer_->play_buffer_count();
+}
+
 bool AudioEngine::DecodeBufferTooFull() {
-  android::Mutex::Autolock autoLock(decodeBufferLock_);
   return decodeBuffer_.IsTooLarge();
 }
 
 // ****************************************************************************
-// Code for handling the static callbacks.
+// Code for handling the callbacks.
 
-void AudioEngine::PlayingBufferQueueCallback() {
+void AudioEngine::OnBufferPlayed() {
   // The head playing buffer is done, move it to the free list.
-  android::Mutex::Autolock autoLock(playBufferLock_);
-  if (playingBuffers_.size() > 0) {
-    freeBuffers_.push(playingBuffers_.front());
-    playingBuffers_.pop();
+  bool ranDry;
+  {
+    android::Mutex::Autolock autoLock(playBufferLock_);
+    if (playingBuffers_.size() > 0) {
+      freeBuffers_.push(playingBuffers_.front());
+      playingBuffers_.pop();
+      PublishPlayedPosition(playingBufferEndMillis_.front());
+      playingBufferEndMillis_.pop();
+    }
+    ranDry = playingBuffers_.empty();
+  }
+  if (bufferSizer_ != NULL) {
+    bufferSizer_->RecordPlayerCallback(backend_->NowMicros());
+  }
+  // Running out of buffers is only expected once the audio has all played,
+  // or while seeking.
+  if (ranDry && !GetEndOfDecoderReached() && !GetWasStopRequested() &&
+      !IsSeeking()) {
+    stats_.RecordUnderrun();
   }
 }
 
-void AudioEngine::PrefetchEventCallback(
-    SLPrefetchStatusItf caller, SLuint32 event) {
-  // If there was a problem during decoding, then signal the end.
-  SLpermille level = 0;
-  SLuint32 status;
-  OpenSL(caller, GetFillLevel, &level);
-  OpenSL(caller, GetPrefetchStatus, &status);
-  if ((kPrefetchErrorCandidate == (event & kPrefetchErrorCandidate)) &&
-      (level == 0) &&
-      (status == SL_PREFETCHSTATUS_UNDERFLOW)) {
-    LOGI("prefetcheventcallback error while prefetching data");
-    SetEndOfDecoderReached();
-  }
-  if (SL_PREFETCHSTATUS_SUFFICIENTDATA == event) {
-    // android::Mutex::Autolock autoLock(prefetchLock_);
-    // prefetchCondition_.broadcast();
+// Checking for a seek and counting the callback under the one lock means a
+// seek either sees the callback and waits for it, or the callback sees the
+// seek and drops its audio; it can never start adding once the seek has
+// started clearing.
+bool AudioEngine::BeginDecodingCallback(void* context) {
+  android::Mutex::Autolock autoLock(lock_);
+  if (seeking_) {
+    return false;
   }
+  android_atomic_inc(&reinterpret_cast<CallbackContext*>(
+      context)->callbacksInProgress);
+  return true;
 }
 
-void AudioEngine::DecodingBufferQueueCallback(
-    SLAndroidSimpleBufferQueueItf queueItf, void *context) {
+void AudioEngine::EndDecodingCallback(void* context) {
+  android_atomic_dec(&reinterpret_cast<CallbackContext*>(
+      context)->callbacksInProgress);
+}
+
+void AudioEngine::DecodingBufferQueueCallback(const int8_t* data,
+    size_t sizeInBytes, void *context) {
   if (GetWasStopRequested()) {
     return;
   }
+  int64 callbackStart = PipelineStats::NowMicros();
 
   CallbackContext *pCntxt;
   {
     android::Mutex::Autolock autoLock(callbackLock_);
     pCntxt = reinterpret_cast<CallbackContext*>(context);
   }
-  {
-    android::Mutex::Autolock autoLock(decodeBufferLock_);
-    decodeBuffer_.AddData(pCntxt->pData, kBufferSizeInBytes);
+  // A queued source in a different format has to wait until everything
+  // before it has been played, and the audio player rebuilt to match it.
+  if (pCntxt->checkFormat) {
+    pCntxt->checkFormat = false;
+    uint32 sampleRate = 0;
+    uint32 channels = 0;
+    bool formatChanged;
+    {
+      android::Mutex::Autolock autoLock(callbackLock_);
+      pCntxt->decoder->GetFormat(&sampleRate, &channels);
+      formatChanged = sampleRate != 0 && channels != 0 &&
+          (sampleRate != mSampleRate || channels != mChannels);
+    }
+    if (formatChanged) {
+      RequestFormatChange(sampleRate, channels);
+      while (IsFormatChangeRequested()) {
+        // A seek waits for this callback, so the change must not.
+        if (GetWasStopRequested() || IsSeeking()) {
+          return;
+        }
+        backend_->SleepMicros(kSleepTimeMicros);
+      }
+    }
+  }
+  // The decode buffer always has room for one more buffer once it is no
+  // longer too full, but wait for the playback to catch up if it does not.
+  // Audio arriving during a seek is from the old position, so drop it.
+  size_t bytesAdded = 0;
+  while (!IsSeeking()) {
+    bytesAdded += decodeBuffer_.AddData(data + bytesAdded,
+        sizeInBytes - bytesAdded);
+    if (bytesAdded >= sizeInBytes) {
+      break;
+    }
+    if (GetWasStopRequested()) {
+      return;
+    }
+    backend_->WaitMicros(kDecodeWaitMicros);
+  }
+  stats_.RecordDecodeBufferSize(decodeBuffer_.GetSizeInBytes());
+  // Nor does dropped audio belong in the cached PCM or the envelope.
+  if (bytesAdded < sizeInBytes) {
+    return;
   }
 
   if (!HasSampleRateAndChannels()) {
     android::Mutex::Autolock autoLock(callbackLock_);
-    ReadSampleRateAndChannelCount(pCntxt, &mSampleRate, &mChannels);
+    pCntxt->decoder->GetFormat(&mSampleRate, &mChannels);
   }
+  WriteToPcmCache(context, data, sizeInBytes);
+  AddToEnvelope(context, reinterpret_cast<const int16*>(data),
+      sizeInBytes / kNumberOfBytesPerInt16);
 
   {
     android::Mutex::Autolock autoLock(lock_);
     if (totalDurationMs_ == 0) {
-      totalDurationMs_ = ReadDuration(pCntxt->playItf);
+      totalDurationMs_ = pCntxt->decoder->GetDurationMillis();
     }
-    // TODO: This isn't working, it always reports zero.
-    // ReadPosition(pCntxt->playItf);
   }
 
-  OpenSL(queueItf, Enqueue, pCntxt->pData, kBufferSizeInBytes);
-
-  // Increase data pointer by buffer size
-  pCntxt->pData += kBufferSizeInBytes;
-  if (pCntxt->pData >= pCntxt->pDataBase +
-      (kNumberOfBuffersInQueue * kBufferSizeInBytes)) {
-    pCntxt->pData = pCntxt->pDataBase;
-  }
+  // The wait below is deliberate back pressure, so is not counted.
+  stats_.RecordDecodeCallbackTime(PipelineStats::NowMicros() - callbackStart);
 
   // If we get too much data into the decoder,
-  // sleep until the playback catches up.
-  while (!GetWasStopRequested() && DecodeBufferTooFull()) {
-    usleep(kSleepTimeMicros);
+  // wait until the playback catches up.
+  while (!GetWasStopRequested() && !IsSeeking() && DecodeBufferTooFull()) {
+    backend_->WaitMicros(kDecodeWaitMicros);
   }
 }
 
-void AudioEngine::DecodingEventCallback(SLPlayItf, SLuint32 event) {
-  if (SL_PLAYEVENT_HEADATEND & event) {
-    SetEndOfDecoderReached();
+// Repositions the decoder, keeping it and the audio player alive, and throws
+// away everything decoded or scaled from the old position.
+// The decoder is NULL while the cached PCM is playing, which is repositioned
+// instead.
+void AudioEngine::SeekInPlace(int positionMillis, AudioDecoder* decoder,
+    PcmPlayer* player) {
+  // From here until the seek completes, the decoding callback drops whatever
+  // it is given, so that nothing decoded before the seek can be queued
+  // after it.
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    seeking_ = true;
+  }
+  backend_->Wake();
+  if (decoder != NULL) {
+    decoder->pcm->Pause();
+    // Pausing does not stop a callback that is already running, which may
+    // still be adding stale audio.  The decode buffer has a single producer,
+    // so it may only be cleared once that callback has seen the seek and
+    // returned, which it does without waiting any further.
+    while (android_atomic_acquire_load(
+        &decoder->context.callbacksInProgress) > 0) {
+      backend_->SleepMicros(kSleepTimeMicros);
+    }
+  }
+  // The decoded audio no longer runs from the start to the end.
+  FinishPcmCache(NULL);
+
+  // Silence the audio player and reclaim all of its buffers.
+  if (player != NULL) {
+    player->Pause();
+    player->Clear();
+    android::Mutex::Autolock autoLock(playBufferLock_);
+    while (playingBuffers_.size() > 0) {
+      freeBuffers_.push(playingBuffers_.front());
+      playingBuffers_.pop();
+      playingBufferEndMillis_.pop();
+    }
+  }
+  // The position is within the current source, but reported on the
+  // timeline of the whole queue.
+  hasPendingBoundary_ = false;
+  enqueuedPositionMillis_ = currentSourceStartMillis_ + positionMillis;
+  skippedFrames_ = 0;
+  if (silenceSkipper_ != NULL) {
+    silenceSkipper_->Reset();
+  }
+  PublishPlayedPosition(currentSourceStartMillis_ + positionMillis);
+
+  // Flush the audio still waiting to be played.
+  if (timeScaler_ != NULL) {
+    timeScaler_->Reset();
+  }
+  ClearDecodeBuffer();
+  {
+    android::Mutex::Autolock autoLock(callbackLock_);
+    startPositionMillis_ = positionMillis;
+  }
+  RestartEnvelope(positionMillis);
+
+  if (decoder != NULL) {
+    decoder->pcm->Seek(positionMillis);
+  }
+  {
+    android::Mutex::Autolock autoLock(lock_);
+    seeking_ = false;
+    // The decoder may have already reached the end before the seek.
+    finishedDecoding_ = false;
+    if (currentDecoderContext_ != NULL) {
+      static_cast<CallbackContext*>(currentDecoderContext_)->endReached =
+          false;
+      static_cast<CallbackContext*>(currentDecoderContext_)->decodedToEnd =
+          false;
+    }
+  }
+  if (decoder != NULL) {
+    decoder->pcm->Play();
+  } else {
+    uint32 sampleRate;
+    {
+      android::Mutex::Autolock autoLock(callbackLock_);
+      sampleRate = mSampleRate;
+    }
+    SetCachedPcmPosition(static_cast<int64>(positionMillis) * sampleRate /
+        1000);
+  }
+  if (player != NULL) {
+    RestartBufferSizer();
+    player->Play();
   }
 }
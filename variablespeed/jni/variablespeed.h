@@ -17,117 +17,296 @@
 #ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_VARIABLESPEED_H_
 #define FRAMEWORKS_EX_VARIABLESPEED_JNI_VARIABLESPEED_H_
 
-#include <jni.h>
-
-#include <SLES/OpenSLES.h>
-#include <SLES/OpenSLES_Android.h>
-#include <SLES/OpenSLES_AndroidConfiguration.h>
-
 #include <integral_types.h>
 #include <utils/threads.h>
 
 #include <profile_timer.h>
+#include <audio_backend.h>
+#include <buffer_sizer.h>
 #include <decode_buffer.h>
+#include <level_envelope.h>
+#include <pipeline_stats.h>
+#include <silence_skipper.h>
 
+#include <deque>
 #include <queue>
 #include <stack>
+#include <string>
 
 namespace video_editing {
-  class SolaTimeScaler;
+  class TimeScaler;
 }
 
+// A decoder and the context of its callbacks, defined in variablespeed.cc.
+struct AudioDecoder;
+
+class PcmFileSink;
+
 // This is the audio engine class.
 // It forms the bulk  of the variablespeed library.
 // It should not be used directly, but rather used indirectly from the java
 // native methods.
-class AudioEngine {
+// Each instance is independent, so several may be playing at once; the java
+// layer owns each instance through the handle returned by initializeEngine.
+// It decodes and plays through the AudioBackend it is given, which must
+// outlive it.
+class AudioEngine : public PcmPlayer::Listener {
  public:
-  AudioEngine(size_t targetFrames, float windowDuration,
+  AudioEngine(AudioBackend* backend, size_t targetFrames, float windowDuration,
       float windowOverlapDuration, size_t maxPlayBufferCount,
       float initialRate, size_t decodeInitialSize, size_t decodeMaxSize,
-      size_t startPositionMillis, int audioStreamType);
+      size_t startPositionMillis, int audioStreamType, bool fixedPoint,
+      bool adaptiveBuffering, size_t playBufferCountLowerBound,
+      size_t playBufferCountUpperBound, size_t decodeMaxSizeLowerBound,
+      size_t decodeMaxSizeUpperBound, bool skipSilence, int silenceThreshold,
+      int maxPauseMillis, volatile int32_t* playedPositionMillis);
   virtual ~AudioEngine();
 
   bool PlayUri(const char* uri);
   bool PlayFileDescriptor(int fd, int64 offset, int64 length);
+  // Plays the 16-bit PCM WAV file that CacheDecodedPcm() wrote on an earlier
+  // play of the same source, injecting its samples into the time scaler
+  // straight from a memory map, without decoding anything.
+  // Returns false, having played nothing, if the file could not be mapped.
+  bool PlayCachedPcm(const char* path);
+  // Plays interleaved 16-bit PCM that the caller holds in memory, injecting
+  // it into the time scaler in place.  The samples must stay valid and
+  // unchanged until this returns.
+  bool PlayPcm(const int16* samples, int64 frameCount, int sampleRate,
+      int channels);
+  // Plays a 16-bit PCM WAV file that the caller holds in memory, as PlayPcm()
+  // does.  Returns false, having played nothing, if it is not one.
+  bool PlayWavBuffer(const void* data, size_t size);
+  // Writes the PCM decoded by the next PlayUri() or PlayFileDescriptor() to
+  // the given path, for PlayCachedPcm() to play next time.  The file is
+  // written under a temporary name and only moved into place once the whole
+  // source has been decoded from its start, so it is abandoned by a seek or
+  // a start position other than zero.
+  void CacheDecodedPcm(const char* path);
+  // Builds the level envelope of the source played next, one bucket per
+  // bucketMillis, from the audio as it is decoded or read from memory, and
+  // hands the buckets to the sink as they are completed.  A queued source
+  // has no envelope.  Takes ownership of the sink.
+  void SetEnvelopeSink(EnvelopeSink* sink, int bucketMillis);
+  // Queues a source to play, without a gap, after the one being played and
+  // any queued before it.  Its decoder is created ahead of time, and started
+  // as soon as the one before it has decoded everything.  startMillis is
+  // where it begins on the timeline that positions are reported on, which
+  // runs through all the sources played by this engine.
+  void QueueUri(const char* uri, int startMillis);
+  void QueueFileDescriptor(int fd, int64 offset, int64 length,
+      int startMillis);
   void SetVariableSpeed(float speed);
   void RequestStart();
   void RequestStop();
+  void RequestSeek(int positionMillis);
   int GetCurrentPosition();
   int GetTotalDuration();
+  // Fills values with PipelineStats::kNumberOfValues counters, in the order
+  // given by PipelineStats.
+  void GetStats(int32_t* values);
 
-  void DecodingBufferQueueCallback(
-      SLAndroidSimpleBufferQueueItf queueItf, void *context);
-  void DecodingEventCallback(SLPlayItf caller, SLuint32 event);
-  void PrefetchEventCallback(SLPrefetchStatusItf caller, SLuint32 event);
-  void PlayingBufferQueueCallback();
-
-  static AudioEngine* GetEngine();
-  static void SetEngine(AudioEngine* engine);
-  static bool CompareAndSetEngine(AudioEngine* expect, AudioEngine* update);
-  static void DeleteEngine();
+  // Brackets each call to DecodingBufferQueueCallback().  Begin returns
+  // false, and the audio must be dropped, while the engine is seeking.
+  bool BeginDecodingCallback(void* context);
+  void EndDecodingCallback(void* context);
+  void DecodingBufferQueueCallback(const int8_t* data, size_t sizeInBytes,
+      void *context);
+  void SetEndOfDecoderReached(void* context, bool decodedToEnd);
+  virtual void OnBufferPlayed();
 
  private:
-  bool PlayFromThisSource(const SLDataSource& audioSrc);
-  void EnqueueMoreAudioIfNecessary(SLAndroidSimpleBufferQueueItf bufferQueue);
-  bool EnqueueNextBufferOfAudio(SLAndroidSimpleBufferQueueItf bufferQueue);
-  void PrefetchDurationSampleRateAndChannels(
-      SLPlayItf playItf, SLPrefetchStatusItf prefetchItf);
-  video_editing::SolaTimeScaler* GetTimeScaler();
+  // A source given to QueueUri() or QueueFileDescriptor().
+  struct QueuedSource {
+    DecoderSource source;
+    int startMillis;
+  };
+
+  bool PlayFromThisSource(const DecoderSource* source);
+  AudioDecoder* CreateDecoder(const DecoderSource& source, int startMillis,
+      bool checkFormat);
+  void DestroyDecoder(AudioDecoder* decoder);
+  AudioDecoder* PrerollNextSource();
+  bool HasQueuedSources();
+  bool CanStartNextDecoder(AudioDecoder* current);
+  void StartNextDecoder(AudioDecoder* next);
+  void RequestFormatChange(uint32 sampleRate, uint32 channels);
+  bool IsFormatChangeRequested();
+  bool DrainForFormatChange(PcmPlayer* player);
+  void FinishFormatChange();
+  void EnqueueMoreAudioIfNecessary(PcmPlayer* player);
+  void RestartBufferSizer();
+  void AdaptBufferSizes();
+  bool EnqueueNextBufferOfAudio(PcmPlayer* player);
+  int InjectContiguousSamples(const int16* samples, size_t frameCount,
+      size_t channels);
+  bool HasAudioToInject();
+  size_t SkipSilence(const int16* samples, size_t* framesToInject);
+  void SetCachedPcmPosition(int64 framePosition);
+  void StartPcmCache(AudioDecoder* decoder);
+  void WriteToPcmCache(void* context, const int8_t* data, size_t sizeInBytes);
+  void FinishPcmCache(AudioDecoder* decoder);
+  void ClosePcmCacheLocked(bool keep);
+  void StartEnvelope(const void* source, int startMillis);
+  void AddToEnvelope(const void* source, const int16* samples,
+      int sampleCount);
+  void RestartEnvelope(int startMillis);
+  void StopEnvelope();
+  void DeliverEnvelope(bool flush);
+  void PublishPlayedPosition(int positionMillis);
+  video_editing::TimeScaler* GetTimeScaler();
   bool Finished();
   bool GetWasStartRequested();
   bool GetWasStopRequested();
+  bool GetSeekRequest(int* positionMillis);
+  bool GetSpeedRequest(float* speed);
+  void ApplySpeed(float speed);
+  bool IsSeeking();
+  void SeekInPlace(int positionMillis, AudioDecoder* decoder,
+      PcmPlayer* player);
   void ClearRequestStart();
-  void SetEndOfDecoderReached();
   bool GetEndOfDecoderReached();
   bool DecodeBufferTooFull();
   void ClearDecodeBuffer();
   bool IsDecodeBufferEmpty();
   bool GetHasReachedPlayingBuffersLimit();
   bool HasSampleRateAndChannels();
-  SLuint32 GetSLSampleRate();
-  SLuint32 GetSLChannels();
-  SLuint32 GetChannelCount();
 
-  // The single global audio engine instance.
-  static AudioEngine* audioEngine_;
+  // Where the decoders and audio player come from.  Not owned.
+  AudioBackend* backend_;
 
-  // Protects access to the shared decode buffer.
-  android::Mutex decodeBufferLock_;
   // Buffer into which we put the audio data as we decode.
-  // Protected by decodeBufferLock_.
+  // Lock-free: the decoding callback is its only producer, and the main
+  // playback loop its only consumer.
   DecodeBuffer decodeBuffer_;
 
-  // Protects access to the playingBuffers_ and freeBuffers_.
+  // Counters for diagnosing stuttering playback, see PipelineStats for which
+  // thread writes which.
+  PipelineStats stats_;
+
+  // In adaptive mode, chooses maxPlayBufferCount_ and the decode buffer's
+  // limit as playback goes, otherwise NULL.
+  BufferSizer* bufferSizer_;
+
+  // Protects access to the playingBuffers_, playingBufferEndMillis_,
+  // freeBuffers_ and maxPlayBufferCount_.
   android::Mutex playBufferLock_;
   // The buffers we're using for playback.
   std::queue<int16*> playingBuffers_;
+  // For each playing buffer, the position in the source of its end.
+  std::queue<int> playingBufferEndMillis_;
   std::stack<int16*> freeBuffers_;
 
-  // The time scaler.
-  video_editing::SolaTimeScaler* timeScaler_;
+  // The position in the source of the end of the audio last enqueued, which
+  // advances by the speed at the time for each millisecond enqueued.
+  // Confined to the playback thread.
+  double enqueuedPositionMillis_;
+  // Where the source being decoded begins on the position timeline.
+  // Confined to the playback thread.
+  int currentSourceStartMillis_;
+  // Set when a queued source's decoder takes over, until the audio before
+  // it has all gone into the time scaler, at which point the enqueued
+  // position moves to pendingBoundaryMillis_.  The boundary is counted in
+  // values taken from the decode buffer.
+  // Confined to the playback thread.
+  bool hasPendingBoundary_;
+  uint32 pendingBoundaryValues_;
+  int pendingBoundaryMillis_;
+  // Set while the time scaler is draining the audio in the old format,
+  // ready to be rebuilt for a queued source in a different format.
+  // Confined to the playback thread.
+  bool drainingForFormatChange_;
+  // The position in the source of the audio the player has finished playing.
+  // Stored with release semantics whenever a playing buffer completes, or on
+  // seeking, and read without locking.  It is owned by the java layer, so
+  // that it may still be read after the engine has been deleted.
+  volatile int32_t* playedPositionMillis_;
+
+  // The samples of the source while it is played by PlayPcm(), or NULL while
+  // it is being decoded, and how far through them playback has injected, in
+  // frames.
+  // Confined to the playback thread.
+  const int16* cachedSamples_;
+  int64 cachedFrameCount_;
+  int64 cachedFramePosition_;
+
+  // Protects the PCM cache being written, below.
+  android::Mutex pcmCacheLock_;
+  // Where to cache the PCM of the source, or empty for no caching, and the
+  // temporary file written until it has all been decoded.
+  std::string pcmCachePath_;
+  std::string pcmCacheTempPath_;
+  // The file the decoding callback writes to, or NULL if none is being
+  // written, and the callback context of the decoder whose audio it takes.
+  // It is opened on the first write, once the format is known.
+  PcmFileSink* pcmCacheSink_;
+  bool pcmCacheOpen_;
+  void* pcmCacheContext_;
+
+  // Protects the level envelope, below, which the decoding callback or the
+  // playback loop adds to, and the playback loop delivers.
+  android::Mutex envelopeLock_;
+  // Receives the envelope, or NULL if none is wanted.
+  EnvelopeSink* envelopeSink_;
+  int envelopeBucketMillis_;
+  LevelEnvelope envelope_;
+  // The audio the envelope is built from: the callback context of the
+  // decoder of the source, or the samples of the source in memory.  NULL
+  // once another source has started.
+  const void* envelopeSource_;
+  // Where in the source the next audio added starts, which starts the
+  // envelope once the format is known.
+  int envelopeStartMillis_;
+
+  // The time scaler: a FixedPointSolaTimeScaler if fixedPoint_ is set,
+  // otherwise a SolaTimeScaler.
+  video_editing::TimeScaler* timeScaler_;
+  // Set to run the time scaler on the 16-bit samples as decoded, rather than
+  // converting them to and from floats.
+  bool fixedPoint_;
+
+  // Set to shorten pauses longer than maxPauseMillis_ to that length, taking
+  // audio below silenceThreshold_ to be silent.
+  const bool skipSilence_;
+  const int16 silenceThreshold_;
+  const int maxPauseMillis_;
+  // Decides what to skip, if skipSilence_ is set.  Created along with the
+  // audio player, to match its format.
+  // Confined to the playback thread.
+  SilenceSkipper* silenceSkipper_;
+  // The frames of the source skipped since the last buffer was enqueued,
+  // which still advance the position, so that it stays on the timeline of
+  // the source.
+  // Confined to the playback thread.
+  int64 skippedFrames_;
 
   // The frame buffer, used for converting between PCM data and float for
   // time scaler.
   float* floatBuffer_;
   float* injectBuffer_;
+  // Used instead of injectBuffer_ by the fixed point time scaler, when the
+  // samples to inject wrap around the end of the decode buffer.
+  int16* injectShortBuffer_;
 
   // Required when we create the audio player.
   // Set during the first callback from the decoder.
   // Guarded by callbackLock_.
-  SLuint32 mSampleRate;
-  SLuint32 mChannels;
+  uint32 mSampleRate;
+  uint32 mChannels;
 
   size_t targetFrames_;
   float windowDuration_;
   float windowOverlapDuration_;
   size_t maxPlayBufferCount_;
+  // The most buffers maxPlayBufferCount_ can ever allow, which the audio
+  // player's queue is made deep enough for.
+  size_t playerQueueDepth_;
   float initialRate_;
+  // Guarded by callbackLock_, since a seek moves the start position.
   size_t startPositionMillis_;
   // The type of audio stream as defined by the STREAM_XXX constants in
-  // android.media.AudioManager. These constant values actually match the
-  // corresponding SL_ANDROID_STREAM_XXX constants defined by
-  // include/SLES/OpenSLES_AndroidConfiguration.h
+  // android.media.AudioManager, which the backend applies to its decoders and
+  // audio players.
   int audioStreamType_;
 
   // The prefetch callback signal, for letting the prefetch callback method
@@ -144,10 +323,10 @@ class AudioEngine {
   android::Mutex lock_;
   // Protected by lock_.
   // Stores the total duration of the track.
-  SLmillisecond totalDurationMs_;
+  uint32 totalDurationMs_;
   // Protected by lock_.
   // Stores the current position of the decoder head.
-  SLmillisecond decoderCurrentPosition_;
+  uint32 decoderCurrentPosition_;
   // Protected by lock_.
   // Set externally via RequestStart(), this determines when we begin to
   // playback audio.
@@ -160,6 +339,33 @@ class AudioEngine {
   // Protected by lock_.
   // This is set to true once we reach the end of the decoder stream.
   bool finishedDecoding_;
+  // Protected by lock_.
+  // The callback context of the decoder whose end sets finishedDecoding_.
+  void* currentDecoderContext_;
+  // Protected by lock_.
+  // The sources still to be played, after the one being decoded.
+  std::deque<QueuedSource> queuedSources_;
+  // Protected by lock_.
+  // Set by the decoding callback of a queued source whose format differs
+  // from that of the audio player, and cleared once the player has been
+  // rebuilt for the new format.
+  bool formatChangeRequested_;
+  uint32 nextSampleRate_;
+  uint32 nextChannels_;
+  // Protected by lock_.
+  // Set externally via RequestSeek(), along with the position to seek to,
+  // and cleared once the main loop begins the seek.
+  bool seekRequested_;
+  int seekPositionMillis_;
+  // Protected by lock_.
+  // True while the main loop is repositioning the decoder, during which any
+  // audio the decoder delivers is discarded as stale.
+  bool seeking_;
+  // Protected by lock_.
+  // Set externally via SetVariableSpeed(), along with the speed, and cleared
+  // once the main loop has applied it.
+  bool speedRequested_;
+  float requestedSpeed_;
 
   DISALLOW_COPY_AND_ASSIGN(AudioEngine);
 };
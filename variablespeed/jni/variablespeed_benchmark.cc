@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host benchmark suite for the signal path of the engine.
+//
+// Runs a synthetic signal through SolaTimeScaler at speeds from 0.5x to 3x,
+// in mono and stereo, with several window and overlap settings, and moves
+// the same amount of audio through RingBuffer and DecodeBuffer on their own.
+// For each case it prints the CPU time taken per second of audio, and the
+// number of heap allocations made while processing, which should be zero
+// once the buffers have been set up.
+//
+// It then compares the engine's two paths from 16-bit samples to 16-bit
+// samples at the default window: converting to float for SolaTimeScaler, and
+// FixedPointSolaTimeScaler.  Besides the cost of each, it prints the largest
+// difference between their outputs and the ratio of signal to difference.
+//
+// usage: variablespeed_benchmark [seconds]
+
+#include <decode_buffer.h>
+#include <fixed_point_sola_time_scaler.h>
+#include <ring_buffer.h>
+#include <sample_conversion.h>
+#include <sola_time_scaler.h>
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <time.h>
+
+#include <algorithm>
+#include <new>
+#include <vector>
+
+using video_editing::FixedPointSolaTimeScaler;
+using video_editing::RingBuffer;
+using video_editing::SolaBitPackedAnalyzer;
+using video_editing::SolaTimeScaler;
+
+namespace {
+
+const int kSampleRate = 44100;
+const int kDefaultSeconds = 10;
+// The number of frames the engine hands to the scaler at once.
+const int kTargetFrames = 1000;
+// The size of the buffers the decoder delivers, in bytes.
+const size_t kDecodeBufferSize = 5 * 1024;
+const size_t kDecodeBufferMaxSize = 20 * 1024;
+
+struct WindowSetting {
+  float window_duration;
+  float overlap_duration;
+};
+
+// The engine's default, then shorter and longer windows.
+const WindowSetting kWindowSettings[] = {
+  { 0.08f, 0.008f },
+  { 0.04f, 0.004f },
+  { 0.12f, 0.016f },
+};
+
+const float kSpeeds[] = { 0.5f, 0.75f, 1.0f, 1.5f, 2.0f, 3.0f };
+
+// Counts calls to operator new, so that allocations in the processing loops
+// can be reported.
+int allocation_count = 0;
+
+double CpuSeconds() {
+  struct timespec now;
+  clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &now);
+  return now.tv_sec + now.tv_nsec / 1e9;
+}
+
+// A harmonic series with a wandering pitch, plus a little noise.
+std::vector<float> MakeSignal(int num_channels, int seconds) {
+  std::vector<float> signal(kSampleRate * seconds * num_channels);
+  double phase = 0;
+  for (int i = 0; i < kSampleRate * seconds; ++i) {
+    double t = static_cast<double>(i) / kSampleRate;
+    phase += 2 * M_PI * (140 + 30 * sin(2 * M_PI * 0.7 * t)) / kSampleRate;
+    double value = 0;
+    for (int harmonic = 1; harmonic <= 8; ++harmonic) {
+      value += sin(harmonic * phase) / harmonic;
+    }
+    for (int channel = 0; channel < num_channels; ++channel) {
+      double noise = (rand() / static_cast<double>(RAND_MAX) - 0.5) * 0.05;
+      signal[i * num_channels + channel] =
+          static_cast<float>(8000 * (value + noise));
+    }
+  }
+  return signal;
+}
+
+// The cost of processing one case.
+struct Result {
+  double cpu_seconds;
+  int allocations;
+};
+
+void Print(const char* name, const Result& result, int seconds) {
+  printf("%-40s %8.3f ms/s %6d allocs\n", name,
+         1000 * result.cpu_seconds / seconds, result.allocations);
+}
+
+// Time-scales the whole signal the way the engine does, a block of
+// kTargetFrames at a time.
+Result BenchmarkScaler(const std::vector<float>& signal, int num_channels,
+                       float speed, const WindowSetting& setting) {
+  SolaTimeScaler scaler;
+  scaler.set_analyzer(new SolaBitPackedAnalyzer());
+  scaler.Init(kSampleRate, num_channels, speed, setting.window_duration,
+              setting.overlap_duration);
+  // InjectSamples() takes a non-const buffer.
+  std::vector<float> input(signal);
+  std::vector<float> chunk(kTargetFrames * num_channels);
+  int total_frames = signal.size() / num_channels;
+  int position = 0;
+  bool draining = false;
+
+  int allocations = allocation_count;
+  double start = CpuSeconds();
+  while (true) {
+    int available = scaler.available();
+    if (available > 0) {
+      scaler.RetrieveSamples(&chunk[0], std::min(available, kTargetFrames));
+      continue;
+    }
+    if (draining) {
+      break;
+    }
+    if (position >= total_frames) {
+      scaler.Drain();
+      draining = true;
+      continue;
+    }
+    int count = std::min(std::min(total_frames - position, kTargetFrames),
+                         scaler.input_limit());
+    count = scaler.InjectSamples(&input[position * num_channels], count);
+    if (count <= 0) {
+      break;
+    }
+    position += count;
+  }
+  Result result = { CpuSeconds() - start, allocation_count - allocations };
+  return result;
+}
+
+// Writes the signal into a ring buffer and reads it back out, as the scaler
+// does with its input.
+Result BenchmarkRingBuffer(const std::vector<float>& signal,
+                           int num_channels) {
+  RingBuffer buffer;
+  buffer.Init(kTargetFrames * 4, num_channels, 1);
+  std::vector<float> chunk(kTargetFrames * num_channels);
+  int total_frames = signal.size() / num_channels;
+
+  int allocations = allocation_count;
+  double start = CpuSeconds();
+  for (int position = 0; position < total_frames;
+       position += kTargetFrames) {
+    int count = std::min(total_frames - position, kTargetFrames);
+    buffer.Write(&signal[position * num_channels], count);
+    buffer.Copy(0, &chunk[0], count);
+    buffer.Seek(0, buffer.Tell(0) + count);
+  }
+  Result result = { CpuSeconds() - start, allocation_count - allocations };
+  return result;
+}
+
+// Passes the signal, as 16-bit samples, through a decode buffer in blocks
+// the size the decoder delivers, and reads it out a block of kTargetFrames
+// at a time, as the decode callback and the playback thread do.
+Result BenchmarkDecodeBuffer(const std::vector<float>& signal,
+                             int num_channels) {
+  std::vector<int16> shorts(signal.size());
+  for (size_t i = 0; i < signal.size(); ++i) {
+    shorts[i] = static_cast<int16>(signal[i]);
+  }
+  DecodeBuffer buffer(kDecodeBufferSize, kDecodeBufferMaxSize);
+  const int8_t* bytes = reinterpret_cast<const int8_t*>(&shorts[0]);
+  const size_t total_bytes = shorts.size() * sizeof(int16);
+  const size_t values_per_read = kTargetFrames * num_channels;
+  int64 checksum = 0;
+
+  int allocations = allocation_count;
+  double start = CpuSeconds();
+  size_t written = 0;
+  while (written < total_bytes || buffer.GetSizeInBytes() > 0) {
+    while (written < total_bytes && !buffer.IsTooLarge()) {
+      written += buffer.AddData(bytes + written,
+          std::min(kDecodeBufferSize, total_bytes - written));
+    }
+    size_t values = std::min(values_per_read,
+        buffer.GetSizeInBytes() / sizeof(int16));
+    for (size_t index = 0; index < values; ) {
+      const int16* data;
+      size_t count = std::min(buffer.GetContiguousShorts(index, &data),
+                              values - index);
+      for (size_t i = 0; i < count; ++i) {
+        checksum += data[i];
+      }
+      index += count;
+    }
+    buffer.AdvanceHeadPointerShorts(values);
+  }
+  Result result = { CpuSeconds() - start, allocation_count - allocations };
+  // Keep the reads from being optimized away.
+  if (checksum == 1) {
+    printf("\n");
+  }
+  return result;
+}
+
+// Drives a SolaTimeScaler as the engine does, converting to and from float.
+class FloatPath {
+ public:
+  FloatPath(int num_channels, float speed, const WindowSetting& setting)
+      : num_channels_(num_channels), input_(kTargetFrames * num_channels),
+        output_(kTargetFrames * num_channels) {
+    scaler_.set_analyzer(new SolaBitPackedAnalyzer());
+    scaler_.Init(kSampleRate, num_channels, speed, setting.window_duration,
+                 setting.overlap_duration);
+  }
+
+  video_editing::TimeScaler* scaler() { return &scaler_; }
+
+  int Inject(const int16* samples, int num_frames) {
+    ConvertShortsToFloats(samples, &input_[0], num_frames * num_channels_);
+    return scaler_.InjectSamples(&input_[0], num_frames);
+  }
+
+  int Retrieve(int16* samples, int num_frames) {
+    int count = scaler_.RetrieveSamples(&output_[0], num_frames);
+    ConvertFloatsToShorts(&output_[0], samples, count * num_channels_);
+    return count;
+  }
+
+ private:
+  const int num_channels_;
+  SolaTimeScaler scaler_;
+  std::vector<float> input_;
+  std::vector<float> output_;
+};
+
+// Drives a FixedPointSolaTimeScaler as the engine does.
+class FixedPointPath {
+ public:
+  FixedPointPath(int num_channels, float speed,
+                 const WindowSetting& setting) {
+    scaler_.Init(kSampleRate, num_channels, speed, setting.window_duration,
+                 setting.overlap_duration);
+  }
+
+  video_editing::TimeScaler* scaler() { return &scaler_; }
+
+  int Inject(const int16* samples, int num_frames) {
+    return scaler_.InjectSamples(samples, num_frames);
+  }
+
+  int Retrieve(int16* samples, int num_frames) {
+    return scaler_.RetrieveSamples(samples, num_frames);
+  }
+
+ private:
+  FixedPointSolaTimeScaler scaler_;
+};
+
+// Time-scales 16-bit audio through the given path, a block of kTargetFrames
+// at a time, keeping the output.
+template <class Path>
+Result BenchmarkEnginePath(Path* path, const std::vector<int16>& input,
+                           int num_channels, std::vector<int16>* output) {
+  video_editing::TimeScaler* scaler = path->scaler();
+  int total_frames = input.size() / num_channels;
+  int max_output_frames = output->size() / num_channels;
+  int position = 0;
+  int output_frames = 0;
+  bool draining = false;
+
+  int allocations = allocation_count;
+  double start = CpuSeconds();
+  while (true) {
+    int available = std::min(scaler->available(),
+                             max_output_frames - output_frames);
+    if (available > 0) {
+      output_frames += path->Retrieve(&(*output)[output_frames * num_channels],
+                                      std::min(available, kTargetFrames));
+      continue;
+    }
+    if (draining) {
+      break;
+    }
+    if (position >= total_frames) {
+      scaler->Drain();
+      draining = true;
+      continue;
+    }
+    int count = std::min(std::min(total_frames - position, kTargetFrames),
+                         scaler->input_limit());
+    count = path->Inject(&input[position * num_channels], count);
+    if (count <= 0) {
+      break;
+    }
+    position += count;
+  }
+  Result result = { CpuSeconds() - start, allocation_count - allocations };
+  output->resize(output_frames * num_channels);
+  return result;
+}
+
+// Prints how far the fixed point output strays from the float output.  The
+// two paths round differently, so on rare occasions a sample near zero takes
+// the other sign and the analyzer settles on a different merge offset; after
+// that the outputs are no longer aligned, so the comparison stops there.
+void PrintDifference(const std::vector<int16>& reference,
+                     const std::vector<int16>& other, int num_channels) {
+  const int kDivergedDifference = 64;
+  size_t count = std::min(reference.size(), other.size());
+  int max_difference = 0;
+  double signal_energy = 0;
+  double difference_energy = 0;
+  size_t i = 0;
+  for (; i < count; ++i) {
+    int difference = abs(reference[i] - other[i]);
+    if (difference > kDivergedDifference) {
+      break;
+    }
+    max_difference = std::max(max_difference, difference);
+    signal_energy += static_cast<double>(reference[i]) * reference[i];
+    difference_energy += static_cast<double>(difference) * difference;
+  }
+  double snr = difference_energy > 0
+      ? 10 * log10(signal_energy / difference_energy) : INFINITY;
+  printf("%-40s %8d max   %6.1f dB snr", "  fixed point difference",
+         max_difference, snr);
+  if (i < count) {
+    printf("   diverged at %.2f s",
+           static_cast<double>(i) / num_channels / kSampleRate);
+  }
+  printf("\n");
+}
+
+}  // namespace
+
+// Every form of the global allocation functions is replaced, so that each
+// allocation is counted however it is made, and each pointer goes back to the
+// allocator it came from.  None has an exception specification: the implicit
+// ones match <new> under every standard, whereas throw(std::bad_alloc) is
+// an error from C++17 on.
+
+void* operator new(size_t size) {
+  ++allocation_count;
+  void* pointer = malloc(size == 0 ? 1 : size);
+  if (pointer == NULL) {
+    throw std::bad_alloc();
+  }
+  return pointer;
+}
+
+void* operator new[](size_t size) {
+  return operator new(size);
+}
+
+void* operator new(size_t size, const std::nothrow_t&) {
+  ++allocation_count;
+  return malloc(size == 0 ? 1 : size);
+}
+
+void* operator new[](size_t size, const std::nothrow_t& nothrow) {
+  return operator new(size, nothrow);
+}
+
+void operator delete(void* pointer) {
+  free(pointer);
+}
+
+void operator delete[](void* pointer) {
+  free(pointer);
+}
+
+void operator delete(void* pointer, const std::nothrow_t&) {
+  free(pointer);
+}
+
+void operator delete[](void* pointer, const std::nothrow_t&) {
+  free(pointer);
+}
+
+#ifdef __cpp_sized_deallocation
+void operator delete(void* pointer, size_t) {
+  free(pointer);
+}
+
+void operator delete[](void* pointer, size_t) {
+  free(pointer);
+}
+#endif
+
+int main(int argc, char** argv) {
+  int seconds = argc > 1 ? atoi(argv[1]) : kDefaultSeconds;
+  if (seconds <= 0) {
+    fprintf(stderr, "usage: %s [seconds]\n", argv[0]);
+    return 2;
+  }
+  char name[64];
+  for (int num_channels = 1; num_channels <= 2; ++num_channels) {
+    std::vector<float> signal = MakeSignal(num_channels, seconds);
+    for (size_t w = 0;
+         w < sizeof(kWindowSettings) / sizeof(kWindowSettings[0]); ++w) {
+      const WindowSetting& setting = kWindowSettings[w];
+      for (size_t s = 0; s < sizeof(kSpeeds) / sizeof(kSpeeds[0]); ++s) {
+        snprintf(name, sizeof(name), "scaler %d ch %.2fx %3.0f/%2.0f ms",
+                 num_channels, kSpeeds[s], 1000 * setting.window_duration,
+                 1000 * setting.overlap_duration);
+        Print(name, BenchmarkScaler(signal, num_channels, kSpeeds[s],
+                                    setting), seconds);
+      }
+    }
+    std::vector<int16> shorts(signal.size());
+    ConvertFloatsToShorts(&signal[0], &shorts[0], signal.size());
+    for (size_t s = 0; s < sizeof(kSpeeds) / sizeof(kSpeeds[0]); ++s) {
+      // Room for the output at the slowest speed.
+      std::vector<int16> float_output(shorts.size() * 3);
+      std::vector<int16> fixed_output(shorts.size() * 3);
+      FloatPath float_path(num_channels, kSpeeds[s], kWindowSettings[0]);
+      snprintf(name, sizeof(name), "engine float %d ch %.2fx",
+               num_channels, kSpeeds[s]);
+      Print(name, BenchmarkEnginePath(&float_path, shorts, num_channels,
+                                      &float_output), seconds);
+      FixedPointPath fixed_path(num_channels, kSpeeds[s], kWindowSettings[0]);
+      snprintf(name, sizeof(name), "engine fixed point %d ch %.2fx",
+               num_channels, kSpeeds[s]);
+      Print(name, BenchmarkEnginePath(&fixed_path, shorts, num_channels,
+                                      &fixed_output), seconds);
+      PrintDifference(float_output, fixed_output, num_channels);
+    }
+    snprintf(name, sizeof(name), "ring buffer %d ch", num_channels);
+    Print(name, BenchmarkRingBuffer(signal, num_channels), seconds);
+    snprintf(name, sizeof(name), "decode buffer %d ch", num_channels);
+    Print(name, BenchmarkDecodeBuffer(signal, num_channels), seconds);
+  }
+  return 0;
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <wav_io.h>
+
+#include <fcntl.h>
+#include <stdint.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <algorithm>
+
+// WAV files are little-endian, as are all the targets we build for, so the
+// samples are read and written directly.
+
+namespace {
+
+const size_t kBytesPerSample = 2;
+const size_t kWavHeaderSize = 44;
+const uint16 kWavFormatPcm = 1;
+
+uint32 ReadLittleEndian(const uint8* bytes, int size) {
+  uint32 value = 0;
+  for (int i = size - 1; i >= 0; --i) {
+    value = (value << 8) | bytes[i];
+  }
+  return value;
+}
+
+void WriteLittleEndian(uint8* bytes, uint32 value, int size) {
+  for (int i = 0; i < size; ++i) {
+    bytes[i] = static_cast<uint8>(value >> (8 * i));
+  }
+}
+
+}  // namespace
+
+WavFileSource::WavFileSource()
+    : file_(NULL), sample_rate_(0), num_channels_(0), frames_remaining_(0) {
+}
+
+WavFileSource::~WavFileSource() {
+  if (file_ != NULL) {
+    fclose(file_);
+  }
+}
+
+bool WavFileSource::Open(const char* path) {
+  file_ = fopen(path, "rb");
+  if (file_ == NULL) {
+    LOGE("could not open %s", path);
+    return false;
+  }
+  uint8 riff[12];
+  if (fread(riff, 1, sizeof(riff), file_) != sizeof(riff) ||
+      memcmp(riff, "RIFF", 4) != 0 || memcmp(riff + 8, "WAVE", 4) != 0) {
+    LOGE("%s is not a WAV file", path);
+    return false;
+  }
+  // Chunk sizes are only trusted as far as the end of the file, so that a
+  // corrupt one can neither seek back to a chunk already read nor overflow
+  // the offset it is seeked by.
+  struct stat fileStat;
+  if (fstat(fileno(file_), &fileStat) != 0) {
+    LOGE("could not stat %s", path);
+    return false;
+  }
+  const int64 fileSize = fileStat.st_size;
+  // Walk the chunks, reading the format, until we reach the samples.
+  bool haveFormat = false;
+  uint8 chunkHeader[8];
+  while (fread(chunkHeader, 1, sizeof(chunkHeader), file_) ==
+         sizeof(chunkHeader)) {
+    uint32 chunkSize = ReadLittleEndian(chunkHeader + 4, 4);
+    if (memcmp(chunkHeader, "fmt ", 4) == 0 && chunkSize >= 16) {
+      uint8 format[16];
+      if (fread(format, 1, sizeof(format), file_) != sizeof(format)) {
+        break;
+      }
+      if (ReadLittleEndian(format, 2) != kWavFormatPcm ||
+          ReadLittleEndian(format + 14, 2) != 8 * kBytesPerSample) {
+        LOGE("%s is not 16-bit PCM", path);
+        return false;
+      }
+      num_channels_ = ReadLittleEndian(format + 2, 2);
+      sample_rate_ = ReadLittleEndian(format + 4, 4);
+      haveFormat = num_channels_ > 0 && sample_rate_ > 0;
+      chunkSize -= sizeof(format);
+    } else if (memcmp(chunkHeader, "data", 4) == 0 && haveFormat) {
+      frames_remaining_ = chunkSize / (kBytesPerSample * num_channels_);
+      return true;
+    }
+    // Chunks are padded to an even length.  A chunk claiming to run past the
+    // end leaves nothing after it to read.
+    const int64 position = ftello(file_);
+    if (position < 0 || chunkSize >= fileSize - position) {
+      break;
+    }
+    const int64 skip = static_cast<int64>(chunkSize) + (chunkSize & 1);
+    if (fseeko(file_, static_cast<off_t>(skip), SEEK_CUR) != 0) {
+      break;
+    }
+  }
+  LOGE("%s has no usable format and data", path);
+  return false;
+}
+
+int WavFileSource::Read(int16* buffer, int num_frames) {
+  if (file_ == NULL) {
+    return -1;
+  }
+  int toRead = static_cast<int>(std::min<int64>(num_frames, frames_remaining_));
+  size_t read = fread(buffer, kBytesPerSample * num_channels_, toRead, file_);
+  if (read < static_cast<size_t>(toRead) && ferror(file_)) {
+    return -1;
+  }
+  // A truncated file just ends early.
+  frames_remaining_ = read < static_cast<size_t>(toRead)
+      ? 0 : frames_remaining_ - read;
+  return read;
+}
+
+PcmFileSink::PcmFileSink(const char* path, bool wav_header)
+    : path_(path), wav_header_(wav_header), file_(NULL), sample_rate_(0),
+      num_channels_(0), frames_written_(0) {
+}
+
+PcmFileSink::~PcmFileSink() {
+  if (file_ != NULL) {
+    fclose(file_);
+  }
+}
+
+bool PcmFileSink::Open(int sample_rate, int num_channels) {
+  sample_rate_ = sample_rate;
+  num_channels_ = num_channels;
+  file_ = fopen(path_, "wb");
+  if (file_ == NULL) {
+    LOGE("could not create %s", path_);
+    return false;
+  }
+  // The header is written again with the real sizes on Close().
+  return !wav_header_ || WriteWavHeader();
+}
+
+bool PcmFileSink::Write(const int16* buffer, int num_frames) {
+  size_t written = fwrite(buffer, kBytesPerSample * num_channels_,
+      num_frames, file_);
+  frames_written_ += written;
+  return written == static_cast<size_t>(num_frames);
+}
+
+bool PcmFileSink::Close() {
+  bool success = true;
+  if (wav_header_) {
+    success = fseek(file_, 0, SEEK_SET) == 0 && WriteWavHeader();
+  }
+  success = fclose(file_) == 0 && success;
+  file_ = NULL;
+  return success;
+}
+
+bool PcmFileSink::WriteWavHeader() {
+  uint32 dataSize = frames_written_ * kBytesPerSample * num_channels_;
+  uint8 header[kWavHeaderSize];
+  memcpy(header, "RIFF", 4);
+  WriteLittleEndian(header + 4, kWavHeaderSize - 8 + dataSize, 4);
+  memcpy(header + 8, "WAVEfmt ", 8);
+  WriteLittleEndian(header + 16, 16, 4);
+  WriteLittleEndian(header + 20, kWavFormatPcm, 2);
+  WriteLittleEndian(header + 22, num_channels_, 2);
+  WriteLittleEndian(header + 24, sample_rate_, 4);
+  WriteLittleEndian(header + 28, sample_rate_ * num_channels_ * kBytesPerSample,
+      4);
+  WriteLittleEndian(header + 32, num_channels_ * kBytesPerSample, 2);
+  WriteLittleEndian(header + 34, 8 * kBytesPerSample, 2);
+  memcpy(header + 36, "data", 4);
+  WriteLittleEndian(header + 40, dataSize, 4);
+  return fwrite(header, 1, sizeof(header), file_) == sizeof(header);
+}
+
+MappedWavFile::MappedWavFile()
+    : data_(NULL), size_(0), mapped_(false), sample_rate_(0),
+      num_channels_(0), num_frames_(0), samples_(NULL) {
+}
+
+MappedWavFile::~MappedWavFile() {
+  if (mapped_) {
+    munmap(const_cast<uint8*>(data_), size_);
+  }
+}
+
+bool MappedWavFile::Open(const char* path) {
+  int fd = open(path, O_RDONLY);
+  if (fd < 0) {
+    LOGE("could not open %s", path);
+    return false;
+  }
+  struct stat status;
+  if (fstat(fd, &status) != 0 || status.st_size < 12) {
+    LOGE("%s is not a WAV file", path);
+    close(fd);
+    return false;
+  }
+  size_ = status.st_size;
+  void* data = mmap(NULL, size_, PROT_READ, MAP_PRIVATE, fd, 0);
+  // The mapping keeps the file alive, even if it is deleted while mapped.
+  close(fd);
+  if (data == MAP_FAILED) {
+    LOGE("could not map %s", path);
+    return false;
+  }
+  data_ = static_cast<uint8*>(data);
+  mapped_ = true;
+  return ParseHeader(path);
+}
+
+bool MappedWavFile::Wrap(const void* data, size_t size) {
+  if (size < 12) {
+    LOGE("buffer is not a WAV file");
+    return false;
+  }
+  // The samples are read in place, at an even offset from the start.
+  if (reinterpret_cast<uintptr_t>(data) % kBytesPerSample != 0) {
+    LOGE("buffer is not aligned for 16-bit samples");
+    return false;
+  }
+  data_ = static_cast<const uint8*>(data);
+  size_ = size;
+  return ParseHeader("buffer");
+}
+
+// Walks the chunks in the mapped file, as WavFileSource::Open() does in the
+// stream, until it reaches the samples.
+bool MappedWavFile::ParseHeader(const char* path) {
+  if (memcmp(data_, "RIFF", 4) != 0 || memcmp(data_ + 8, "WAVE", 4) != 0) {
+    LOGE("%s is not a WAV file", path);
+    return false;
+  }
+  bool haveFormat = false;
+  size_t position = 12;
+  while (position + 8 <= size_) {
+    const uint8* chunkHeader = data_ + position;
+    uint32 chunkSize = ReadLittleEndian(chunkHeader + 4, 4);
+    position += 8;
+    if (memcmp(chunkHeader, "fmt ", 4) == 0 && chunkSize >= 16) {
+      if (position + 16 > size_) {
+        break;
+      }
+      const uint8* format = data_ + position;
+      if (ReadLittleEndian(format, 2) != kWavFormatPcm ||
+          ReadLittleEndian(format + 14, 2) != 8 * kBytesPerSample) {
+        LOGE("%s is not 16-bit PCM", path);
+        return false;
+      }
+      num_channels_ = ReadLittleEndian(format + 2, 2);
+      sample_rate_ = ReadLittleEndian(format + 4, 4);
+      haveFormat = num_channels_ > 0 && sample_rate_ > 0;
+    } else if (memcmp(chunkHeader, "data", 4) == 0 && haveFormat) {
+      // A truncated file just ends early.  Chunks start at even offsets, so
+      // the samples are aligned.
+      size_t dataSize = std::min<size_t>(chunkSize, size_ - position);
+      num_frames_ = dataSize / (kBytesPerSample * num_channels_);
+      samples_ = reinterpret_cast<const int16*>(data_ + position);
+      return true;
+    }
+    // Chunks are padded to an even length.  A chunk claiming to run past the
+    // end leaves nothing after it to parse, and its size must not be added
+    // to the position, which it could wrap back to the same chunk.
+    if (chunkSize >= size_ - position) {
+      break;
+    }
+    position += chunkSize + (chunkSize & 1);
+  }
+  LOGE("%s has no usable format and data", path);
+  return false;
+}
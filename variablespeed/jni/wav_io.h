@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef FRAMEWORKS_EX_VARIABLESPEED_JNI_WAV_IO_H_
+#define FRAMEWORKS_EX_VARIABLESPEED_JNI_WAV_IO_H_
+
+#include <offline_renderer.h>
+
+#include <stdio.h>
+
+// Reads 16-bit PCM from a WAV file.
+class WavFileSource : public PcmSource {
+ public:
+  WavFileSource();
+  virtual ~WavFileSource();
+
+  // Opens the file and parses its header.
+  // @returns false if the file is not a 16-bit PCM WAV file
+  bool Open(const char* path);
+
+  virtual int sample_rate() const { return sample_rate_; }
+  virtual int num_channels() const { return num_channels_; }
+  virtual int Read(int16* buffer, int num_frames);
+
+ private:
+  FILE* file_;
+  int sample_rate_;
+  int num_channels_;
+  // The number of frames left in the data chunk.
+  int64 frames_remaining_;
+
+  DISALLOW_COPY_AND_ASSIGN(WavFileSource);
+};
+
+// Writes 16-bit PCM to a file, either bare or as a WAV file.
+class PcmFileSink : public PcmSink {
+ public:
+  // @param wav_header whether to write a WAV header before the samples
+  PcmFileSink(const char* path, bool wav_header);
+  virtual ~PcmFileSink();
+
+  virtual bool Open(int sample_rate, int num_channels);
+  virtual bool Write(const int16* buffer, int num_frames);
+  virtual bool Close();
+
+ private:
+  bool WriteWavHeader();
+
+  const char* path_;
+  const bool wav_header_;
+  FILE* file_;
+  int sample_rate_;
+  int num_channels_;
+  int64 frames_written_;
+
+  DISALLOW_COPY_AND_ASSIGN(PcmFileSink);
+};
+
+// Maps a 16-bit PCM WAV file into memory, so that its samples can be read in
+// place rather than copied out of the file.  It may also wrap a WAV file that
+// the caller already holds in memory.
+class MappedWavFile {
+ public:
+  MappedWavFile();
+  virtual ~MappedWavFile();
+
+  // Maps the file and parses its header.
+  // @returns false if the file is not a 16-bit PCM WAV file
+  bool Open(const char* path);
+  // Parses a WAV file already in memory, which must outlive this object and
+  // is not copied.
+  // @returns false if the data is not a 16-bit PCM WAV file
+  bool Wrap(const void* data, size_t size);
+
+  int sample_rate() const { return sample_rate_; }
+  int num_channels() const { return num_channels_; }
+  int64 num_frames() const { return num_frames_; }
+  // The interleaved samples, valid for as long as the file is open.
+  const int16* samples() const { return samples_; }
+
+ private:
+  bool ParseHeader(const char* path);
+
+  const uint8* data_;
+  size_t size_;
+  // Whether data_ is our own mapping, to be unmapped on destruction.
+  bool mapped_;
+  int sample_rate_;
+  int num_channels_;
+  int64 num_frames_;
+  const int16* samples_;
+
+  DISALLOW_COPY_AND_ASSIGN(MappedWavFile);
+};
+
+#endif  // FRAMEWORKS_EX_VARIABLESPEED_JNI_WAV_IO_H_
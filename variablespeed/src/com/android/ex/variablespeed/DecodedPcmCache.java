@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.variablespeed;
+
+import com.google.common.base.Preconditions;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A directory of decoded audio, bounded in size, so that playing the same content again
+ * reads its PCM straight from a memory-mapped file instead of decoding it once more.
+ * <p>
+ * Give it to {@link VariableSpeed#setDecodedPcmCache(DecodedPcmCache)}. The first play of
+ * some content from its start, without seeking, fills the cache, and later plays and
+ * seeks within them skip the decoder. The least recently played content is evicted once
+ * the cache grows beyond its maximum size.
+ * <p>
+ * This class is thread safe, and one instance may be shared by any number of players,
+ * though only one should use any given directory.
+ */
+@ThreadSafe
+public final class DecodedPcmCache {
+    private static final String TAG = "DecodedPcmCache";
+    private static final String FILE_SUFFIX = ".wav";
+    /** The suffix of the files the engine writes before the decoding is complete. */
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    /** Temporary files this old were left by a process that died while writing them. */
+    private static final long ABANDONED_TEMPORARY_FILE_AGE_MILLIS = 60 * 60 * 1000;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    /**
+     * @param directory where to keep the decoded audio, which is created if need be
+     * @param maxSizeBytes the most space the decoded audio may take up
+     */
+    public DecodedPcmCache(File directory, long maxSizeBytes) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(maxSizeBytes > 0, "maxSizeBytes must be positive");
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /** Returns the file that holds, or will hold, the decoded audio for the cache key. */
+    /*package*/ File getFile(String cacheKey) {
+        mDirectory.mkdirs();
+        return new File(mDirectory, hash(cacheKey) + FILE_SUFFIX);
+    }
+
+    /** Records that the file has just been played, so that it is evicted last. */
+    /*package*/ void markUsed(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /** Deletes the least recently played files until the rest fit in the maximum size. */
+    /*package*/ synchronized void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        // Read each time once, since a player may mark a file used while this sorts them.
+        final Map<File, Long> lastModified = new HashMap<File, Long>();
+        List<File> cached = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMPORARY_FILE_SUFFIX)
+                    && now - file.lastModified() > ABANDONED_TEMPORARY_FILE_AGE_MILLIS) {
+                file.delete();
+            } else if (file.getName().endsWith(FILE_SUFFIX)) {
+                totalSize += file.length();
+                lastModified.put(file, file.lastModified());
+                cached.add(file);
+            }
+        }
+        Collections.sort(cached, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return lastModified.get(lhs).compareTo(lastModified.get(rhs));
+            }
+        });
+        for (int i = 0; i < cached.size() && totalSize > mMaxSizeBytes; ++i) {
+            File file = cached.get(i);
+            long size = file.length();
+            if (file.delete()) {
+                totalSize -= size;
+            } else {
+                Log.w(TAG, "could not evict " + file);
+            }
+        }
+    }
+
+    /** Returns a name for the cache key that is safe to use for a file. */
+    private static String hash(String cacheKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    cacheKey.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always available", e);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.ex.variablespeed;
 
+import com.google.common.base.Preconditions;
+
 import android.media.AudioManager;
 
 import javax.annotation.concurrent.Immutable;
@@ -38,6 +40,15 @@ import javax.annotation.concurrent.NotThreadSafe;
     private final int mDecodeBufferMaxSize;
     private final int mStartPositionMillis;
     private final int mAudioStreamType;
+    private final boolean mFixedPointProcessing;
+    private final boolean mAdaptiveBuffering;
+    private final int mPlayBufferCountLowerBound;
+    private final int mPlayBufferCountUpperBound;
+    private final int mDecodeBufferMaxSizeLowerBound;
+    private final int mDecodeBufferMaxSizeUpperBound;
+    private final boolean mSkipSilence;
+    private final int mSilenceThreshold;
+    private final int mMaxPauseMillis;
 
     public int getTargetFrames() {
         return mTargetFrames;
@@ -75,9 +86,49 @@ import javax.annotation.concurrent.NotThreadSafe;
         return mAudioStreamType;
     }
 
+    public boolean getFixedPointProcessing() {
+        return mFixedPointProcessing;
+    }
+
+    public boolean getAdaptiveBuffering() {
+        return mAdaptiveBuffering;
+    }
+
+    public int getPlayBufferCountLowerBound() {
+        return mPlayBufferCountLowerBound;
+    }
+
+    public int getPlayBufferCountUpperBound() {
+        return mPlayBufferCountUpperBound;
+    }
+
+    public int getDecodeBufferMaxSizeLowerBound() {
+        return mDecodeBufferMaxSizeLowerBound;
+    }
+
+    public int getDecodeBufferMaxSizeUpperBound() {
+        return mDecodeBufferMaxSizeUpperBound;
+    }
+
+    public boolean getSkipSilence() {
+        return mSkipSilence;
+    }
+
+    public int getSilenceThreshold() {
+        return mSilenceThreshold;
+    }
+
+    public int getMaxPauseMillis() {
+        return mMaxPauseMillis;
+    }
+
     private EngineParameters(int targetFrames, int maxPlayBufferCount, float windowDuration,
             float windowOverlapDuration, float initialRate, int decodeBufferInitialSize,
-            int decodeBufferMaxSize, int startPositionMillis, int audioStreamType) {
+            int decodeBufferMaxSize, int startPositionMillis, int audioStreamType,
+            boolean fixedPointProcessing, boolean adaptiveBuffering,
+            int playBufferCountLowerBound, int playBufferCountUpperBound,
+            int decodeBufferMaxSizeLowerBound, int decodeBufferMaxSizeUpperBound,
+            boolean skipSilence, int silenceThreshold, int maxPauseMillis) {
         mTargetFrames = targetFrames;
         mMaxPlayBufferCount = maxPlayBufferCount;
         mWindowDuration = windowDuration;
@@ -87,6 +138,15 @@ import javax.annotation.concurrent.NotThreadSafe;
         mDecodeBufferMaxSize = decodeBufferMaxSize;
         mStartPositionMillis = startPositionMillis;
         mAudioStreamType = audioStreamType;
+        mFixedPointProcessing = fixedPointProcessing;
+        mAdaptiveBuffering = adaptiveBuffering;
+        mPlayBufferCountLowerBound = playBufferCountLowerBound;
+        mPlayBufferCountUpperBound = playBufferCountUpperBound;
+        mDecodeBufferMaxSizeLowerBound = decodeBufferMaxSizeLowerBound;
+        mDecodeBufferMaxSizeUpperBound = decodeBufferMaxSizeUpperBound;
+        mSkipSilence = skipSilence;
+        mSilenceThreshold = silenceThreshold;
+        mMaxPauseMillis = maxPauseMillis;
     }
 
     /**
@@ -107,12 +167,24 @@ import javax.annotation.concurrent.NotThreadSafe;
         private int mDecodeBufferMaxSize = 20 * 1024;
         private int mStartPositionMillis = 0;
         private int mAudioStreamType = AudioManager.STREAM_MUSIC;
+        private boolean mFixedPointProcessing = false;
+        private boolean mAdaptiveBuffering = false;
+        private int mPlayBufferCountLowerBound = 2;
+        private int mPlayBufferCountUpperBound = 8;
+        private int mDecodeBufferMaxSizeLowerBound = 5 * 1024;
+        private int mDecodeBufferMaxSizeUpperBound = 80 * 1024;
+        private boolean mSkipSilence = false;
+        private int mSilenceThreshold = 500;
+        private int mMaxPauseMillis = 400;
 
         public EngineParameters build() {
             return new EngineParameters(mTargetFrames, mMaxPlayBufferCount,
                     mWindowDuration, mWindowOverlapDuration, mInitialRate,
                     mDecodeBufferInitialSize, mDecodeBufferMaxSize, mStartPositionMillis,
-                    mAudioStreamType);
+                    mAudioStreamType, mFixedPointProcessing, mAdaptiveBuffering,
+                    mPlayBufferCountLowerBound, mPlayBufferCountUpperBound,
+                    mDecodeBufferMaxSizeLowerBound, mDecodeBufferMaxSizeUpperBound,
+                    mSkipSilence, mSilenceThreshold, mMaxPauseMillis);
         }
 
         public Builder maxPlayBufferCount(int maxPlayBufferCount) {
@@ -154,5 +226,65 @@ import javax.annotation.concurrent.NotThreadSafe;
             mAudioStreamType = audioStreamType;
             return this;
         }
+
+        /**
+         * Time-scales 16-bit samples directly in integer arithmetic, rather than converting
+         * them to float and back, for devices without a fast floating point unit.
+         */
+        public Builder fixedPointProcessing(boolean fixedPointProcessing) {
+            mFixedPointProcessing = fixedPointProcessing;
+            return this;
+        }
+
+        /**
+         * Lets the engine grow the play buffer count and decode buffer max size when it
+         * underruns or the player callbacks arrive late, and shrink them again once playback
+         * has been steady for a while, within the bounds set below. The configured max play
+         * buffer count and decode buffer max size are where it starts.
+         */
+        public Builder adaptiveBuffering(boolean adaptiveBuffering) {
+            mAdaptiveBuffering = adaptiveBuffering;
+            return this;
+        }
+
+        public Builder playBufferCountBounds(int lowerBound, int upperBound) {
+            Preconditions.checkArgument(lowerBound >= 1, "need at least one play buffer");
+            Preconditions.checkArgument(lowerBound <= upperBound, "bounds are reversed");
+            mPlayBufferCountLowerBound = lowerBound;
+            mPlayBufferCountUpperBound = upperBound;
+            return this;
+        }
+
+        public Builder decodeBufferMaxSizeBounds(int lowerBound, int upperBound) {
+            Preconditions.checkArgument(lowerBound >= 1, "decode buffer must hold something");
+            Preconditions.checkArgument(lowerBound <= upperBound, "bounds are reversed");
+            mDecodeBufferMaxSizeLowerBound = lowerBound;
+            mDecodeBufferMaxSizeUpperBound = upperBound;
+            return this;
+        }
+
+        /**
+         * Shortens every pause in the audio longer than the max pause duration to that
+         * duration, before it is time scaled. Positions and the duration still refer to the
+         * audio as it was, so seeking is unaffected.
+         */
+        public Builder skipSilence(boolean skipSilence) {
+            mSkipSilence = skipSilence;
+            return this;
+        }
+
+        /** The root mean square level of 16-bit audio below which it counts as silent. */
+        public Builder silenceThreshold(int silenceThreshold) {
+            Preconditions.checkArgument(silenceThreshold >= 0 && silenceThreshold <= 32767,
+                    "silenceThreshold must be a 16-bit level");
+            mSilenceThreshold = silenceThreshold;
+            return this;
+        }
+
+        public Builder maxPauseMillis(int maxPauseMillis) {
+            Preconditions.checkArgument(maxPauseMillis >= 0, "maxPauseMillis must not be negative");
+            mMaxPauseMillis = maxPauseMillis;
+            return this;
+        }
     }
 }
@@ -17,10 +17,13 @@
 package com.android.ex.variablespeed;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
 import android.net.Uri;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.annotation.concurrent.Immutable;
 
@@ -37,32 +40,171 @@ import javax.annotation.concurrent.Immutable;
     private final Context mContext;
     private final Uri mUri;
     private final String mPath;
+    /** A descriptor the caller owns and keeps open, or null. */
+    private final AssetFileDescriptor mFileDescriptor;
+    /**
+     * A direct buffer holding the audio between mBufferOffset and mBufferOffset +
+     * mBufferLength, or null. It holds a WAV file if mSampleRate is zero, and otherwise
+     * interleaved 16-bit samples in native byte order.
+     */
+    private final ByteBuffer mBuffer;
+    private final int mBufferOffset;
+    private final int mBufferLength;
+    private final int mSampleRate;
+    private final int mChannelCount;
 
     public MediaPlayerDataSource(Context context, Uri intentUri) {
-        mContext = context;
-        mUri = intentUri;
-        mPath = null;
+        this(context, intentUri, null, null, null, 0, 0);
     }
 
     public MediaPlayerDataSource(String path) {
-        mContext = null;
-        mUri = null;
+        this(null, null, path, null, null, 0, 0);
+    }
+
+    public MediaPlayerDataSource(AssetFileDescriptor afd) {
+        this(null, null, null, afd, null, 0, 0);
+    }
+
+    /** The buffer's remaining bytes hold a 16-bit PCM WAV file. */
+    public MediaPlayerDataSource(ByteBuffer wav) {
+        this(null, null, null, null, wav, 0, 0);
+    }
+
+    /** The buffer's remaining bytes hold interleaved 16-bit samples in native byte order. */
+    public MediaPlayerDataSource(ByteBuffer pcm, int sampleRate, int channelCount) {
+        this(null, null, null, null, pcm, sampleRate, channelCount);
+    }
+
+    private MediaPlayerDataSource(Context context, Uri intentUri, String path,
+            AssetFileDescriptor afd, ByteBuffer buffer, int sampleRate, int channelCount) {
+        mContext = context;
+        mUri = intentUri;
         mPath = path;
+        mFileDescriptor = afd;
+        mBuffer = buffer;
+        mBufferOffset = buffer == null ? 0 : buffer.position();
+        mBufferLength = buffer == null ? 0 : buffer.remaining();
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
     }
 
     public void setAsSourceFor(MediaPlayer mediaPlayer) throws IOException {
         if (mContext != null) {
             mediaPlayer.setDataSource(mContext, mUri);
+        } else if (mFileDescriptor != null) {
+            if (mFileDescriptor.getDeclaredLength() < 0) {
+                mediaPlayer.setDataSource(mFileDescriptor.getFileDescriptor());
+            } else {
+                mediaPlayer.setDataSource(mFileDescriptor.getFileDescriptor(),
+                        mFileDescriptor.getStartOffset(), mFileDescriptor.getDeclaredLength());
+            }
+        } else if (mBuffer != null) {
+            throw new IOException("audio in memory can only be played by the native engine");
         } else {
             mediaPlayer.setDataSource(mPath);
         }
     }
 
-    public void playNative() throws IOException {
+    /**
+     * Returns the duration in milliseconds, read without decoding any audio, or -1 if it
+     * could not be determined.
+     */
+    public int probeDurationNative() throws IOException {
+        if (mContext != null) {
+            return VariableSpeedNative.probeDurationFromContext(mContext, mUri);
+        } else if (mFileDescriptor != null) {
+            return VariableSpeedNative.probeAssetFileDescriptorDuration(mFileDescriptor);
+        } else if (mBuffer != null && mSampleRate == 0) {
+            return VariableSpeedNative.probeWavBufferDuration(mBuffer, mBufferOffset,
+                    mBufferLength);
+        } else if (mBuffer != null) {
+            long frameCount = mBufferLength / (2 * mChannelCount);
+            return (int) (frameCount * 1000 / mSampleRate);
+        } else {
+            return VariableSpeedNative.probeUriDuration(mPath);
+        }
+    }
+
+    /**
+     * Returns a key identifying this content, for caching facts about it such as its
+     * duration, or null if it has no identity that outlives this object, as for a
+     * descriptor or a buffer. For a file path the key changes whenever the file is modified,
+     * and for a uri whenever the file its content is opened from is, since the same uri may
+     * be given other content, such as a voicemail downloaded again. A uri whose content is
+     * not opened from a file has no key.
+     */
+    public String getCacheKey() throws IOException {
+        if (mContext != null) {
+            String signature = VariableSpeedNative.getContentSignature(mContext, mUri);
+            return signature == null ? null : mUri + ":" + signature;
+        } else if (mFileDescriptor != null || mBuffer != null) {
+            return null;
+        } else {
+            File file = new File(mPath);
+            return mPath + ":" + file.length() + ":" + file.lastModified();
+        }
+    }
+
+    /**
+     * Plays this source on the engine, from the cache if it holds the decoded PCM, and
+     * otherwise decoding it and adding the PCM to the cache. The cache may be null, and is
+     * not used for content without a cache key.
+     */
+    public void playNative(long engine, DecodedPcmCache cache) throws IOException {
+        if (mBuffer != null && mSampleRate == 0) {
+            if (!VariableSpeedNative.playWavBuffer(engine, mBuffer, mBufferOffset,
+                    mBufferLength)) {
+                throw new IOException("buffer does not hold a 16-bit PCM WAV file");
+            }
+            return;
+        } else if (mBuffer != null) {
+            if (!VariableSpeedNative.playPcmBuffer(engine, mBuffer, mBufferOffset,
+                    mBufferLength, mSampleRate, mChannelCount)) {
+                throw new IOException("buffer is not aligned for 16-bit samples");
+            }
+            return;
+        }
+        String cacheKey = cache == null ? null : getCacheKey();
+        if (cacheKey != null) {
+            File file = cache.getFile(cacheKey);
+            if (file.exists()) {
+                cache.markUsed(file);
+                if (VariableSpeedNative.playCachedPcm(engine, file.getPath())) {
+                    return;
+                }
+                // Unreadable, so decode it again in its place.
+                file.delete();
+            }
+            VariableSpeedNative.cacheDecodedPcm(engine, file.getPath());
+        }
+        if (mContext != null) {
+            VariableSpeedNative.playFromContext(engine, mContext, mUri);
+        } else if (mFileDescriptor != null) {
+            VariableSpeedNative.playAssetFileDescriptor(engine, mFileDescriptor);
+        } else {
+            VariableSpeedNative.playUri(engine, mPath);
+        }
+    }
+
+    /**
+     * Queues this source to play after everything the engine is already playing, starting
+     * at startMillis on the engine's timeline.
+     *
+     * @return the descriptor the engine will read a content uri through, which must be kept
+     *         open until the engine has finished, or null if there is none
+     * @throws IOException for audio in memory, which the engine can only play, not queue
+     */
+    public AssetFileDescriptor queueNative(long engine, int startMillis) throws IOException {
         if (mContext != null) {
-            VariableSpeedNative.playFromContext(mContext, mUri);
+            return VariableSpeedNative.queueFromContext(engine, mContext, mUri, startMillis);
+        } else if (mFileDescriptor != null) {
+            VariableSpeedNative.queueAssetFileDescriptor(engine, mFileDescriptor, startMillis);
+            return null;
+        } else if (mBuffer != null) {
+            throw new IOException("audio in memory cannot be queued");
         } else {
-            VariableSpeedNative.playUri(mPath);
+            VariableSpeedNative.queueUri(engine, mPath, startMillis);
+            return null;
         }
     }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.variablespeed;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Renders a time-scaled copy of an audio file, as fast as the processor allows.
+ * <p>
+ * This uses the same time scaling as {@link VariableSpeed}, but reads the input and
+ * writes the output directly rather than playing it, so the input must already be
+ * decoded to a 16-bit PCM wav file.
+ * <p>
+ * The speed may be changed at points in the input by calling
+ * {@link #addSpeedChange(int, float)} before rendering.
+ * <p>
+ * This class is not thread safe, you should confine its use to one thread
+ * or provide your own synchronization. Rendering blocks the calling thread, so
+ * it should not be called from the main thread.
+ */
+@NotThreadSafe
+public final class OfflineRenderer {
+    private final float mInitialSpeed;
+    private final List<Integer> mChangePositionsMillis = new ArrayList<Integer>();
+    private final List<Float> mChangeSpeeds = new ArrayList<Float>();
+
+    /** Creates a renderer playing the whole input at the given speed. */
+    public OfflineRenderer(float speed) {
+        Preconditions.checkArgument(speed > 0, "speed must be positive");
+        mInitialSpeed = speed;
+        try {
+            VariableSpeedNative.loadLibrary();
+        } catch (UnsatisfiedLinkError e) {
+            throw new UnsupportedOperationException("could not load library", e);
+        } catch (SecurityException e) {
+            throw new UnsupportedOperationException("could not load library", e);
+        }
+    }
+
+    /**
+     * Plays the input from positionMillis onwards at the given speed, until the next
+     * change. Changes must be added in increasing order of position.
+     */
+    public OfflineRenderer addSpeedChange(int positionMillis, float speed) {
+        Preconditions.checkArgument(speed > 0, "speed must be positive");
+        Preconditions.checkArgument(mChangePositionsMillis.isEmpty()
+                || mChangePositionsMillis.get(mChangePositionsMillis.size() - 1)
+                        <= positionMillis, "changes must be in order of position");
+        mChangePositionsMillis.add(positionMillis);
+        mChangeSpeeds.add(speed);
+        return this;
+    }
+
+    /**
+     * Renders input to output, both 16-bit PCM wav files.
+     *
+     * @return the number of frames written
+     * @throws IOException if the input could not be read or the output written
+     */
+    public long render(File input, File output) throws IOException {
+        EngineParameters params = new EngineParameters.Builder().build();
+        int[] positions = new int[mChangePositionsMillis.size()];
+        float[] speeds = new float[mChangeSpeeds.size()];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = mChangePositionsMillis.get(i);
+            speeds[i] = mChangeSpeeds.get(i);
+        }
+        long frames = VariableSpeedNative.renderWavFile(input.getAbsolutePath(),
+                output.getAbsolutePath(), mInitialSpeed, positions, speeds,
+                params.getWindowDuration(), params.getWindowOverlapDuration());
+        if (frames < 0) {
+            throw new IOException("could not render " + input + " to " + output);
+        }
+        return frames;
+    }
+}
@@ -17,10 +17,14 @@
 package com.android.ex.variablespeed;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 /**
  * Simple wrapper around a {@link MediaPlayerProxy}, guaranteeing that every call made to the
@@ -64,6 +68,22 @@ public class SingleThreadedMediaPlayerProxy implements MediaPlayerProxy {
         mDelegate.setDataSource(context, intentUri);
     }
 
+    public synchronized void setDataSource(ParcelFileDescriptor pfd) {
+        ((VariableSpeed) mDelegate).setDataSource(pfd);
+    }
+
+    public synchronized void setDataSource(AssetFileDescriptor afd) {
+        ((VariableSpeed) mDelegate).setDataSource(afd);
+    }
+
+    public synchronized void setDataSource(ByteBuffer wav) {
+        ((VariableSpeed) mDelegate).setDataSource(wav);
+    }
+
+    public synchronized void setDataSource(ByteBuffer pcm, int sampleRate, int channelCount) {
+        ((VariableSpeed) mDelegate).setDataSource(pcm, sampleRate, channelCount);
+    }
+
     @Override
     public synchronized void prepare() throws IOException {
         mDelegate.prepare();
@@ -103,6 +123,67 @@ public class SingleThreadedMediaPlayerProxy implements MediaPlayerProxy {
         ((VariableSpeed) mDelegate).setVariableSpeed(rate);
     }
 
+    public void setFixedPointProcessing(boolean fixedPointProcessing) {
+        ((VariableSpeed) mDelegate).setFixedPointProcessing(fixedPointProcessing);
+    }
+
+    public void setWaveformListener(WaveformListener listener, int bucketMillis) {
+        ((VariableSpeed) mDelegate).setWaveformListener(listener, bucketMillis);
+    }
+
+    public void setSkipSilence(boolean skipSilence) {
+        ((VariableSpeed) mDelegate).setSkipSilence(skipSilence);
+    }
+
+    public void setAdaptiveBuffering(boolean adaptiveBuffering) {
+        ((VariableSpeed) mDelegate).setAdaptiveBuffering(adaptiveBuffering);
+    }
+
+    public void setDecodedPcmCache(DecodedPcmCache cache) {
+        ((VariableSpeed) mDelegate).setDecodedPcmCache(cache);
+    }
+
+    public VariableSpeedStats getStats() {
+        return ((VariableSpeed) mDelegate).getStats();
+    }
+
+    public synchronized void setOnPreparedListener(MediaPlayer.OnPreparedListener listener) {
+        ((VariableSpeed) mDelegate).setOnPreparedListener(listener);
+    }
+
+    public synchronized Future<Void> prepareAsync() {
+        return ((VariableSpeed) mDelegate).prepareAsync();
+    }
+
+    public synchronized Future<Void> startAsync() {
+        return ((VariableSpeed) mDelegate).startAsync();
+    }
+
+    public synchronized Future<Void> pauseAsync() {
+        return ((VariableSpeed) mDelegate).pauseAsync();
+    }
+
+    public synchronized Future<Void> resetAsync() {
+        return ((VariableSpeed) mDelegate).resetAsync();
+    }
+
+    public synchronized Future<Void> releaseAsync() {
+        return ((VariableSpeed) mDelegate).releaseAsync();
+    }
+
+    public synchronized void enqueueDataSource(String path) throws IOException {
+        ((VariableSpeed) mDelegate).enqueueDataSource(path);
+    }
+
+    public synchronized void enqueueDataSource(Context context, Uri intentUri)
+            throws IOException {
+        ((VariableSpeed) mDelegate).enqueueDataSource(context, intentUri);
+    }
+
+    public synchronized void enqueueDataSource(AssetFileDescriptor afd) throws IOException {
+        ((VariableSpeed) mDelegate).enqueueDataSource(afd);
+    }
+
     @Override
     public synchronized void pause() {
         mDelegate.pause();
@@ -16,16 +16,30 @@
 
 package com.android.ex.variablespeed;
 
+import com.android.common.io.MoreCloseables;
 import com.google.common.base.Preconditions;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -44,11 +58,31 @@ import javax.annotation.concurrent.ThreadSafe;
  * The easiest way to ensure that calls to this class are not made concurrently
  * (besides only ever accessing it from one thread) is to wrap it in a
  * {@link SingleThreadedMediaPlayerProxy}, designed just for this purpose.
+ * <p>
+ * Each instance owns its own native engine, so several instances may play at the
+ * same time.
+ * <p>
+ * Further sources may be queued behind the data source with
+ * {@link #enqueueDataSource(String)}, to be played one after another without a gap.
+ * <p>
+ * {@link #prepareAsync()}, {@link #startAsync()}, {@link #pauseAsync()},
+ * {@link #resetAsync()} and {@link #releaseAsync()} do their work on the executor, so
+ * that the calling thread never waits on I/O or on the native engine.
  */
 @ThreadSafe
 public class VariableSpeed implements MediaPlayerProxy {
     private static final String TAG = "VariableSpeed";
 
+    /** Matches any generation, for the methods that do their work on the calling thread. */
+    private static final int ANY_GENERATION = -1;
+
+    /**
+     * Durations of content already prepared by any instance, keyed by
+     * {@link MediaPlayerDataSource#getCacheKey()}, so that preparing it again is free.
+     */
+    private static final LruCache<String, Integer> sDurationCache =
+            new LruCache<String, Integer>(64);
+
     private final Executor mExecutor;
     private final Object lock = new Object();
     @GuardedBy("lock") private MediaPlayerDataSource mDataSource;
@@ -64,7 +98,50 @@ public class VariableSpeed implements MediaPlayerProxy {
     @GuardedBy("lock") private float mCurrentPlaybackRate = 1.0f;
     @GuardedBy("lock") private int mDuration;
     @GuardedBy("lock") private MediaPlayer.OnCompletionListener mCompletionListener;
+    @GuardedBy("lock") private MediaPlayer.OnPreparedListener mPreparedListener;
+    @GuardedBy("lock") private MediaPlayer.OnErrorListener mErrorListener;
+    /**
+     * Incremented by every reset, so that work started before a reset can tell that the
+     * state it was started for has gone.
+     */
+    @GuardedBy("lock") private int mGeneration;
+    /** Work from the asynchronous methods that has not finished yet. */
+    @GuardedBy("lock") private final List<PendingWork> mPendingWork = new ArrayList<PendingWork>();
     @GuardedBy("lock") private int mAudioStreamType;
+    @GuardedBy("lock") private boolean mFixedPointProcessing;
+    @GuardedBy("lock") private boolean mAdaptiveBuffering;
+    @GuardedBy("lock") private boolean mSkipSilence;
+    /** Receives the envelope of the data source, or null if none is wanted. */
+    @GuardedBy("lock") private WaveformListener mWaveformListener;
+    @GuardedBy("lock") private int mWaveformBucketMillis;
+    /** Where to keep and find decoded audio, or null to decode every time. */
+    @GuardedBy("lock") private DecodedPcmCache mDecodedPcmCache;
+    /** Handle to the native engine, or zero if none has been initialized. */
+    @GuardedBy("lock") private long mEngine;
+    /**
+     * The position the native engine has played up to, which it writes into this buffer
+     * without locking, or null unless playback is in progress. Reading it needs no lock,
+     * so that polling the position does not contend with playback.
+     */
+    private volatile ByteBuffer mPlayedPosition;
+    /** The sources to play after the data source, in order. */
+    @GuardedBy("lock") private final List<MediaPlayerDataSource> mQueuedSources =
+            new ArrayList<MediaPlayerDataSource>();
+    /** The duration of each of the queued sources. */
+    @GuardedBy("lock") private final List<Integer> mQueuedDurations = new ArrayList<Integer>();
+    /** How many of the queued sources have been handed to the native engine. */
+    @GuardedBy("lock") private int mQueuedSourcesInEngine;
+    /** Descriptors that the native engine reads queued content through, while it plays. */
+    @GuardedBy("lock") private final List<AssetFileDescriptor> mQueuedSourceFiles =
+            new ArrayList<AssetFileDescriptor>();
+    /**
+     * Where each item starts on the timeline the native engine reports positions on: the
+     * data source first, then each queued source. It is replaced rather than modified, so
+     * that it can be read along with {@link #mPlayedPosition} without the lock.
+     */
+    private volatile int[] mSourceStartMillis = new int[] { 0 };
+    /** The item that was playing when playback last finished. */
+    @GuardedBy("lock") private int mFinishedItem;
 
     private VariableSpeed(Executor executor) throws UnsupportedOperationException {
         Preconditions.checkNotNull(executor);
@@ -96,7 +173,16 @@ public class VariableSpeed implements MediaPlayerProxy {
     public void setOnErrorListener(MediaPlayer.OnErrorListener listener) {
         synchronized (lock) {
             check(!mHasBeenReleased, "has been released, reset before use");
-            // TODO: I haven't actually added any error listener code.
+            // TODO: Only errors from the asynchronous methods are reported so far.
+            mErrorListener = listener;
+        }
+    }
+
+    /** Sets the listener told when {@link #prepareAsync()} has finished preparing. */
+    public void setOnPreparedListener(MediaPlayer.OnPreparedListener listener) {
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            mPreparedListener = listener;
         }
     }
 
@@ -107,20 +193,58 @@ public class VariableSpeed implements MediaPlayerProxy {
                 return;
             }
             mHasBeenReleased = true;
+            mPlayedPosition = null;
         }
+        cancelPendingWork();
         stopCurrentPlayback();
-        boolean requiresShutdown = false;
+        long engine = 0;
         synchronized (lock) {
-            requiresShutdown = hasEngineBeenInitialized();
+            if (hasEngineBeenInitialized()) {
+                engine = mEngine;
+            }
         }
-        if (requiresShutdown) {
-            VariableSpeedNative.shutdownEngine();
+        if (engine != 0) {
+            VariableSpeedNative.shutdownEngine(engine);
         }
         synchronized (lock) {
+            mEngine = 0;
             mIsReadyToReUse = true;
         }
     }
 
+    /**
+     * Releases on the executor, as {@link #pauseAsync()} pauses. The returned Future
+     * completes once the native engine has been shut down, and the player may then be
+     * reset.
+     */
+    public Future<Void> releaseAsync() {
+        return submitPendingWork(new Callable<Void>() {
+            @Override
+            public Void call() {
+                release();
+                return null;
+            }
+        }, false);
+    }
+
+    /**
+     * Cancels the work still pending from the asynchronous methods, none of which will
+     * report to a listener. Work already running is left to finish, and its results are
+     * discarded once it sees the generation has changed. The work calling this, when a
+     * start restarts playback or when it is itself a reset or release, is not cancelled.
+     */
+    private void cancelPendingWork() {
+        List<PendingWork> pendingWork;
+        synchronized (lock) {
+            pendingWork = new ArrayList<PendingWork>(mPendingWork);
+        }
+        for (PendingWork work : pendingWork) {
+            if (!work.isRunningOnThisThread()) {
+                work.cancel(false);
+            }
+        }
+    }
+
     private boolean hasEngineBeenInitialized() {
         return mEngineInitializedLatch.getCount() <= 0;
     }
@@ -136,17 +260,19 @@ public class VariableSpeed implements MediaPlayerProxy {
         boolean isPlaying;
         CountDownLatch engineInitializedLatch;
         CountDownLatch playbackFinishedLatch;
+        long engine;
         synchronized (lock) {
             isPlaying = mHasStartedPlayback && !hasPlaybackFinished();
             engineInitializedLatch = mEngineInitializedLatch;
             playbackFinishedLatch = mPlaybackFinishedLatch;
+            engine = mEngine;
             if (isPlaying) {
                 mSkipCompletionReport = true;
             }
         }
         if (isPlaying) {
             waitForLatch(engineInitializedLatch);
-            VariableSpeedNative.stopPlayback();
+            VariableSpeedNative.stopPlayback(engine);
             waitForLatch(playbackFinishedLatch);
         }
     }
@@ -177,6 +303,54 @@ public class VariableSpeed implements MediaPlayerProxy {
         innerSetDataSource(new MediaPlayerDataSource(path));
     }
 
+    /**
+     * Plays the whole file open on the descriptor, whose number is passed straight to the
+     * native engine. The caller keeps ownership of the descriptor, and must keep it open until
+     * after the next {@link #reset()} or {@link #release()}.
+     */
+    public void setDataSource(ParcelFileDescriptor pfd) {
+        checkNotNull(pfd, "pfd");
+        innerSetDataSource(new MediaPlayerDataSource(
+                new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH)));
+    }
+
+    /**
+     * Plays the part of a file the descriptor covers, such as an asset or a raw resource. The
+     * caller keeps ownership of the descriptor, as for
+     * {@link #setDataSource(ParcelFileDescriptor)}.
+     */
+    public void setDataSource(AssetFileDescriptor afd) {
+        checkNotNull(afd, "afd");
+        innerSetDataSource(new MediaPlayerDataSource(afd));
+    }
+
+    /**
+     * Plays a 16-bit PCM WAV file held in the remaining bytes of a direct buffer, reading its
+     * samples in place rather than writing them out to be decoded. The buffer's content must
+     * not change until after the next {@link #reset()} or {@link #release()}.
+     */
+    public void setDataSource(ByteBuffer wav) {
+        checkNotNull(wav, "wav");
+        Preconditions.checkArgument(wav.isDirect(), "wav must be a direct buffer");
+        Preconditions.checkArgument(VariableSpeedNative.isSampleAligned(wav, wav.position()),
+                "samples must be aligned for 16-bit reads");
+        innerSetDataSource(new MediaPlayerDataSource(wav));
+    }
+
+    /**
+     * Plays interleaved 16-bit samples in native byte order, held in the remaining bytes of a
+     * direct buffer, as {@link #setDataSource(ByteBuffer)} does for a WAV file.
+     */
+    public void setDataSource(ByteBuffer pcm, int sampleRate, int channelCount) {
+        checkNotNull(pcm, "pcm");
+        Preconditions.checkArgument(pcm.isDirect(), "pcm must be a direct buffer");
+        Preconditions.checkArgument(VariableSpeedNative.isSampleAligned(pcm, pcm.position()),
+                "samples must be aligned for 16-bit reads");
+        Preconditions.checkArgument(sampleRate > 0, "sampleRate must be positive");
+        Preconditions.checkArgument(channelCount > 0, "channelCount must be positive");
+        innerSetDataSource(new MediaPlayerDataSource(pcm, sampleRate, channelCount));
+    }
+
     private void innerSetDataSource(MediaPlayerDataSource source) {
         checkNotNull(source, "source");
         synchronized (lock) {
@@ -208,32 +382,213 @@ public class VariableSpeed implements MediaPlayerProxy {
             mSkipCompletionReport = false;
             mStartPosition = 0;
             mDuration = 0;
+            mQueuedSources.clear();
+            mQueuedDurations.clear();
+            mQueuedSourcesInEngine = 0;
+            mSourceStartMillis = new int[] { 0 };
+            mFinishedItem = 0;
+            mGeneration++;
         }
     }
 
+    /**
+     * Resets on the executor, as {@link #pauseAsync()} pauses. The player may be used again
+     * once the returned Future has completed.
+     */
+    public Future<Void> resetAsync() {
+        return submitPendingWork(new Callable<Void>() {
+            @Override
+            public Void call() {
+                reset();
+                return null;
+            }
+        }, false);
+    }
+
     @Override
     public void prepare() throws IOException {
+        innerPrepare(ANY_GENERATION);
+    }
+
+    /**
+     * Prepares on the executor, then calls the {@link MediaPlayer.OnPreparedListener}, or the
+     * {@link MediaPlayer.OnErrorListener} if preparing fails.
+     * <p>
+     * The returned Future may be cancelled, as it is by {@link #reset()} and
+     * {@link #release()}, after which neither listener will be called.
+     */
+    public Future<Void> prepareAsync() {
+        final int generation;
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            check(mDataSource != null, "must setDataSource before you prepare");
+            check(!mIsPrepared, "cannot prepare more than once");
+            generation = mGeneration;
+        }
+        return submitPendingWork(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                innerPrepare(generation);
+                return null;
+            }
+        }, true);
+    }
+
+    private void innerPrepare(int expectedGeneration) throws IOException {
         MediaPlayerDataSource dataSource;
         int audioStreamType;
+        int generation;
         synchronized (lock) {
+            checkGeneration(expectedGeneration);
             check(!mHasBeenReleased, "has been released, reset before use");
             check(mDataSource != null, "must setDataSource before you prepare");
             check(!mIsPrepared, "cannot prepare more than once");
             mIsPrepared = true;
             dataSource = mDataSource;
             audioStreamType = mAudioStreamType;
+            generation = mGeneration;
         }
-        // NYI This should become another executable that we can wait on.
-        MediaPlayer mediaPlayer = new MediaPlayer();
-        mediaPlayer.setAudioStreamType(audioStreamType);
-        dataSource.setAsSourceFor(mediaPlayer);
-        mediaPlayer.prepare();
+        int duration = lookUpDuration(dataSource, audioStreamType);
         synchronized (lock) {
+            checkGeneration(generation);
             check(!mHasDuration, "can't have duration, this is impossible");
             mHasDuration = true;
-            mDuration = mediaPlayer.getDuration();
+            mDuration = duration;
+        }
+    }
+
+    /**
+     * Queues a source to play, without a gap, once the data source and every source queued
+     * before it have played. Like {@link #prepare()} this reads the duration of the source,
+     * so may block, and it may only be called once prepared.
+     * <p>
+     * While a queued source is playing, {@link #getCurrentPosition()}, {@link #getDuration()}
+     * and {@link #seekTo(int)} refer to it. Completion is reported once, after the last.
+     */
+    public void enqueueDataSource(String path) throws IOException {
+        checkNotNull(path, "path");
+        innerEnqueueDataSource(new MediaPlayerDataSource(path));
+    }
+
+    public void enqueueDataSource(Context context, Uri intentUri) throws IOException {
+        checkNotNull(context, "context");
+        checkNotNull(intentUri, "intentUri");
+        innerEnqueueDataSource(new MediaPlayerDataSource(context, intentUri));
+    }
+
+    /**
+     * Queues the part of a file the descriptor covers. The caller keeps ownership of the
+     * descriptor, and must keep it open until after the next {@link #reset()} or
+     * {@link #release()}. Audio in memory can't be queued.
+     */
+    public void enqueueDataSource(AssetFileDescriptor afd) throws IOException {
+        checkNotNull(afd, "afd");
+        innerEnqueueDataSource(new MediaPlayerDataSource(afd));
+    }
+
+    private void innerEnqueueDataSource(MediaPlayerDataSource source) throws IOException {
+        int audioStreamType;
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            check(mHasDuration, "must prepare before you enqueue");
+            audioStreamType = mAudioStreamType;
+        }
+        int duration = lookUpDuration(source, audioStreamType);
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            check(mHasDuration, "must prepare before you enqueue");
+            int[] sourceStartMillis = Arrays.copyOf(mSourceStartMillis,
+                    mSourceStartMillis.length + 1);
+            int lastItem = sourceStartMillis.length - 2;
+            sourceStartMillis[lastItem + 1] = sourceStartMillis[lastItem] + getDuration(lastItem);
+            mQueuedSources.add(source);
+            mQueuedDurations.add(duration);
+            mSourceStartMillis = sourceStartMillis;
+            if (mHasStartedPlayback && !hasPlaybackFinished()) {
+                queueSourcesInEngine();
+            }
+        }
+    }
+
+    /** Hands the queued sources that the running native engine doesn't have yet to it. */
+    @GuardedBy("lock")
+    private void queueSourcesInEngine() {
+        while (mQueuedSourcesInEngine < mQueuedSources.size()) {
+            MediaPlayerDataSource source = mQueuedSources.get(mQueuedSourcesInEngine);
+            mQueuedSourcesInEngine++;
+            try {
+                AssetFileDescriptor afd = source.queueNative(mEngine,
+                        mSourceStartMillis[mQueuedSourcesInEngine]);
+                if (afd != null) {
+                    mQueuedSourceFiles.add(afd);
+                }
+            } catch (IOException e) {
+                reportException(e);
+            }
+        }
+    }
+
+    /** Returns the item the given position on the native engine's timeline falls in. */
+    private static int getItemAt(int[] sourceStartMillis, int position) {
+        int item = 0;
+        while (item + 1 < sourceStartMillis.length && sourceStartMillis[item + 1] <= position) {
+            item++;
+        }
+        return item;
+    }
+
+    /** Returns the item being played, or that was playing when playback finished. */
+    @GuardedBy("lock")
+    private int getCurrentItem() {
+        ByteBuffer playedPosition = mPlayedPosition;
+        if (playedPosition != null) {
+            return getItemAt(mSourceStartMillis, playedPosition.getInt(0));
+        }
+        return mFinishedItem;
+    }
+
+    @GuardedBy("lock")
+    private int getDuration(int item) {
+        return item == 0 ? mDuration : mQueuedDurations.get(item - 1);
+    }
+
+    /**
+     * Returns the duration of the given source, from the cache if any instance has
+     * already read it.
+     */
+    private static int lookUpDuration(MediaPlayerDataSource dataSource, int audioStreamType)
+            throws IOException {
+        String cacheKey = dataSource.getCacheKey();
+        if (cacheKey == null) {
+            return probeDuration(dataSource, audioStreamType);
+        }
+        Integer duration = sDurationCache.get(cacheKey);
+        if (duration == null) {
+            duration = probeDuration(dataSource, audioStreamType);
+            sDurationCache.put(cacheKey, duration);
+        }
+        return duration;
+    }
+
+    /**
+     * Reads the duration by letting the native engine prefetch the start of the content,
+     * falling back to preparing a full MediaPlayer if that fails.
+     */
+    private static int probeDuration(MediaPlayerDataSource dataSource, int audioStreamType)
+            throws IOException {
+        int duration = dataSource.probeDurationNative();
+        if (duration >= 0) {
+            return duration;
+        }
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        try {
+            mediaPlayer.setAudioStreamType(audioStreamType);
+            dataSource.setAsSourceFor(mediaPlayer);
+            mediaPlayer.prepare();
+            return mediaPlayer.getDuration();
+        } finally {
+            mediaPlayer.release();
         }
-        mediaPlayer.release();
     }
 
     @Override
@@ -241,32 +596,33 @@ public class VariableSpeed implements MediaPlayerProxy {
         synchronized (lock) {
             check(!mHasBeenReleased, "has been released, reset before use");
             check(mHasDuration, "you haven't called prepare, can't get the duration");
-            return mDuration;
+            return getDuration(getCurrentItem());
         }
     }
 
     @Override
     public void seekTo(int startPosition) {
-        boolean currentlyPlaying;
-        MediaPlayerDataSource dataSource;
         synchronized (lock) {
             check(!mHasBeenReleased, "has been released, reset before use");
             check(mHasDuration, "you can't seek until you have prepared");
-            currentlyPlaying = mHasStartedPlayback && !hasPlaybackFinished();
-            mStartPosition = Math.min(startPosition, mDuration);
-            dataSource = mDataSource;
-        }
-        if (currentlyPlaying) {
-            stopAndStartPlayingAgain(dataSource);
+            mStartPosition = Math.min(startPosition, getDuration(getCurrentItem()));
+            if (mHasStartedPlayback && !hasPlaybackFinished()) {
+                // Reposition the running engine rather than starting a new one.
+                VariableSpeedNative.seekTo(mEngine, mStartPosition);
+            }
         }
     }
 
-    private void stopAndStartPlayingAgain(MediaPlayerDataSource source) {
+    private void stopAndStartPlayingAgain(MediaPlayerDataSource source,
+            List<MediaPlayerDataSource> queuedSources) {
         stopCurrentPlayback();
         reset();
         innerSetDataSource(source);
         try {
             prepare();
+            for (MediaPlayerDataSource queuedSource : queuedSources) {
+                innerEnqueueDataSource(queuedSource);
+            }
         } catch (IOException e) {
             reportException(e);
             return;
@@ -281,8 +637,37 @@ public class VariableSpeed implements MediaPlayerProxy {
 
     @Override
     public void start() {
+        innerStart(ANY_GENERATION);
+    }
+
+    /**
+     * Starts on the executor, so that the calling thread doesn't wait if playback has to be
+     * stopped and restarted. Calls the {@link MediaPlayer.OnErrorListener} if starting fails.
+     * <p>
+     * The executor must be able to run this alongside any playback in progress. The returned
+     * Future may be cancelled, as it is by {@link #reset()} and {@link #release()}.
+     */
+    public Future<Void> startAsync() {
+        final int generation;
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            check(mIsPrepared, "must have prepared before you can start");
+            generation = mGeneration;
+        }
+        return submitPendingWork(new Callable<Void>() {
+            @Override
+            public Void call() {
+                innerStart(generation);
+                return null;
+            }
+        }, false);
+    }
+
+    private void innerStart(int expectedGeneration) {
         MediaPlayerDataSource restartWithThisDataSource = null;
+        List<MediaPlayerDataSource> restartWithTheseQueued = null;
         synchronized (lock) {
+            checkGeneration(expectedGeneration);
             check(!mHasBeenReleased, "has been released, reset before use");
             check(mIsPrepared, "must have prepared before you can start");
             if (!mHasStartedPlayback) {
@@ -292,44 +677,154 @@ public class VariableSpeed implements MediaPlayerProxy {
                         .initialRate(mCurrentPlaybackRate)
                         .startPositionMillis(mStartPosition)
                         .audioStreamType(mAudioStreamType)
+                        .fixedPointProcessing(mFixedPointProcessing)
+                        .adaptiveBuffering(mAdaptiveBuffering)
+                        .skipSilence(mSkipSilence)
                         .build();
-                VariableSpeedNative.initializeEngine(engineParameters);
-                VariableSpeedNative.startPlayback();
+                ByteBuffer playedPosition =
+                        ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+                mEngine = VariableSpeedNative.initializeEngine(engineParameters,
+                        playedPosition);
+                if (mWaveformListener != null) {
+                    VariableSpeedNative.setWaveformListener(mEngine, mWaveformListener,
+                            mWaveformBucketMillis);
+                }
+                VariableSpeedNative.startPlayback(mEngine);
+                mPlayedPosition = playedPosition;
+                queueSourcesInEngine();
                 mEngineInitializedLatch.countDown();
-                mExecutor.execute(new PlaybackRunnable(mDataSource));
+                mExecutor.execute(
+                        new PlaybackRunnable(mDataSource, mEngine, mDecodedPcmCache));
             } else {
-                // Playback has already started. Restart it, without holding the
-                // lock.
-                restartWithThisDataSource = mDataSource;
+                // Playback has already started. Restart it from the current item,
+                // keeping the items after it queued, without holding the lock.
+                int item = getCurrentItem();
+                restartWithThisDataSource =
+                        item == 0 ? mDataSource : mQueuedSources.get(item - 1);
+                restartWithTheseQueued = new ArrayList<MediaPlayerDataSource>(
+                        mQueuedSources.subList(item, mQueuedSources.size()));
             }
         }
         if (restartWithThisDataSource != null) {
-            stopAndStartPlayingAgain(restartWithThisDataSource);
+            stopAndStartPlayingAgain(restartWithThisDataSource, restartWithTheseQueued);
+        }
+    }
+
+    /** Throws if the player has been reset since the given generation. */
+    @GuardedBy("lock")
+    private void checkGeneration(int generation) {
+        if (generation != ANY_GENERATION && generation != mGeneration) {
+            throw new CancellationException("reset while in progress");
+        }
+    }
+
+    private Future<Void> submitPendingWork(Callable<Void> callable, boolean reportPrepared) {
+        PendingWork work = new PendingWork(callable, reportPrepared);
+        synchronized (lock) {
+            mPendingWork.add(work);
+        }
+        mExecutor.execute(work);
+        return work;
+    }
+
+    /** Work run on the executor, which reports how it went to the listeners. */
+    private final class PendingWork extends FutureTask<Void> {
+        private final boolean mReportPrepared;
+        private volatile Thread mRunner;
+
+        public PendingWork(Callable<Void> callable, boolean reportPrepared) {
+            super(callable);
+            mReportPrepared = reportPrepared;
+        }
+
+        public boolean isRunningOnThisThread() {
+            return mRunner == Thread.currentThread();
+        }
+
+        @Override
+        public void run() {
+            mRunner = Thread.currentThread();
+            try {
+                super.run();
+            } finally {
+                mRunner = null;
+            }
+        }
+
+        @Override
+        protected void done() {
+            MediaPlayer.OnPreparedListener preparedListener;
+            MediaPlayer.OnErrorListener errorListener;
+            synchronized (lock) {
+                mPendingWork.remove(this);
+                preparedListener = mPreparedListener;
+                errorListener = mErrorListener;
+            }
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                get();
+            } catch (InterruptedException e) {
+                // Can't happen, the work is done.
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    // Reset while it was running, no longer of interest to anyone.
+                    return;
+                }
+                reportException(e);
+                if (errorListener != null) {
+                    errorListener.onError(null, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+                }
+                return;
+            }
+            if (mReportPrepared && preparedListener != null) {
+                preparedListener.onPrepared(null);
+            }
         }
     }
 
     /** A Runnable capable of driving the native audio playback methods. */
     private final class PlaybackRunnable implements Runnable {
         private final MediaPlayerDataSource mInnerSource;
+        private final long mInnerEngine;
+        private final DecodedPcmCache mInnerCache;
 
-        public PlaybackRunnable(MediaPlayerDataSource source) {
+        public PlaybackRunnable(MediaPlayerDataSource source, long engine,
+                DecodedPcmCache cache) {
             mInnerSource = source;
+            mInnerEngine = engine;
+            mInnerCache = cache;
         }
 
         @Override
         public void run() {
             try {
-                mInnerSource.playNative();
+                mInnerSource.playNative(mInnerEngine, mInnerCache);
             } catch (IOException e) {
                 Log.e(TAG, "error playing audio", e);
             }
+            if (mInnerCache != null) {
+                // Make room for anything this playback added.
+                mInnerCache.trim();
+            }
             MediaPlayer.OnCompletionListener completionListener;
             boolean skipThisCompletionReport;
+            List<AssetFileDescriptor> queuedSourceFiles;
             synchronized (lock) {
                 completionListener = mCompletionListener;
                 skipThisCompletionReport = mSkipCompletionReport;
+                mFinishedItem = getCurrentItem();
+                mPlayedPosition = null;
+                queuedSourceFiles = new ArrayList<AssetFileDescriptor>(mQueuedSourceFiles);
+                mQueuedSourceFiles.clear();
                 mPlaybackFinishedLatch.countDown();
             }
+            for (AssetFileDescriptor afd : queuedSourceFiles) {
+                MoreCloseables.closeQuietly(afd);
+            }
             if (!skipThisCompletionReport && completionListener != null) {
                 completionListener.onCompletion(null);
             }
@@ -352,6 +847,13 @@ public class VariableSpeed implements MediaPlayerProxy {
 
     @Override
     public int getCurrentPosition() {
+        ByteBuffer playedPosition = mPlayedPosition;
+        if (playedPosition != null) {
+            // The engine counts through all the items, report the position in the current one.
+            int position = playedPosition.getInt(0);
+            int[] sourceStartMillis = mSourceStartMillis;
+            return position - sourceStartMillis[getItemAt(sourceStartMillis, position)];
+        }
         synchronized (lock) {
             check(!mHasBeenReleased, "has been released, reset before use");
             if (!mHasStartedPlayback) {
@@ -361,15 +863,59 @@ public class VariableSpeed implements MediaPlayerProxy {
                 return 0;
             }
             if (!hasPlaybackFinished()) {
-                return VariableSpeedNative.getCurrentPosition();
+                return mStartPosition;
+            }
+            return getDuration(mFinishedItem);
+        }
+    }
+
+    /**
+     * Returns the counters kept by the native engine for the current playback, or all zero
+     * counters if playback has not started.
+     */
+    public VariableSpeedStats getStats() {
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            if (!mHasStartedPlayback || !hasEngineBeenInitialized()) {
+                return VariableSpeedStats.EMPTY;
             }
-            return mDuration;
+            int[] values = new int[VariableSpeedStats.NUMBER_OF_VALUES];
+            VariableSpeedNative.getStats(mEngine, values);
+            return new VariableSpeedStats(values);
         }
     }
 
     @Override
     public void pause() {
+        innerPause(ANY_GENERATION);
+    }
+
+    /**
+     * Pauses on the executor, so that the calling thread doesn't wait for the native engine
+     * to stop. Calls the {@link MediaPlayer.OnErrorListener} if pausing fails.
+     * <p>
+     * The executor must be able to run this alongside the playback it stops. The returned
+     * Future completes once playback has stopped, and may be cancelled, as it is by
+     * {@link #reset()} and {@link #release()}, which stop playback themselves.
+     */
+    public Future<Void> pauseAsync() {
+        final int generation;
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            generation = mGeneration;
+        }
+        return submitPendingWork(new Callable<Void>() {
+            @Override
+            public Void call() {
+                innerPause(generation);
+                return null;
+            }
+        }, false);
+    }
+
+    private void innerPause(int expectedGeneration) {
         synchronized (lock) {
+            checkGeneration(expectedGeneration);
             check(!mHasBeenReleased, "has been released, reset before use");
         }
         stopCurrentPlayback();
@@ -383,12 +929,84 @@ public class VariableSpeed implements MediaPlayerProxy {
             // TODO: This too is wrong, once we've started preparing the variable speed set
             // will not be enough.
             if (mHasStartedPlayback) {
-                VariableSpeedNative.setVariableSpeed(rate);
+                VariableSpeedNative.setVariableSpeed(mEngine, rate);
             }
             mCurrentPlaybackRate = rate;
         }
     }
 
+    /**
+     * Keeps the decoded audio of the data source in the given cache, so that playing it
+     * again does not decode it again, or stops caching if the cache is null.
+     * <p>
+     * This takes effect the next time the engine is started.
+     */
+    public void setDecodedPcmCache(DecodedPcmCache cache) {
+        synchronized (lock) {
+            mDecodedPcmCache = cache;
+        }
+    }
+
+    /**
+     * Chooses whether the engine time-scales audio in 16-bit integer arithmetic instead of
+     * floating point, which is cheaper on devices without a fast floating point unit.
+     * <p>
+     * This takes effect the next time the engine is started, which means after the next
+     * {@link #reset()} if playback has already begun.
+     */
+    public void setFixedPointProcessing(boolean fixedPointProcessing) {
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            mFixedPointProcessing = fixedPointProcessing;
+        }
+    }
+
+    /**
+     * Sets the listener to receive the level envelope of the data source, in buckets of
+     * bucketMillis each, while it plays, or clears it if listener is null.
+     * <p>
+     * This takes effect the next time the engine is started, which means after the next
+     * {@link #reset()} if playback has already begun.
+     */
+    public void setWaveformListener(WaveformListener listener, int bucketMillis) {
+        Preconditions.checkArgument(listener == null || bucketMillis > 0,
+                "bucketMillis must be positive");
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            mWaveformListener = listener;
+            mWaveformBucketMillis = bucketMillis;
+        }
+    }
+
+    /**
+     * Chooses whether the engine shortens long pauses, so that recorded speech takes less
+     * time to listen to. {@link #getDuration()}, {@link #getCurrentPosition()} and
+     * {@link #seekTo(int)} still refer to the audio as recorded.
+     * <p>
+     * This takes effect the next time the engine is started, which means after the next
+     * {@link #reset()} if playback has already begun.
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            mSkipSilence = skipSilence;
+        }
+    }
+
+    /**
+     * Chooses whether the engine adds buffering when playback underruns or the audio output
+     * runs late, and gives it back once playback has been steady for a while.
+     * <p>
+     * This takes effect the next time the engine is started, which means after the next
+     * {@link #reset()} if playback has already begun.
+     */
+    public void setAdaptiveBuffering(boolean adaptiveBuffering) {
+        synchronized (lock) {
+            check(!mHasBeenReleased, "has been released, reset before use");
+            mAdaptiveBuffering = adaptiveBuffering;
+        }
+    }
+
     private void check(boolean condition, String exception) {
         if (!condition) {
             throw new IllegalStateException(exception);
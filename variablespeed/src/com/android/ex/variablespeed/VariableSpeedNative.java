@@ -22,13 +22,16 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 
-import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 
 /**
  * Provides all the native calls through to the underlying audio library.
  * <p>
+ * Each engine is identified by the handle returned from
+ * {@link #initializeEngine(EngineParameters)}, which must eventually be passed to
+ * {@link #shutdownEngine(long)}. Separate engines are independent of one another.
+ * <p>
  * You should not use this class directly. Prefer to use the {@link VariableSpeed}
  * class instead.
  */
@@ -37,56 +40,226 @@ import java.lang.reflect.Field;
         System.loadLibrary("variablespeed");
     }
 
-    /*package*/ static boolean playFromContext(Context context, Uri uri)
+    /*package*/ static void playFromContext(long engine, Context context, Uri uri)
+            throws FileNotFoundException {
+        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        try {
+            playAssetFileDescriptor(engine, afd);
+        } finally {
+            MoreCloseables.closeQuietly(afd);
+        }
+    }
+
+    /**
+     * Queues the content at the given uri to play after everything the engine is already
+     * playing. Unlike {@link #playFromContext(long, Context, Uri)} this returns at once, so
+     * the returned descriptor must be kept open until the engine has finished.
+     *
+     * @return the open descriptor
+     */
+    /*package*/ static AssetFileDescriptor queueFromContext(long engine, Context context,
+            Uri uri, int startMillis) throws FileNotFoundException {
+        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        queueAssetFileDescriptor(engine, afd, startMillis);
+        return afd;
+    }
+
+    /**
+     * Returns the duration in milliseconds of the content at the given uri, or -1 if it
+     * could not be determined.
+     */
+    /*package*/ static int probeDurationFromContext(Context context, Uri uri)
+            throws FileNotFoundException {
+        AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        try {
+            return probeAssetFileDescriptorDuration(afd);
+        } finally {
+            MoreCloseables.closeQuietly(afd);
+        }
+    }
+
+    /**
+     * Returns a signature of the content at the given uri, made from the size and the time
+     * of the last modification of the file it is opened from, or null if it is not opened
+     * from a regular file. The signature changes whenever the content does.
+     */
+    /*package*/ static String getContentSignature(Context context, Uri uri)
             throws FileNotFoundException {
         AssetFileDescriptor afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
         try {
-            FileDescriptor fileDescriptor = afd.getFileDescriptor();
-            Field descriptorField = fileDescriptor.getClass().getDeclaredField("descriptor");
-            descriptorField.setAccessible(true);
-            int fd = descriptorField.getInt(fileDescriptor);
-            VariableSpeedNative.playFileDescriptor(fd, afd.getStartOffset(), afd.getLength());
-            return true;
-        } catch (SecurityException e) {
-            // Fall through.
-        } catch (NoSuchFieldException e) {
-            // Fall through.
-        } catch (IllegalArgumentException e) {
-            // Fall through.
-        } catch (IllegalAccessException e) {
-            // Fall through.
+            long size = afd.getParcelFileDescriptor().getStatSize();
+            long modifiedMillis =
+                    getFileDescriptorModifiedMillis(afd.getParcelFileDescriptor().getFd());
+            if (size < 0 || modifiedMillis < 0) {
+                return null;
+            }
+            return afd.getStartOffset() + ":" + afd.getDeclaredLength() + ":" + size + ":"
+                    + modifiedMillis;
         } finally {
             MoreCloseables.closeQuietly(afd);
         }
-        return false;
     }
 
-    /*package*/ static native void playUri(String uri);
+    /**
+     * Returns the time in milliseconds that the file the descriptor is open on was last
+     * modified, or -1 if it is not a regular file.
+     */
+    private static native long getFileDescriptorModifiedMillis(int fd);
+
+    /**
+     * Plays the content of the descriptor, whose number is read through
+     * {@link android.os.ParcelFileDescriptor#getFd()}. The caller keeps ownership of the
+     * descriptor, and must keep it open until playback has finished.
+     */
+    /*package*/ static void playAssetFileDescriptor(long engine, AssetFileDescriptor afd) {
+        playFileDescriptor(engine, afd.getParcelFileDescriptor().getFd(),
+                afd.getStartOffset(), afd.getLength());
+    }
+
+    /*package*/ static void queueAssetFileDescriptor(long engine, AssetFileDescriptor afd,
+            int startMillis) {
+        queueFileDescriptor(engine, afd.getParcelFileDescriptor().getFd(),
+                afd.getStartOffset(), afd.getLength(), startMillis);
+    }
+
+    /*package*/ static int probeAssetFileDescriptorDuration(AssetFileDescriptor afd) {
+        return probeFileDescriptorDuration(afd.getParcelFileDescriptor().getFd(),
+                afd.getStartOffset(), afd.getLength());
+    }
+
+    /*package*/ static native void playUri(long engine, String uri);
+
+    /*package*/ static native void playFileDescriptor(long engine, int fd, long offset, long length);
+
+    /**
+     * Plays the PCM that the engine cached in the given file on an earlier play, rather
+     * than decoding the source again.
+     *
+     * @return false, having played nothing, if the file could not be read
+     */
+    /*package*/ static native boolean playCachedPcm(long engine, String path);
+
+    /**
+     * Returns whether the byte at offset in a direct buffer lies at an address that 16-bit
+     * samples can be read from in place. The position of a sliced buffer says nothing
+     * about this, since the slice may start anywhere in memory.
+     */
+    /*package*/ static native boolean isSampleAligned(ByteBuffer buffer, int offset);
+
+    /**
+     * Plays interleaved 16-bit samples in native byte order, held in length bytes of a
+     * direct buffer from offset, which must stay unchanged until playback ends.
+     *
+     * @return false, having played nothing, if the samples are not aligned in memory
+     */
+    /*package*/ static native boolean playPcmBuffer(long engine, ByteBuffer buffer, int offset,
+            int length, int sampleRate, int channelCount);
+
+    /**
+     * Plays a 16-bit PCM WAV file held in length bytes of a direct buffer from offset, which
+     * must stay unchanged until playback ends.
+     *
+     * @return false, having played nothing, if the buffer does not hold such a file
+     */
+    /*package*/ static native boolean playWavBuffer(long engine, ByteBuffer buffer, int offset,
+            int length);
+
+    /**
+     * Has the next {@link #playUri(long, String)} or
+     * {@link #playFileDescriptor(long, int, long, long)} on the engine write the PCM it
+     * decodes to the given file, once the whole source has been decoded.
+     */
+    /*package*/ static native void cacheDecodedPcm(long engine, String path);
+
+    /**
+     * Has the engine call the listener with the level envelope of the source it plays next,
+     * in buckets of bucketMillis each, from the thread that plays it.
+     */
+    /*package*/ static native void setWaveformListener(long engine, WaveformListener listener,
+            int bucketMillis);
+
+    /**
+     * Queues a source to follow, without a gap, the one the engine is playing. startMillis
+     * is where it begins on the timeline the engine reports positions on, which runs through
+     * every source it plays.
+     */
+    /*package*/ static native void queueUri(long engine, String uri, int startMillis);
+
+    /*package*/ static native void queueFileDescriptor(long engine, int fd, long offset,
+            long length, int startMillis);
+
+    /*package*/ static native void setVariableSpeed(long engine, float speed);
+
+    /*package*/ static native void startPlayback(long engine);
+
+    /*package*/ static native void stopPlayback(long engine);
+
+    /*package*/ static native void shutdownEngine(long engine);
 
-    /*package*/ static native void playFileDescriptor(int fd, long offset, long length);
+    /**
+     * Moves playback of a running engine to the given position, without
+     * stopping the engine.
+     */
+    /*package*/ static native void seekTo(long engine, int positionMillis);
 
-    /*package*/ static native void setVariableSpeed(float speed);
+    /*package*/ static native int getTotalDuration(long engine);
 
-    /*package*/ static native void startPlayback();
+    /**
+     * Fills values with the engine's {@link VariableSpeedStats#NUMBER_OF_VALUES} counters,
+     * in the order {@link VariableSpeedStats} expects.
+     */
+    /*package*/ static native void getStats(long engine, int[] values);
 
-    /*package*/ static native void stopPlayback();
+    /*package*/ static native int probeUriDuration(String uri);
 
-    /*package*/ static native void shutdownEngine();
+    /*package*/ static native int probeFileDescriptorDuration(int fd, long offset, long length);
 
-    /*package*/ static native int getCurrentPosition();
+    /**
+     * Returns the duration in milliseconds of the 16-bit PCM WAV file held in length bytes
+     * of a direct buffer from offset, or -1 if it does not hold such a file.
+     */
+    /*package*/ static native int probeWavBufferDuration(ByteBuffer buffer, int offset,
+            int length);
 
-    /*package*/ static native int getTotalDuration();
+    /**
+     * Renders a 16-bit PCM wav file into another wav file, speeding up or slowing down
+     * at the given input positions.
+     *
+     * @return the number of frames written, or -1 on failure
+     */
+    /*package*/ static native long renderWavFile(String input, String output,
+            float initialSpeed, int[] changePositionsMillis, float[] changeSpeeds,
+            float windowDuration, float windowOverlapDuration);
 
-    /*package*/ static void initializeEngine(EngineParameters params) {
-        initializeEngine(params.getTargetFrames(),
+    /**
+     * Creates an engine.
+     * <p>
+     * While it plays, the engine stores the position in milliseconds of the audio it has
+     * played into the first int of playedPosition, which must be a direct buffer in native
+     * byte order, and may be read at any time without calling into the engine. The engine
+     * holds a reference to the buffer until it is shut down, so the buffer stays valid for
+     * as long as the engine may write to it, even once the caller has dropped it.
+     */
+    /*package*/ static long initializeEngine(EngineParameters params,
+            ByteBuffer playedPosition) {
+        return initializeEngine(params.getTargetFrames(),
                 params.getWindowDuration(), params.getWindowOverlapDuration(),
                 params.getMaxPlayBufferCount(), params.getInitialRate(),
                 params.getDecodeBufferInitialSize(), params.getDecodeBufferMaxSize(),
-                params.getStartPositionMillis(), params.getAudioStreamType());
+                params.getStartPositionMillis(), params.getAudioStreamType(),
+                params.getFixedPointProcessing(), params.getAdaptiveBuffering(),
+                params.getPlayBufferCountLowerBound(), params.getPlayBufferCountUpperBound(),
+                params.getDecodeBufferMaxSizeLowerBound(),
+                params.getDecodeBufferMaxSizeUpperBound(), params.getSkipSilence(),
+                params.getSilenceThreshold(), params.getMaxPauseMillis(), playedPosition);
     }
 
-    private static native void initializeEngine(int targetFrames,
+    private static native long initializeEngine(int targetFrames,
             float windowDuration, float windowOverlapDuration, int maxPlayBufferCount,
             float initialRate, int decodeBufferInitialSize, int decodeBufferMaxSize,
-            int startPositionMillis, int audioStreamType);
+            int startPositionMillis, int audioStreamType, boolean fixedPointProcessing,
+            boolean adaptiveBuffering, int playBufferCountLowerBound,
+            int playBufferCountUpperBound, int decodeBufferMaxSizeLowerBound,
+            int decodeBufferMaxSizeUpperBound, boolean skipSilence, int silenceThreshold,
+            int maxPauseMillis, ByteBuffer playedPosition);
 }
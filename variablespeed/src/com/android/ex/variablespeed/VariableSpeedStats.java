@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.variablespeed;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A snapshot of the counters kept by the native engine while it plays, for diagnosing
+ * stuttering playback.
+ * <p>
+ * The counters are cumulative from the start of playback, except for the current decode
+ * buffer size. They are read without locking, so may be a few updates apart from one
+ * another.
+ */
+@Immutable
+public final class VariableSpeedStats {
+    // The order of the values written by the native engine, see PipelineStats.
+    private static final int UNDERRUN_COUNT = 0;
+    private static final int DECODE_BUFFER_BYTES = 1;
+    private static final int DECODE_BUFFER_HIGH_WATER_BYTES = 2;
+    private static final int PROCESS_COUNT = 3;
+    private static final int PROCESS_MEAN_MICROS = 4;
+    private static final int PROCESS_MAX_MICROS = 5;
+    private static final int DECODE_CALLBACK_COUNT = 6;
+    private static final int DECODE_CALLBACK_MEAN_MICROS = 7;
+    private static final int DECODE_CALLBACK_MAX_MICROS = 8;
+    /*package*/ static final int NUMBER_OF_VALUES = 9;
+
+    /*package*/ static final VariableSpeedStats EMPTY =
+            new VariableSpeedStats(new int[NUMBER_OF_VALUES]);
+
+    private final int[] mValues;
+
+    /*package*/ VariableSpeedStats(int[] values) {
+        mValues = values.clone();
+    }
+
+    /** The number of times the audio player ran out of audio before the end. */
+    public int getUnderrunCount() {
+        return mValues[UNDERRUN_COUNT];
+    }
+
+    /** The number of bytes of decoded audio waiting to be time scaled. */
+    public int getDecodeBufferBytes() {
+        return mValues[DECODE_BUFFER_BYTES];
+    }
+
+    /** The largest number of bytes of decoded audio ever waiting to be time scaled. */
+    public int getDecodeBufferHighWaterBytes() {
+        return mValues[DECODE_BUFFER_HIGH_WATER_BYTES];
+    }
+
+    /** The number of blocks of audio passed through the time scaler. */
+    public int getProcessCount() {
+        return mValues[PROCESS_COUNT];
+    }
+
+    /** The mean time taken by the time scaler for each block of audio. */
+    public int getAverageProcessMicros() {
+        return mValues[PROCESS_MEAN_MICROS];
+    }
+
+    /** The longest time taken by the time scaler for one block of audio. */
+    public int getMaxProcessMicros() {
+        return mValues[PROCESS_MAX_MICROS];
+    }
+
+    /** The number of buffers of audio delivered by the decoder. */
+    public int getDecodeCallbackCount() {
+        return mValues[DECODE_CALLBACK_COUNT];
+    }
+
+    /**
+     * The mean time between the decoder delivering a buffer and the buffer being returned
+     * to it, which includes waiting for the decode buffer to have room.
+     */
+    public int getAverageDecodeCallbackMicros() {
+        return mValues[DECODE_CALLBACK_MEAN_MICROS];
+    }
+
+    /** The longest time a buffer delivered by the decoder took to be returned to it. */
+    public int getMaxDecodeCallbackMicros() {
+        return mValues[DECODE_CALLBACK_MAX_MICROS];
+    }
+
+    @Override
+    public String toString() {
+        return "VariableSpeedStats{underruns=" + getUnderrunCount()
+                + ", decodeBufferBytes=" + getDecodeBufferBytes()
+                + ", decodeBufferHighWaterBytes=" + getDecodeBufferHighWaterBytes()
+                + ", processCount=" + getProcessCount()
+                + ", averageProcessMicros=" + getAverageProcessMicros()
+                + ", maxProcessMicros=" + getMaxProcessMicros()
+                + ", decodeCallbackCount=" + getDecodeCallbackCount()
+                + ", averageDecodeCallbackMicros=" + getAverageDecodeCallbackMicros()
+                + ", maxDecodeCallbackMicros=" + getMaxDecodeCallbackMicros() + "}";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.variablespeed;
+
+/**
+ * Receives the level envelope of the audio a {@link VariableSpeed} plays, built from the
+ * audio as it is decoded, so that a waveform can be drawn without decoding it a second time.
+ * <p>
+ * The envelope is divided into buckets of a fixed duration, numbered from the start of the
+ * data source, so that bucket i covers the milliseconds from i times the bucket duration.
+ * Buckets arrive in order as playback proceeds, a few at a time. A seek continues the
+ * envelope from the new position, so some buckets may never arrive, and others may arrive
+ * again. A bucket at the edge of a seek, or at the end, covers only the audio that was
+ * played from it.
+ * <p>
+ * Only the data source has an envelope, not the sources queued after it.
+ */
+public interface WaveformListener {
+    /**
+     * Called on the playback thread with the buckets completed since the last call, so it
+     * should return quickly, and hand the levels to another thread to be drawn. The arrays
+     * are of equal length, and belong to the listener.
+     *
+     * @param firstBucket the number of the first of the buckets
+     * @param minimums the lowest 16-bit sample in each bucket, across all channels
+     * @param maximums the highest 16-bit sample in each bucket, across all channels
+     * @param rootMeanSquares the root mean square level of each bucket, across all channels
+     */
+    void onWaveform(int firstBucket, short[] minimums, short[] maximums,
+            short[] rootMeanSquares);
+}
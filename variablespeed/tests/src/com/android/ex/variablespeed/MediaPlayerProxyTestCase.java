@@ -20,18 +20,25 @@ import com.google.common.io.Closeables;
 
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.res.AssetManager;
+import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.VoicemailContract;
 import android.test.InstrumentationTestCase;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -237,6 +244,27 @@ public abstract class MediaPlayerProxyTestCase extends InstrumentationTestCase {
         assertEquals(3000, mPlayer.getCurrentPosition(), ERROR_TOLERANCE_MILLIS);
     }
 
+    public void testGetCurrentPosition_SeekBackwardsDuringPlayback() throws Exception {
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        mPlayer.prepare();
+        mPlayer.start();
+        Thread.sleep(1500);
+        mPlayer.seekTo(500);
+        assertTrue(mPlayer.isPlaying());
+        Thread.sleep(1000);
+        assertEquals(1500, mPlayer.getCurrentPosition(), ERROR_TOLERANCE_MILLIS);
+    }
+
+    public void testGetCurrentPosition_DuringPlaybackAtDoubleSpeed() throws Exception {
+        setDataSourceFromContentProvider(mPlayer, "fake_voicemail.mp3", "audio/mp3");
+        mPlayer.prepare();
+        boolean supportsVariableSpeed = setVariableSpeedRateIfSupported(2.0f);
+        mPlayer.start();
+        Thread.sleep(2000);
+        assertEquals(supportsVariableSpeed ? 4000 : 2000, mPlayer.getCurrentPosition(),
+                ERROR_TOLERANCE_MILLIS);
+    }
+
     public void testSeekHalfWayBeforePlaying() throws Exception {
         setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
         mPlayer.prepare();
@@ -497,17 +525,271 @@ public abstract class MediaPlayerProxyTestCase extends InstrumentationTestCase {
         setVariableSpeedRateIfSupported(1.35f);
     }
 
+    public void testGetStats_CountsWorkDoneDuringPlayback() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        mPlayer.prepare();
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+        VariableSpeedStats stats = player.getStats();
+        assertTrue(stats.toString(), stats.getProcessCount() > 0);
+        assertTrue(stats.toString(), stats.getDecodeCallbackCount() > 0);
+        assertTrue(stats.toString(), stats.getDecodeBufferHighWaterBytes() > 0);
+    }
+
+    public void testEnqueueDataSource_PlaysBothBeforeCompleting() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        mPlayer.prepare();
+        int firstDuration = mPlayer.getDuration();
+        player.enqueueDataSource(getInstrumentation().getTargetContext(),
+                getTestContentUri("quick_test_recording.mp3", "audio/mp3"));
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        Thread.sleep(firstDuration + firstDuration / 2);
+        assertTrue(mPlayer.isPlaying());
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+    }
+
+    public void testPrepareAsyncThenStartAsync() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        final CountDownLatch prepared = new CountDownLatch(1);
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                prepared.countDown();
+            }
+        });
+        player.prepareAsync();
+        assertTrue(prepared.await(5, TimeUnit.SECONDS));
+        assertTrue(mPlayer.getDuration() > 0);
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        player.startAsync().get(5, TimeUnit.SECONDS);
+        assertTrue(mPlayer.isPlaying());
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+    }
+
+    public void testPauseAsyncThenResetAsync_StopPlaybackWithoutCallback() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        mPlayer.prepare();
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        Thread.sleep(500);
+        player.pauseAsync().get(5, TimeUnit.SECONDS);
+        assertFalse(mPlayer.isPlaying());
+        player.resetAsync().get(5, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        mCompletionListener.assertNoMoreCallbacks();
+        // Usable again once the reset has completed.
+        setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+        mPlayer.prepare();
+        player.releaseAsync().get(5, TimeUnit.SECONDS);
+        assertFalse(mPlayer.isReadyToPlay());
+    }
+
+    public void testFixedPointProcessing_PlaysAtDoubleSpeed() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        player.setFixedPointProcessing(true);
+        player.setDataSource(createWavBuffer(8000, 3000));
+        mPlayer.prepare();
+        player.setVariableSpeed(2.0f);
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        long startMillis = SystemClock.elapsedRealtime();
+        mPlayer.start();
+        Thread.sleep(1000);
+        // The position moves through the source at twice the rate of the clock.
+        assertEquals(2000, mPlayer.getCurrentPosition(), ERROR_TOLERANCE_MILLIS / 2);
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+        long playedMillis = SystemClock.elapsedRealtime() - startMillis;
+        // Three seconds of tone take one and a half to play, all of it.
+        assertEquals(1500, playedMillis, ERROR_TOLERANCE_MILLIS / 2);
+        assertEquals(3000, mPlayer.getCurrentPosition(), ERROR_TOLERANCE_MILLIS / 2);
+    }
+
+    public void testAdaptiveBuffering_SeekWhilePlayingReplaysWithoutUnderruns() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        player.setAdaptiveBuffering(true);
+        player.setDataSource(createWavBuffer(8000, 3000));
+        mPlayer.prepare();
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        Thread.sleep(1500);
+        mPlayer.seekTo(0);
+        long seekMillis = SystemClock.elapsedRealtime();
+        Thread.sleep(500);
+        assertEquals(500, mPlayer.getCurrentPosition(), ERROR_TOLERANCE_MILLIS / 2);
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+        // Playing on from the start, the whole source is heard again after the seek.
+        assertEquals(3000, SystemClock.elapsedRealtime() - seekMillis, ERROR_TOLERANCE_MILLIS);
+        // A seek is not an underrun, and any real one grows the buffering so that it does not
+        // happen again.
+        VariableSpeedStats stats = player.getStats();
+        assertTrue(stats.toString(), stats.getUnderrunCount() <= 1);
+    }
+
+    public void testWavBufferDataSource_PlaysToCompletion() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        player.setDataSource(createWavBuffer(8000, 1500));
+        mPlayer.prepare();
+        assertEquals(1500, mPlayer.getDuration(), ERROR_TOLERANCE_MILLIS);
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+    }
+
+    public void testWaveformListener_ReceivesEnvelopeOfWholeSource() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        final short[] maximums = new short[15];
+        final short[] rootMeanSquares = new short[15];
+        WaveformListener listener = new WaveformListener() {
+            @Override
+            public synchronized void onWaveform(int firstBucket, short[] minimumsOfBuckets,
+                    short[] maximumsOfBuckets, short[] rootMeanSquaresOfBuckets) {
+                System.arraycopy(maximumsOfBuckets, 0, maximums, firstBucket,
+                        maximumsOfBuckets.length);
+                System.arraycopy(rootMeanSquaresOfBuckets, 0, rootMeanSquares, firstBucket,
+                        rootMeanSquaresOfBuckets.length);
+            }
+        };
+        player.setWaveformListener(listener, 100);
+        player.setDataSource(createWavBuffer(8000, 1500));
+        mPlayer.prepare();
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+        synchronized (listener) {
+            for (int i = 0; i < maximums.length; ++i) {
+                // The tone has a peak of 8000, so a root mean square of 8000 / sqrt(2).
+                assertEquals(8000, maximums[i], 100);
+                assertEquals(5657, rootMeanSquares[i], 100);
+            }
+        }
+    }
+
+    public void testSkipSilence_LongPauseIsShortenedButDurationIsNot() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        player.setSkipSilence(true);
+        player.setDataSource(createWavBuffer(8000, 500, 3000, 500));
+        mPlayer.prepare();
+        assertEquals(4000, mPlayer.getDuration(), ERROR_TOLERANCE_MILLIS);
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.start();
+        // Played in full, it would take four seconds.
+        mCompletionListener.awaitOneCallback(3, TimeUnit.SECONDS);
+    }
+
+    public void testDecodedPcmCache_FirstPlayFillsCacheForSecond() throws Exception {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return;
+        }
+        File directory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "decoded_pcm_cache_test");
+        player.setDecodedPcmCache(new DecodedPcmCache(directory, 10 * 1024 * 1024));
+        try {
+            setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+            mPlayer.prepare();
+            mPlayer.setOnCompletionListener(mCompletionListener);
+            mPlayer.start();
+            mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+            assertEquals(1, directory.listFiles().length);
+            mPlayer.reset();
+            setDataSourceFromContentProvider(mPlayer, "quick_test_recording.mp3", "audio/mp3");
+            mPlayer.prepare();
+            mPlayer.start();
+            mCompletionListener.awaitOneCallback(10, TimeUnit.SECONDS);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Returns the player as a {@link VariableSpeed}, or null if it is some other media player.
+     * <p>
+     * Tests of what only {@link VariableSpeed} can do return early, having checked nothing, when
+     * this is null.
+     */
+    private VariableSpeed asVariableSpeedOrNull() {
+        return mPlayer instanceof VariableSpeed ? (VariableSpeed) mPlayer : null;
+    }
+
+    /**
+     * Returns a direct buffer holding a mono 16-bit PCM WAV file of a 440Hz tone, broken by
+     * silence if more than one duration is given, alternately of tone and silence.
+     */
+    private static ByteBuffer createWavBuffer(int sampleRate, int... durationsMillis) {
+        int frameCount = 0;
+        for (int durationMillis : durationsMillis) {
+            frameCount += sampleRate * durationMillis / 1000;
+        }
+        int dataSize = 2 * frameCount;
+        ByteBuffer wav = ByteBuffer.allocateDirect(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1);
+        wav.putInt(sampleRate).putInt(2 * sampleRate).putShort((short) 2).putShort((short) 16);
+        wav.put("data".getBytes()).putInt(dataSize);
+        int i = 0;
+        for (int segment = 0; segment < durationsMillis.length; ++segment) {
+            int end = i + sampleRate * durationsMillis[segment] / 1000;
+            for (; i < end; ++i) {
+                double tone = segment % 2 == 0 ? 8000 : 0;
+                wav.putShort((short) (tone * Math.sin(2 * Math.PI * 440 * i / sampleRate)));
+            }
+        }
+        wav.flip();
+        return wav;
+    }
+
     /**
      * If we have a variable speed media player proxy, set the variable speed rate.
      * <p>
      * If we don't have a variable speed media player proxy, this method will be a no-op.
+     *
+     * @return whether the rate was set
      */
-    private void setVariableSpeedRateIfSupported(float rate) {
-        if (mPlayer instanceof SingleThreadedMediaPlayerProxy) {
-            ((SingleThreadedMediaPlayerProxy) mPlayer).setVariableSpeed(rate);
-        } else if (mPlayer instanceof VariableSpeed) {
-            ((VariableSpeed) mPlayer).setVariableSpeed(rate);
+    private boolean setVariableSpeedRateIfSupported(float rate) {
+        VariableSpeed player = asVariableSpeedOrNull();
+        if (player == null) {
+            return false;
         }
+        player.setVariableSpeed(rate);
+        return true;
     }
 
     /**
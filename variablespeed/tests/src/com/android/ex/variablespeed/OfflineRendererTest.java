@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.variablespeed;
+
+import com.google.common.io.Closeables;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Tests for the {@link OfflineRenderer} class. */
+public class OfflineRendererTest extends InstrumentationTestCase {
+    private File mInput;
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File directory = getInstrumentation().getTargetContext().getCacheDir();
+        mInput = new File(directory, "offline_renderer_input.wav");
+        mOutput = new File(directory, "offline_renderer_output.wav");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mInput.delete();
+        mOutput.delete();
+        super.tearDown();
+    }
+
+    public void testRender_DoubleSpeedHalvesTheFrames() throws Exception {
+        writeSilentWavFile(mInput, 8000, 8000);
+        long frames = new OfflineRenderer(2.0f).render(mInput, mOutput);
+        assertEquals(4000, frames, 400);
+    }
+
+    public void testRender_ChunkLargerThanFileIsRejected() throws Exception {
+        copyAssetToFile("chunk_larger_than_file.wav", mInput);
+        // Skipping the chunk wrongly can loop forever, so give up on the render after a while.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return new OfflineRenderer(1.0f).render(mInput, mOutput);
+                }
+            }).get(5, TimeUnit.SECONDS);
+            fail("Should have thrown IOException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Writes a mono 16-bit PCM wav file of frameCount frames of silence. */
+    private static void writeSilentWavFile(File file, int sampleRate, int frameCount)
+            throws IOException {
+        int dataSize = 2 * frameCount;
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        header.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 1);
+        header.putInt(sampleRate).putInt(2 * sampleRate).putShort((short) 2)
+                .putShort((short) 16);
+        header.put("data".getBytes()).putInt(dataSize);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(header.array());
+            out.write(new byte[dataSize]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void copyAssetToFile(String assetFilename, File file) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = getInstrumentation().getContext().getAssets().open(assetFilename);
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            Closeables.closeQuietly(out);
+            Closeables.closeQuietly(in);
+        }
+    }
+}